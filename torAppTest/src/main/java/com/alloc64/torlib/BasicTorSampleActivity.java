@@ -92,8 +92,8 @@ public class BasicTorSampleActivity extends Activity
                     }, handler::post));
 
             this.httpClient = tor
-                    .createOkHttpClient(socksPort)
-                    .build();
+                    .getHttpClientFactory(socksPort)
+                    .getClient();
 
             bridge.getPdnsd()
                     .startPdnsd(new PdnsdConfig()
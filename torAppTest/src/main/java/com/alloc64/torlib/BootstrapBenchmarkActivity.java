@@ -0,0 +1,89 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.alloc64.torlib.benchmark.BootstrapBenchmark;
+import com.alloc64.torlib.benchmark.DirectoryStandIn;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares cold and seeded bootstrap using bundled assets "cached-microdesc-consensus" and "cached-microdescs".
+ */
+public class BootstrapBenchmarkActivity extends Activity
+{
+    private static final String TAG = BootstrapBenchmarkActivity.class.toString();
+    private static final int ROUNDS = 3;
+
+    // latency in ms, bandwidth in bytes per second
+    private static final long[][] DIRECTORY_PROFILES = new long[][]{
+            {500, 64 * 1024},
+            {150, 512 * 1024},
+            {50, 4 * 1024 * 1024}
+    };
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private TextView results;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_bootstrap_benchmark);
+
+        this.results = findViewById(R.id.benchmark_results);
+        findViewById(R.id.run_benchmark).setOnClickListener(v -> executor.execute(this::runBenchmark));
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        executor.shutdown();
+    }
+
+    private void runBenchmark()
+    {
+        BootstrapBenchmark benchmark = new BootstrapBenchmark(getAssets()::open, new File(getCacheDir(), "bootstrap-benchmark"));
+
+        for (long[] profile : DIRECTORY_PROFILES)
+        {
+            try (DirectoryStandIn directory = new DirectoryStandIn(getAssets()::open, profile[0], profile[1]))
+            {
+                for (int i = 0; i < ROUNDS; i++)
+                {
+                    for (boolean seeded : new boolean[]{false, true})
+                    {
+                        BootstrapBenchmark.Result result = benchmark.run(directory, seeded);
+
+                        Log.i(TAG, result.toString());
+                        appendResult(result.toString());
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                Log.e(TAG, "Benchmark failed: " + profile[0] + " ms, " + profile[1] + " B/s", e);
+                appendResult(profile[0] + " ms, " + profile[1] + " B/s failed: " + e);
+            }
+        }
+    }
+
+    private void appendResult(String result)
+    {
+        runOnUiThread(() -> results.append(result + "\n\n"));
+    }
+}
@@ -0,0 +1,96 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.alloc64.jni.TLJNIBridge;
+import com.alloc64.torlib.benchmark.Tun2SocksBenchmark;
+import com.alloc64.torlib.tun2socks.JavaTun2Socks;
+import com.alloc64.torlib.tun2socks.Tun2SocksEngine;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Tun2SocksBenchmarkActivity extends Activity
+{
+    private static final String TAG = Tun2SocksBenchmarkActivity.class.toString();
+    private static final long TRANSFER_BYTES = 64 * 1024 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private TextView results;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_tun2socks_benchmark);
+
+        this.results = findViewById(R.id.benchmark_results);
+        findViewById(R.id.run_benchmark).setOnClickListener(v -> executor.execute(this::runBenchmark));
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        executor.shutdown();
+    }
+
+    private void runBenchmark()
+    {
+        Tun2SocksConfig[] configs = new Tun2SocksConfig[]{
+                new Tun2SocksConfig(),
+                Tun2SocksConfig.createLowMemory(),
+                new Tun2SocksConfig()
+                        .setTcpWindow(4 * 1024)
+                        .setTcpSendBuffer(4 * 1024)
+                        .setSocksReceiveBufferSize(2 * 1024),
+                new Tun2SocksConfig()
+                        .setSocksReceiveBufferSize(64 * 1024)
+        };
+
+        Tun2SocksEngine[] engines = new Tun2SocksEngine[]{
+                TLJNIBridge.get().getTun2Socks(),
+                new JavaTun2Socks()
+        };
+
+        Tun2SocksBenchmark benchmark = new Tun2SocksBenchmark(TRANSFER_BYTES);
+
+        for (Tun2SocksEngine engine : engines)
+        {
+            for (Tun2SocksConfig config : configs)
+            {
+                for (Tun2SocksBenchmark.Direction direction : Tun2SocksBenchmark.Direction.values())
+                {
+                    try
+                    {
+                        Tun2SocksBenchmark.Result result = benchmark.run(engine, config, direction);
+
+                        Log.i(TAG, result.toString());
+                        appendResult(result.toString());
+                    }
+                    catch (Exception e)
+                    {
+                        Log.e(TAG, "Benchmark failed: " + direction + " " + config, e);
+                        appendResult(direction + " " + config + " failed: " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void appendResult(String result)
+    {
+        runOnUiThread(() -> results.append(result + "\n\n"));
+    }
+}
@@ -0,0 +1,335 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import com.alloc64.torlib.ConsensusSeed;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Times directory part of cold bootstrap with and without {@link ConsensusSeed}, against {@link DirectoryStandIn}.
+ * <p>
+ * Each run starts from an empty data directory. Seeded run installs the bundle first, then both runs do what tor does
+ * before it has enough directory info: fetch the consensus unless a live one is cached, then fetch
+ * microdescriptors listed in consensus and missing in cached-microdescs. Run ends when all of them are present.
+ * <p>
+ * Tor itself is not started, so circuit building, which is the same for both runs, is not part of the result.
+ */
+public class BootstrapBenchmark
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int TIMEOUT = 60 * 1000;
+    private static final int MAX_HEADER_LINES = 100;
+
+    public static class Result
+    {
+        private final boolean seeded;
+        private final ConsensusSeed.Result seedResult;
+        private final long latencyMillis;
+        private final long bytesPerSecond;
+        private final int microdescs;
+        private final int requests;
+        private final long bytes;
+        private final long durationNanos;
+
+        public Result(boolean seeded, ConsensusSeed.Result seedResult, long latencyMillis, long bytesPerSecond, int microdescs, int requests, long bytes, long durationNanos)
+        {
+            this.seeded = seeded;
+            this.seedResult = seedResult;
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+            this.microdescs = microdescs;
+            this.requests = requests;
+            this.bytes = bytes;
+            this.durationNanos = durationNanos;
+        }
+
+        public boolean isSeeded()
+        {
+            return seeded;
+        }
+
+        public ConsensusSeed.Result getSeedResult()
+        {
+            return seedResult;
+        }
+
+        public int getMicrodescs()
+        {
+            return microdescs;
+        }
+
+        public int getRequests()
+        {
+            return requests;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s, %d ms latency, %d KiB/s: %d ms (%d microdescriptors, %d requests, %d bytes fetched)",
+                    seeded ? "seeded (" + seedResult + ")" : "cold",
+                    latencyMillis,
+                    bytesPerSecond / 1024,
+                    durationNanos / 1000000,
+                    microdescs,
+                    requests,
+                    bytes);
+        }
+    }
+
+    private final ConsensusSeed.Source bundle;
+    private final File workDirectory;
+
+    private int batchSize = 92;
+    private int parallelRequests = 3;
+
+    public BootstrapBenchmark(ConsensusSeed.Source bundle, File workDirectory)
+    {
+        this.bundle = bundle;
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Maximum number of microdescriptors requested by single /tor/micro/d/ request.
+     */
+    public BootstrapBenchmark setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public BootstrapBenchmark setParallelRequests(int parallelRequests)
+    {
+        this.parallelRequests = parallelRequests;
+        return this;
+    }
+
+    public Result run(DirectoryStandIn directory, boolean seeded) throws Exception
+    {
+        File dataDirectory = new File(workDirectory, seeded ? "seeded" : "cold");
+
+        deleteRecursively(dataDirectory);
+
+        if (!dataDirectory.mkdirs())
+            throw new IOException("Unable to create " + dataDirectory);
+
+        directory.resetCounters();
+
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        ConsensusSeed.Result seedResult = seeded ? new ConsensusSeed(bundle).installInto(dataDirectory, now) : null;
+
+        File consensusFile = new File(dataDirectory, ConsensusSeed.CONSENSUS_FILE);
+        ConsensusSeed.Header header = consensusFile.exists() ? ConsensusSeed.Header.parse(consensusFile) : null;
+
+        if (header == null || !header.isLive(now))
+        {
+            try (OutputStream os = new FileOutputStream(consensusFile))
+            {
+                os.write(fetch(directory.getAddress(), DirectoryStandIn.CONSENSUS_PATH));
+            }
+        }
+
+        List<String> listed;
+
+        try (BufferedReader reader = open(consensusFile))
+        {
+            listed = Microdescs.listed(reader);
+        }
+
+        File microdescsFile = new File(dataDirectory, ConsensusSeed.MICRODESCS_FILE);
+        Set<String> missing = new HashSet<>(listed);
+
+        if (microdescsFile.exists())
+        {
+            try (BufferedReader reader = open(microdescsFile))
+            {
+                for (String microdesc : Microdescs.split(reader))
+                    missing.remove(Microdescs.digest(microdesc));
+            }
+        }
+
+        fetchMicrodescs(directory.getAddress(), new ArrayList<>(missing), microdescsFile, missing);
+
+        if (!missing.isEmpty())
+            throw new IOException("Directory did not serve " + missing.size() + " microdescriptors.");
+
+        long duration = System.nanoTime() - start;
+
+        return new Result(seeded, seedResult, directory.getLatencyMillis(), directory.getBytesPerSecond(),
+                listed.size(), directory.getRequests(), directory.getSentBytes(), duration);
+    }
+
+    /**
+     * Fetches microdescriptors in batches and appends them to cache file, digests are removed from pending as they arrive.
+     */
+    private void fetchMicrodescs(InetSocketAddress address, List<String> digests, File microdescsFile, Set<String> pending) throws Exception
+    {
+        if (digests.isEmpty())
+            return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelRequests);
+
+        try (OutputStream os = new FileOutputStream(microdescsFile, true))
+        {
+            List<Future<byte[]>> responses = new ArrayList<>();
+
+            for (int i = 0; i < digests.size(); i += batchSize)
+            {
+                StringBuilder path = new StringBuilder(DirectoryStandIn.MICRODESCS_PATH);
+
+                for (String digest : digests.subList(i, Math.min(i + batchSize, digests.size())))
+                {
+                    if (path.length() > DirectoryStandIn.MICRODESCS_PATH.length())
+                        path.append('-');
+
+                    path.append(digest);
+                }
+
+                path.append(".z");
+
+                String request = path.toString();
+                responses.add(executor.submit(() -> fetch(address, request)));
+            }
+
+            for (Future<byte[]> response : responses)
+            {
+                byte[] body = response.get();
+
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), ASCII)))
+                {
+                    for (String microdesc : Microdescs.split(reader))
+                    {
+                        if (pending.remove(Microdescs.digest(microdesc)))
+                            os.write(microdesc.getBytes(ASCII));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return inflated body of successful response
+     */
+    private static byte[] fetch(InetSocketAddress address, String path) throws IOException
+    {
+        try (Socket socket = new Socket())
+        {
+            socket.connect(address, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+
+            OutputStream os = socket.getOutputStream();
+            os.write(String.format(Locale.US, "GET %s HTTP/1.0\r\nHost: %s:%d\r\n\r\n", path, address.getHostString(), address.getPort()).getBytes(ASCII));
+            os.flush();
+
+            DataInputStream is = new DataInputStream(socket.getInputStream());
+            String statusLine = readLine(is);
+
+            if (!statusLine.startsWith("HTTP/1.") || !statusLine.contains(" 200 "))
+                throw new IOException("Unexpected response " + statusLine + " for " + path);
+
+            int contentLength = -1;
+            int lines = 0;
+
+            for (String line = readLine(is); !line.isEmpty(); line = readLine(is))
+            {
+                if (++lines > MAX_HEADER_LINES)
+                    throw new IOException("Too many headers.");
+
+                int idx = line.indexOf(':');
+
+                if (idx > 0 && "content-length".equalsIgnoreCase(line.substring(0, idx).trim()))
+                    contentLength = Integer.parseInt(line.substring(idx + 1).trim());
+            }
+
+            if (contentLength < 0)
+                throw new IOException("Missing Content-Length.");
+
+            byte[] body = new byte[contentLength];
+            is.readFully(body);
+
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body)))
+            {
+                return IOUtils.toByteArray(in);
+            }
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+
+        while ((c = is.read()) != '\n')
+        {
+            if (c == -1)
+                throw new IOException("Unexpected end of response.");
+
+            if (c != '\r')
+                sb.append((char) c);
+        }
+
+        return sb.toString();
+    }
+
+    private static BufferedReader open(File file) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), ASCII));
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+
+        file.delete();
+    }
+}
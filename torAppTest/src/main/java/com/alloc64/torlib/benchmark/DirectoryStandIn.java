@@ -0,0 +1,272 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import com.alloc64.torlib.ConsensusSeed;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Local directory cache stand-in, which serves the same bundle as {@link ConsensusSeed} over HTTP/1.0.
+ * <p>
+ * Supports the two requests client needs during bootstrap, "/tor/status-vote/current/consensus-microdesc.z"
+ * and "/tor/micro/d/D1-D2-...z", both deflate compressed. Every response is delayed by given latency
+ * and all responses share given bandwidth, so it stands in for directory fetches over a slow first hop.
+ */
+public class DirectoryStandIn implements Closeable
+{
+    public static final String CONSENSUS_PATH = "/tor/status-vote/current/consensus-microdesc.z";
+    public static final String MICRODESCS_PATH = "/tor/micro/d/";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final byte[] consensus;
+    private final Map<String, String> microdescs;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final Object link = new Object();
+
+    private long linkFreeNanos;
+    private volatile boolean closed;
+
+    public DirectoryStandIn(ConsensusSeed.Source bundle, long latencyMillis, long bytesPerSecond) throws IOException
+    {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+
+        try (InputStream is = bundle.open(ConsensusSeed.CONSENSUS_FILE))
+        {
+            this.consensus = deflate(IOUtils.toByteArray(is));
+        }
+
+        try (InputStream is = bundle.open(ConsensusSeed.MICRODESCS_FILE))
+        {
+            this.microdescs = new HashMap<>();
+
+            for (String microdesc : Microdescs.split(new BufferedReader(new InputStreamReader(is, ASCII))))
+                microdescs.put(Microdescs.digest(microdesc), microdesc);
+        }
+
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        Thread acceptThread = new Thread(this::acceptLoop, "DirectoryStandIn");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    public long getLatencyMillis()
+    {
+        return latencyMillis;
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    public int getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    public void resetCounters()
+    {
+        requests.set(0);
+        sentBytes.set(0);
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                clients.add(socket);
+
+                Thread clientThread = new Thread(() -> handleClient(socket), "DirectoryStandIn-client");
+                clientThread.setDaemon(true);
+                clientThread.start();
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleClient(Socket socket)
+    {
+        try
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            String requestLine = reader.readLine();
+
+            for (String line = requestLine; line != null && !line.isEmpty(); )
+                line = reader.readLine();
+
+            String[] request = requestLine != null ? requestLine.split(" ") : new String[0];
+            byte[] body = request.length == 3 && "GET".equals(request[0]) ? lookup(request[1]) : null;
+
+            requests.incrementAndGet();
+            Thread.sleep(latencyMillis);
+
+            OutputStream os = socket.getOutputStream();
+
+            if (body == null)
+            {
+                os.write("HTTP/1.0 404 Not found\r\nContent-Length: 0\r\n\r\n".getBytes(ASCII));
+            }
+            else
+            {
+                os.write(String.format(Locale.US, "HTTP/1.0 200 OK\r\nContent-Length: %d\r\n\r\n", body.length).getBytes(ASCII));
+                send(os, body);
+            }
+
+            os.flush();
+        }
+        catch (IOException e)
+        {
+            if (!closed)
+                e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            clients.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private byte[] lookup(String path) throws IOException
+    {
+        if (CONSENSUS_PATH.equals(path))
+            return consensus;
+
+        if (!path.startsWith(MICRODESCS_PATH) || !path.endsWith(".z"))
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+
+        for (String digest : path.substring(MICRODESCS_PATH.length(), path.length() - 2).split("-"))
+        {
+            String microdesc = microdescs.get(digest);
+
+            if (microdesc != null)
+                sb.append(microdesc);
+        }
+
+        return sb.length() > 0 ? deflate(sb.toString().getBytes(ASCII)) : null;
+    }
+
+    /**
+     * Writes body in chunks. Chunks of all connections share one link schedule,
+     * so parallel requests together do not exceed configured bandwidth.
+     */
+    private void send(OutputStream os, byte[] body) throws IOException, InterruptedException
+    {
+        for (int offset = 0; offset < body.length; offset += CHUNK_SIZE)
+        {
+            int length = Math.min(CHUNK_SIZE, body.length - offset);
+
+            if (bytesPerSecond > 0)
+            {
+                long due;
+
+                synchronized (link)
+                {
+                    this.linkFreeNanos = Math.max(System.nanoTime(), linkFreeNanos) + length * 1000000000L / bytesPerSecond;
+                    due = linkFreeNanos;
+                }
+
+                long wait = due - System.nanoTime();
+
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+
+            os.write(body, offset, length);
+            sentBytes.addAndGet(length);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+
+        try (DeflaterOutputStream os = new DeflaterOutputStream(bos))
+        {
+            os.write(data);
+        }
+
+        return bos.toByteArray();
+    }
+
+    @Override
+    public void close()
+    {
+        this.closed = true;
+
+        closeQuietly(serverSocket);
+
+        for (Socket socket : clients)
+            closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fake TUN device backed by datagram socketpair. One end is handed to tun2socks, the other one is driven
+ * by this class, which plays a single IPv4 TCP connection of an app.
+ * <p>
+ * TCP implementation is minimal: no window scaling, no SACK, go-back-N retransmission after {@link #RETRANSMIT_TIMEOUT}.
+ * It is good enough to push bulk data over lossless local link.
+ */
+public class FakeTunPeer implements Closeable
+{
+    private static final int IP_HEADER_LENGTH = 20;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int WINDOW = 0xFFFF;
+    private static final long RETRANSMIT_TIMEOUT = 200;
+    private static final long SYN_INTERVAL = 250;
+
+    private static final int FIN = 0x01;
+    private static final int SYN = 0x02;
+    private static final int RST = 0x04;
+    private static final int PSH = 0x08;
+    private static final int ACK = 0x10;
+
+    private final FileDescriptor fd = new FileDescriptor();
+    private final FileDescriptor tunFd = new FileDescriptor();
+    private final int mss;
+    private final byte[] sourceAddress;
+    private final byte[] destinationAddress;
+    private final int sourcePort;
+    private final int destinationPort;
+
+    private final byte[] out;
+    private final byte[] in;
+    private final byte[] payload;
+
+    private final int iss = 1000;
+    private int ipId;
+    private int rcvNxt;
+    private int peerWindow;
+    private boolean connected;
+
+    // parsed incoming segment
+    private int segSeq;
+    private int segAck;
+    private int segFlags;
+    private int segWindow;
+    private int segPayloadLength;
+
+    public FakeTunPeer(int mtu, Inet4Address source, int sourcePort, Inet4Address destination, int destinationPort) throws ErrnoException
+    {
+        this.mss = mtu - IP_HEADER_LENGTH - TCP_HEADER_LENGTH;
+        this.sourceAddress = source.getAddress();
+        this.sourcePort = sourcePort;
+        this.destinationAddress = destination.getAddress();
+        this.destinationPort = destinationPort;
+
+        this.out = new byte[mtu];
+        this.in = new byte[0xFFFF];
+        this.payload = new byte[mss];
+
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_DGRAM, 0, fd, tunFd);
+    }
+
+    /**
+     * @return file descriptor for tun2socks, ownership is transferred to caller
+     */
+    public int detachTunFd() throws IOException, ErrnoException
+    {
+        int result = ParcelFileDescriptor.dup(tunFd).detachFd();
+        Os.close(tunFd);
+
+        return result;
+    }
+
+    /**
+     * Sends SYN until tun2socks answers, so it may be called right after tun2socks was started.
+     */
+    public void connect(long timeoutMillis) throws ErrnoException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (!connected)
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new TimeoutException("No SYN-ACK received.");
+
+            send(SYN, iss, 0, 0, 0, true);
+
+            long synDeadline = System.currentTimeMillis() + SYN_INTERVAL;
+
+            while (System.currentTimeMillis() < synDeadline)
+            {
+                if (!receive((int) (synDeadline - System.currentTimeMillis())))
+                    continue;
+
+                if ((segFlags & (SYN | ACK)) == (SYN | ACK) && segAck == iss + 1)
+                {
+                    this.rcvNxt = segSeq + 1;
+                    this.peerWindow = segWindow;
+                    this.connected = true;
+
+                    send(ACK, iss + 1, rcvNxt, 0, 0, false);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends bytes to tun2socks and returns, once all of them are acknowledged.
+     */
+    public void upload(long bytes, long timeoutMillis) throws ErrnoException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long acked = 0;
+        long sent = 0;
+        long lastProgress = System.currentTimeMillis();
+
+        while (acked < bytes)
+        {
+            long now = System.currentTimeMillis();
+
+            if (now > deadline)
+                throw new TimeoutException("Acknowledged " + acked + " of " + bytes + " bytes.");
+
+            if (now - lastProgress > RETRANSMIT_TIMEOUT)
+            {
+                sent = acked;
+                lastProgress = now;
+            }
+
+            while (sent < bytes && sent - acked < peerWindow)
+            {
+                int length = (int) Math.min(Math.min(mss, bytes - sent), peerWindow - (sent - acked));
+                send(ACK | PSH, iss + 1 + (int) sent, rcvNxt, 0, length, false);
+                sent += length;
+            }
+
+            int timeout = 20;
+
+            while (receive(timeout))
+            {
+                timeout = 0;
+
+                if ((segFlags & RST) != 0)
+                    throw new IllegalStateException("Connection reset by tun2socks.");
+
+                if ((segFlags & ACK) == 0)
+                    continue;
+
+                int advance = segAck - (iss + 1 + (int) acked);
+
+                if (advance > 0 && advance <= sent - acked)
+                {
+                    acked += advance;
+                    lastProgress = System.currentTimeMillis();
+                }
+
+                this.peerWindow = segWindow;
+            }
+        }
+    }
+
+    /**
+     * Receives bytes from tun2socks, every in-order segment is acknowledged immediately.
+     */
+    public void download(long bytes, long timeoutMillis) throws ErrnoException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long received = 0;
+
+        while (received < bytes)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0)
+                throw new TimeoutException("Received " + received + " of " + bytes + " bytes.");
+
+            if (!receive((int) Math.min(remaining, 100)))
+                continue;
+
+            if ((segFlags & RST) != 0)
+                throw new IllegalStateException("Connection reset by tun2socks.");
+
+            if (segSeq == rcvNxt)
+            {
+                rcvNxt += segPayloadLength;
+                received += segPayloadLength;
+
+                if ((segFlags & FIN) != 0)
+                    rcvNxt++;
+            }
+
+            if (segPayloadLength > 0 || (segFlags & FIN) != 0)
+                send(ACK, iss + 1, rcvNxt, 0, 0, false);
+        }
+    }
+
+    /**
+     * Aborts connection, so tun2socks releases it immediately.
+     */
+    public void reset()
+    {
+        if (!connected)
+            return;
+
+        try
+        {
+            send(RST | ACK, iss + 1, rcvNxt, 0, 0, false);
+        }
+        catch (ErrnoException e)
+        {
+            e.printStackTrace();
+        }
+
+        this.connected = false;
+    }
+
+    private void send(int flags, int seq, int ack, int payloadOffset, int payloadLength, boolean mssOption) throws ErrnoException
+    {
+        int tcpHeaderLength = TCP_HEADER_LENGTH + (mssOption ? 4 : 0);
+        int totalLength = IP_HEADER_LENGTH + tcpHeaderLength + payloadLength;
+
+        ByteBuffer b = ByteBuffer.wrap(out);
+
+        // IPv4 header
+        b.put((byte) 0x45);
+        b.put((byte) 0);
+        b.putShort((short) totalLength);
+        b.putShort((short) ipId++);
+        b.putShort((short) 0x4000);
+        b.put((byte) 64);
+        b.put((byte) 6);
+        b.putShort((short) 0);
+        b.put(sourceAddress);
+        b.put(destinationAddress);
+        b.putShort(10, (short) checksum(0, out, 0, IP_HEADER_LENGTH));
+
+        // TCP header
+        b.putShort((short) sourcePort);
+        b.putShort((short) destinationPort);
+        b.putInt(seq);
+        b.putInt(ack);
+        b.put((byte) ((tcpHeaderLength / 4) << 4));
+        b.put((byte) flags);
+        b.putShort((short) WINDOW);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+
+        if (mssOption)
+        {
+            b.put((byte) 2);
+            b.put((byte) 4);
+            b.putShort((short) mss);
+        }
+
+        b.put(payload, payloadOffset, payloadLength);
+
+        int tcpLength = tcpHeaderLength + payloadLength;
+        int pseudo = sum(sourceAddress) + sum(destinationAddress) + 6 + tcpLength;
+        b.putShort(IP_HEADER_LENGTH + 16, (short) checksum(pseudo, out, IP_HEADER_LENGTH, tcpLength));
+
+        Os.write(fd, out, 0, totalLength);
+    }
+
+    /**
+     * Reads one TCP segment of our connection.
+     *
+     * @return false if nothing was received in given time
+     */
+    private boolean receive(int timeoutMillis) throws ErrnoException
+    {
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+
+        while (Os.poll(new StructPollfd[]{pollfd}, Math.max(0, timeoutMillis)) > 0)
+        {
+            int length = Os.read(fd, in, 0, in.length);
+
+            if (length < IP_HEADER_LENGTH || (in[0] & 0xF0) != 0x40 || in[9] != 6)
+                continue;
+
+            ByteBuffer b = ByteBuffer.wrap(in, 0, length);
+
+            int ipHeaderLength = (in[0] & 0x0F) * 4;
+            int totalLength = Math.min(b.getShort(2) & 0xFFFF, length);
+            int tcpOffset = ipHeaderLength;
+
+            if (totalLength < tcpOffset + TCP_HEADER_LENGTH || (b.getShort(tcpOffset + 2) & 0xFFFF) != sourcePort)
+                continue;
+
+            int tcpHeaderLength = ((in[tcpOffset + 12] & 0xF0) >> 4) * 4;
+
+            this.segSeq = b.getInt(tcpOffset + 4);
+            this.segAck = b.getInt(tcpOffset + 8);
+            this.segFlags = in[tcpOffset + 13] & 0x3F;
+            this.segWindow = b.getShort(tcpOffset + 14) & 0xFFFF;
+            this.segPayloadLength = totalLength - tcpOffset - tcpHeaderLength;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private static int sum(byte[] address)
+    {
+        return (((address[0] & 0xFF) << 8) | (address[1] & 0xFF)) + (((address[2] & 0xFF) << 8) | (address[3] & 0xFF));
+    }
+
+    private static int checksum(int initial, byte[] data, int offset, int length)
+    {
+        long sum = initial;
+
+        for (int i = 0; i < length - 1; i += 2)
+            sum += ((data[offset + i] & 0xFF) << 8) | (data[offset + i + 1] & 0xFF);
+
+        if ((length & 1) != 0)
+            sum += (data[offset + length - 1] & 0xFF) << 8;
+
+        while ((sum >> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+
+        return (int) (~sum & 0xFFFF);
+    }
+
+    @Override
+    public void close()
+    {
+        reset();
+
+        try
+        {
+            Os.close(fd);
+        }
+        catch (ErrnoException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
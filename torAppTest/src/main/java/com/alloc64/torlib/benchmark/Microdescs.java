@@ -0,0 +1,90 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import android.util.Base64;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microdescriptor helpers shared by {@link DirectoryStandIn} and {@link BootstrapBenchmark}.
+ */
+class Microdescs
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String ONION_KEY = "onion-key";
+    private static final String CONSENSUS_DIGEST = "m ";
+
+    /**
+     * Splits cached-microdescs or /tor/micro/d/ response into microdescriptors, annotations are dropped.
+     */
+    static List<String> split(BufferedReader reader) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        StringBuilder sb = null;
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.startsWith("@"))
+                continue;
+
+            if (line.startsWith(ONION_KEY))
+            {
+                if (sb != null)
+                    result.add(sb.toString());
+
+                sb = new StringBuilder();
+            }
+
+            if (sb != null)
+                sb.append(line).append('\n');
+        }
+
+        if (sb != null)
+            result.add(sb.toString());
+
+        return result;
+    }
+
+    /**
+     * @return digests listed by "m" lines of microdesc consensus
+     */
+    static List<String> listed(BufferedReader reader) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        String line;
+
+        while ((line = reader.readLine()) != null)
+            if (line.startsWith(CONSENSUS_DIGEST))
+                result.add(line.substring(CONSENSUS_DIGEST.length()).trim());
+
+        return result;
+    }
+
+    /**
+     * @return SHA-256 of microdescriptor in unpadded base64, as used by consensus and /tor/micro/d/ requests
+     */
+    static String digest(String microdesc)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(microdesc.getBytes(ASCII));
+            return Base64.encodeToString(digest, Base64.NO_PADDING | Base64.NO_WRAP);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
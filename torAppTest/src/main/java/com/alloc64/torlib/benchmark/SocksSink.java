@@ -0,0 +1,236 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local SOCKS5 stand-in used instead of tor. Accepts any CONNECT request without authentication.
+ * <p>
+ * Connections to the target port either count received bytes ({@link Mode#Drain}), or send given amount of bytes
+ * and close ({@link Mode#Source}). Other connections (e.g. udpgw) are accepted and drained silently.
+ */
+public class SocksSink implements Closeable
+{
+    public enum Mode
+    {
+        Drain,
+        Source
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final Mode mode;
+    private final long sourceBytes;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+
+    private volatile boolean closed;
+
+    public SocksSink(int targetPort, Mode mode, long sourceBytes) throws IOException
+    {
+        this.targetPort = targetPort;
+        this.mode = mode;
+        this.sourceBytes = sourceBytes;
+
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        Thread acceptThread = new Thread(this::acceptLoop, "SocksSink");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getReceivedBytes()
+    {
+        return receivedBytes.get();
+    }
+
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    public void awaitReceived(long bytes, long timeoutMillis) throws InterruptedException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (receivedBytes.get() < bytes)
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new TimeoutException("Received " + receivedBytes.get() + " of " + bytes + " bytes.");
+
+            Thread.sleep(5);
+        }
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                clients.add(socket);
+
+                Thread clientThread = new Thread(() -> handleClient(socket), "SocksSink-client");
+                clientThread.setDaemon(true);
+                clientThread.start();
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleClient(Socket socket)
+    {
+        try
+        {
+            socket.setTcpNoDelay(true);
+
+            DataInputStream is = new DataInputStream(socket.getInputStream());
+            OutputStream os = socket.getOutputStream();
+
+            int port = handshake(is, os);
+
+            if (port == targetPort && mode == Mode.Source)
+                source(os);
+            else
+                drain(is, port == targetPort);
+        }
+        catch (IOException e)
+        {
+            if (!closed)
+                e.printStackTrace();
+        }
+        finally
+        {
+            clients.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return destination port of CONNECT request
+     */
+    private int handshake(DataInputStream is, OutputStream os) throws IOException
+    {
+        if (is.readUnsignedByte() != 0x05)
+            throw new IOException("Unsupported SOCKS version.");
+
+        is.skipBytes(is.readUnsignedByte());
+        os.write(new byte[]{0x05, 0x00});
+
+        byte[] header = new byte[4];
+        is.readFully(header);
+
+        if (header[0] != 0x05 || header[1] != 0x01)
+            throw new IOException("Unsupported SOCKS command.");
+
+        switch (header[3])
+        {
+            case 0x01:
+                is.skipBytes(4);
+                break;
+
+            case 0x03:
+                is.skipBytes(is.readUnsignedByte());
+                break;
+
+            case 0x04:
+                is.skipBytes(16);
+                break;
+
+            default:
+                throw new IOException("Unsupported SOCKS address type.");
+        }
+
+        int port = is.readUnsignedShort();
+
+        os.write(new byte[]{0x05, 0x00, 0x00, 0x01, 0, 0, 0, 0, 0, 0});
+        os.flush();
+
+        return port;
+    }
+
+    private void drain(InputStream is, boolean count) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+
+        while ((read = is.read(buffer)) != -1)
+            if (count)
+                receivedBytes.addAndGet(read);
+    }
+
+    private void source(OutputStream os) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = (byte) i;
+
+        long remaining = sourceBytes;
+
+        while (remaining > 0)
+        {
+            int length = (int) Math.min(buffer.length, remaining);
+            os.write(buffer, 0, length);
+
+            remaining -= length;
+            sentBytes.addAndGet(length);
+        }
+
+        os.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        this.closed = true;
+
+        closeQuietly(serverSocket);
+
+        for (Socket socket : clients)
+            closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
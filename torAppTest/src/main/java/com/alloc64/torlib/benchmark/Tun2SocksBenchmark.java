@@ -0,0 +1,186 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.benchmark;
+
+import com.alloc64.jni.TLJNIBridge;
+import com.alloc64.torlib.Tun2SocksConfig;
+import com.alloc64.torlib.tun2socks.Tun2SocksEngine;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pushes bulk TCP through tun2socks without VPN and tor.
+ * <p>
+ * App side of the connection is played by {@link FakeTunPeer} over socketpair, SOCKS side by {@link SocksSink}.
+ * Native tun2socks is a process-wide singleton, so benchmark must not run while VPN is connected.
+ * Any {@link Tun2SocksEngine} can be benchmarked, e.g. {@link com.alloc64.torlib.tun2socks.JavaTun2Socks}.
+ */
+public class Tun2SocksBenchmark
+{
+    private static final String ROUTER_IP = "10.8.0.1";
+    private static final String CLIENT_IP = "10.8.0.2";
+    private static final String NETMASK = "255.255.255.0";
+    private static final String TARGET_IP = "192.0.2.1";
+    private static final int TARGET_PORT = 5001;
+    private static final int CLIENT_PORT = 40000;
+    private static final long TIMEOUT = 60 * 1000;
+
+    public enum Direction
+    {
+        Upload,
+        Download
+    }
+
+    public static class Result
+    {
+        private final String engine;
+        private final Tun2SocksConfig config;
+        private final Direction direction;
+        private final long bytes;
+        private final long durationNanos;
+        private final String stats;
+
+        public Result(String engine, Tun2SocksConfig config, Direction direction, long bytes, long durationNanos, String stats)
+        {
+            this.engine = engine;
+            this.config = config;
+            this.direction = direction;
+            this.bytes = bytes;
+            this.durationNanos = durationNanos;
+            this.stats = stats;
+        }
+
+        public String getEngine()
+        {
+            return engine;
+        }
+
+        public Tun2SocksConfig getConfig()
+        {
+            return config;
+        }
+
+        public Direction getDirection()
+        {
+            return direction;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+
+        /**
+         * @return throughput in MiB/s
+         */
+        public double getThroughput()
+        {
+            return (bytes / (1024.0 * 1024.0)) / (durationNanos / 1e9);
+        }
+
+        public String getStats()
+        {
+            return stats;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s %s %s: %.1f MiB/s (%d bytes in %d ms)\n%s",
+                    engine,
+                    direction,
+                    config,
+                    getThroughput(),
+                    bytes,
+                    durationNanos / 1000000,
+                    stats);
+        }
+    }
+
+    private final long transferBytes;
+
+    public Tun2SocksBenchmark(long transferBytes)
+    {
+        this.transferBytes = transferBytes;
+    }
+
+    public Result run(Tun2SocksConfig config, Direction direction) throws Exception
+    {
+        return run(TLJNIBridge.get().getTun2Socks(), config, direction);
+    }
+
+    public Result run(Tun2SocksEngine tun2Socks, Tun2SocksConfig config, Direction direction) throws Exception
+    {
+        if (tun2Socks.isInterfaceRunning())
+            throw new IllegalStateException("tun2socks is already running, disconnect VPN first.");
+
+        SocksSink.Mode mode = direction == Direction.Upload ? SocksSink.Mode.Drain : SocksSink.Mode.Source;
+
+        try (SocksSink sink = new SocksSink(TARGET_PORT, mode, transferBytes);
+             FakeTunPeer peer = new FakeTunPeer(config.getMtu(),
+                     (Inet4Address) InetAddress.getByName(CLIENT_IP), CLIENT_PORT,
+                     (Inet4Address) InetAddress.getByName(TARGET_IP), TARGET_PORT))
+        {
+            tun2Socks.createInterface(
+                    peer.detachTunFd(),
+                    ROUTER_IP,
+                    NETMASK,
+                    String.format(Locale.US, "127.0.0.1:%d", sink.getPort()),
+                    String.format(Locale.US, "%s:%d", ROUTER_IP, 7300),
+                    config);
+
+            try
+            {
+                peer.connect(TIMEOUT);
+
+                long start = System.nanoTime();
+
+                if (direction == Direction.Upload)
+                {
+                    peer.upload(transferBytes, TIMEOUT);
+                    sink.awaitReceived(transferBytes, TIMEOUT);
+                }
+                else
+                {
+                    peer.download(transferBytes, TIMEOUT);
+                }
+
+                long duration = System.nanoTime() - start;
+                String stats = tun2Socks instanceof TLJNIBridge.Tun2Socks ? ((TLJNIBridge.Tun2Socks) tun2Socks).getStats().toString() : "";
+
+                return new Result(tun2Socks.getClass().getSimpleName(), config, direction, transferBytes, duration, stats);
+            }
+            finally
+            {
+                peer.reset();
+                tun2Socks.destroyInterface();
+                awaitStopped(tun2Socks);
+            }
+        }
+    }
+
+    private static void awaitStopped(Tun2SocksEngine tun2Socks) throws InterruptedException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (tun2Socks.isInterfaceRunning())
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new TimeoutException("tun2socks did not stop.");
+
+            Thread.sleep(10);
+        }
+    }
+}
@@ -3,4 +3,5 @@
 -keep class com.alloc64.jni.TLJNIBridge {
     public native <methods>;
     public void a12(int, java.lang.String, java.lang.String);
+    public void a15(int[], java.lang.String[], java.lang.String[], int, int);
 }
\ No newline at end of file
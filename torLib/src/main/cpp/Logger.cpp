@@ -6,13 +6,14 @@
 
 #include <cstdarg>
 #include <cstddef>
-#include <vector>
 #include <cstdio>
+#include <cstring>
 
 #include <android/log.h>
 #include "Logger.h"
 
 Logger *Logger::instance = nullptr;
+std::atomic<int> Logger::minPriority{LOG_VERBOSE};
 
 void logFallback(LogPriority priority, const char *tag, const char *string) {
 #if ANDROID
@@ -31,6 +32,39 @@ void JNILogOverride(LogPriority priority, const char *tag, const char *msg, ...)
 
 JNILogPtr JNILog = JNILogOverride;
 
+/**
+ * Rewrites string in place into valid modified UTF-8, which NewStringUTF requires (CheckJNI aborts otherwise).
+ *
+ * Messages are truncated to fixed buffers by bytes, so the last character may be cut in the middle.
+ * Incomplete sequence at the end is dropped, other invalid bytes and 4-byte sequences,
+ * which modified UTF-8 encodes differently, are replaced by '?'.
+ */
+static void toModifiedUtf8(char *string) {
+    auto src = (unsigned char *) string;
+    auto dst = (unsigned char *) string;
+
+    while (*src != 0) {
+        unsigned char c = *src;
+        int length = c < 0x80 ? 1 : (c & 0xE0) == 0xC0 ? 2 : (c & 0xF0) == 0xE0 ? 3 : (c & 0xF8) == 0xF0 ? 4 : 0;
+        int valid = 1;
+
+        while (valid < length && (src[valid] & 0xC0) == 0x80)
+            valid++;
+
+        if (length > 0 && valid == length && length < 4) {
+            for (int i = 0; i < length; i++)
+                *dst++ = *src++;
+        } else if (length > 1 && src[valid] == 0) {
+            break;
+        } else {
+            *dst++ = '?';
+            src += length > 0 ? valid : 1;
+        }
+    }
+
+    *dst = 0;
+}
+
 void Logger::d(const char *tag, const char *msg, ...) {
     va_list ap;
     va_start(ap, msg);
@@ -76,41 +110,71 @@ void Logger::w(const char *tag, const char *msg, ...) {
 /**
  * Internal logging method, which transforms va_args into full string message.
  *
- * This method may be called from any thread, so any calls to managed world are made in separate thread via queue.
- *
+ * This method may be called from any thread, so any calls to managed world are made in separate thread via ring buffer.
+ * Messages below minimal priority are dropped before formatting.
  */
 void Logger::log(LogPriority priority, const char *tag, const char *msg, va_list args) {
-    auto temp = std::vector<char>{};
-    auto length = std::size_t{63};
+    if (priority < minPriority.load(std::memory_order_relaxed))
+        return;
 
-    while (temp.size() <= length) {
-        temp.resize(length + 1);
-        const auto status = std::vsnprintf(temp.data(), temp.size(), msg, args);
-        if (status < 0)
-            break;
+    char string[LOG_MESSAGE_SIZE];
 
-        length = static_cast<std::size_t>(status);
-    }
+    if (std::vsnprintf(string, sizeof(string), msg, args) < 0)
+        return;
 
-    auto string = temp.data();
     auto thiz = getInstance();
 
-    if (thiz != nullptr) {
-        thiz->enqueueLog(new LogEntry(priority, tag, string));
+    if (thiz != nullptr && thiz->isRunning()) {
+        thiz->enqueueLog(priority, tag, string);
     } else {
         logFallback(priority, tag, string);
     }
 }
 
-void Logger::enqueueLog(LogEntry *logEntry) {
+void Logger::enqueueLog(LogPriority priority, const char *tag, const char *msg) {
     {
         std::unique_lock<std::mutex> lock(this->mutex);
-        this->queue.push_front(logEntry);
+
+        if (this->ringSize >= LOG_RING_CAPACITY) {
+            this->droppedCount++;
+            return;
+        }
+
+        LogEntry &entry = this->ring[(this->ringHead + this->ringSize) % LOG_RING_CAPACITY];
+        entry.priority = priority;
+        strncpy(entry.tag, tag != nullptr ? tag : "", LOG_TAG_SIZE - 1);
+        entry.tag[LOG_TAG_SIZE - 1] = '\0';
+        strncpy(entry.msg, msg, LOG_MESSAGE_SIZE - 1);
+        entry.msg[LOG_MESSAGE_SIZE - 1] = '\0';
+
+        this->ringSize++;
     }
 
     this->condition.notify_one();
 }
 
+/**
+ * Blocks until there is at least one message, then moves up to capacity messages into batch.
+ */
+int Logger::drainLogs(LogEntry *target, int capacity, uint32_t *dropped) {
+    std::unique_lock<std::mutex> lock(this->mutex);
+    this->condition.wait(lock, [=] { return this->ringSize > 0 || !this->isRunning(); });
+
+    int count = 0;
+
+    while (this->ringSize > 0 && count < capacity) {
+        target[count++] = this->ring[this->ringHead];
+
+        this->ringHead = (this->ringHead + 1) % LOG_RING_CAPACITY;
+        this->ringSize--;
+    }
+
+    *dropped = this->droppedCount;
+    this->droppedCount = 0;
+
+    return count;
+}
+
 void Logger::setJNIBridgeInstance(JNIEnv *env, jobject instance) {
     auto thiz = getInstance();
 
@@ -120,6 +184,10 @@ void Logger::setJNIBridgeInstance(JNIEnv *env, jobject instance) {
         thiz->start();
 }
 
+void Logger::setMinPriority(JNIEnv *env, jobject thiz, jint priority) {
+    minPriority.store(priority, std::memory_order_relaxed);
+}
+
 void Logger::run() {
     if (jniBridgeInstance == nullptr)
         return;
@@ -133,32 +201,62 @@ void Logger::run() {
     vm->AttachCurrentThread(&env, nullptr);
 
     jclass clazz = env->GetObjectClass(jniBridgeInstance);
-    auto logMethod = env->GetMethodID(clazz, "a12",
-                                      "(ILjava/lang/String;Ljava/lang/String;)V");
+    auto logMethod = env->GetMethodID(clazz, "a15",
+                                      "([I[Ljava/lang/String;[Ljava/lang/String;II)V");
 
-    while (isRunning()) {
-        std::unique_lock<std::mutex> lock(this->mutex);
-        this->condition.wait(lock, [=] { return !this->queue.empty(); });
+    if (logMethod == nullptr)
+        env->ExceptionClear();
 
-        LogEntry *logEntry = this->queue.back();
-        this->queue.pop_back();
+    jclass stringClass = env->FindClass("java/lang/String");
 
-        if (logEntry == nullptr)
-            return;
+    // arrays are reused for every batch, Java side copies them before returning
+    auto priorities = (jintArray) env->NewGlobalRef(env->NewIntArray(LOG_BATCH_SIZE));
+    auto tags = (jobjectArray) env->NewGlobalRef(env->NewObjectArray(LOG_BATCH_SIZE, stringClass, nullptr));
+    auto messages = (jobjectArray) env->NewGlobalRef(env->NewObjectArray(LOG_BATCH_SIZE, stringClass, nullptr));
+
+    jint batchPriorities[LOG_BATCH_SIZE];
+
+    while (isRunning()) {
+        uint32_t dropped = 0;
+        int count = drainLogs(this->batch, LOG_BATCH_SIZE, &dropped);
+
+        if (count < 1 && dropped < 1)
+            continue;
 
         if (logMethod == nullptr) {
-            logFallback(logEntry->priority, logEntry->tag, logEntry->msg);
-        } else {
-            jstring jtag = env->NewStringUTF((const char *) logEntry->tag);
-            jstring jstring = env->NewStringUTF((const char *) logEntry->msg);
+            for (int i = 0; i < count; i++)
+                logFallback(batch[i].priority, batch[i].tag, batch[i].msg);
+
+            continue;
+        }
 
-            env->CallVoidMethod(jniBridgeInstance, logMethod, logEntry->priority, jtag, jstring);
+        for (int i = 0; i < count; i++) {
+            batchPriorities[i] = batch[i].priority;
+
+            toModifiedUtf8(batch[i].tag);
+            toModifiedUtf8(batch[i].msg);
+
+            jstring jtag = env->NewStringUTF(batch[i].tag);
+            jstring jmsg = env->NewStringUTF(batch[i].msg);
+
+            env->SetObjectArrayElement(tags, i, jtag);
+            env->SetObjectArrayElement(messages, i, jmsg);
 
             env->DeleteLocalRef(jtag);
-            env->DeleteLocalRef(jstring);
+            env->DeleteLocalRef(jmsg);
         }
+
+        env->SetIntArrayRegion(priorities, 0, count, batchPriorities);
+        env->CallVoidMethod(jniBridgeInstance, logMethod, priorities, tags, messages, count, (jint) dropped);
+
+        if (env->ExceptionCheck())
+            env->ExceptionClear();
     }
 
+    env->DeleteGlobalRef(priorities);
+    env->DeleteGlobalRef(tags);
+    env->DeleteGlobalRef(messages);
+
     vm->DetachCurrentThread();
 
     Thread::run();
@@ -7,26 +7,27 @@
 #ifndef LOGGER_H
 #define LOGGER_H
 
+#include <atomic>
 #include <mutex>
 #include <condition_variable>
-#include <deque>
 
 #include <jni.h>
 #include "JNIAware.h"
 #include "JNILogger.h"
 #include "Thread.h"
 
+// ring buffer capacity, messages logged while the buffer is full are dropped and counted
+#define LOG_RING_CAPACITY 512
+// max count of messages delivered to Java by single JNI call
+#define LOG_BATCH_SIZE 64
+#define LOG_TAG_SIZE 32
+#define LOG_MESSAGE_SIZE 512
+
 class LogEntry {
 public:
-    LogEntry(LogPriority priority, const char *tag, const char *msg) {
-        this->priority = priority;
-        this->tag = tag;
-        this->msg = msg;
-    }
-
     LogPriority priority;
-    const char *tag;
-    const char *msg;
+    char tag[LOG_TAG_SIZE];
+    char msg[LOG_MESSAGE_SIZE];
 };
 
 class Logger : public JNIAware, public Thread {
@@ -35,6 +36,7 @@ public:
     Logger(JavaVM *vm, JNIEnv *env) : JNIAware(vm, "com/alloc64/jni/TLJNIBridge",
                                                std::vector<JNINativeMethod>{
                                                        {"a13", "(Lcom/alloc64/jni/TLJNIBridge;)V", (void *) (Logger::setJNIBridgeInstance)},
+                                                       {"a16", "(I)V",                             (void *) (Logger::setMinPriority)},
                                                }, env) {
         this->instance = this;
     }
@@ -76,14 +78,25 @@ private:
 
     static void setJNIBridgeInstance(JNIEnv *env, jobject instance);
 
-    void enqueueLog(LogEntry *logEntry);
+    static void setMinPriority(JNIEnv *env, jobject thiz, jint priority);
+
+    void enqueueLog(LogPriority priority, const char *tag, const char *msg);
+
+    int drainLogs(LogEntry *batch, int capacity, uint32_t *dropped);
 
     jobject jniBridgeInstance = nullptr;
 
     std::mutex mutex;
     std::condition_variable condition;
-    std::deque<LogEntry*> queue;
 
+    LogEntry ring[LOG_RING_CAPACITY];
+    int ringHead = 0;
+    int ringSize = 0;
+    uint32_t droppedCount = 0;
+
+    LogEntry batch[LOG_BATCH_SIZE];
+
+    static std::atomic<int> minPriority;
 };
 
 #endif //LOGGER_H
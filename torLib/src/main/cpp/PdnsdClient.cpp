@@ -4,6 +4,8 @@
  * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
  ***********************************************************************/
 
+#include <cstdlib>
+#include <cstring>
 #include <pdnsd_client.h>
 
 #include "PdnsdClient.h"
@@ -12,7 +14,7 @@
 PdnsdClient *PdnsdClient::instance = nullptr;
 
 void PdnsdClient::startDnsd(JNIEnv *env, jobject thiz, jobjectArray argv) {
-    getInstance()->setArguments(argv);
+    getInstance()->setArguments(env, argv);
     getInstance()->start();
 }
 
@@ -20,9 +22,8 @@ void PdnsdClient::destroyPdnsd(JNIEnv *env, jobject thiz) {
     getInstance()->terminate();
 }
 
-void PdnsdClient::setArguments(jobjectArray argv) {
-    auto env = getJNIEnv();
-
+void PdnsdClient::setArguments(JNIEnv *env, jobjectArray argv) {
+    // env must be the one of calling thread, env cached in JNI_OnLoad is valid only on main thread
     int length = env->GetArrayLength(argv);
 
     for (int i = 0; i < length; i++) {
@@ -30,6 +31,7 @@ void PdnsdClient::setArguments(jobjectArray argv) {
         auto *rawString = env->GetStringUTFChars(string, nullptr);
         this->args.push_back(strdup(rawString));
         env->ReleaseStringUTFChars(string, rawString);
+        env->DeleteLocalRef(string);
     }
 }
 
@@ -43,7 +45,7 @@ void PdnsdClient::cleanup() {
     Thread::cleanup();
 
     for(auto &arg : this->args) {
-        delete arg;
+        free((void *) arg);
         arg = nullptr;
     }
 
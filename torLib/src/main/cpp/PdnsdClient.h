@@ -44,7 +44,7 @@ private:
 
     static PdnsdClient *instance;
 
-    void setArguments(jobjectArray pArray);
+    void setArguments(JNIEnv *env, jobjectArray pArray);
 
     std::vector<const char *> args;
 };
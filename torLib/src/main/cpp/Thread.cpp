@@ -10,24 +10,31 @@
 #define TAG "tl/Process"
 
 void Thread::start() {
-    if(isRunning()) {
+    bool expected = false;
+
+    if(!running.compare_exchange_strong(expected, true, std::memory_order_acq_rel)) {
         Logger::e(TAG, "Unable to start already running process in thread.");
         return;
     }
 
-    this->thread = new std::thread(&Thread::run, this);
+    std::thread(&Thread::run, this).detach();
 }
 
 void Thread::run() {
-    if(this->isRunning())
+    if(this->markStopped())
         this->cleanup();
 }
 
 void Thread::terminate() {
-    if(this->isRunning())
+    if(this->markStopped())
         this->cleanup();
 }
 
 void Thread::cleanup() {
-    this->thread = nullptr;
+    running.store(false, std::memory_order_release);
+}
+
+bool Thread::markStopped() {
+    bool expected = true;
+    return running.compare_exchange_strong(expected, false, std::memory_order_acq_rel);
 }
@@ -7,6 +7,7 @@
 #ifndef PROCESSINTHREAD_H
 #define PROCESSINTHREAD_H
 
+#include <atomic>
 #include <thread>
 
 class Thread {
@@ -16,15 +17,18 @@ public:
     virtual void terminate();
 
     bool isRunning(){
-        return thread != nullptr;
+        return running.load(std::memory_order_acquire);
     }
 
 protected:
     virtual void run();
     virtual void cleanup();
 
+    // returns true only for the caller which switched state from running to stopped
+    bool markStopped();
+
 private:
-    std::thread *thread = nullptr;
+    std::atomic<bool> running{false};
 };
 
 
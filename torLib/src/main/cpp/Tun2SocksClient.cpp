@@ -4,7 +4,10 @@
  * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
  ***********************************************************************/
 
+#include <cstdlib>
+#include <cstring>
 #include <tun2socks_client.h>
+#include <tun2socks_stats.h>
 
 #include "Tun2SocksClient.h"
 #include "Logger.h"
@@ -14,33 +17,46 @@ Tun2SocksClient *Tun2SocksClient::instance = nullptr;
 void Tun2SocksClient::createInterface(JNIEnv *env, jobject thiz, jint vpnInterfaceFileDescriptor,
                                       jint vpnInterfaceMTU, jstring vpnIpAddress,
                                       jstring vpnNetMask, jstring socksServerAddress,
-                                      jstring udpgwServerAddress) {
-    getInstance()->setArguments(vpnInterfaceFileDescriptor,
+                                      jstring udpgwServerAddress, jint tcpWindow,
+                                      jint tcpSendBuffer, jint socksRecvBufferSize) {
+    getInstance()->setArguments(env, vpnInterfaceFileDescriptor,
                                 vpnInterfaceMTU, vpnIpAddress,
                                 vpnNetMask, socksServerAddress,
-                                udpgwServerAddress);
+                                udpgwServerAddress, tcpWindow,
+                                tcpSendBuffer, socksRecvBufferSize);
     getInstance()->start();
 }
 
-void Tun2SocksClient::setArguments(jint vpnInterfaceFileDescriptor,
+static const char *copyString(JNIEnv *env, jstring string) {
+    auto *rawString = env->GetStringUTFChars(string, nullptr);
+    auto *result = strdup(rawString);
+    env->ReleaseStringUTFChars(string, rawString);
+
+    return result;
+}
+
+void Tun2SocksClient::setArguments(JNIEnv *env,
+                                   jint vpnInterfaceFileDescriptor,
                                    jint vpnInterfaceMTU, jstring vpnIpAddress,
                                    jstring vpnNetMask, jstring socksServerAddress,
-                                   jstring udpgwServerAddress) {
-    auto env = getJNIEnv();
-
+                                   jstring udpgwServerAddress, jint tcpWindow,
+                                   jint tcpSendBuffer, jint socksRecvBufferSize) {
+    // env must be the one of calling thread, env cached in JNI_OnLoad is valid only on main thread
     this->vpnInterfaceFileDescriptor = vpnInterfaceFileDescriptor;
     this->vpnInterfaceMTU = vpnInterfaceMTU;
-    this->vpnIpAddress = env->GetStringUTFChars(vpnIpAddress, nullptr);
-    this->vpnNetMask = env->GetStringUTFChars(vpnNetMask, nullptr);
-    this->socksServerAddress = env->GetStringUTFChars(socksServerAddress, nullptr);
-    this->udpgwServerAddress = env->GetStringUTFChars(udpgwServerAddress, nullptr);
-
-    // TODO: here is string leak
+    this->vpnIpAddress = copyString(env, vpnIpAddress);
+    this->vpnNetMask = copyString(env, vpnNetMask);
+    this->socksServerAddress = copyString(env, socksServerAddress);
+    this->udpgwServerAddress = copyString(env, udpgwServerAddress);
+    this->tcpWindow = tcpWindow;
+    this->tcpSendBuffer = tcpSendBuffer;
+    this->socksRecvBufferSize = socksRecvBufferSize;
 }
 
 void Tun2SocksClient::run() {
     runTun2Socks(vpnInterfaceFileDescriptor, vpnInterfaceMTU, vpnIpAddress, vpnNetMask,
-                 socksServerAddress, udpgwServerAddress, 1);
+                 socksServerAddress, udpgwServerAddress, 1,
+                 tcpWindow, tcpSendBuffer, socksRecvBufferSize);
 
     Thread::run();
 }
@@ -50,17 +66,20 @@ void Tun2SocksClient::cleanup() {
 
     this->vpnInterfaceFileDescriptor = 0;
     this->vpnInterfaceMTU = 0;
+    this->tcpWindow = 0;
+    this->tcpSendBuffer = 0;
+    this->socksRecvBufferSize = 0;
 
-    delete vpnIpAddress;
+    free((void *) vpnIpAddress);
     this->vpnIpAddress = nullptr;
 
-    delete vpnNetMask;
+    free((void *) vpnNetMask);
     this->vpnNetMask = nullptr;
 
-    delete socksServerAddress;
+    free((void *) socksServerAddress);
     this->socksServerAddress = nullptr;
 
-    delete udpgwServerAddress;
+    free((void *) udpgwServerAddress);
     this->udpgwServerAddress = nullptr;
 }
 
@@ -80,3 +99,11 @@ bool Tun2SocksClient::isInterfaceRunning(JNIEnv *env, jobject thiz) {
 void Tun2SocksClient::destroyInterface(JNIEnv *env, jobject thiz) {
     getInstance()->terminate();
 }
+
+/**
+ * Returns direct buffer mapped over statistics block, so Java can poll it without JNI calls.
+ * Block is static, buffer stays valid for process lifetime.
+ */
+jobject Tun2SocksClient::getStats(JNIEnv *env, jobject thiz) {
+    return env->NewDirectByteBuffer(&tun2socks_stats, sizeof(tun2socks_stats));
+}
@@ -17,9 +17,10 @@ class Tun2SocksClient : public JNIAware, public Thread {
 public:
     Tun2SocksClient(JavaVM *vm, JNIEnv *env) : JNIAware(vm, "com/alloc64/jni/TLJNIBridge",
                                                         std::vector<JNINativeMethod>{
-                                                                {"a10", "(IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", (void *) (Tun2SocksClient::createInterface)},
+                                                                {"a10", "(IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;III)V", (void *) (Tun2SocksClient::createInterface)},
                                                                 {"a11", "()V",                                                                           (void *) (Tun2SocksClient::destroyInterface)},
-                                                                {"a14", "()Z",                                                                           (void *) (Tun2SocksClient::isInterfaceRunning)}
+                                                                {"a14", "()Z",                                                                           (void *) (Tun2SocksClient::isInterfaceRunning)},
+                                                                {"a17", "()Ljava/nio/ByteBuffer;",                                                       (void *) (Tun2SocksClient::getStats)}
 
                                                         }, env) {
         this->instance = this;
@@ -37,26 +38,34 @@ private:
         return instance;
     }
 
-    void setArguments(jint vpnInterfaceFileDescriptor,
+    void setArguments(JNIEnv *env,
+                      jint vpnInterfaceFileDescriptor,
                       jint vpnInterfaceMTU, jstring vpnIpAddress,
                       jstring vpnNetMask, jstring socksServerAddress,
-                      jstring udpgwServerAddress);
+                      jstring udpgwServerAddress, jint tcpWindow,
+                      jint tcpSendBuffer, jint socksRecvBufferSize);
 
     static void createInterface(
             JNIEnv *env, jobject thiz, jint vpnInterfaceFileDescriptor, jint vpnInterfaceMTU,
             jstring vpnIpAddress, jstring vpnNetMask, jstring socksServerAddress,
-            jstring udpgwServerAddress);
+            jstring udpgwServerAddress, jint tcpWindow, jint tcpSendBuffer,
+            jint socksRecvBufferSize);
 
     static void destroyInterface(JNIEnv *env, jobject thiz);
 
     static bool isInterfaceRunning(JNIEnv *env, jobject thiz);
 
+    static jobject getStats(JNIEnv *env, jobject thiz);
+
     jint vpnInterfaceFileDescriptor;
     jint vpnInterfaceMTU;
     const char *vpnIpAddress;
     const char *vpnNetMask;
     const char *socksServerAddress;
     const char *udpgwServerAddress;
+    jint tcpWindow;
+    jint tcpSendBuffer;
+    jint socksRecvBufferSize;
 
     static Tun2SocksClient *instance;
 };
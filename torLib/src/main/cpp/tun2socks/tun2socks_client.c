@@ -122,6 +122,9 @@ struct {
     int tun_fd;
     int tun_mtu;
     int set_signal;
+    int tcp_wnd;
+    int tcp_snd_buf;
+    int socks_recv_buf_size;
     // ==== PSIPHON ====
 } options;
 
@@ -142,7 +145,8 @@ struct tcp_client {
     int socks_closed;
     StreamPassInterface *socks_send_if;
     StreamRecvInterface *socks_recv_if;
-    uint8_t socks_recv_buf[CLIENT_SOCKS_RECV_BUF_SIZE];
+    uint8_t *socks_recv_buf;
+    int socks_recv_buf_size;
     int socks_recv_buf_used;
     int socks_recv_buf_sent;
     int socks_recv_waiting;
@@ -155,6 +159,9 @@ struct tcp_client {
 #include <sys/un.h>
 #include <structure/BAVL.h>
 #include "../JNILogger.h"
+#include "tun2socks_stats.h"
+
+tun2socks_stats_t tun2socks_stats;
 
 BAVL connections_tree;
 typedef struct {
@@ -325,6 +332,8 @@ static err_t netif_output_ip6_func(struct netif *netif, struct pbuf *p, ip6_addr
 
 static err_t common_netif_output(struct netif *netif, struct pbuf *p);
 
+static void clamp_syn_ack_window(uint8_t *data, int data_len);
+
 static err_t netif_input_func(struct pbuf *p, struct netif *inp);
 
 static void client_logfunc(struct tcp_client *client);
@@ -368,7 +377,8 @@ static void udpgw_client_handler_received(void *unused, BAddr local_addr, BAddr
 
 void runTun2Socks(int vpnInterfaceFileDescriptor, int vpnInterfaceMTU, const char *vpnIpAddressStr,
                   const char *vpnNetMaskStr, const char *socksServerAddressStr,
-                  const char *udpgwServerAddressStr, int udpgwTransparentDNS) {
+                  const char *udpgwServerAddressStr, int udpgwTransparentDNS,
+                  int tcpWindow, int tcpSendBuffer, int socksRecvBufferSize) {
 
     init_arguments("T2");
 
@@ -383,6 +393,21 @@ void runTun2Socks(int vpnInterfaceFileDescriptor, int vpnInterfaceMTU, const cha
     options.set_signal = 0;
     options.loglevel = 0;
 
+    // lwIP buffers are sized at compile time, runtime values can only lower them
+    options.tcp_wnd = (tcpWindow > 0 && tcpWindow < TCP_WND) ? tcpWindow : TCP_WND;
+    options.tcp_snd_buf = (tcpSendBuffer > 0 && tcpSendBuffer < TCP_SND_BUF) ? tcpSendBuffer : TCP_SND_BUF;
+    options.socks_recv_buf_size = socksRecvBufferSize > 0 ? socksRecvBufferSize : CLIENT_SOCKS_RECV_BUF_SIZE;
+
+    // reset is one seqlock write, sequence itself must survive it
+    tun2socks_stats_write_begin();
+    uint64_t generation = __atomic_load_n(&tun2socks_stats.generation, __ATOMIC_RELAXED);
+    uint32_t sequence = tun2socks_stats.sequence;
+    memset(&tun2socks_stats, 0, offsetof(tun2socks_stats_t, sequence));
+    tun2socks_stats.sequence = sequence;
+    __atomic_store_n(&tun2socks_stats.version, TUN2SOCKS_STATS_VERSION, __ATOMIC_RELAXED);
+    __atomic_store_n(&tun2socks_stats.generation, generation + 1, __ATOMIC_RELAXED);
+    tun2socks_stats_write_end();
+
     BLog_InitPsiphon();
 
     run();
@@ -639,6 +664,9 @@ void init_arguments(const char *program_name) {
 
     options.tun_fd = 0;
     options.set_signal = 1;
+    options.tcp_wnd = TCP_WND;
+    options.tcp_snd_buf = TCP_SND_BUF;
+    options.socks_recv_buf_size = CLIENT_SOCKS_RECV_BUF_SIZE;
 }
 
 //==== PSIPHON ====
@@ -1051,6 +1079,22 @@ void tcp_timer_handler(void *unused) {
     BReactor_SetTimer(&ss, &tcp_timer);
 
     tcp_tmr();
+
+    // update queue depth gauges
+    uint64_t tcp_to_socks_queued = 0;
+    uint64_t socks_to_tcp_queued = 0;
+
+    for (LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients); node; node = LinkedList1Node_Next(node)) {
+        struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+
+        tcp_to_socks_queued += client->buf_used;
+
+        if (client->socks_up && client->socks_recv_buf_used > 0)
+            socks_to_tcp_queued += client->socks_recv_buf_used - client->socks_recv_buf_sent;
+    }
+
+    TUN2SOCKS_STAT_SET(tcp_to_socks_queued_bytes, tcp_to_socks_queued);
+    TUN2SOCKS_STAT_SET(socks_to_tcp_queued_bytes, socks_to_tcp_queued);
 }
 
 void device_error_handler(void *unused) {
@@ -1067,29 +1111,37 @@ void device_read_handler_send(void *unused, uint8_t *data, int data_len) {
 
     BLog(BLOG_DEBUG, "device: received packet");
 
+    TUN2SOCKS_STAT_ADD(device_packets_in, 1);
+    TUN2SOCKS_STAT_ADD(device_bytes_in, data_len);
+
     // accept packet
     PacketPassInterface_Done(&device_read_interface);
 
 #ifdef ANDROID
     // process DNS directly
     if (process_device_dns_packet(data, data_len)) {
+        TUN2SOCKS_STAT_ADD(dns_packets, 1);
         return;
     }
 #endif
 
     // process UDP directly
     if (process_device_udp_packet(data, data_len)) {
+        TUN2SOCKS_STAT_ADD(udpgw_packets_out, 1);
         return;
     }
 
     // obtain pbuf
     if (data_len > UINT16_MAX) {
         BLog(BLOG_WARNING, "device read: packet too large");
+        TUN2SOCKS_STAT_ADD(device_packets_dropped, 1);
         return;
     }
     struct pbuf *p = pbuf_alloc(PBUF_RAW, data_len, PBUF_POOL);
     if (!p) {
         BLog(BLOG_WARNING, "device read: pbuf_alloc failed");
+        TUN2SOCKS_STAT_ADD(pbuf_alloc_failures, 1);
+        TUN2SOCKS_STAT_ADD(device_packets_dropped, 1);
         return;
     }
 
@@ -1099,6 +1151,7 @@ void device_read_handler_send(void *unused, uint8_t *data, int data_len) {
     // pass pbuf to input
     if (netif.input(p, &netif) != ERR_OK) {
         BLog(BLOG_WARNING, "device read: input failed");
+        TUN2SOCKS_STAT_ADD(device_packets_dropped, 1);
         pbuf_free(p);
     }
 }
@@ -1250,6 +1303,8 @@ int process_device_dns_packet(uint8_t *data, int data_len) {
 
     // submit packet
     BTap_Send(&device, device_write_buf, packet_length);
+    TUN2SOCKS_STAT_ADD(device_packets_out, 1);
+    TUN2SOCKS_STAT_ADD(device_bytes_out, packet_length);
 
     return 1;
 
@@ -1417,8 +1472,12 @@ err_t common_netif_output(struct netif *netif, struct pbuf *p) {
             goto out;
         }
 
+        clamp_syn_ack_window((uint8_t *) p->payload, p->len);
+
         SYNC_FROMHERE
         BTap_Send(&device, (uint8_t *) p->payload, p->len);
+        TUN2SOCKS_STAT_ADD(device_packets_out, 1);
+        TUN2SOCKS_STAT_ADD(device_bytes_out, p->len);
         SYNC_COMMIT
     } else {
         int len = 0;
@@ -1431,8 +1490,12 @@ err_t common_netif_output(struct netif *netif, struct pbuf *p) {
             len += p->len;
         } while (p = p->next);
 
+        clamp_syn_ack_window(device_write_buf, len);
+
         SYNC_FROMHERE
         BTap_Send(&device, device_write_buf, len);
+        TUN2SOCKS_STAT_ADD(device_packets_out, 1);
+        TUN2SOCKS_STAT_ADD(device_bytes_out, len);
         SYNC_COMMIT
     }
 
@@ -1440,6 +1503,70 @@ err_t common_netif_output(struct netif *netif, struct pbuf *p) {
     return ERR_OK;
 }
 
+/**
+ * lwIP allocates accepted connections with TCP_WND receive window and advertises it in SYN-ACK,
+ * before listener_accept_func can lower it. So window of SYN-ACK is clamped to options.tcp_wnd here,
+ * on its way to the device. Window of SYN segments is never scaled, so the field holds the window itself.
+ */
+void clamp_syn_ack_window(uint8_t *data, int data_len) {
+    if (options.tcp_wnd >= TCP_WND || data_len < 1) {
+        return;
+    }
+
+    int header_len;
+
+    switch (data[0] >> 4) {
+        case 4:
+            // lwIP does not fragment TCP, so the TCP header directly follows IPv4 header
+            if (data_len < sizeof(struct ipv4_header) ||
+                data[offsetof(struct ipv4_header, protocol)] != IP_PROTO_TCP) {
+                return;
+            }
+            header_len = (data[0] & 0x0f) * 4;
+            break;
+        case 6:
+            // lwIP adds no extension headers to TCP
+            if (data_len < sizeof(struct ipv6_header) ||
+                data[offsetof(struct ipv6_header, next_header)] != IP_PROTO_TCP) {
+                return;
+            }
+            header_len = sizeof(struct ipv6_header);
+            break;
+        default:
+            return;
+    }
+
+    if (data_len < header_len + 20) {
+        return;
+    }
+
+    uint8_t *tcp = data + header_len;
+
+    if ((tcp[13] & (TCP_SYN | TCP_ACK)) != (TCP_SYN | TCP_ACK)) {
+        return;
+    }
+
+    uint16_t window = (uint16_t) ((tcp[14] << 8) | tcp[15]);
+    uint16_t clamped = (uint16_t) options.tcp_wnd;
+
+    if (window <= clamped) {
+        return;
+    }
+
+    // incremental checksum update, RFC 1624: HC' = ~(~HC + ~m + m')
+    uint32_t sum = (uint16_t) ~((tcp[16] << 8) | tcp[17]);
+    sum += (uint16_t) ~window;
+    sum += clamped;
+    sum = (sum & 0xffff) + (sum >> 16);
+    sum = (sum & 0xffff) + (sum >> 16);
+    uint16_t checksum = (uint16_t) ~sum;
+
+    tcp[14] = (uint8_t) (clamped >> 8);
+    tcp[15] = (uint8_t) clamped;
+    tcp[16] = (uint8_t) (checksum >> 8);
+    tcp[17] = (uint8_t) checksum;
+}
+
 err_t netif_input_func(struct pbuf *p, struct netif *inp) {
     uint8_t ip_version = 0;
     if (p->len > 0) {
@@ -1487,13 +1614,15 @@ err_t listener_accept_func(void *arg, struct tcp_pcb *newpcb, err_t err) {
     struct tcp_pcb *this_listener = (PCB_ISIPV6(newpcb) ? listener_ip6 : listener);
     tcp_accepted(this_listener);
 
-    // allocate client structure
-    struct tcp_client *client = (struct tcp_client *) malloc(sizeof(*client));
+    // allocate client structure, SOCKS receive buffer is allocated right behind it
+    struct tcp_client *client = (struct tcp_client *) malloc(sizeof(*client) + options.socks_recv_buf_size);
     if (!client) {
         BLog(BLOG_ERROR, "listener accept: malloc failed");
         goto fail0;
     }
     client->socks_username = NULL;
+    client->socks_recv_buf = (uint8_t *) (client + 1);
+    client->socks_recv_buf_size = options.socks_recv_buf_size;
 
     SYNC_DECL
     SYNC_FROMHERE
@@ -1539,10 +1668,24 @@ err_t listener_accept_func(void *arg, struct tcp_pcb *newpcb, err_t err) {
     // increment counter
     ASSERT(num_clients >= 0)
     num_clients++;
+    TUN2SOCKS_STAT_SET(tcp_clients_active, num_clients);
+    TUN2SOCKS_STAT_ADD(tcp_clients_total, 1);
 
     // set pcb
     client->pcb = newpcb;
 
+    // clamp receive window and send buffer, lwIP gives back only what was consumed or acked,
+    // so the lowered values hold for the lifetime of the connection. SYN-ACK was sent with TCP_WND
+    // by lwIP, its advertised window was clamped by clamp_syn_ack_window on the way out.
+    if (options.tcp_wnd < TCP_WND) {
+        client->pcb->rcv_wnd = options.tcp_wnd;
+        client->pcb->rcv_ann_wnd = options.tcp_wnd;
+    }
+
+    if (options.tcp_snd_buf < TCP_SND_BUF) {
+        client->pcb->snd_buf = options.tcp_snd_buf;
+    }
+
     // set client not closed
     client->client_closed = 0;
 
@@ -1703,6 +1846,7 @@ void client_dealloc(struct tcp_client *client) {
     // decrement counter
     ASSERT(num_clients > 0)
     num_clients--;
+    TUN2SOCKS_STAT_SET(tcp_clients_active, num_clients);
 
     // remove client entry
     LinkedList1_Remove(&tcp_clients, &client->list_node);
@@ -1777,6 +1921,7 @@ void client_socks_handler(struct tcp_client *client, int event) {
     switch (event) {
         case BSOCKSCLIENT_EVENT_ERROR: {
             client_log(client, BLOG_INFO, "SOCKS error");
+            TUN2SOCKS_STAT_ADD(socks_failures, 1);
 
             client_free_socks(client);
         }
@@ -1786,6 +1931,7 @@ void client_socks_handler(struct tcp_client *client, int event) {
             ASSERT(!client->socks_up)
 
             client_log(client, BLOG_INFO, "SOCKS up");
+            TUN2SOCKS_STAT_ADD(socks_connects, 1);
 
             // init sending
             client->socks_send_if = BSocksClient_GetSendInterface(&client->socks_client);
@@ -1875,12 +2021,12 @@ void client_socks_recv_initiate(struct tcp_client *client) {
     ASSERT(client->socks_recv_buf_used == -1)
 
     StreamRecvInterface_Receiver_Recv(client->socks_recv_if, client->socks_recv_buf,
-                                      sizeof(client->socks_recv_buf));
+                                      client->socks_recv_buf_size);
 }
 
 void client_socks_recv_handler_done(struct tcp_client *client, int data_len) {
     ASSERT(data_len > 0)
-    ASSERT(data_len <= sizeof(client->socks_recv_buf))
+    ASSERT(data_len <= client->socks_recv_buf_size)
     ASSERT(!client->socks_closed)
     ASSERT(client->socks_up)
     ASSERT(client->socks_recv_buf_used == -1)
@@ -2029,6 +2175,8 @@ void udpgw_client_handler_received(void *unused, BAddr local_addr, BAddr remote_
     ASSERT(local_addr.type == remote_addr.type)
     ASSERT(data_len >= 0)
 
+    TUN2SOCKS_STAT_ADD(udpgw_packets_in, 1);
+
     int packet_length = 0;
 
     switch (local_addr.type) {
@@ -2121,6 +2269,8 @@ void udpgw_client_handler_received(void *unused, BAddr local_addr, BAddr remote_
 
     // submit packet
     BTap_Send(&device, device_write_buf, packet_length);
+    TUN2SOCKS_STAT_ADD(device_packets_out, 1);
+    TUN2SOCKS_STAT_ADD(device_bytes_out, packet_length);
 }
 
 void PsiphonLog(const char *levelStr, const char *channelStr, const char *msgStr) {
@@ -3,7 +3,8 @@
 
 extern "C" void runTun2Socks(int vpnInterfaceFileDescriptor, int vpnInterfaceMTU, const char *vpnIpAddressStr,
              const char *vpnNetMaskStr, const char *socksServerAddressStr,
-             const char *udpgwServerAddressStr, int udpgwTransparentDNS);
+             const char *udpgwServerAddressStr, int udpgwTransparentDNS,
+             int tcpWindow, int tcpSendBuffer, int socksRecvBufferSize);
 extern "C"  void terminateTun2Socks();
 
 #endif //TUN2SOCKS_CLIENT_H
@@ -0,0 +1,87 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+#ifndef TUN2SOCKS_STATS_H
+#define TUN2SOCKS_STATS_H
+
+#include <stdint.h>
+
+#define TUN2SOCKS_STATS_VERSION 2
+
+/**
+ * Statistics block of tun2socks reactor, shared with Java as direct ByteBuffer (see Tun2SocksStats.java).
+ *
+ * Layout is part of the Java contract: fields are 64bit, in native byte order, at fixed offsets.
+ * Never reorder fields, append new ones and bump TUN2SOCKS_STATS_VERSION.
+ *
+ * Counters are written by reactor thread only, using relaxed atomics. On 64bit platforms plain 64bit loads
+ * (ByteBuffer.getLong) never see torn values. On 32bit platforms (armeabi-v7a, x86) they are two 32bit loads,
+ * so every update is wrapped in a seqlock: sequence is odd while an update is in progress, readers retry
+ * when sequence is odd or changed while they read a field. Sequence is 32bit, so it is read by a single load.
+ */
+typedef struct {
+    uint64_t version;                   // 0
+    uint64_t generation;                // 8, incremented on every tun2socks start, counters are reset on start
+    uint64_t device_packets_in;         // 16
+    uint64_t device_bytes_in;           // 24
+    uint64_t device_packets_out;        // 32
+    uint64_t device_bytes_out;          // 40
+    uint64_t device_packets_dropped;    // 48, packets read from device, which were not processed
+    uint64_t tcp_clients_active;        // 56, gauge
+    uint64_t tcp_clients_total;         // 64
+    uint64_t socks_connects;            // 72
+    uint64_t socks_failures;            // 80
+    uint64_t udpgw_packets_out;         // 88
+    uint64_t udpgw_packets_in;          // 96
+    uint64_t dns_packets;               // 104
+    uint64_t pbuf_alloc_failures;       // 112
+    uint64_t tcp_to_socks_queued_bytes; // 120, gauge, bytes received from device waiting to be sent to SOCKS
+    uint64_t socks_to_tcp_queued_bytes; // 128, gauge, bytes received from SOCKS waiting to be sent to device
+    uint32_t sequence;                  // 136, seqlock of 32bit platforms, stays 0 on 64bit platforms
+    uint32_t reserved;                  // 140
+} __attribute__((aligned(8))) tun2socks_stats_t;
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+extern tun2socks_stats_t tun2socks_stats;
+
+#ifdef __cplusplus
+}
+#endif
+
+#if UINTPTR_MAX == UINT32_MAX
+#define TUN2SOCKS_STATS_SEQLOCK 1
+#endif
+
+static inline void tun2socks_stats_write_begin(void) {
+#ifdef TUN2SOCKS_STATS_SEQLOCK
+    __atomic_store_n(&tun2socks_stats.sequence, tun2socks_stats.sequence + 1, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+#endif
+}
+
+static inline void tun2socks_stats_write_end(void) {
+#ifdef TUN2SOCKS_STATS_SEQLOCK
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+    __atomic_store_n(&tun2socks_stats.sequence, tun2socks_stats.sequence + 1, __ATOMIC_RELAXED);
+#endif
+}
+
+#define TUN2SOCKS_STAT_ADD(field, value) do { \
+    tun2socks_stats_write_begin(); \
+    __atomic_fetch_add(&tun2socks_stats.field, (uint64_t) (value), __ATOMIC_RELAXED); \
+    tun2socks_stats_write_end(); \
+} while (0)
+
+#define TUN2SOCKS_STAT_SET(field, value) do { \
+    tun2socks_stats_write_begin(); \
+    __atomic_store_n(&tun2socks_stats.field, (uint64_t) (value), __ATOMIC_RELAXED); \
+    tun2socks_stats_write_end(); \
+} while (0)
+
+#endif //TUN2SOCKS_STATS_H
@@ -6,6 +6,13 @@
 
 package com.alloc64.http;
 
+import com.alloc64.http.socks.AdmissionController;
+import com.alloc64.http.socks.HedgedSocket;
+import com.alloc64.http.socks.HedgedSocksConnector;
+import com.alloc64.http.socks.IsolationPolicy;
+import com.alloc64.http.socks.IsolationStats;
+import com.alloc64.http.socks.Socks5Socket;
+
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -14,23 +21,88 @@ import java.net.Socket;
 
 import javax.net.SocketFactory;
 
+/**
+ * Creates sockets connected through given proxy. SOCKS proxies are handled by {@link Socks5Socket}.
+ */
 public class ProxiedSocketFactory extends SocketFactory
 {
     private final Proxy proxy;
+    private final AdmissionController admissionController;
+    private final String source;
+    private boolean optimisticData;
+    private IsolationPolicy isolationPolicy;
+    private IsolationStats isolationStats;
+    private HedgedSocksConnector hedgedConnector;
 
     public ProxiedSocketFactory(Proxy proxy)
+    {
+        this(proxy, null, null);
+    }
+
+    /**
+     * Connects of created sockets wait for permit of admissionController, source is fairness key of this factory.
+     */
+    public ProxiedSocketFactory(Proxy proxy, AdmissionController admissionController, String source)
     {
         this.proxy = proxy;
+        this.admissionController = admissionController;
+        this.source = source != null ? source : "";
+    }
+
+    /**
+     * See {@link Socks5Socket} for limitations of optimistic data.
+     */
+    public ProxiedSocketFactory setOptimisticData(boolean optimisticData)
+    {
+        this.optimisticData = optimisticData;
+        return this;
+    }
+
+    /**
+     * Policy choosing SOCKS credentials of every connection, so tor puts them on separate circuits.
+     * Stats receive results of connections, may be null.
+     */
+    public ProxiedSocketFactory setIsolation(IsolationPolicy isolationPolicy, IsolationStats isolationStats)
+    {
+        this.isolationPolicy = isolationPolicy;
+        this.isolationStats = isolationStats;
+        return this;
+    }
+
+    /**
+     * Sockets are connected by hedgedConnector, which races second connection on slow circuits.
+     * Admission, isolation and optimistic data settings of this factory are not used, connector has its own.
+     * See {@link HedgedSocket} for limitations.
+     */
+    public ProxiedSocketFactory setHedging(HedgedSocksConnector hedgedConnector)
+    {
+        this.hedgedConnector = hedgedConnector;
+        return this;
     }
 
     public Socket createSocket()
     {
-        return new Socket(proxy);
+        if (hedgedConnector != null)
+            return new HedgedSocket(hedgedConnector);
+
+        if (proxy.type() != Proxy.Type.SOCKS || !(proxy.address() instanceof InetSocketAddress))
+            return new Socket(proxy);
+
+        Socks5Socket socket = new Socks5Socket((InetSocketAddress) proxy.address())
+                .setOptimisticData(optimisticData);
+
+        if (admissionController != null)
+            socket.setAdmissionController(admissionController, source);
+
+        if (isolationPolicy != null || isolationStats != null)
+            socket.setIsolation(isolationPolicy, isolationStats);
+
+        return socket;
     }
 
     public Socket createSocket(String host, int port) throws IOException
     {
-        return createProxiedSocket(new InetSocketAddress(host, port));
+        return createProxiedSocket(destination(host, port));
     }
 
     public Socket createSocket(InetAddress host, int port) throws IOException
@@ -40,7 +112,7 @@ public class ProxiedSocketFactory extends SocketFactory
 
     public Socket createSocket(String host, int port, InetAddress var3, int var4) throws IOException
     {
-        return createProxiedSocket(new InetSocketAddress(host, port));
+        return createProxiedSocket(destination(host, port));
     }
 
     public Socket createSocket(InetAddress host, int port, InetAddress var3, int var4) throws IOException
@@ -48,9 +120,20 @@ public class ProxiedSocketFactory extends SocketFactory
         return createProxiedSocket(new InetSocketAddress(host, port));
     }
 
+    /**
+     * SOCKS server resolves host names itself (tor resolves them at exit), other proxies get resolved address as before.
+     */
+    private InetSocketAddress destination(String host, int port)
+    {
+        if (hedgedConnector != null || proxy.type() == Proxy.Type.SOCKS)
+            return InetSocketAddress.createUnresolved(host, port);
+
+        return new InetSocketAddress(host, port);
+    }
+
     private Socket createProxiedSocket(InetSocketAddress addr) throws IOException
     {
-        Socket socket = new Socket(proxy);
+        Socket socket = createSocket();
         socket.connect(addr);
 
         return socket;
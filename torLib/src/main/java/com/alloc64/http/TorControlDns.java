@@ -0,0 +1,452 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http;
+
+import com.alloc64.http.socks.SocksRemoteDns;
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+import com.alloc64.torlib.control.TorControlSocket;
+import com.alloc64.torlib.control.event.AddrMapEvent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * Dns resolving host names through tor, using control port RESOLVE command. Nothing is resolved by system resolver.
+ * <p>
+ * Answers arrive as ADDRMAP events, which must be passed to {@link #onEvents(List)} from event socket subscribed
+ * to ADDRMAP. Events of resolves done by SOCKS connections are cached as well. Answers are cached for their TTL,
+ * failures for {@link #setNegativeTtl(long)}, and concurrent lookups of the same host share one RESOLVE.
+ * <p>
+ * When host name can not be resolved by tor this way (onion services, control port not attached, no ADDRMAP
+ * events received, or resolve timed out), lookup falls back to {@link SocksRemoteDns} and the host name is
+ * resolved by exit relay during SOCKS connect.
+ */
+public class TorControlDns implements Dns
+{
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static final long DEFAULT_TIMEOUT = 10 * 1000;
+    private static final long DEFAULT_MIN_TTL = 60 * 1000;
+    private static final long DEFAULT_MAX_TTL = 30 * 60 * 1000;
+    private static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+
+    private static class CacheEntry
+    {
+        private final InetAddress address;
+        private final long expiresAt;
+
+        private CacheEntry(InetAddress address, long expiresAt)
+        {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Pending
+    {
+        private CacheEntry entry;
+        private boolean done;
+    }
+
+    private final SocksRemoteDns fallback = new SocksRemoteDns();
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+        {
+            return size() > maxEntries;
+        }
+    };
+
+    private volatile TorControlSocket controlSocket;
+    private volatile boolean eventsReceived;
+    private volatile boolean eventsMissing;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long timeout = DEFAULT_TIMEOUT;
+    private long minTtl = DEFAULT_MIN_TTL;
+    private long maxTtl = DEFAULT_MAX_TTL;
+    private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    private long hits;
+    private long negativeHits;
+    private long misses;
+    private long sharedLookups;
+    private long fallbacks;
+
+    public TorControlDns(TorControlSocket controlSocket)
+    {
+        this.controlSocket = controlSocket;
+    }
+
+    /**
+     * Control socket used to send RESOLVE, e.g. after control port was reattached.
+     */
+    public TorControlDns setControlSocket(TorControlSocket controlSocket)
+    {
+        this.controlSocket = controlSocket;
+        return this;
+    }
+
+    public synchronized TorControlDns setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * Time to wait for ADDRMAP event, lookup falls back to resolving by exit afterwards.
+     */
+    public synchronized TorControlDns setTimeout(long timeoutMillis)
+    {
+        this.timeout = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Bounds of TTL reported by tor.
+     */
+    public synchronized TorControlDns setTtlBounds(long minTtlMillis, long maxTtlMillis)
+    {
+        this.minTtl = minTtlMillis;
+        this.maxTtl = maxTtlMillis;
+        return this;
+    }
+
+    public synchronized TorControlDns setNegativeTtl(long negativeTtlMillis)
+    {
+        this.negativeTtl = negativeTtlMillis;
+        return this;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException
+    {
+        if (hostname == null || hostname.isEmpty())
+            throw new UnknownHostException("Empty host name.");
+
+        if (SocksRemoteDns.isAddressLiteral(hostname))
+            return Collections.singletonList(InetAddress.getByName(hostname));
+
+        String key = hostname.toLowerCase(Locale.US);
+
+        if (key.endsWith(".onion") || !isValidHostname(key))
+            return fallback(hostname);
+
+        Pending p;
+        boolean owner = false;
+        long timeout;
+
+        synchronized (this)
+        {
+            CacheEntry entry = getCached(key);
+
+            if (entry != null)
+            {
+                if (entry.address == null)
+                {
+                    negativeHits++;
+                    throw new UnknownHostException("Tor failed to resolve " + hostname);
+                }
+
+                hits++;
+                return toList(hostname, entry);
+            }
+
+            TorControlSocket controlSocket = this.controlSocket;
+
+            if (controlSocket == null || eventsMissing)
+            {
+                fallbacks++;
+                return fallback.lookup(hostname);
+            }
+
+            p = pending.get(key);
+
+            if (p == null)
+            {
+                p = new Pending();
+                pending.put(key, p);
+                owner = true;
+                misses++;
+            }
+            else
+            {
+                sharedLookups++;
+            }
+
+            timeout = this.timeout;
+        }
+
+        try
+        {
+            if (owner && !sendResolve(key))
+            {
+                synchronized (this)
+                {
+                    p.done = true;
+                    notifyAll();
+                }
+
+                return fallback(hostname);
+            }
+
+            CacheEntry entry = await(p, timeout);
+
+            if (entry == null)
+            {
+                // nothing arrived in time, events are probably not passed to this resolver
+                if (!isDone(p) && !eventsReceived)
+                    this.eventsMissing = true;
+
+                return fallback(hostname);
+            }
+
+            if (entry.address == null)
+                throw new UnknownHostException("Tor failed to resolve " + hostname);
+
+            return toList(hostname, entry);
+        }
+        finally
+        {
+            if (owner)
+            {
+                synchronized (this)
+                {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds ADDRMAP events, other events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            AddrMapEvent event = AddrMapEvent.parse(reply);
+
+            if (event != null)
+                onAddrMapEvent(event);
+        }
+    }
+
+    public void onAddrMapEvent(AddrMapEvent event)
+    {
+        String address = event.getAddress();
+
+        if (address == null)
+            return;
+
+        this.eventsReceived = true;
+        this.eventsMissing = false;
+
+        String key = address.toLowerCase(Locale.US);
+        InetAddress resolved = null;
+
+        if (!event.isError())
+        {
+            String newAddress = event.getNewAddress();
+
+            // mappings to other host names (MapAddress, onion) are not addresses
+            if (!SocksRemoteDns.isAddressLiteral(newAddress))
+                return;
+
+            try
+            {
+                resolved = InetAddress.getByName(newAddress);
+            }
+            catch (UnknownHostException e)
+            {
+                return;
+            }
+        }
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            long expiresAt;
+
+            if (resolved == null)
+            {
+                expiresAt = now + negativeTtl;
+            }
+            else
+            {
+                long ttl = event.getExpires() > 0 && event.getExpires() != Long.MAX_VALUE ? event.getExpires() - now : maxTtl;
+                expiresAt = now + Math.max(minTtl, Math.min(maxTtl, ttl));
+            }
+
+            CacheEntry entry = new CacheEntry(resolved, expiresAt);
+            cache.put(key, entry);
+
+            Pending p = pending.get(key);
+
+            if (p != null && !p.done)
+            {
+                p.entry = entry;
+                p.done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        cache.clear();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getNegativeHits()
+    {
+        return negativeHits;
+    }
+
+    /**
+     * @return lookups which sent RESOLVE
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return lookups which waited for RESOLVE sent by concurrent lookup
+     */
+    public synchronized long getSharedLookups()
+    {
+        return sharedLookups;
+    }
+
+    /**
+     * @return lookups left to exit relay
+     */
+    public synchronized long getFallbacks()
+    {
+        return fallbacks;
+    }
+
+    public synchronized int size()
+    {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(Locale.US, "entries=%d hits=%d negativeHits=%d misses=%d shared=%d fallbacks=%d",
+                cache.size(),
+                hits,
+                negativeHits,
+                misses,
+                sharedLookups,
+                fallbacks);
+    }
+
+    private CacheEntry getCached(String key)
+    {
+        CacheEntry entry = cache.get(key);
+
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis())
+        {
+            cache.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private boolean sendResolve(String hostname)
+    {
+        TorControlSocket controlSocket = this.controlSocket;
+
+        if (controlSocket == null)
+            return false;
+
+        TorAbstractControlSocket.Reply reply = controlSocket.defaultOrNull(controlSocket.send("RESOLVE " + hostname + "\r\n"));
+
+        return reply != null && reply.getStatus() == TorAbstractControlSocket.ResponseCode.OK.getValue();
+    }
+
+    private synchronized CacheEntry await(Pending p, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try
+        {
+            while (!p.done)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0)
+                    return null;
+
+                wait(remaining);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        return p.entry;
+    }
+
+    private synchronized boolean isDone(Pending p)
+    {
+        return p.done;
+    }
+
+    private List<InetAddress> fallback(String hostname) throws UnknownHostException
+    {
+        synchronized (this)
+        {
+            fallbacks++;
+        }
+
+        return fallback.lookup(hostname);
+    }
+
+    private static List<InetAddress> toList(String hostname, CacheEntry entry) throws UnknownHostException
+    {
+        return Collections.singletonList(InetAddress.getByAddress(hostname, entry.address.getAddress()));
+    }
+
+    /**
+     * Host name is sent in control command, so only characters of DNS names are allowed.
+     */
+    private static boolean isValidHostname(String hostname)
+    {
+        if (hostname.length() > 253)
+            return false;
+
+        for (int i = 0; i < hostname.length(); i++)
+        {
+            char c = hostname.charAt(i);
+
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '.' && c != '-' && c != '_')
+                return false;
+        }
+
+        return true;
+    }
+}
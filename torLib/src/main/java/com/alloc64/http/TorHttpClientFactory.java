@@ -0,0 +1,401 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http;
+
+import com.alloc64.http.socks.IsolationPolicy;
+import com.alloc64.http.socks.IsolationStats;
+import com.alloc64.http.socks.SocksRemoteDns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Shared OkHttp clients connected through tor SocksPort.
+ * <p>
+ * Every isolation domain (e.g. tenant or account) gets one client with its own connection pool, dispatcher and
+ * SOCKS credentials, so connections are reused by all callers of the same domain, while different domains never
+ * share a circuit. Dispatchers of all domains share one thread pool.
+ * <p>
+ * Defaults are tuned for tor: connect timeout covers circuit build, keep-alive stays well below the 10 minutes
+ * after which tor stops using a circuit for new streams, and concurrency per host is kept low, because parallel
+ * streams over the same circuit do not add bandwidth.
+ */
+public class TorHttpClientFactory implements Closeable
+{
+    private static final String DEFAULT_DOMAIN = "";
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    private static final long DEFAULT_KEEP_ALIVE = 3 * 60 * 1000;
+    private static final int DEFAULT_MAX_REQUESTS = 32;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 60 * 1000;
+    private static final long DEFAULT_READ_TIMEOUT = 60 * 1000;
+    private static final long DEFAULT_WRITE_TIMEOUT = 60 * 1000;
+
+    /**
+     * Counts requests sent over new and pooled connections.
+     */
+    public static class PoolStats implements Interceptor
+    {
+        private final Map<Connection, Boolean> connections = new WeakHashMap<>();
+
+        private long hits;
+        private long misses;
+
+        @Override
+        public Response intercept(Chain chain) throws IOException
+        {
+            Connection connection = chain.connection();
+
+            if (connection != null)
+            {
+                synchronized (this)
+                {
+                    if (connections.put(connection, Boolean.TRUE) == null)
+                        misses++;
+                    else
+                        hits++;
+                }
+            }
+
+            return chain.proceed(chain.request());
+        }
+
+        /**
+         * @return requests sent over a pooled connection
+         */
+        public synchronized long getHits()
+        {
+            return hits;
+        }
+
+        /**
+         * @return requests which needed new connection, i.e. new tor stream
+         */
+        public synchronized long getMisses()
+        {
+            return misses;
+        }
+
+        public synchronized double getHitRatio()
+        {
+            long total = hits + misses;
+            return total > 0 ? (double) hits / total : 0;
+        }
+
+        public synchronized void reset()
+        {
+            this.hits = 0;
+            this.misses = 0;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format(Locale.US, "hits=%d misses=%d ratio=%.2f", hits, misses, getHitRatio());
+        }
+    }
+
+    private static class Domain
+    {
+        private final ConnectionPool connectionPool;
+        private final Dispatcher dispatcher;
+        private final PoolStats stats = new PoolStats();
+        private OkHttpClient client;
+
+        private Domain(ConnectionPool connectionPool, Dispatcher dispatcher)
+        {
+            this.connectionPool = connectionPool;
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    private final Proxy proxy;
+    private final IsolationStats isolationStats;
+    private final Map<String, Domain> domains = new HashMap<>();
+
+    private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long keepAlive = DEFAULT_KEEP_ALIVE;
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+    private long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private Dns dns = new SocksRemoteDns();
+
+    private ExecutorService executorService;
+    private OkHttpClient baseClient;
+
+    /**
+     * @param socksAddress   address of tor SocksPort
+     * @param isolationStats receives results of connections, may be null
+     */
+    public TorHttpClientFactory(InetSocketAddress socksAddress, IsolationStats isolationStats)
+    {
+        this.proxy = new Proxy(Proxy.Type.SOCKS, socksAddress);
+        this.isolationStats = isolationStats;
+    }
+
+    /**
+     * Pool settings apply to domains created afterwards.
+     */
+    public synchronized TorHttpClientFactory setConnectionPool(int maxIdleConnections, long keepAliveMillis)
+    {
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAlive = keepAliveMillis;
+        return this;
+    }
+
+    public synchronized TorHttpClientFactory setMaxRequests(int maxRequests, int maxRequestsPerHost)
+    {
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        return this;
+    }
+
+    /**
+     * Must be set before first client is created.
+     */
+    public synchronized TorHttpClientFactory setTimeouts(long connectMillis, long readMillis, long writeMillis)
+    {
+        if (baseClient != null)
+            throw new IllegalStateException("Timeouts must be set before first client is created.");
+
+        this.connectTimeout = connectMillis;
+        this.readTimeout = readMillis;
+        this.writeTimeout = writeMillis;
+        return this;
+    }
+
+    /**
+     * Resolver of host names, e.g. {@link TorControlDns}. Must be set before first client is created.
+     * Default {@link SocksRemoteDns} leaves resolving to exit relay.
+     */
+    public synchronized TorHttpClientFactory setDns(Dns dns)
+    {
+        if (baseClient != null)
+            throw new IllegalStateException("Dns must be set before first client is created.");
+
+        this.dns = dns;
+        return this;
+    }
+
+    /**
+     * @return shared client without stream isolation
+     */
+    public OkHttpClient getClient()
+    {
+        return getClient(DEFAULT_DOMAIN);
+    }
+
+    /**
+     * @return shared client of isolation domain, streams of different domains use different circuits
+     */
+    public synchronized OkHttpClient getClient(String domain)
+    {
+        if (domain == null)
+            domain = DEFAULT_DOMAIN;
+
+        Domain d = domains.get(domain);
+
+        if (d == null)
+        {
+            d = createDomain(domain);
+            domains.put(domain, d);
+        }
+
+        return d.client;
+    }
+
+    /**
+     * @return pool statistics of domain, null if domain has no client
+     */
+    public synchronized PoolStats getPoolStats(String domain)
+    {
+        Domain d = domains.get(domain != null ? domain : DEFAULT_DOMAIN);
+        return d != null ? d.stats : null;
+    }
+
+    public synchronized long getPoolHits()
+    {
+        long hits = 0;
+
+        for (Domain d : domains.values())
+            hits += d.stats.getHits();
+
+        return hits;
+    }
+
+    public synchronized long getPoolMisses()
+    {
+        long misses = 0;
+
+        for (Domain d : domains.values())
+            misses += d.stats.getMisses();
+
+        return misses;
+    }
+
+    public synchronized int getConnectionCount()
+    {
+        int count = 0;
+
+        for (Domain d : domains.values())
+            count += d.connectionPool.connectionCount();
+
+        return count;
+    }
+
+    /**
+     * Closes idle connections of domain and forgets its client, e.g. after the domain requested new identity.
+     */
+    public void removeDomain(String domain)
+    {
+        Domain d;
+
+        synchronized (this)
+        {
+            d = domains.remove(domain != null ? domain : DEFAULT_DOMAIN);
+        }
+
+        if (d != null)
+            d.connectionPool.evictAll();
+    }
+
+    /**
+     * Closes idle connections of all domains, e.g. after tor restart or NEWNYM.
+     */
+    public void evictAll()
+    {
+        for (Domain d : getDomains())
+            d.connectionPool.evictAll();
+    }
+
+    /**
+     * Cancels all calls and closes idle connections. Factory can be used again afterwards.
+     */
+    @Override
+    public void close()
+    {
+        List<Domain> domains;
+
+        synchronized (this)
+        {
+            domains = new ArrayList<>(this.domains.values());
+            this.domains.clear();
+        }
+
+        for (Domain d : domains)
+        {
+            d.dispatcher.cancelAll();
+            d.connectionPool.evictAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<String, Domain> e : domains.entrySet())
+        {
+            Domain d = e.getValue();
+
+            sb.append(e.getKey().isEmpty() ? "<default>" : e.getKey())
+                    .append(": connections=")
+                    .append(d.connectionPool.connectionCount())
+                    .append(" idle=")
+                    .append(d.connectionPool.idleConnectionCount())
+                    .append(' ')
+                    .append(d.stats)
+                    .append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private Domain createDomain(String domain)
+    {
+        Dispatcher dispatcher = new Dispatcher(getExecutorService());
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        Domain d = new Domain(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS), dispatcher);
+
+        IsolationPolicy isolationPolicy = domain.isEmpty() ? IsolationPolicy.none() : IsolationPolicy.perTenant(domain);
+
+        d.client = getBaseClient().newBuilder()
+                .socketFactory(new ProxiedSocketFactory(proxy).setIsolation(isolationPolicy, isolationStats))
+                .connectionPool(d.connectionPool)
+                .dispatcher(dispatcher)
+                .addNetworkInterceptor(d.stats)
+                .build();
+
+        return d;
+    }
+
+    private OkHttpClient getBaseClient()
+    {
+        if (baseClient == null)
+        {
+            // OkHttp opens SOCKS sockets by itself, so sockets are created by the factory and OkHttp sees direct connections
+            this.baseClient = new OkHttpClient.Builder()
+                    .proxy(Proxy.NO_PROXY)
+                    .dns(dns)
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .writeTimeout(writeTimeout, TimeUnit.MILLISECONDS)
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+
+        return baseClient;
+    }
+
+    private ExecutorService getExecutorService()
+    {
+        if (executorService == null)
+        {
+            ThreadFactory threadFactory = r ->
+            {
+                Thread thread = new Thread(r, "TorHttpClient Dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+        }
+
+        return executorService;
+    }
+
+    private synchronized List<Domain> getDomains()
+    {
+        return new ArrayList<>(domains.values());
+    }
+}
@@ -0,0 +1,596 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps number of concurrently pending SOCKS handshakes, so a burst of new connections does not hit tor all at once.
+ * <p>
+ * Requests over the limit are queued per source and traffic class and dispatched by deficit round robin,
+ * where every queue gets {@link TrafficClass#getWeight()} requests per round. A single source with hundreds
+ * of connections therefore cannot starve other sources, and interactive ports are preferred over bulk ones.
+ * Queued requests time out after {@link #setQueueTimeout(long)}.
+ * <p>
+ * Permit is held from admission until {@link Ticket#release()}, which should be called once SOCKS reply is received.
+ */
+public class AdmissionController implements MetricsCollector
+{
+    private static final int DEFAULT_MAX_PENDING = 32;
+    private static final int DEFAULT_MAX_QUEUED = 1024;
+    private static final long DEFAULT_QUEUE_TIMEOUT = 30 * 1000;
+
+    public enum TrafficClass
+    {
+        Interactive(4),
+        Bulk(1);
+
+        private final int weight;
+
+        TrafficClass(int weight)
+        {
+            this.weight = weight;
+        }
+
+        public int getWeight()
+        {
+            return weight;
+        }
+    }
+
+    public interface PortClassifier
+    {
+        TrafficClass classify(int port);
+    }
+
+    /**
+     * Called from thread which released the permit or from timeout thread, must not block.
+     */
+    public interface Listener
+    {
+        void onAdmitted(Ticket ticket);
+
+        void onTimedOut(Ticket ticket);
+    }
+
+    public static final PortClassifier DEFAULT_PORT_CLASSIFIER = port ->
+    {
+        switch (port)
+        {
+            case 22:
+            case 53:
+            case 80:
+            case 443:
+            case 853:
+            case 993:
+            case 995:
+            case 5222:
+            case 5223:
+            case 8080:
+            case 8443:
+                return TrafficClass.Interactive;
+
+            default:
+                return TrafficClass.Bulk;
+        }
+    };
+
+    private enum TicketState
+    {
+        Queued,
+        Admitted,
+        Released,
+        TimedOut,
+        Cancelled
+    }
+
+    public class Ticket
+    {
+        private final String source;
+        private final TrafficClass trafficClass;
+        private final Listener listener;
+        private final long requestedAt = System.nanoTime();
+
+        private TicketState state = TicketState.Queued;
+        private FlowQueue queue;
+        private ScheduledFuture<?> timeout;
+
+        private Ticket(String source, TrafficClass trafficClass, Listener listener)
+        {
+            this.source = source;
+            this.trafficClass = trafficClass;
+            this.listener = listener;
+        }
+
+        public String getSource()
+        {
+            return source;
+        }
+
+        public TrafficClass getTrafficClass()
+        {
+            return trafficClass;
+        }
+
+        public boolean isAdmitted()
+        {
+            synchronized (AdmissionController.this)
+            {
+                return state == TicketState.Admitted;
+            }
+        }
+
+        /**
+         * Returns permit of admitted ticket, or removes queued ticket from queue. Can be called repeatedly.
+         */
+        public void release()
+        {
+            AdmissionController.this.release(this);
+        }
+    }
+
+    private static class FlowQueue
+    {
+        private final String source;
+        private final int weight;
+        private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+
+        private int deficit;
+        private boolean visited;
+        private boolean active;
+
+        private FlowQueue(String source, int weight)
+        {
+            this.source = source;
+            this.weight = weight;
+        }
+    }
+
+    private final Map<String, FlowQueue[]> queues = new HashMap<>();
+    private final ArrayDeque<FlowQueue> activeQueues = new ArrayDeque<>();
+    private final Histogram queueWait = new Histogram();
+
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+    private long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private PortClassifier portClassifier = DEFAULT_PORT_CLASSIFIER;
+
+    private int pending;
+    private int queued;
+
+    private long admittedImmediately;
+    private long admittedFromQueue;
+    private long timedOut;
+    private long rejected;
+
+    private ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Raised limit admits queued requests right away.
+     */
+    public AdmissionController setMaxPending(int maxPending)
+    {
+        if (maxPending < 1)
+            throw new IllegalArgumentException("maxPending must be positive.");
+
+        List<Ticket> admitted = new ArrayList<>();
+
+        synchronized (this)
+        {
+            this.maxPending = maxPending;
+
+            Ticket next;
+
+            while ((next = dispatch()) != null)
+                admitted.add(next);
+        }
+
+        for (Ticket ticket : admitted)
+            ticket.listener.onAdmitted(ticket);
+
+        return this;
+    }
+
+    public synchronized AdmissionController setMaxQueued(int maxQueued)
+    {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public synchronized AdmissionController setQueueTimeout(long queueTimeoutMillis)
+    {
+        this.queueTimeout = queueTimeoutMillis;
+        return this;
+    }
+
+    public synchronized AdmissionController setPortClassifier(PortClassifier portClassifier)
+    {
+        this.portClassifier = portClassifier;
+        return this;
+    }
+
+    /**
+     * Requests permit without blocking. If permit is available, returned ticket is admitted right away and
+     * listener is not called. Otherwise ticket is queued and listener is called once it is admitted or timed out.
+     *
+     * @param source fairness key, e.g. tenant or destination host
+     * @param port   destination port used to determine traffic class
+     * @return ticket, or null if queue is full
+     */
+    public synchronized Ticket request(String source, int port, Listener listener)
+    {
+        TrafficClass trafficClass = portClassifier.classify(port);
+        Ticket ticket = new Ticket(source, trafficClass, listener);
+
+        if (pending < maxPending && queued == 0)
+        {
+            ticket.state = TicketState.Admitted;
+            pending++;
+            admittedImmediately++;
+            queueWait.record(0);
+
+            return ticket;
+        }
+
+        if (queued >= maxQueued)
+        {
+            rejected++;
+            return null;
+        }
+
+        enqueue(ticket);
+
+        if (queueTimeout > 0)
+            ticket.timeout = getTimer().schedule(() -> onTimeout(ticket), queueTimeout, TimeUnit.MILLISECONDS);
+
+        return ticket;
+    }
+
+    /**
+     * Blocks until permit is granted.
+     *
+     * @throws SocketTimeoutException if request timed out in queue or queue is full
+     */
+    public Ticket acquire(String source, int port) throws InterruptedException, SocketTimeoutException
+    {
+        Object monitor = new Object();
+
+        Ticket ticket = request(source, port, new Listener()
+        {
+            @Override
+            public void onAdmitted(Ticket ticket)
+            {
+                synchronized (monitor)
+                {
+                    monitor.notifyAll();
+                }
+            }
+
+            @Override
+            public void onTimedOut(Ticket ticket)
+            {
+                synchronized (monitor)
+                {
+                    monitor.notifyAll();
+                }
+            }
+        });
+
+        if (ticket == null)
+            throw new SocketTimeoutException("SOCKS admission queue is full.");
+
+        try
+        {
+            synchronized (monitor)
+            {
+                while (true)
+                {
+                    synchronized (this)
+                    {
+                        if (ticket.state == TicketState.Admitted)
+                            return ticket;
+
+                        if (ticket.state != TicketState.Queued)
+                            throw new SocketTimeoutException("Timed out in SOCKS admission queue.");
+                    }
+
+                    monitor.wait();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            ticket.release();
+            throw e;
+        }
+    }
+
+    private void release(Ticket ticket)
+    {
+        Ticket next;
+
+        synchronized (this)
+        {
+            if (ticket.state == TicketState.Queued)
+            {
+                ticket.state = TicketState.Cancelled;
+                cancelTimeout(ticket);
+                remove(ticket);
+                return;
+            }
+
+            if (ticket.state != TicketState.Admitted)
+                return;
+
+            ticket.state = TicketState.Released;
+            pending--;
+
+            next = dispatch();
+        }
+
+        if (next != null)
+            next.listener.onAdmitted(next);
+    }
+
+    private void onTimeout(Ticket ticket)
+    {
+        synchronized (this)
+        {
+            if (ticket.state != TicketState.Queued)
+                return;
+
+            ticket.state = TicketState.TimedOut;
+            timedOut++;
+
+            remove(ticket);
+        }
+
+        ticket.listener.onTimedOut(ticket);
+    }
+
+    /**
+     * @return next admitted ticket, null if nothing is queued
+     */
+    private Ticket dispatch()
+    {
+        if (pending >= maxPending)
+            return null;
+
+        Ticket ticket = next();
+
+        if (ticket == null)
+            return null;
+
+        cancelTimeout(ticket);
+
+        ticket.state = TicketState.Admitted;
+        ticket.queue = null;
+        pending++;
+        queued--;
+        admittedFromQueue++;
+        queueWait.record(System.nanoTime() - ticket.requestedAt);
+
+        return ticket;
+    }
+
+    /**
+     * Timer removes cancelled tasks, so tickets left the queue do not pile up in it until their timeout.
+     */
+    private void cancelTimeout(Ticket ticket)
+    {
+        if (ticket.timeout == null)
+            return;
+
+        ticket.timeout.cancel(false);
+        ticket.timeout = null;
+    }
+
+    private void enqueue(Ticket ticket)
+    {
+        FlowQueue[] sourceQueues = queues.get(ticket.source);
+
+        if (sourceQueues == null)
+        {
+            sourceQueues = new FlowQueue[TrafficClass.values().length];
+            queues.put(ticket.source, sourceQueues);
+        }
+
+        int index = ticket.trafficClass.ordinal();
+        FlowQueue queue = sourceQueues[index];
+
+        if (queue == null)
+            queue = sourceQueues[index] = new FlowQueue(ticket.source, ticket.trafficClass.getWeight());
+
+        queue.tickets.add(ticket);
+        ticket.queue = queue;
+        queued++;
+
+        if (!queue.active)
+        {
+            queue.active = true;
+            activeQueues.add(queue);
+        }
+    }
+
+    private void remove(Ticket ticket)
+    {
+        FlowQueue queue = ticket.queue;
+
+        if (queue == null || !queue.tickets.remove(ticket))
+            return;
+
+        ticket.queue = null;
+        queued--;
+
+        if (queue.tickets.isEmpty())
+            deactivate(queue);
+    }
+
+    /**
+     * Deficit round robin, every request costs 1.
+     */
+    private Ticket next()
+    {
+        while (!activeQueues.isEmpty())
+        {
+            FlowQueue queue = activeQueues.peekFirst();
+
+            if (!queue.visited)
+            {
+                queue.visited = true;
+                queue.deficit += queue.weight;
+            }
+
+            if (queue.deficit > 0)
+            {
+                queue.deficit--;
+                Ticket ticket = queue.tickets.poll();
+
+                if (queue.tickets.isEmpty())
+                    deactivate(queue);
+
+                return ticket;
+            }
+
+            activeQueues.pollFirst();
+            activeQueues.addLast(queue);
+            queue.visited = false;
+        }
+
+        return null;
+    }
+
+    private void deactivate(FlowQueue queue)
+    {
+        activeQueues.remove(queue);
+
+        queue.active = false;
+        queue.visited = false;
+        queue.deficit = 0;
+
+        FlowQueue[] sourceQueues = queues.get(queue.source);
+
+        if (sourceQueues == null)
+            return;
+
+        for (FlowQueue q : sourceQueues)
+            if (q != null && q.active)
+                return;
+
+        queues.remove(queue.source);
+    }
+
+    private ScheduledThreadPoolExecutor getTimer()
+    {
+        if (timer == null)
+        {
+            ThreadFactory threadFactory = r ->
+            {
+                Thread thread = new Thread(r, "AdmissionController");
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+            timer.setRemoveOnCancelPolicy(true);
+        }
+
+        return timer;
+    }
+
+    public synchronized int getPending()
+    {
+        return pending;
+    }
+
+    public synchronized int getQueued()
+    {
+        return queued;
+    }
+
+    public synchronized int getQueuedSources()
+    {
+        return queues.size();
+    }
+
+    public synchronized long getAdmittedImmediately()
+    {
+        return admittedImmediately;
+    }
+
+    public synchronized long getAdmittedFromQueue()
+    {
+        return admittedFromQueue;
+    }
+
+    public synchronized long getTimedOut()
+    {
+        return timedOut;
+    }
+
+    /**
+     * @return number of requests refused because queue was full
+     */
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * @return time spent in queue in nanoseconds, 0 for immediately admitted requests
+     */
+    public Histogram getQueueWait()
+    {
+        return queueWait;
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        synchronized (this)
+        {
+            writer.gauge("torlib_admission_pending", "SOCKS handshakes in progress.", pending);
+            writer.gauge("torlib_admission_queued", "SOCKS requests waiting in queue.", queued);
+            writer.counter("torlib_admission_admitted_total", "Admitted SOCKS requests.", admittedImmediately, "queue", "immediate");
+            writer.counter("torlib_admission_admitted_total", "Admitted SOCKS requests.", admittedFromQueue, "queue", "queued");
+            writer.counter("torlib_admission_timed_out_total", "SOCKS requests which timed out in queue.", timedOut);
+            writer.counter("torlib_admission_rejected_total", "SOCKS requests refused because queue was full.", rejected);
+        }
+
+        writer.histogram("torlib_admission_queue_wait_seconds", "Time SOCKS requests spent in queue.", queueWait, 1e-9);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(Locale.US, "pending=%d/%d queued=%d sources=%d immediate=%d queued=%d timedOut=%d rejected=%d wait(p50=%dms p99=%dms)",
+                pending,
+                maxPending,
+                queued,
+                queues.size(),
+                admittedImmediately,
+                admittedFromQueue,
+                timedOut,
+                rejected,
+                queueWait.getValueAtPercentile(50) / 1000000,
+                queueWait.getValueAtPercentile(99) / 1000000);
+    }
+}
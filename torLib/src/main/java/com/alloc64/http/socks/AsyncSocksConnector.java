@@ -0,0 +1,685 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.metrics.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Opens connections through SOCKS5 server (tor SocksPort) without blocking the calling thread.
+ * <p>
+ * All handshakes run on a single selector thread, so thousands of concurrent connections waiting for tor circuits
+ * do not need a thread each. {@link #connect(InetSocketAddress, long)} returns {@link SocksConnectFuture},
+ * which completes with non-blocking {@link SocketChannel} connected to destination. Channel is already deregistered
+ * from connector selector, so it can be registered to caller's selector or switched to blocking mode.
+ * <p>
+ * Greeting, authentication and CONNECT request are pipelined like in {@link Socks5Socket}, and reply is read
+ * byte-exactly, so no data sent by destination is consumed by the connector.
+ */
+public class AsyncSocksConnector implements Runnable, Closeable
+{
+    private static final int REPLY_BUFFER_SIZE = 4 + 1 + 255 + 2;
+    private static final long STOP_TIMEOUT = 2000;
+
+    private enum State
+    {
+        Queued,
+        Connecting,
+        Handshake,
+        Done
+    }
+
+    private enum ReplyStage
+    {
+        Method,
+        Authentication,
+        Header,
+        Address
+    }
+
+    private class Connection implements AdmissionController.Listener, Runnable
+    {
+        private final SocksConnectFuture future;
+        private final InetSocketAddress destination;
+        private final long deadline;
+        private final long startedAt = System.nanoTime();
+
+        private IsolationToken isolationToken;
+        private String username;
+        private String password;
+
+        private State state = State.Queued;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer request;
+        private ByteBuffer reply;
+        private ReplyStage replyStage;
+        private AdmissionController.Ticket ticket;
+
+        private Connection(SocksConnectFuture future, InetSocketAddress destination, long timeoutMillis)
+        {
+            this.future = future;
+            this.destination = destination;
+            this.deadline = timeoutMillis > 0 ? startedAt + timeoutMillis * 1000000L : Long.MAX_VALUE;
+        }
+
+        /**
+         * Cancellation of the future.
+         */
+        @Override
+        public void run()
+        {
+            post(() -> fail(null));
+        }
+
+        @Override
+        public void onAdmitted(AdmissionController.Ticket ticket)
+        {
+            post(() -> open());
+        }
+
+        @Override
+        public void onTimedOut(AdmissionController.Ticket ticket)
+        {
+            post(() -> fail(new SocketTimeoutException("Timed out in SOCKS admission queue.")));
+        }
+
+        private void open()
+        {
+            if (state != State.Queued)
+                return;
+
+            try
+            {
+                this.request = ByteBuffer.wrap(Socks5Socket.createRequest(destination, username, password));
+                this.reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+                this.replyStage = ReplyStage.Method;
+                reply.limit(2);
+
+                this.channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                InetSocketAddress proxyAddress = AsyncSocksConnector.this.proxyAddress.isUnresolved() ?
+                        new InetSocketAddress(AsyncSocksConnector.this.proxyAddress.getHostString(), AsyncSocksConnector.this.proxyAddress.getPort()) :
+                        AsyncSocksConnector.this.proxyAddress;
+
+                if (channel.connect(proxyAddress))
+                {
+                    this.state = State.Handshake;
+                    this.key = channel.register(selector, SelectionKey.OP_WRITE, this);
+                }
+                else
+                {
+                    this.state = State.Connecting;
+                    this.key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void onSelected() throws IOException
+        {
+            if (state == State.Connecting && key.isConnectable())
+            {
+                if (!channel.finishConnect())
+                    return;
+
+                this.state = State.Handshake;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if (state != State.Handshake)
+                return;
+
+            if (request.hasRemaining() && key.isWritable())
+            {
+                channel.write(request);
+
+                if (!request.hasRemaining())
+                    key.interestOps(SelectionKey.OP_READ);
+            }
+
+            if (!request.hasRemaining() && key.isReadable())
+                readReply();
+        }
+
+        private void readReply() throws IOException
+        {
+            while (state == State.Handshake)
+            {
+                int read = channel.read(reply);
+
+                if (read < 0)
+                    throw new SocksException(SocksException.Reason.ProtocolError, "SOCKS server closed connection.");
+
+                if (reply.hasRemaining())
+                    return;
+
+                onReplyStage();
+            }
+        }
+
+        /**
+         * Buffer limit is always set to the end of the next message part, so reads never go past the reply.
+         */
+        private void onReplyStage() throws IOException
+        {
+            switch (replyStage)
+            {
+                case Method:
+                {
+                    if (reply.get(0) != Socks5Socket.SOCKS_VERSION)
+                        throw new SocksException(SocksException.Reason.ProtocolError, "Unsupported SOCKS version.");
+
+                    int method = reply.get(1) & 0xFF;
+
+                    if (method == Socks5Socket.METHOD_USERNAME_PASSWORD && username != null)
+                    {
+                        this.replyStage = ReplyStage.Authentication;
+                        reply.clear().limit(2);
+                    }
+                    else if (method == Socks5Socket.METHOD_NO_AUTH)
+                    {
+                        this.replyStage = ReplyStage.Header;
+                        reply.clear().limit(5);
+                    }
+                    else
+                    {
+                        throw new SocksException(SocksException.Reason.AuthenticationFailed, "SOCKS server refused authentication method.");
+                    }
+
+                    break;
+                }
+
+                case Authentication:
+                {
+                    if (reply.get(1) != 0)
+                        throw new SocksException(SocksException.Reason.AuthenticationFailed, "SOCKS server rejected credentials.");
+
+                    this.replyStage = ReplyStage.Header;
+                    reply.clear().limit(5);
+                    break;
+                }
+
+                case Header:
+                {
+                    if (reply.get(0) != Socks5Socket.SOCKS_VERSION)
+                        throw new SocksException(SocksException.Reason.ProtocolError, "Unsupported SOCKS version.");
+
+                    int code = reply.get(1) & 0xFF;
+
+                    if (code != 0)
+                        throw new SocksException(code);
+
+                    int addressType = reply.get(3);
+                    int remaining;
+
+                    if (addressType == Socks5Socket.ATYP_IPV4)
+                        remaining = 4 - 1 + 2;
+                    else if (addressType == Socks5Socket.ATYP_IPV6)
+                        remaining = 16 - 1 + 2;
+                    else if (addressType == Socks5Socket.ATYP_DOMAIN)
+                        remaining = (reply.get(4) & 0xFF) + 2;
+                    else
+                        throw new SocksException(SocksException.Reason.ProtocolError, "Invalid address type in SOCKS reply.");
+
+                    this.replyStage = ReplyStage.Address;
+                    reply.limit(reply.position() + remaining);
+                    break;
+                }
+
+                case Address:
+                    succeed();
+                    break;
+            }
+        }
+
+        private void succeed() throws IOException
+        {
+            this.state = State.Done;
+
+            connectLatency.record(System.nanoTime() - startedAt);
+            releaseAdmission();
+            reportIsolation(true);
+
+            // channel must be deregistered before it is handed over, selectNow is called after selected keys are processed
+            key.cancel();
+            completed.add(this);
+        }
+
+        /**
+         * @param e null if future was cancelled
+         */
+        private void fail(IOException e)
+        {
+            if (state == State.Done)
+                return;
+
+            this.state = State.Done;
+
+            releaseAdmission();
+            reportIsolation(false);
+            remove(this);
+
+            if (e != null)
+                future.complete(null, e, false);
+
+            closeQuietly(channel);
+        }
+
+        private void releaseAdmission()
+        {
+            if (ticket != null)
+            {
+                ticket.release();
+                this.ticket = null;
+            }
+        }
+
+        private void reportIsolation(boolean success)
+        {
+            if (isolationStats != null)
+                isolationStats.onConnect(isolationToken, success);
+        }
+    }
+
+    private final InetSocketAddress proxyAddress;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Connection> deadlines = new PriorityQueue<>(16, (a, b) -> Long.compare(a.deadline, b.deadline));
+    private final List<Connection> completed = new ArrayList<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final Histogram connectLatency = new Histogram();
+
+    private AdmissionController admissionController;
+    private String admissionSource = "";
+    private IsolationPolicy isolationPolicy;
+    private IsolationStats isolationStats;
+    private String username;
+    private String password;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int pending;
+
+    /**
+     * @param proxyAddress address of tor SocksPort
+     */
+    public AsyncSocksConnector(InetSocketAddress proxyAddress)
+    {
+        this.proxyAddress = proxyAddress;
+    }
+
+    /**
+     * Credentials sent to SOCKS server, both must be 1 - 255 bytes long in UTF-8. Null disables authentication.
+     */
+    public synchronized AsyncSocksConnector setCredentials(String username, String password)
+    {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Connections wait for permit of admissionController, permit is held until SOCKS reply is received.
+     * Waiting does not block any thread.
+     */
+    public synchronized AsyncSocksConnector setAdmissionController(AdmissionController admissionController, String source)
+    {
+        this.admissionController = admissionController;
+        this.admissionSource = source != null ? source : "";
+        return this;
+    }
+
+    /**
+     * Credentials are taken from token chosen by policy for the destination, overriding {@link #setCredentials(String, String)}.
+     *
+     * @param stats receives result of the connection, may be null
+     */
+    public synchronized AsyncSocksConnector setIsolation(IsolationPolicy policy, IsolationStats stats)
+    {
+        this.isolationPolicy = policy;
+        this.isolationStats = stats;
+        return this;
+    }
+
+    public synchronized AsyncSocksConnector start() throws IOException
+    {
+        if (running)
+            throw new IllegalStateException("Connector is already running.");
+
+        this.selector = Selector.open();
+        this.running = true;
+
+        this.thread = new Thread(this, "AsyncSocksConnector");
+        thread.setDaemon(true);
+        thread.start();
+
+        return this;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public InetSocketAddress getProxyAddress()
+    {
+        return proxyAddress;
+    }
+
+    /**
+     * Starts connection to destination, unresolved address is resolved by SOCKS server.
+     *
+     * @param timeoutMillis deadline of the whole connection including admission queue and SOCKS handshake, 0 for none
+     */
+    public SocksConnectFuture connect(InetSocketAddress destination, long timeoutMillis)
+    {
+        return connect(destination, timeoutMillis, getIsolationToken(destination));
+    }
+
+    /**
+     * Starts connection with given isolation token instead of the one chosen by isolation policy.
+     *
+     * @param isolationToken null to use credentials set by {@link #setCredentials(String, String)}
+     */
+    public SocksConnectFuture connect(InetSocketAddress destination, long timeoutMillis, IsolationToken isolationToken)
+    {
+        SocksConnectFuture future = new SocksConnectFuture(destination);
+        Connection connection = new Connection(future, destination, timeoutMillis);
+
+        synchronized (this)
+        {
+            if (!running)
+            {
+                future.complete(null, new IOException("Connector is not running."), false);
+                return future;
+            }
+
+            connection.isolationToken = isolationToken;
+            connection.username = isolationToken != null ? isolationToken.getUsername() : username;
+            connection.password = isolationToken != null ? isolationToken.getPassword() : password;
+        }
+
+        future.setCancelHandler(connection);
+        post(() -> submit(connection));
+
+        return future;
+    }
+
+    /**
+     * Blocking socket to the same SOCKS server, configured like connections of this connector.
+     *
+     * @param isolationToken null to use credentials set by {@link #setCredentials(String, String)}
+     */
+    synchronized Socks5Socket createSocket(IsolationToken isolationToken)
+    {
+        Socks5Socket socket = new Socks5Socket(proxyAddress);
+
+        socket.setCredentials(isolationToken != null ? isolationToken.getUsername() : username,
+                isolationToken != null ? isolationToken.getPassword() : password);
+        socket.setIsolation(IsolationPolicy.fixed(isolationToken), isolationStats);
+
+        if (admissionController != null)
+            socket.setAdmissionController(admissionController, admissionSource);
+
+        return socket;
+    }
+
+    /**
+     * @return token chosen by isolation policy for destination, null if connections are not isolated
+     */
+    public synchronized IsolationToken getIsolationToken(InetSocketAddress destination)
+    {
+        return isolationPolicy != null ? isolationPolicy.getToken(destination) : null;
+    }
+
+    /**
+     * @return latency from connect call to SOCKS reply of successful connections in nanoseconds
+     */
+    public Histogram getConnectLatency()
+    {
+        return connectLatency;
+    }
+
+    /**
+     * @return number of connections in progress, updated on connector thread
+     */
+    public int getPending()
+    {
+        return pending;
+    }
+
+    /**
+     * Stops the connector and fails all pending connections.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (!running)
+            return;
+
+        this.running = false;
+        selector.wakeup();
+
+        try
+        {
+            thread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                long timeout = 0;
+
+                if (!deadlines.isEmpty())
+                    timeout = Math.max(1, (deadlines.peek().deadline - System.nanoTime()) / 1000000L);
+
+                selector.select(timeout);
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    Connection connection = (Connection) key.attachment();
+
+                    try
+                    {
+                        connection.onSelected();
+                    }
+                    catch (IOException e)
+                    {
+                        connection.fail(e);
+                    }
+                }
+
+                handOver();
+                expire();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            this.running = false;
+            cleanup();
+        }
+    }
+
+    private void submit(Connection connection)
+    {
+        connections.add(connection);
+        this.pending = connections.size();
+
+        if (connection.future.isDone())
+        {
+            connection.fail(null);
+            return;
+        }
+
+        if (connection.deadline != Long.MAX_VALUE)
+            deadlines.add(connection);
+
+        AdmissionController admissionController;
+        String admissionSource;
+
+        synchronized (this)
+        {
+            admissionController = this.admissionController;
+            admissionSource = this.admissionSource;
+        }
+
+        if (admissionController != null)
+        {
+            AdmissionController.Ticket ticket = admissionController.request(admissionSource, connection.destination.getPort(), connection);
+
+            if (ticket == null)
+            {
+                connection.fail(new SocketTimeoutException("SOCKS admission queue is full."));
+                return;
+            }
+
+            connection.ticket = ticket;
+
+            if (!ticket.isAdmitted())
+                return;
+        }
+
+        connection.open();
+    }
+
+    private void handOver() throws IOException
+    {
+        if (completed.isEmpty())
+            return;
+
+        selector.selectNow();
+
+        for (Connection connection : completed)
+        {
+            remove(connection);
+
+            if (!connection.future.complete(connection.channel, null, false))
+                closeQuietly(connection.channel);
+        }
+
+        completed.clear();
+    }
+
+    private void expire()
+    {
+        long now = System.nanoTime();
+
+        while (!deadlines.isEmpty())
+        {
+            Connection connection = deadlines.peek();
+
+            // finished connections are removed lazily
+            if (connection.state != State.Done && connection.deadline - now > 0)
+                break;
+
+            deadlines.poll();
+            connection.fail(new SocketTimeoutException("SOCKS connection to " + connection.destination + " timed out."));
+        }
+    }
+
+    /**
+     * Every connection still in progress, including finished ones not handed over yet, fails, so no future is left incomplete.
+     */
+    private void cleanup()
+    {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null)
+            task.run();
+
+        IOException closed = new IOException("Connector closed.");
+
+        for (Connection connection : completed)
+        {
+            remove(connection);
+            connection.future.complete(null, closed, false);
+            closeQuietly(connection.channel);
+        }
+
+        completed.clear();
+
+        for (Connection connection : new ArrayList<>(connections))
+            connection.fail(closed);
+
+        deadlines.clear();
+        closeQuietly(selector);
+    }
+
+    private void remove(Connection connection)
+    {
+        connections.remove(connection);
+        this.pending = connections.size();
+    }
+
+    private void post(Runnable task)
+    {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Default policy:
+ * <ul>
+ * <li>loopback, site-local and link-local destinations are connected directly (they are unreachable through tor anyway),</li>
+ * <li>ports rejected by default tor exit policy are refused immediately, instead of waiting for a circuit
+ * and failing on the exit,</li>
+ * <li>everything else goes through tor, optionally isolated per destination host.</li>
+ * </ul>
+ * Direct connections bypass VPN only when the app is excluded from it, as TorVpnProvider does.
+ */
+public class DefaultSocksPolicy implements SocksPolicy
+{
+    public enum Isolation
+    {
+        /**
+         * All connections share tor circuits.
+         */
+        None,
+
+        /**
+         * Every destination host gets its own circuit.
+         */
+        PerHost
+    }
+
+    private static final int[][] DEFAULT_REJECTED_PORTS = {
+            {0, 0},
+            {25, 25},
+            {119, 119},
+            {135, 139},
+            {445, 445},
+            {563, 563},
+            {1214, 1214},
+            {4661, 4666},
+            {6346, 6429},
+            {6699, 6699},
+            {6881, 6999}
+    };
+
+    private final BitSet rejectedPorts = new BitSet(0x10000);
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile boolean directLocalNetworks = true;
+    private volatile Isolation isolation = Isolation.None;
+    private volatile String identity;
+
+    public DefaultSocksPolicy()
+    {
+        for (int[] range : DEFAULT_REJECTED_PORTS)
+            rejectedPorts.set(range[0], range[1] + 1);
+
+        newIdentity();
+    }
+
+    public DefaultSocksPolicy setDirectLocalNetworks(boolean directLocalNetworks)
+    {
+        this.directLocalNetworks = directLocalNetworks;
+        return this;
+    }
+
+    public DefaultSocksPolicy setIsolation(Isolation isolation)
+    {
+        this.isolation = isolation;
+        return this;
+    }
+
+    public synchronized DefaultSocksPolicy rejectPorts(int from, int to)
+    {
+        checkPort(from);
+        checkPort(to);
+
+        rejectedPorts.set(from, to + 1);
+        return this;
+    }
+
+    public synchronized DefaultSocksPolicy allowPorts(int from, int to)
+    {
+        checkPort(from);
+        checkPort(to);
+
+        rejectedPorts.clear(from, to + 1);
+        return this;
+    }
+
+    public synchronized boolean isPortRejected(int port)
+    {
+        return rejectedPorts.get(port);
+    }
+
+    /**
+     * Changes password used for isolation, so connections made after this call do not reuse existing circuits.
+     */
+    public void newIdentity()
+    {
+        this.identity = String.format(Locale.US, "%016x", random.nextLong());
+    }
+
+    @Override
+    public SocksDecision decide(String host, InetAddress address, int port)
+    {
+        if (isPortRejected(port))
+            return SocksDecision.reject();
+
+        if (address != null && directLocalNetworks && isLocalAddress(address))
+            return SocksDecision.direct();
+
+        if (isolation == Isolation.PerHost)
+            return SocksDecision.proxy(host.toLowerCase(Locale.US), identity);
+
+        return SocksDecision.proxy();
+    }
+
+    public static boolean isLocalAddress(InetAddress address)
+    {
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress())
+            return true;
+
+        // unique local addresses fc00::/7
+        return address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC;
+    }
+
+    private static void checkPort(int port)
+    {
+        if (port < 0 || port > 0xFFFF)
+            throw new IllegalArgumentException("Invalid port " + port);
+    }
+}
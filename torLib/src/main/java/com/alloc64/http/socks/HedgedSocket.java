@@ -0,0 +1,262 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * Blocking socket connected by {@link HedgedSocksConnector}, for clients which need {@link Socket} created before connect.
+ * <p>
+ * Every attempt is a blocking {@link Socks5Socket} and socket delegates to the one which won the race, so reads,
+ * writes and soTimeout behave like on a plain socket. It must be used through its streams; TLS layered by Android
+ * platform SSLSocketFactory on older releases reads socket file descriptor directly, which this socket does not have.
+ */
+public class HedgedSocket extends Socket
+{
+    private final HedgedSocksConnector connector;
+
+    private HedgedSocksConnector.SocketRace race;
+    private volatile Socket delegate;
+    private InetSocketAddress remoteAddress;
+
+    private int soTimeout;
+    private boolean tcpNoDelay = true;
+    private boolean closed;
+
+    public HedgedSocket(HedgedSocksConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException
+    {
+        if (!(endpoint instanceof InetSocketAddress))
+            throw new IllegalArgumentException("Unsupported address type.");
+
+        HedgedSocksConnector.SocketRace race;
+
+        synchronized (this)
+        {
+            if (closed)
+                throw new SocketException("Socket is closed");
+
+            if (this.race != null)
+                throw new SocketException("Already connected");
+
+            this.remoteAddress = (InetSocketAddress) endpoint;
+            race = this.race = connector.socketRace(remoteAddress, timeout);
+        }
+
+        Socket delegate = race.connect();
+
+        synchronized (this)
+        {
+            try
+            {
+                if (closed)
+                    throw new SocketException("Socket is closed");
+
+                delegate.setSoTimeout(soTimeout);
+                delegate.setTcpNoDelay(tcpNoDelay);
+            }
+            catch (IOException e)
+            {
+                delegate.close();
+                throw e;
+            }
+
+            this.delegate = delegate;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return getDelegate().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return getDelegate().getOutputStream();
+    }
+
+    @Override
+    public synchronized void setSoTimeout(int timeout) throws SocketException
+    {
+        this.soTimeout = timeout;
+
+        if (delegate != null)
+            delegate.setSoTimeout(timeout);
+    }
+
+    @Override
+    public synchronized int getSoTimeout()
+    {
+        return soTimeout;
+    }
+
+    @Override
+    public synchronized void setTcpNoDelay(boolean on) throws SocketException
+    {
+        this.tcpNoDelay = on;
+
+        if (delegate != null)
+            delegate.setTcpNoDelay(on);
+    }
+
+    @Override
+    public synchronized boolean getTcpNoDelay()
+    {
+        return tcpNoDelay;
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException
+    {
+        if (delegate != null)
+            delegate.setKeepAlive(on);
+    }
+
+    @Override
+    public void shutdownInput() throws IOException
+    {
+        getDelegate().shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException
+    {
+        getDelegate().shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return delegate != null;
+    }
+
+    @Override
+    public boolean isBound()
+    {
+        return delegate != null;
+    }
+
+    @Override
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null && delegate.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null && delegate.isOutputShutdown();
+    }
+
+    /**
+     * @return destination requested in connect
+     */
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return remoteAddress;
+    }
+
+    @Override
+    public InetAddress getInetAddress()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null ? delegate.getInetAddress() : null;
+    }
+
+    @Override
+    public int getPort()
+    {
+        InetSocketAddress remoteAddress = this.remoteAddress;
+        return remoteAddress != null ? remoteAddress.getPort() : 0;
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null ? delegate.getLocalAddress() : super.getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null ? delegate.getLocalPort() : -1;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress()
+    {
+        Socket delegate = this.delegate;
+        return delegate != null ? delegate.getLocalSocketAddress() : null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        HedgedSocksConnector.SocketRace race;
+        Socket delegate;
+
+        synchronized (this)
+        {
+            if (closed)
+                return;
+
+            this.closed = true;
+
+            race = this.race;
+            delegate = this.delegate;
+        }
+
+        if (delegate != null)
+            delegate.close();
+        else if (race != null)
+            race.cancel();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HedgedSocket[" + remoteAddress + ", " + delegate + "]";
+    }
+
+    private Socket getDelegate() throws SocketException
+    {
+        if (isClosed())
+            throw new SocketException("Socket is closed");
+
+        Socket delegate = this.delegate;
+
+        if (delegate == null)
+            throw new SocketException("Socket is not connected");
+
+        return delegate;
+    }
+}
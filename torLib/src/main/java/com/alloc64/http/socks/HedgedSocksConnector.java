@@ -0,0 +1,830 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races a second SOCKS connection when the first one takes too long, to cut the latency tail caused by slow circuits.
+ * <p>
+ * If connection is not established within {@link #setPercentile(double)} of recent connect times, second attempt
+ * is started with a different isolation token, so tor uses another circuit for it. Whichever succeeds first is used
+ * and the other one is cancelled. Hedging costs a stream and a circuit for every hedged connection,
+ * with 95th percentile roughly every 20th connection is hedged.
+ * <p>
+ * Connect times are always taken from the first attempt. If second attempt wins, the first one is kept running
+ * (up to maximal hedge delay) only to measure its connect time, so the percentile is not biased towards
+ * fast connections.
+ * <p>
+ * Statistics are exported by registering the connector to {@link com.alloc64.torlib.metrics.MetricsRegistry}, connector
+ * passed to TLJNIBridge createOkHttpClient is exported together with other library metrics.
+ */
+public class HedgedSocksConnector implements MetricsCollector
+{
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 16;
+    private static final double DEFAULT_PERCENTILE = 95;
+    private static final long DEFAULT_INITIAL_DELAY = 2000;
+    private static final long DEFAULT_MIN_DELAY = 250;
+    private static final long DEFAULT_MAX_DELAY = 10 * 1000;
+    private static final String HEDGE_KEY_SUFFIX = "~hedge";
+
+    private class Race implements SocksConnectFuture.Callback, Runnable
+    {
+        private final InetSocketAddress destination;
+        private final long timeoutMillis;
+        private final IsolationToken isolationToken;
+        private final SocksConnectFuture result;
+        private final long startedAt = System.nanoTime();
+
+        private SocksConnectFuture primary;
+        private SocksConnectFuture hedge;
+        private ScheduledFuture<?> hedgeTimer;
+        private ScheduledFuture<?> drainTimer;
+        private IOException primaryError;
+        private int failures;
+        private boolean finished;
+        private boolean draining;
+
+        private Race(InetSocketAddress destination, long timeoutMillis, IsolationToken isolationToken)
+        {
+            this.destination = destination;
+            this.timeoutMillis = timeoutMillis;
+            this.isolationToken = isolationToken;
+            this.result = new SocksConnectFuture(destination);
+        }
+
+        /**
+         * Hedge timer.
+         */
+        @Override
+        public void run()
+        {
+            SocksConnectFuture hedge;
+
+            synchronized (this)
+            {
+                if (finished || this.hedge != null)
+                    return;
+
+                long remaining = Long.MAX_VALUE;
+
+                if (timeoutMillis > 0)
+                {
+                    remaining = timeoutMillis - (System.nanoTime() - startedAt) / 1000000L;
+
+                    if (remaining <= 0)
+                        return;
+                }
+
+                hedge = this.hedge = connector.connect(destination, remaining == Long.MAX_VALUE ? 0 : remaining, nextHedgeToken(isolationToken));
+            }
+
+            onRaceHedged();
+            hedge.addCallback(this);
+        }
+
+        @Override
+        public void onConnected(SocksConnectFuture future, SocketChannel channel)
+        {
+            long elapsed = System.nanoTime() - startedAt;
+            SocksConnectFuture loser = null;
+            boolean hedgeWon;
+
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    closeQuietly(channel);
+
+                    // primary kept running after hedge won, only its connect time is needed
+                    if (future == primary && stopDraining())
+                        onConnectTime(elapsed);
+
+                    return;
+                }
+
+                this.finished = true;
+                cancelTimer();
+
+                hedgeWon = future == hedge;
+
+                if (hedgeWon)
+                    startDraining(elapsed);
+                else
+                    loser = hedge;
+            }
+
+            if (loser != null)
+                loser.cancel(true);
+
+            onRaceFinished(hedgeWon);
+
+            if (!hedgeWon)
+                onConnectTime(elapsed);
+
+            if (!result.complete(channel, null, false))
+                closeQuietly(channel);
+        }
+
+        @Override
+        public void onFailed(SocksConnectFuture future, IOException e)
+        {
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    // failed primary has no connect time
+                    if (future == primary)
+                        stopDraining();
+
+                    return;
+                }
+
+                if (future == primary)
+                    this.primaryError = e;
+
+                // wait for the other attempt, if there is one
+                if (++failures < 2 && hedge != null)
+                    return;
+
+                this.finished = true;
+                cancelTimer();
+            }
+
+            onRaceFailed();
+            result.complete(null, primaryError != null ? primaryError : e, false);
+        }
+
+        private synchronized void start()
+        {
+            if (finished)
+                return;
+
+            this.primary = connector.connect(destination, timeoutMillis, isolationToken);
+
+            long delay = getHedgeDelay();
+
+            if (timeoutMillis <= 0 || delay < timeoutMillis)
+                this.hedgeTimer = getTimer().schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel()
+        {
+            SocksConnectFuture primary;
+            SocksConnectFuture hedge;
+
+            synchronized (this)
+            {
+                this.finished = true;
+
+                primary = this.primary;
+                hedge = this.hedge;
+
+                cancelTimer();
+                stopDraining();
+            }
+
+            if (primary != null)
+                primary.cancel(true);
+
+            if (hedge != null)
+                hedge.cancel(true);
+        }
+
+        /**
+         * Keeps primary running until it connects, fails or exceeds maximal hedge delay. Connect times above
+         * the maximal delay do not change the hedge delay, so primary is then cancelled and recorded at the maximum.
+         */
+        private void startDraining(long elapsed)
+        {
+            long remaining = getMaxDelay() - elapsed / 1000000L;
+
+            this.draining = true;
+            this.drainTimer = getTimer().schedule(() ->
+            {
+                synchronized (this)
+                {
+                    if (!stopDraining())
+                        return;
+                }
+
+                primary.cancel(true);
+                onConnectTime(Math.max(System.nanoTime() - startedAt, TimeUnit.MILLISECONDS.toNanos(getMaxDelay())));
+
+            }, Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return false if primary was not draining
+         */
+        private boolean stopDraining()
+        {
+            if (!draining)
+                return false;
+
+            this.draining = false;
+
+            if (drainTimer != null)
+            {
+                drainTimer.cancel(false);
+                this.drainTimer = null;
+            }
+
+            return true;
+        }
+
+        private void cancelTimer()
+        {
+            if (hedgeTimer != null)
+            {
+                hedgeTimer.cancel(false);
+                this.hedgeTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Blocking counterpart of {@link Race} for {@link HedgedSocket}. Attempts are {@link Socks5Socket}s connected
+     * on threads of the connector, so the winner is a plain socket with its own streams and socket options.
+     */
+    class SocketRace
+    {
+        private final InetSocketAddress destination;
+        private final int timeoutMillis;
+        private final IsolationToken isolationToken;
+        private final long startedAt = System.nanoTime();
+
+        private Socks5Socket primary;
+        private Socks5Socket hedge;
+        private Future<?> primaryTask;
+        private Future<?> hedgeTask;
+        private Socks5Socket winner;
+        private ScheduledFuture<?> drainTimer;
+        private IOException primaryError;
+        private IOException error;
+        private int failures;
+        private boolean finished;
+        private boolean draining;
+
+        private SocketRace(InetSocketAddress destination, int timeoutMillis, IsolationToken isolationToken)
+        {
+            this.destination = destination;
+            this.timeoutMillis = timeoutMillis;
+            this.isolationToken = isolationToken;
+        }
+
+        /**
+         * @return socket of the attempt which connected first
+         */
+        Socket connect() throws IOException
+        {
+            long hedgeAt = startedAt + TimeUnit.MILLISECONDS.toNanos(getHedgeDelay());
+            long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            boolean timedOut = false;
+
+            try
+            {
+                synchronized (this)
+                {
+                    if (finished)
+                        throw new SocketException("Socket is closed");
+
+                    this.primary = connector.createSocket(isolationToken);
+                    this.primaryTask = start(primary, timeoutMillis);
+
+                    while (!finished)
+                    {
+                        long now = System.nanoTime();
+
+                        if (timeoutMillis > 0 && now - deadline >= 0)
+                        {
+                            this.finished = true;
+                            timedOut = true;
+                            break;
+                        }
+
+                        boolean hedgePending = hedge == null && (timeoutMillis <= 0 || hedgeAt - deadline < 0);
+
+                        if (hedgePending && now - hedgeAt >= 0)
+                        {
+                            int remaining = timeoutMillis > 0 ? (int) Math.max(1, (deadline - now) / 1000000L) : 0;
+
+                            this.hedge = connector.createSocket(nextHedgeToken(isolationToken));
+                            this.hedgeTask = start(hedge, remaining);
+                            onRaceHedged();
+                            continue;
+                        }
+
+                        long wakeAt = hedgePending ? hedgeAt : deadline;
+                        wait(hedgePending || timeoutMillis > 0 ? Math.max(1, (wakeAt - now) / 1000000L) : 0);
+                    }
+
+                    if (winner != null)
+                        return winner;
+
+                    if (error != null)
+                        throw error;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for SOCKS connection.");
+            }
+
+            if (!timedOut)
+                throw new SocketException("Socket is closed");
+
+            abort();
+            onRaceFailed();
+            throw new SocketTimeoutException("SOCKS connection to " + destination + " timed out.");
+        }
+
+        /**
+         * Aborts the race while connect is in progress, attempts are closed including a winner not returned yet.
+         */
+        void cancel()
+        {
+            synchronized (this)
+            {
+                this.finished = true;
+
+                stopDraining();
+                notifyAll();
+            }
+
+            abort();
+        }
+
+        private void abort()
+        {
+            Socks5Socket primary;
+            Socks5Socket hedge;
+            Future<?> primaryTask;
+            Future<?> hedgeTask;
+
+            synchronized (this)
+            {
+                primary = this.primary;
+                hedge = this.hedge;
+                primaryTask = this.primaryTask;
+                hedgeTask = this.hedgeTask;
+            }
+
+            if (primary != null)
+            {
+                primaryTask.cancel(true);
+                closeQuietly(primary);
+            }
+
+            if (hedge != null)
+            {
+                hedgeTask.cancel(true);
+                closeQuietly(hedge);
+            }
+        }
+
+        private Future<?> start(Socks5Socket socket, int timeout)
+        {
+            return getExecutor().submit(() ->
+            {
+                try
+                {
+                    socket.connect(destination, timeout);
+                    onConnected(socket);
+                }
+                catch (IOException e)
+                {
+                    onFailed(socket, e);
+                }
+            });
+        }
+
+        private void onConnected(Socks5Socket socket)
+        {
+            long elapsed = System.nanoTime() - startedAt;
+            Socks5Socket loser = null;
+            boolean hedgeWon;
+
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    closeQuietly(socket);
+
+                    // primary kept running after hedge won, only its connect time is needed
+                    if (socket == primary && stopDraining())
+                        onConnectTime(elapsed);
+
+                    return;
+                }
+
+                this.finished = true;
+                this.winner = socket;
+
+                hedgeWon = socket == hedge;
+
+                if (hedgeWon)
+                    startDraining(elapsed);
+                else
+                    loser = hedge;
+
+                notifyAll();
+            }
+
+            if (loser != null)
+            {
+                hedgeTask.cancel(true);
+                closeQuietly(loser);
+            }
+
+            onRaceFinished(hedgeWon);
+
+            if (!hedgeWon)
+                onConnectTime(elapsed);
+        }
+
+        private void onFailed(Socks5Socket socket, IOException e)
+        {
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    // failed primary has no connect time
+                    if (socket == primary)
+                        stopDraining();
+
+                    return;
+                }
+
+                if (socket == primary)
+                    this.primaryError = e;
+
+                // wait for the other attempt, if there is one
+                if (++failures < 2 && hedge != null)
+                    return;
+
+                this.finished = true;
+                this.error = primaryError != null ? primaryError : e;
+
+                notifyAll();
+            }
+
+            onRaceFailed();
+        }
+
+        /**
+         * Same as {@link Race#startDraining(long)}.
+         */
+        private void startDraining(long elapsed)
+        {
+            long remaining = getMaxDelay() - elapsed / 1000000L;
+
+            this.draining = true;
+            this.drainTimer = getTimer().schedule(() ->
+            {
+                synchronized (this)
+                {
+                    if (!stopDraining())
+                        return;
+                }
+
+                primaryTask.cancel(true);
+                closeQuietly(primary);
+                onConnectTime(Math.max(System.nanoTime() - startedAt, TimeUnit.MILLISECONDS.toNanos(getMaxDelay())));
+
+            }, Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        }
+
+        private boolean stopDraining()
+        {
+            if (!draining)
+                return false;
+
+            this.draining = false;
+
+            if (drainTimer != null)
+            {
+                drainTimer.cancel(false);
+                this.drainTimer = null;
+            }
+
+            return true;
+        }
+    }
+
+    private final AsyncSocksConnector connector;
+    private final long[] window = new long[WINDOW_SIZE];
+
+    private double percentile = DEFAULT_PERCENTILE;
+    private long initialDelay = DEFAULT_INITIAL_DELAY;
+    private long minDelay = DEFAULT_MIN_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private int samples;
+    private int windowIndex;
+    private long hedgeDelay = -1;
+    private long hedgeSequence;
+
+    private long connects;
+    private long hedged;
+    private long hedgeWins;
+    private long failed;
+
+    private ScheduledThreadPoolExecutor timer;
+    private ExecutorService executor;
+
+    /**
+     * @param connector started connector, its isolation policy determines token of first attempt
+     */
+    public HedgedSocksConnector(AsyncSocksConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    public AsyncSocksConnector getConnector()
+    {
+        return connector;
+    }
+
+    /**
+     * Percentile of recent connect times after which second attempt is started.
+     */
+    public synchronized HedgedSocksConnector setPercentile(double percentile)
+    {
+        if (percentile <= 0 || percentile >= 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100.");
+
+        this.percentile = percentile;
+        this.hedgeDelay = -1;
+        return this;
+    }
+
+    /**
+     * Hedge delay used until enough connect times are known.
+     */
+    public synchronized HedgedSocksConnector setInitialDelay(long initialDelayMillis)
+    {
+        this.initialDelay = initialDelayMillis;
+        return this;
+    }
+
+    public synchronized HedgedSocksConnector setDelayBounds(long minDelayMillis, long maxDelayMillis)
+    {
+        if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis)
+            throw new IllegalArgumentException("Invalid hedge delay bounds.");
+
+        this.minDelay = minDelayMillis;
+        this.maxDelay = maxDelayMillis;
+        this.hedgeDelay = -1;
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis deadline of both attempts, 0 for none
+     */
+    public SocksConnectFuture connect(InetSocketAddress destination, long timeoutMillis)
+    {
+        Race race = new Race(destination, timeoutMillis, connector.getIsolationToken(destination));
+
+        synchronized (this)
+        {
+            connects++;
+        }
+
+        race.result.setCancelHandler(race::cancel);
+        race.start();
+
+        if (race.primary != null)
+            race.primary.addCallback(race);
+
+        return race.result;
+    }
+
+    /**
+     * Race of blocking sockets, used by {@link HedgedSocket}. Statistics and hedge delay are shared with {@link #connect(InetSocketAddress, long)}.
+     *
+     * @param timeoutMillis deadline of both attempts, 0 for none
+     */
+    SocketRace socketRace(InetSocketAddress destination, int timeoutMillis)
+    {
+        synchronized (this)
+        {
+            connects++;
+        }
+
+        return new SocketRace(destination, timeoutMillis, connector.getIsolationToken(destination));
+    }
+
+    /**
+     * @return current delay after which connection is hedged in milliseconds
+     */
+    public synchronized long getHedgeDelay()
+    {
+        if (samples < MIN_SAMPLES)
+            return initialDelay;
+
+        if (hedgeDelay < 0)
+        {
+            int count = Math.min(samples, WINDOW_SIZE);
+            long[] sorted = Arrays.copyOf(window, count);
+            Arrays.sort(sorted);
+
+            int index = (int) Math.min(count - 1, Math.ceil(percentile / 100.0 * count) - 1);
+            long delay = sorted[Math.max(0, index)] / 1000000L;
+
+            this.hedgeDelay = Math.max(minDelay, Math.min(maxDelay, delay));
+        }
+
+        return hedgeDelay;
+    }
+
+    public synchronized long getConnects()
+    {
+        return connects;
+    }
+
+    /**
+     * @return number of connections for which second attempt was started
+     */
+    public synchronized long getHedged()
+    {
+        return hedged;
+    }
+
+    /**
+     * @return number of hedged connections won by second attempt
+     */
+    public synchronized long getHedgeWins()
+    {
+        return hedgeWins;
+    }
+
+    public synchronized long getFailed()
+    {
+        return failed;
+    }
+
+    public synchronized double getHedgeRate()
+    {
+        return connects > 0 ? (double) hedged / connects : 0;
+    }
+
+    /**
+     * @return ratio of hedged connections won by second attempt
+     */
+    public synchronized double getHedgeWinRate()
+    {
+        return hedged > 0 ? (double) hedgeWins / hedged : 0;
+    }
+
+    public synchronized void resetStats()
+    {
+        this.connects = 0;
+        this.hedged = 0;
+        this.hedgeWins = 0;
+        this.failed = 0;
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        synchronized (this)
+        {
+            writer.counter("torlib_hedge_connects_total", "Connections opened by hedged SOCKS connector.", connects);
+            writer.counter("torlib_hedge_hedged_total", "Connections for which second attempt was started.", hedged);
+            writer.counter("torlib_hedge_wins_total", "Hedged connections won by second attempt.", hedgeWins);
+            writer.counter("torlib_hedge_failed_total", "Hedged connections which failed.", failed);
+        }
+
+        writer.gauge("torlib_hedge_delay_seconds", "Delay after which connection is hedged.", getHedgeDelay() / 1000.0);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(Locale.US, "connects=%d hedged=%d (%.1f%%) hedgeWins=%d (%.1f%%) failed=%d delay=%dms",
+                connects,
+                hedged,
+                getHedgeRate() * 100,
+                hedgeWins,
+                getHedgeWinRate() * 100,
+                failed,
+                getHedgeDelay());
+    }
+
+    private synchronized void onRaceHedged()
+    {
+        hedged++;
+    }
+
+    private synchronized void onRaceFailed()
+    {
+        failed++;
+    }
+
+    private synchronized void onRaceFinished(boolean hedgeWon)
+    {
+        if (hedgeWon)
+            hedgeWins++;
+    }
+
+    /**
+     * @param connectNanos connect time of first attempt
+     */
+    private synchronized void onConnectTime(long connectNanos)
+    {
+        window[windowIndex] = connectNanos;
+        this.windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+        this.samples++;
+        this.hedgeDelay = -1;
+    }
+
+    /**
+     * Every hedge gets its own token, so it does not share circuit with earlier hedges, which may be slow as well.
+     */
+    private synchronized IsolationToken nextHedgeToken(IsolationToken token)
+    {
+        return IsolationToken.of((token != null ? token.getKey() : "") + HEDGE_KEY_SUFFIX + (hedgeSequence++));
+    }
+
+    private synchronized long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimer()
+    {
+        if (timer == null)
+        {
+            ThreadFactory threadFactory = r ->
+            {
+                Thread thread = new Thread(r, "HedgedSocksConnector");
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+            timer.setRemoveOnCancelPolicy(true);
+        }
+
+        return timer;
+    }
+
+    /**
+     * Threads of blocking attempts, idle ones exit after a minute.
+     */
+    private synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            ThreadFactory threadFactory = r ->
+            {
+                Thread thread = new Thread(r, "HedgedSocksConnector-attempt");
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.executor = Executors.newCachedThreadPool(threadFactory);
+        }
+
+        return executor;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
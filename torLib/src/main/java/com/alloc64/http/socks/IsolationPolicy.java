@@ -0,0 +1,88 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses {@link IsolationToken} for every new connection. Implementations for common cases are provided
+ * as static factories.
+ */
+public abstract class IsolationPolicy
+{
+    /**
+     * @param destination requested destination, host name is available from {@link InetSocketAddress#getHostString()}
+     * @return token, null if connection is not isolated
+     */
+    public abstract IsolationToken getToken(InetSocketAddress destination);
+
+    /**
+     * Connections are not isolated, all share the same circuits.
+     */
+    public static IsolationPolicy none()
+    {
+        return fixed(null);
+    }
+
+    /**
+     * All connections use given token, e.g. one token per tenant.
+     */
+    public static IsolationPolicy fixed(IsolationToken token)
+    {
+        return new IsolationPolicy()
+        {
+            @Override
+            public IsolationToken getToken(InetSocketAddress destination)
+            {
+                return token;
+            }
+        };
+    }
+
+    /**
+     * Connections of a tenant share circuits, tenants are isolated from each other.
+     */
+    public static IsolationPolicy perTenant(String tenant)
+    {
+        return fixed(IsolationToken.of(tenant));
+    }
+
+    /**
+     * Connections of a tenant to the same host share circuits, different hosts and tenants are isolated.
+     */
+    public static IsolationPolicy perHost(String tenant)
+    {
+        return new IsolationPolicy()
+        {
+            @Override
+            public IsolationToken getToken(InetSocketAddress destination)
+            {
+                return IsolationToken.of(tenant + "|" + destination.getHostString().toLowerCase(Locale.US));
+            }
+        };
+    }
+
+    /**
+     * Every connection is isolated. With HTTP this means per request only if connections are not reused,
+     * e.g. OkHttp client with connection pool without idle connections.
+     */
+    public static IsolationPolicy perConnection(String tenant)
+    {
+        AtomicLong counter = new AtomicLong();
+
+        return new IsolationPolicy()
+        {
+            @Override
+            public IsolationToken getToken(InetSocketAddress destination)
+            {
+                return IsolationToken.of(tenant + "|" + counter.incrementAndGet());
+            }
+        };
+    }
+}
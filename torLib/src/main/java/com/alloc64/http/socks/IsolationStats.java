@@ -0,0 +1,233 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+import com.alloc64.torlib.control.event.StreamEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per {@link IsolationToken} statistics of connections and circuits they used.
+ * <p>
+ * Connection counts are recorded by {@link Socks5Socket}. Circuit usage is learned from STREAM events
+ * (tor 0.4.3.1-alpha and newer report SOCKS credentials of every stream), so event socket must subscribe
+ * to STREAM and pass events to {@link #onEvents(List)}.
+ */
+public class IsolationStats
+{
+    private static final int MAX_TRACKED_CIRCUITS = 256;
+    private static final int MAX_TRACKED_TOKENS = 1024;
+
+    public static class TokenStats
+    {
+        private final String username;
+        private final Set<String> circuits = new LinkedHashSet<>();
+
+        private long connections;
+        private long failures;
+        private long streams;
+        private long reusedStreams;
+
+        private TokenStats(String username)
+        {
+            this.username = username;
+        }
+
+        private TokenStats(TokenStats other)
+        {
+            this.username = other.username;
+            this.circuits.addAll(other.circuits);
+            this.connections = other.connections;
+            this.failures = other.failures;
+            this.streams = other.streams;
+            this.reusedStreams = other.reusedStreams;
+        }
+
+        /**
+         * @return SOCKS username of the token
+         */
+        public String getUsername()
+        {
+            return username;
+        }
+
+        public long getConnections()
+        {
+            return connections;
+        }
+
+        public long getFailures()
+        {
+            return failures;
+        }
+
+        /**
+         * @return streams seen in STREAM SUCCEEDED events
+         */
+        public long getStreams()
+        {
+            return streams;
+        }
+
+        /**
+         * @return streams attached to a circuit already used by this token
+         */
+        public long getReusedStreams()
+        {
+            return reusedStreams;
+        }
+
+        /**
+         * @return distinct circuits used by this token, at most last 256 are tracked
+         */
+        public int getCircuitCount()
+        {
+            return circuits.size();
+        }
+
+        public double getCircuitReuseRatio()
+        {
+            return streams == 0 ? 0 : (double) reusedStreams / streams;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s: connections=%d failures=%d streams=%d circuits=%d reuse=%.2f",
+                    username,
+                    connections,
+                    failures,
+                    streams,
+                    circuits.size(),
+                    getCircuitReuseRatio());
+        }
+    }
+
+    private final Map<String, TokenStats> tokens = new HashMap<>();
+    private final Map<String, String> circuitOwners = new HashMap<>();
+    private long sharedCircuitStreams;
+
+    public synchronized void onConnect(IsolationToken token, boolean success)
+    {
+        TokenStats stats = getOrCreate(token != null ? token.getUsername() : "");
+
+        if (stats == null)
+            return;
+
+        stats.connections++;
+
+        if (!success)
+            stats.failures++;
+    }
+
+    /**
+     * Feeds events received by TorEventSocket, non STREAM events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            StreamEvent event = StreamEvent.parse(reply);
+
+            if (event != null)
+                onStreamEvent(event);
+        }
+    }
+
+    public synchronized void onStreamEvent(StreamEvent event)
+    {
+        if (event.getStatus() != StreamEvent.Status.SUCCEEDED || !event.isAttached())
+            return;
+
+        String username = event.getSocksUsername() != null ? event.getSocksUsername() : "";
+        TokenStats stats = getOrCreate(username);
+
+        if (stats == null)
+            return;
+
+        String circuitId = event.getCircuitId();
+
+        stats.streams++;
+
+        if (stats.circuits.contains(circuitId))
+        {
+            stats.reusedStreams++;
+        }
+        else
+        {
+            stats.circuits.add(circuitId);
+
+            if (stats.circuits.size() > MAX_TRACKED_CIRCUITS)
+                stats.circuits.remove(stats.circuits.iterator().next());
+        }
+
+        String owner = circuitOwners.get(circuitId);
+
+        if (owner == null)
+        {
+            if (circuitOwners.size() >= MAX_TRACKED_TOKENS * 4)
+                circuitOwners.clear();
+
+            circuitOwners.put(circuitId, username);
+        }
+        else if (!owner.equals(username))
+        {
+            sharedCircuitStreams++;
+        }
+    }
+
+    /**
+     * @return snapshot of per token statistics, token without isolation has empty username
+     */
+    public synchronized List<TokenStats> getTokenStats()
+    {
+        List<TokenStats> result = new ArrayList<>(tokens.size());
+
+        for (TokenStats stats : tokens.values())
+            result.add(new TokenStats(stats));
+
+        return result;
+    }
+
+    /**
+     * @return streams attached to a circuit used before by a different token, should stay 0 with IsolateSOCKSAuth
+     */
+    public synchronized long getSharedCircuitStreams()
+    {
+        return sharedCircuitStreams;
+    }
+
+    public synchronized void reset()
+    {
+        tokens.clear();
+        circuitOwners.clear();
+        sharedCircuitStreams = 0;
+    }
+
+    private TokenStats getOrCreate(String username)
+    {
+        TokenStats stats = tokens.get(username);
+
+        if (stats == null)
+        {
+            if (tokens.size() >= MAX_TRACKED_TOKENS)
+                return null;
+
+            stats = new TokenStats(username);
+            tokens.put(username, stats);
+        }
+
+        return stats;
+    }
+}
@@ -0,0 +1,125 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Identifies group of connections, which may share tor circuits.
+ * <p>
+ * Token is sent as SOCKS username (key) and password (generation). Tor puts streams with different credentials
+ * on different circuits (IsolateSOCKSAuth, enabled by default), so connections with different tokens never share
+ * a circuit. {@link #next()} keeps the key, but moves its future connections to fresh circuits.
+ */
+public class IsolationToken
+{
+    private static final int MAX_CREDENTIAL_LENGTH = 0xFF;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String key;
+    private final int generation;
+    private final String username;
+
+    private IsolationToken(String key, int generation)
+    {
+        this.key = key;
+        this.generation = generation;
+        this.username = toUsername(key);
+    }
+
+    public static IsolationToken of(String key)
+    {
+        if (key == null || key.isEmpty())
+            throw new IllegalArgumentException("Isolation key must not be empty.");
+
+        return new IsolationToken(key, 0);
+    }
+
+    public static IsolationToken random()
+    {
+        return of(String.format(Locale.US, "%016x%016x", random.nextLong(), random.nextLong()));
+    }
+
+    public IsolationToken next()
+    {
+        return new IsolationToken(key, generation + 1);
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * @return key, or its SHA-256 if key is longer than SOCKS allows
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public String getPassword()
+    {
+        return Integer.toString(generation);
+    }
+
+    private static String toUsername(String key)
+    {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length <= MAX_CREDENTIAL_LENGTH)
+            return key;
+
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+                sb.append(String.format(Locale.US, "%02x", b & 0xFF));
+
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof IsolationToken))
+            return false;
+
+        IsolationToken that = (IsolationToken) o;
+        return generation == that.generation && key.equals(that.key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * key.hashCode() + generation;
+    }
+
+    @Override
+    public String toString()
+    {
+        return key + "#" + generation;
+    }
+}
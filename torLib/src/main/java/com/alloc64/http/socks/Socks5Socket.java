@@ -0,0 +1,441 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Socket connected through SOCKS5 server (tor SocksPort).
+ * <p>
+ * Unlike {@code new Socket(Proxy)}, greeting, username/password authentication and CONNECT request are sent
+ * in a single write, so the handshake costs one round trip. Credentials are passed to the server, which tor uses
+ * for stream isolation, and failures are reported as {@link SocksException} with the reply code.
+ * <p>
+ * With optimistic data enabled, {@link #connect(SocketAddress, int)} returns right after the request is sent and
+ * the reply is read on the first read from {@link #getInputStream()}, so application can send its first bytes
+ * (e.g. TLS ClientHello) without waiting for tor to build the stream. This requires that socket is read through
+ * {@link #getInputStream()}; TLS layered by Android platform SSLSocketFactory reads socket file descriptor directly,
+ * so optimistic data must stay disabled for such sockets.
+ * <p>
+ * Destination given as unresolved address, or as {@link SocksRemoteDns} placeholder, is sent as domain name,
+ * so it is resolved by the SOCKS server.
+ */
+public class Socks5Socket extends Socket
+{
+    static final int SOCKS_VERSION = 0x05;
+    static final int AUTH_VERSION = 0x01;
+    static final int METHOD_NO_AUTH = 0x00;
+    static final int METHOD_USERNAME_PASSWORD = 0x02;
+    static final int COMMAND_CONNECT = 0x01;
+    static final int ATYP_IPV4 = 0x01;
+    static final int ATYP_DOMAIN = 0x03;
+    static final int ATYP_IPV6 = 0x04;
+
+    private final InetSocketAddress proxyAddress;
+    private final Object replyLock = new Object();
+    private final AtomicReference<AdmissionController.Ticket> ticket = new AtomicReference<>();
+
+    private String username;
+    private String password;
+    private boolean optimisticData;
+    private AdmissionController admissionController;
+    private String admissionSource;
+    private IsolationPolicy isolationPolicy;
+    private IsolationStats isolationStats;
+    private IsolationToken isolationToken;
+    private boolean isolationReported;
+
+    private volatile boolean replyPending;
+    private IOException replyError;
+    private InetSocketAddress remoteAddress;
+    private volatile InetSocketAddress boundAddress;
+    private InputStream inputStream;
+
+    public Socks5Socket(InetSocketAddress proxyAddress)
+    {
+        this.proxyAddress = proxyAddress;
+    }
+
+    /**
+     * Credentials sent to SOCKS server, both must be 1 - 255 bytes long in UTF-8. Null disables authentication.
+     */
+    public Socks5Socket setCredentials(String username, String password)
+    {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    public Socks5Socket setOptimisticData(boolean optimisticData)
+    {
+        this.optimisticData = optimisticData;
+        return this;
+    }
+
+    /**
+     * Connect waits for permit of admissionController, permit is held until SOCKS reply is received.
+     */
+    public Socks5Socket setAdmissionController(AdmissionController admissionController, String source)
+    {
+        this.admissionController = admissionController;
+        this.admissionSource = source != null ? source : "";
+        return this;
+    }
+
+    /**
+     * Credentials are taken from token chosen by policy for the destination, overriding {@link #setCredentials(String, String)}.
+     *
+     * @param stats receives result of the connection, may be null
+     */
+    public Socks5Socket setIsolation(IsolationPolicy policy, IsolationStats stats)
+    {
+        this.isolationPolicy = policy;
+        this.isolationStats = stats;
+        return this;
+    }
+
+    /**
+     * @return token used for this connection, null if connection is not isolated
+     */
+    public IsolationToken getIsolationToken()
+    {
+        return isolationToken;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException
+    {
+        if (!(endpoint instanceof InetSocketAddress))
+            throw new IllegalArgumentException("Unsupported address type.");
+
+        InetSocketAddress destination = (InetSocketAddress) endpoint;
+
+        if (isolationPolicy != null)
+        {
+            this.isolationToken = isolationPolicy.getToken(destination);
+
+            if (isolationToken != null)
+                setCredentials(isolationToken.getUsername(), isolationToken.getPassword());
+        }
+
+        byte[] request = createRequest(destination, username, password);
+
+        acquireAdmission(destination.getPort());
+
+        try
+        {
+            InetSocketAddress proxyAddress = this.proxyAddress.isUnresolved() ?
+                    new InetSocketAddress(this.proxyAddress.getHostString(), this.proxyAddress.getPort()) :
+                    this.proxyAddress;
+
+            super.connect(proxyAddress, timeout);
+
+            this.remoteAddress = destination;
+            this.replyPending = true;
+
+            super.getOutputStream().write(request);
+            super.getOutputStream().flush();
+
+            if (!optimisticData)
+                readReply(timeout);
+        }
+        catch (IOException e)
+        {
+            releaseAdmission();
+            reportIsolation(false);
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks until SOCKS reply is received, useful with optimistic data to check connection before reading.
+     *
+     * @throws SocksException if connection was refused
+     */
+    public void awaitReply() throws IOException
+    {
+        readReply(0);
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException
+    {
+        if (inputStream == null)
+        {
+            this.inputStream = new FilterInputStream(super.getInputStream())
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    awaitReply();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    awaitReply();
+                    return super.read(b, off, len);
+                }
+
+                @Override
+                public int available() throws IOException
+                {
+                    return replyPending ? 0 : super.available();
+                }
+            };
+        }
+
+        return inputStream;
+    }
+
+    /**
+     * @return destination requested in connect
+     */
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return remoteAddress != null ? remoteAddress : super.getRemoteSocketAddress();
+    }
+
+    /**
+     * @return address bound by SOCKS server for this connection, null before reply is received
+     */
+    public InetSocketAddress getBoundAddress()
+    {
+        return boundAddress;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        releaseAdmission();
+        super.close();
+    }
+
+    /**
+     * Greeting, optional username/password authentication and CONNECT request, pipelined in a single message.
+     *
+     * @param username null for no authentication
+     */
+    static byte[] createRequest(InetSocketAddress destination, String username, String password) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(64);
+
+        boolean authenticate = username != null;
+
+        os.write(SOCKS_VERSION);
+        os.write(1);
+        os.write(authenticate ? METHOD_USERNAME_PASSWORD : METHOD_NO_AUTH);
+
+        if (authenticate)
+        {
+            byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+            byte[] passwordBytes = password != null ? password.getBytes(StandardCharsets.UTF_8) : new byte[0];
+
+            if (usernameBytes.length < 1 || usernameBytes.length > 0xFF || passwordBytes.length < 1 || passwordBytes.length > 0xFF)
+                throw new IllegalArgumentException("SOCKS credentials must be 1 - 255 bytes long.");
+
+            os.write(AUTH_VERSION);
+            os.write(usernameBytes.length);
+            os.write(usernameBytes);
+            os.write(passwordBytes.length);
+            os.write(passwordBytes);
+        }
+
+        os.write(SOCKS_VERSION);
+        os.write(COMMAND_CONNECT);
+        os.write(0x00);
+
+        InetAddress address = destination.getAddress();
+
+        if (address == null || SocksRemoteDns.isPlaceholder(address))
+        {
+            byte[] host = destination.getHostString().getBytes(StandardCharsets.US_ASCII);
+
+            if (host.length < 1 || host.length > 0xFF)
+                throw new IllegalArgumentException("Invalid host name " + destination.getHostString());
+
+            os.write(ATYP_DOMAIN);
+            os.write(host.length);
+            os.write(host);
+        }
+        else
+        {
+            os.write(address instanceof Inet4Address ? ATYP_IPV4 : ATYP_IPV6);
+            os.write(address.getAddress());
+        }
+
+        os.write(destination.getPort() >> 8);
+        os.write(destination.getPort() & 0xFF);
+
+        return os.toByteArray();
+    }
+
+    private void readReply(int timeout) throws IOException
+    {
+        synchronized (replyLock)
+        {
+            if (!replyPending)
+            {
+                if (replyError != null)
+                    throw replyError;
+
+                return;
+            }
+
+            int soTimeout = getSoTimeout();
+
+            if (timeout > 0)
+                setSoTimeout(timeout);
+
+            try
+            {
+                DataInputStream is = new DataInputStream(super.getInputStream());
+
+                if (is.readUnsignedByte() != SOCKS_VERSION)
+                    throw new SocksException(SocksException.Reason.ProtocolError, "Unsupported SOCKS version.");
+
+                int method = is.readUnsignedByte();
+
+                if (method == METHOD_USERNAME_PASSWORD && username != null)
+                {
+                    is.readUnsignedByte();
+
+                    if (is.readUnsignedByte() != 0)
+                        throw new SocksException(SocksException.Reason.AuthenticationFailed, "SOCKS server rejected credentials.");
+                }
+                else if (method != METHOD_NO_AUTH)
+                {
+                    throw new SocksException(SocksException.Reason.AuthenticationFailed, "SOCKS server refused authentication method.");
+                }
+
+                if (is.readUnsignedByte() != SOCKS_VERSION)
+                    throw new SocksException(SocksException.Reason.ProtocolError, "Unsupported SOCKS version.");
+
+                int reply = is.readUnsignedByte();
+                is.readUnsignedByte();
+
+                this.boundAddress = readAddress(is);
+
+                if (reply != 0)
+                    throw new SocksException(reply);
+
+                reportIsolation(true);
+            }
+            catch (EOFException e)
+            {
+                this.replyError = new SocksException(SocksException.Reason.ProtocolError, "SOCKS server closed connection.");
+                reportIsolation(false);
+                throw replyError;
+            }
+            catch (IOException e)
+            {
+                this.replyError = e;
+                reportIsolation(false);
+                throw e;
+            }
+            finally
+            {
+                this.replyPending = false;
+                releaseAdmission();
+
+                if (!isClosed())
+                    setSoTimeout(soTimeout);
+            }
+        }
+    }
+
+    private static InetSocketAddress readAddress(DataInputStream is) throws IOException
+    {
+        int addressType = is.readUnsignedByte();
+        InetAddress address = null;
+        String host = null;
+
+        if (addressType == ATYP_IPV4 || addressType == ATYP_IPV6)
+        {
+            byte[] bytes = new byte[addressType == ATYP_IPV4 ? 4 : 16];
+            is.readFully(bytes);
+
+            address = InetAddress.getByAddress(bytes);
+        }
+        else if (addressType == ATYP_DOMAIN)
+        {
+            byte[] bytes = new byte[is.readUnsignedByte()];
+            is.readFully(bytes);
+
+            host = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        else
+        {
+            throw new SocksException(SocksException.Reason.ProtocolError, "Invalid address type in SOCKS reply.");
+        }
+
+        int port = is.readUnsignedShort();
+
+        return address != null ? new InetSocketAddress(address, port) : InetSocketAddress.createUnresolved(host, port);
+    }
+
+    private void acquireAdmission(int port) throws IOException
+    {
+        if (admissionController == null)
+            return;
+
+        try
+        {
+            ticket.set(admissionController.acquire(admissionSource, port));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SOCKS admission.");
+        }
+    }
+
+    private void releaseAdmission()
+    {
+        AdmissionController.Ticket ticket = this.ticket.getAndSet(null);
+
+        if (ticket != null)
+            ticket.release();
+    }
+
+    private void reportIsolation(boolean success)
+    {
+        if (isolationStats == null || isolationReported)
+            return;
+
+        this.isolationReported = true;
+        isolationStats.onConnect(isolationToken, success);
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            super.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
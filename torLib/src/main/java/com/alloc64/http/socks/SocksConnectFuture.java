@@ -0,0 +1,222 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending connection of {@link AsyncSocksConnector}.
+ * <p>
+ * Completes with channel connected to destination through SOCKS server, or with {@link IOException}
+ * ({@link SocksException} for refused connections, {@link java.net.SocketTimeoutException} after deadline).
+ */
+public class SocksConnectFuture implements Future<SocketChannel>
+{
+    /**
+     * Called once on connector thread, or on the calling thread if future is already completed. Must not block.
+     */
+    public interface Callback
+    {
+        void onConnected(SocksConnectFuture future, SocketChannel channel);
+
+        void onFailed(SocksConnectFuture future, IOException e);
+    }
+
+    private final InetSocketAddress destination;
+    private final List<Callback> callbacks = new ArrayList<>(1);
+
+    private SocketChannel channel;
+    private IOException error;
+    private boolean cancelled;
+    private boolean done;
+
+    private Runnable cancelHandler;
+
+    SocksConnectFuture(InetSocketAddress destination)
+    {
+        this.destination = destination;
+    }
+
+    public InetSocketAddress getDestination()
+    {
+        return destination;
+    }
+
+    public void addCallback(Callback callback)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        notifyCallback(callback);
+    }
+
+    /**
+     * Aborts pending connection. Channel of already completed connection is not closed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        Runnable cancelHandler;
+
+        synchronized (this)
+        {
+            if (done)
+                return false;
+
+            cancelHandler = this.cancelHandler;
+        }
+
+        if (!complete(null, new InterruptedIOException("SOCKS connection cancelled."), true))
+            return false;
+
+        if (cancelHandler != null)
+            cancelHandler.run();
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    @Override
+    public synchronized SocketChannel get() throws InterruptedException, ExecutionException
+    {
+        while (!done)
+            wait();
+
+        return getResult();
+    }
+
+    @Override
+    public synchronized SocketChannel get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!done)
+        {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0)
+                throw new TimeoutException();
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return getResult();
+    }
+
+    /**
+     * Blocks until connection is completed, unwrapping the failure.
+     */
+    public SocketChannel await() throws IOException
+    {
+        try
+        {
+            return get();
+        }
+        catch (InterruptedException e)
+        {
+            cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SOCKS connection.");
+        }
+        catch (CancellationException e)
+        {
+            throw new InterruptedIOException("SOCKS connection cancelled.");
+        }
+        catch (ExecutionException e)
+        {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private SocketChannel getResult() throws ExecutionException
+    {
+        if (cancelled)
+            throw new CancellationException();
+
+        if (error != null)
+            throw new ExecutionException(error);
+
+        return channel;
+    }
+
+    synchronized void setCancelHandler(Runnable cancelHandler)
+    {
+        this.cancelHandler = cancelHandler;
+    }
+
+    /**
+     * @return false if future was already completed
+     */
+    boolean complete(SocketChannel channel, IOException error, boolean cancelled)
+    {
+        List<Callback> callbacks;
+
+        synchronized (this)
+        {
+            if (done)
+                return false;
+
+            this.channel = channel;
+            this.error = error;
+            this.cancelled = cancelled;
+            this.done = true;
+            this.cancelHandler = null;
+
+            callbacks = new ArrayList<>(this.callbacks);
+            this.callbacks.clear();
+
+            notifyAll();
+        }
+
+        for (Callback callback : callbacks)
+            notifyCallback(callback);
+
+        return true;
+    }
+
+    private void notifyCallback(Callback callback)
+    {
+        try
+        {
+            if (channel != null)
+                callback.onConnected(this, channel);
+            else
+                callback.onFailed(this, error);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Result of {@link SocksPolicy}.
+ */
+public class SocksDecision
+{
+    public static final int REPLY_GENERAL_FAILURE = 0x01;
+    public static final int REPLY_NOT_ALLOWED = 0x02;
+    public static final int REPLY_NETWORK_UNREACHABLE = 0x03;
+    public static final int REPLY_HOST_UNREACHABLE = 0x04;
+    public static final int REPLY_CONNECTION_REFUSED = 0x05;
+
+    public enum Action
+    {
+        /**
+         * Connection goes through upstream SOCKS server (tor), optionally with isolation credentials.
+         */
+        Proxy,
+
+        /**
+         * Connection is made directly from this process. Only applicable to IP address destinations,
+         * domain names are always proxied, so they are not resolved locally.
+         */
+        Direct,
+
+        /**
+         * Connection is refused with {@link #getReplyCode()}.
+         */
+        Reject
+    }
+
+    private static final SocksDecision PROXY = new SocksDecision(Action.Proxy, null, null, 0);
+    private static final SocksDecision DIRECT = new SocksDecision(Action.Direct, null, null, 0);
+    private static final SocksDecision REJECT = new SocksDecision(Action.Reject, null, null, REPLY_NOT_ALLOWED);
+
+    private final Action action;
+    private final String username;
+    private final String password;
+    private final int replyCode;
+
+    private SocksDecision(Action action, String username, String password, int replyCode)
+    {
+        this.action = action;
+        this.username = username;
+        this.password = password;
+        this.replyCode = replyCode;
+    }
+
+    public static SocksDecision proxy()
+    {
+        return PROXY;
+    }
+
+    /**
+     * Tor isolates streams with different SOCKS credentials on different circuits (IsolateSOCKSAuth, enabled by default).
+     * Both values must be 1 - 255 bytes long in UTF-8.
+     */
+    public static SocksDecision proxy(String username, String password)
+    {
+        if (!isValidCredential(username) || !isValidCredential(password))
+            throw new IllegalArgumentException("SOCKS credentials must be 1 - 255 bytes long.");
+
+        return new SocksDecision(Action.Proxy, username, password, 0);
+    }
+
+    public static SocksDecision direct()
+    {
+        return DIRECT;
+    }
+
+    public static SocksDecision reject()
+    {
+        return REJECT;
+    }
+
+    public static SocksDecision reject(int replyCode)
+    {
+        if (replyCode <= 0 || replyCode > 0xFF)
+            throw new IllegalArgumentException("Invalid SOCKS reply code " + replyCode);
+
+        return new SocksDecision(Action.Reject, null, null, replyCode);
+    }
+
+    public Action getAction()
+    {
+        return action;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public String getPassword()
+    {
+        return password;
+    }
+
+    public boolean hasCredentials()
+    {
+        return username != null;
+    }
+
+    public int getReplyCode()
+    {
+        return replyCode;
+    }
+
+    private static boolean isValidCredential(String value)
+    {
+        if (value == null)
+            return false;
+
+        int length = value.getBytes(StandardCharsets.UTF_8).length;
+        return length > 0 && length <= 0xFF;
+    }
+
+    @Override
+    public String toString()
+    {
+        return action + (hasCredentials() ? "(" + username + ")" : "") + (action == Action.Reject ? "(" + replyCode + ")" : "");
+    }
+}
@@ -0,0 +1,144 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * SOCKS5 handshake failure. Codes 0xF0 - 0xF7 are tor extended errors for onion services,
+ * they are sent only by SocksPorts with ExtendedErrors flag.
+ */
+public class SocksException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason
+    {
+        GeneralFailure(0x01, "General SOCKS server failure"),
+        NotAllowed(0x02, "Connection not allowed by ruleset"),
+        NetworkUnreachable(0x03, "Network unreachable"),
+        HostUnreachable(0x04, "Host unreachable"),
+        ConnectionRefused(0x05, "Connection refused"),
+        TtlExpired(0x06, "TTL expired"),
+        CommandNotSupported(0x07, "Command not supported"),
+        AddressTypeNotSupported(0x08, "Address type not supported"),
+
+        OnionServiceDescriptorNotFound(0xF0, "Onion service descriptor can not be found"),
+        OnionServiceDescriptorInvalid(0xF1, "Onion service descriptor is invalid"),
+        OnionServiceIntroductionFailed(0xF2, "Onion service introduction failed"),
+        OnionServiceRendezvousFailed(0xF3, "Onion service rendezvous failed"),
+        OnionServiceMissingClientAuthorization(0xF4, "Onion service client authorization is missing"),
+        OnionServiceWrongClientAuthorization(0xF5, "Onion service client authorization is wrong"),
+        OnionServiceInvalidAddress(0xF6, "Onion service address is invalid"),
+        OnionServiceIntroductionTimedOut(0xF7, "Onion service introduction timed out"),
+
+        /**
+         * Server refused offered authentication method or credentials.
+         */
+        AuthenticationFailed(-1, "SOCKS authentication failed"),
+
+        /**
+         * Server response does not conform to SOCKS5.
+         */
+        ProtocolError(-1, "SOCKS protocol error"),
+
+        /**
+         * Reply code not known to this implementation.
+         */
+        Unknown(-1, "Unknown SOCKS reply");
+
+        private final int replyCode;
+        private final String description;
+
+        Reason(int replyCode, String description)
+        {
+            this.replyCode = replyCode;
+            this.description = description;
+        }
+
+        public int getReplyCode()
+        {
+            return replyCode;
+        }
+
+        public String getDescription()
+        {
+            return description;
+        }
+
+        public static Reason fromReplyCode(int replyCode)
+        {
+            for (Reason reason : values())
+                if (reason.replyCode == replyCode)
+                    return reason;
+
+            return Unknown;
+        }
+    }
+
+    private final Reason reason;
+    private final int replyCode;
+
+    public SocksException(Reason reason, String message)
+    {
+        super(message);
+
+        this.reason = reason;
+        this.replyCode = reason.getReplyCode();
+    }
+
+    /**
+     * @param replyCode REP field of SOCKS5 reply
+     */
+    public SocksException(int replyCode)
+    {
+        super(String.format(Locale.US, "%s (0x%02X)", Reason.fromReplyCode(replyCode).getDescription(), replyCode));
+
+        this.reason = Reason.fromReplyCode(replyCode);
+        this.replyCode = replyCode;
+    }
+
+    public Reason getReason()
+    {
+        return reason;
+    }
+
+    /**
+     * @return REP field of SOCKS5 reply, -1 if failure was not reported by reply code
+     */
+    public int getReplyCode()
+    {
+        return replyCode;
+    }
+
+    public boolean isOnionServiceError()
+    {
+        return replyCode >= 0xF0 && replyCode <= 0xF7;
+    }
+
+    /**
+     * @return true if the same request may succeed on another circuit, e.g. exit could not reach the host
+     */
+    public boolean isRetryable()
+    {
+        switch (reason)
+        {
+            case GeneralFailure:
+            case NetworkUnreachable:
+            case HostUnreachable:
+            case TtlExpired:
+            case OnionServiceIntroductionFailed:
+            case OnionServiceRendezvousFailed:
+            case OnionServiceIntroductionTimedOut:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
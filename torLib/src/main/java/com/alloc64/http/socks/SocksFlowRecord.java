@@ -0,0 +1,189 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.util.Locale;
+
+/**
+ * Timings and counters of a single connection passed through {@link SocksPolicyProxy}.
+ * Timestamps are {@link System#nanoTime()} values, 0 if the phase was not reached.
+ */
+public class SocksFlowRecord
+{
+    String host;
+    String hostName;
+    int port;
+    SocksDecision decision;
+    int replyCode = -1;
+
+    long acceptedAt;
+    long requestedAt;
+    long admittedAt;
+    long connectedAt;
+    long establishedAt;
+    long firstByteAt;
+    long closedAt;
+
+    long bytesSent;
+    long bytesReceived;
+
+    SocksFlowRecord(long acceptedAt)
+    {
+        this.acceptedAt = acceptedAt;
+    }
+
+    /**
+     * @return requested host, null if client did not send complete request
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * @return host name requested by client, or attributed to requested address by {@link SocksPolicyProxy#setAddressMap}, null if not known
+     */
+    public String getHostName()
+    {
+        return hostName;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @return policy decision, null if client did not send complete request
+     */
+    public SocksDecision getDecision()
+    {
+        return decision;
+    }
+
+    /**
+     * @return SOCKS reply code sent to client, -1 if no reply was sent
+     */
+    public int getReplyCode()
+    {
+        return replyCode;
+    }
+
+    public boolean isEstablished()
+    {
+        return establishedAt != 0;
+    }
+
+    public long getAcceptedAt()
+    {
+        return acceptedAt;
+    }
+
+    public long getRequestedAt()
+    {
+        return requestedAt;
+    }
+
+    /**
+     * @return time when connection was let through admission control, equal to requested time if it was not queued
+     */
+    public long getAdmittedAt()
+    {
+        return admittedAt;
+    }
+
+    /**
+     * @return time spent in admission queue in nanoseconds, -1 if request was not admitted
+     */
+    public long getQueueNanos()
+    {
+        return admittedAt != 0 ? admittedAt - requestedAt : -1;
+    }
+
+    /**
+     * @return time when TCP connection to upstream SOCKS server (or to destination if direct) was established
+     */
+    public long getConnectedAt()
+    {
+        return connectedAt;
+    }
+
+    /**
+     * @return time when success reply was sent to client
+     */
+    public long getEstablishedAt()
+    {
+        return establishedAt;
+    }
+
+    /**
+     * @return time when first byte from destination was received
+     */
+    public long getFirstByteAt()
+    {
+        return firstByteAt;
+    }
+
+    public long getClosedAt()
+    {
+        return closedAt;
+    }
+
+    /**
+     * @return bytes sent from client to destination
+     */
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /**
+     * @return bytes sent from destination to client
+     */
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /**
+     * @return time from request to established connection in nanoseconds, -1 if not established
+     */
+    public long getConnectNanos()
+    {
+        return isEstablished() ? establishedAt - requestedAt : -1;
+    }
+
+    /**
+     * @return time from established connection to first byte from destination in nanoseconds, -1 if nothing was received
+     */
+    public long getTimeToFirstByteNanos()
+    {
+        return firstByteAt != 0 ? firstByteAt - establishedAt : -1;
+    }
+
+    public long getDurationNanos()
+    {
+        return closedAt != 0 ? closedAt - acceptedAt : -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "%s:%d%s %s reply=%d queue=%dms connect=%dms ttfb=%dms duration=%dms sent=%d received=%d",
+                host,
+                port,
+                hostName != null && !hostName.equals(host) ? " (" + hostName + ")" : "",
+                decision,
+                replyCode,
+                getQueueNanos() / 1000000,
+                getConnectNanos() / 1000000,
+                getTimeToFirstByteNanos() / 1000000,
+                getDurationNanos() / 1000000,
+                bytesSent,
+                bytesReceived);
+    }
+}
@@ -0,0 +1,24 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.net.InetAddress;
+
+/**
+ * Decides what {@link SocksPolicyProxy} does with a requested connection.
+ * <p>
+ * Called on proxy selector thread for every CONNECT request, so implementation must not block.
+ */
+public interface SocksPolicy
+{
+    /**
+     * @param host    requested host, domain name, host name attributed to requested address, or textual IP address
+     * @param address requested IP address, null if domain name was requested
+     * @param port    requested port
+     */
+    SocksDecision decide(String host, InetAddress address, int port);
+}
@@ -0,0 +1,432 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.control.AddressMap;
+import com.alloc64.torlib.metrics.Counter;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+import com.alloc64.torlib.utils.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Local SOCKS5 server, which sits between tun2socks and tor SocksPort and applies {@link SocksPolicy} to every connection.
+ * <p>
+ * All connections are handled by a single selector thread. Every connection takes two direct buffers from pool,
+ * one per direction, and relays data through them without any other copying or allocation.
+ * Client may send data right after CONNECT request, it is forwarded once the connection is established.
+ * <p>
+ * Only no-auth clients and CONNECT command are supported, which is what tun2socks uses.
+ */
+public class SocksPolicyProxy implements Runnable, Closeable, MetricsCollector
+{
+    public interface FlowListener
+    {
+        /**
+         * Called on proxy thread when connection is closed, must not block.
+         */
+        void onFlowClosed(SocksFlowRecord record);
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 128;
+    private static final int HANDSHAKE_BUFFER_SIZE = 1024;
+    private static final long STOP_TIMEOUT = 2000;
+
+    private final InetSocketAddress upstreamAddress;
+    private final Histogram connectLatency = new Histogram();
+    private final Histogram firstByteLatency = new Histogram();
+    private final Counter flows = new Counter();
+    private final Counter bytesSent = new Counter();
+    private final Counter bytesReceived = new Counter();
+    private final ByteBuffer handshakeBuffer = ByteBuffer.allocateDirect(HANDSHAKE_BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private SocksPolicy policy = new DefaultSocksPolicy();
+    private FlowListener flowListener;
+    private AdmissionController admissionController;
+    private AddressMap addressMap;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private BufferPool bufferPool;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param upstreamAddress address of tor SocksPort
+     */
+    public SocksPolicyProxy(InetSocketAddress upstreamAddress)
+    {
+        this.upstreamAddress = upstreamAddress;
+    }
+
+    public SocksPolicyProxy setPolicy(SocksPolicy policy)
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null.");
+
+        this.policy = policy;
+        return this;
+    }
+
+    public SocksPolicyProxy setFlowListener(FlowListener flowListener)
+    {
+        this.flowListener = flowListener;
+        return this;
+    }
+
+    /**
+     * Connections going through tor wait for permit of admissionController until upstream SOCKS reply is received.
+     * Destination host is used as fairness key, because tun2socks does not tell which app opened the connection.
+     * Direct and rejected connections are not subject to admission.
+     */
+    public SocksPolicyProxy setAdmissionController(AdmissionController admissionController)
+    {
+        this.admissionController = admissionController;
+        return this;
+    }
+
+    /**
+     * Requests for addresses are attributed to host names mapped by tor, which are then passed to policy
+     * and reported in {@link SocksFlowRecord#getHostName()}. Address is still used as destination.
+     */
+    public SocksPolicyProxy setAddressMap(AddressMap addressMap)
+    {
+        this.addressMap = addressMap;
+        return this;
+    }
+
+    /**
+     * Size of relay buffer per connection and direction, must be set before {@link #start(int)}.
+     */
+    public SocksPolicyProxy setBufferSize(int bufferSize)
+    {
+        if (bufferSize < HANDSHAKE_BUFFER_SIZE)
+            throw new IllegalArgumentException("bufferSize must be at least " + HANDSHAKE_BUFFER_SIZE);
+
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Starts listening on loopback.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @return address the proxy listens on
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException
+    {
+        if (running)
+            throw new IllegalStateException("Proxy is already running.");
+
+        this.bufferPool = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+        this.selector = Selector.open();
+
+        try
+        {
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        this.running = true;
+
+        this.thread = new Thread(this, "SocksPolicyProxy");
+        thread.start();
+
+        return getLocalAddress();
+    }
+
+    public InetSocketAddress getLocalAddress()
+    {
+        ServerSocketChannel serverChannel = this.serverChannel;
+        return serverChannel != null ? (InetSocketAddress) serverChannel.socket().getLocalSocketAddress() : null;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return latency from CONNECT request to established connection in nanoseconds
+     */
+    public Histogram getConnectLatency()
+    {
+        return connectLatency;
+    }
+
+    /**
+     * @return latency from established connection to first byte from destination in nanoseconds
+     */
+    public Histogram getFirstByteLatency()
+    {
+        return firstByteLatency;
+    }
+
+    /**
+     * @return closed connections
+     */
+    public long getFlows()
+    {
+        return flows.get();
+    }
+
+    /**
+     * @return bytes sent from clients to destinations by closed connections
+     */
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return bytes sent from destinations to clients by closed connections
+     */
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        writer.counter("torlib_socks_proxy_flows_total", "Closed connections of SOCKS policy proxy.", flows.get());
+        writer.counter("torlib_socks_proxy_sent_bytes_total", "Bytes sent from clients by closed connections.", bytesSent.get());
+        writer.counter("torlib_socks_proxy_received_bytes_total", "Bytes received by clients by closed connections.", bytesReceived.get());
+        writer.histogram("torlib_socks_proxy_connect_latency_seconds", "Latency from CONNECT request to established connection.", connectLatency, 1e-9);
+        writer.histogram("torlib_socks_proxy_first_byte_latency_seconds", "Latency from established connection to first byte from destination.", firstByteLatency, 1e-9);
+    }
+
+    /**
+     * Stops the proxy and closes all connections.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (!running)
+            return;
+
+        this.running = false;
+        selector.wakeup();
+
+        try
+        {
+            thread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                selector.select();
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                        continue;
+                    }
+
+                    SocksProxyConnection connection = (SocksProxyConnection) key.attachment();
+
+                    try
+                    {
+                        connection.onSelected(key);
+                    }
+                    catch (IOException e)
+                    {
+                        connection.close();
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            this.running = false;
+            cleanup();
+        }
+    }
+
+    private void accept()
+    {
+        SocketChannel channel = null;
+
+        try
+        {
+            while ((channel = serverChannel.accept()) != null)
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                new SocksProxyConnection(this, channel);
+            }
+        }
+        catch (IOException e)
+        {
+            closeQuietly(channel);
+
+            if (running)
+                e.printStackTrace();
+        }
+    }
+
+    private void cleanup()
+    {
+        Set<SocksProxyConnection> connections = new HashSet<>();
+
+        for (SelectionKey key : selector.keys())
+            if (key.attachment() instanceof SocksProxyConnection)
+                connections.add((SocksProxyConnection) key.attachment());
+
+        for (SocksProxyConnection connection : connections)
+            connection.close();
+
+        closeQuietly(serverChannel);
+        closeQuietly(selector);
+    }
+
+    void onFlowClosed(SocksFlowRecord record)
+    {
+        flows.increment();
+        bytesSent.add(record.getBytesSent());
+        bytesReceived.add(record.getBytesReceived());
+
+        if (record.isEstablished())
+            connectLatency.record(record.getConnectNanos());
+
+        if (record.getFirstByteAt() != 0)
+            firstByteLatency.record(record.getTimeToFirstByteNanos());
+
+        FlowListener flowListener = this.flowListener;
+
+        if (flowListener == null)
+            return;
+
+        try
+        {
+            flowListener.onFlowClosed(record);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs task on proxy thread.
+     */
+    void post(Runnable task)
+    {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    AdmissionController getAdmissionController()
+    {
+        return admissionController;
+    }
+
+    AddressMap getAddressMap()
+    {
+        return addressMap;
+    }
+
+    Selector getSelector()
+    {
+        return selector;
+    }
+
+    BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * Shared buffer for handshake messages, usable only on proxy thread.
+     */
+    ByteBuffer getHandshakeBuffer()
+    {
+        handshakeBuffer.clear();
+        return handshakeBuffer;
+    }
+
+    SocksPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    InetSocketAddress getUpstreamAddress()
+    {
+        return upstreamAddress;
+    }
+
+    static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
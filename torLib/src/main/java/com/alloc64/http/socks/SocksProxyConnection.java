@@ -0,0 +1,694 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.torlib.control.AddressMap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single client connection of {@link SocksPolicyProxy}, touched only from proxy thread.
+ * <p>
+ * Both relay buffers are kept in fill mode. Client handshake is parsed directly from toUpstream buffer, so data sent
+ * by client after CONNECT request stays there and is forwarded after connection is established. Upstream handshake
+ * replies are parsed from toClient buffer, success reply of upstream is forwarded to client as is.
+ */
+class SocksProxyConnection implements AdmissionController.Listener
+{
+    private static final int SOCKS_VERSION = 0x05;
+    private static final int AUTH_VERSION = 0x01;
+    private static final int METHOD_NO_AUTH = 0x00;
+    private static final int METHOD_USERNAME_PASSWORD = 0x02;
+    private static final int METHOD_NOT_ACCEPTABLE = 0xFF;
+    private static final int COMMAND_CONNECT = 0x01;
+    private static final int ATYP_IPV4 = 0x01;
+    private static final int ATYP_DOMAIN = 0x03;
+    private static final int ATYP_IPV6 = 0x04;
+    private static final int REPLY_SUCCEEDED = 0x00;
+    private static final int REPLY_COMMAND_NOT_SUPPORTED = 0x07;
+    private static final int REPLY_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+
+    private enum State
+    {
+        ClientGreeting,
+        ClientRequest,
+        Queued,
+        Connecting,
+        UpstreamGreeting,
+        UpstreamAuth,
+        UpstreamReply,
+        Relaying
+    }
+
+    private final SocksPolicyProxy proxy;
+    private final SocketChannel client;
+    private final SelectionKey clientKey;
+    private final ByteBuffer toUpstream;
+    private final ByteBuffer toClient;
+    private final SocksFlowRecord record;
+
+    private SocketChannel upstream;
+    private SelectionKey upstreamKey;
+    private State state = State.ClientGreeting;
+    private byte[] request;
+    private InetSocketAddress target;
+    private AdmissionController.Ticket ticket;
+
+    private boolean clientEof;
+    private boolean upstreamEof;
+    private boolean upstreamOutputShutdown;
+    private boolean clientOutputShutdown;
+    private boolean closed;
+
+    SocksProxyConnection(SocksPolicyProxy proxy, SocketChannel client) throws IOException
+    {
+        this.proxy = proxy;
+        this.client = client;
+        this.record = new SocksFlowRecord(System.nanoTime());
+        this.toUpstream = proxy.getBufferPool().acquire();
+        this.toClient = proxy.getBufferPool().acquire();
+
+        try
+        {
+            this.clientKey = client.register(proxy.getSelector(), SelectionKey.OP_READ, this);
+        }
+        catch (IOException e)
+        {
+            release();
+            throw e;
+        }
+    }
+
+    void onSelected(SelectionKey key) throws IOException
+    {
+        if (key == clientKey)
+        {
+            if (key.isReadable())
+                readClient();
+
+            if (!closed && key.isValid() && key.isWritable())
+                flushToClient();
+        }
+        else
+        {
+            if (key.isConnectable())
+                finishConnect();
+
+            if (!closed && key.isValid() && key.isReadable())
+                readUpstream();
+
+            if (!closed && key.isValid() && key.isWritable())
+                flushToUpstream();
+        }
+
+        if (!closed)
+            updateState();
+    }
+
+    private void readClient() throws IOException
+    {
+        int read = client.read(toUpstream);
+
+        if (read < 0)
+        {
+            this.clientEof = true;
+
+            if (state.ordinal() < State.Queued.ordinal())
+                close();
+
+            return;
+        }
+
+        if (state == State.ClientGreeting && parseGreeting())
+            this.state = State.ClientRequest;
+
+        if (state == State.ClientRequest && parseRequest())
+            applyPolicy();
+
+        if (state == State.Relaying)
+            flushToUpstream();
+    }
+
+    private void readUpstream() throws IOException
+    {
+        int read = upstream.read(toClient);
+
+        if (read < 0)
+        {
+            this.upstreamEof = true;
+
+            if (state != State.Relaying)
+                fail(SocksDecision.REPLY_GENERAL_FAILURE);
+
+            return;
+        }
+
+        switch (state)
+        {
+            case UpstreamGreeting:
+                parseUpstreamGreeting();
+                break;
+
+            case UpstreamAuth:
+                parseUpstreamAuth();
+                break;
+
+            case UpstreamReply:
+                parseUpstreamReply();
+                break;
+
+            case Relaying:
+                if (read > 0 && record.firstByteAt == 0)
+                    record.firstByteAt = System.nanoTime();
+
+                flushToClient();
+                break;
+        }
+    }
+
+    /**
+     * @return true if complete greeting was received
+     */
+    private boolean parseGreeting() throws IOException
+    {
+        if (toUpstream.position() < 2)
+            return false;
+
+        if ((toUpstream.get(0) & 0xFF) != SOCKS_VERSION)
+            throw new IOException("Unsupported SOCKS version.");
+
+        int length = 2 + (toUpstream.get(1) & 0xFF);
+
+        if (toUpstream.position() < length)
+            return false;
+
+        boolean noAuth = false;
+
+        for (int i = 2; i < length; i++)
+            if ((toUpstream.get(i) & 0xFF) == METHOD_NO_AUTH)
+                noAuth = true;
+
+        consume(toUpstream, length);
+
+        ByteBuffer reply = proxy.getHandshakeBuffer();
+        reply.put((byte) SOCKS_VERSION).put((byte) (noAuth ? METHOD_NO_AUTH : METHOD_NOT_ACCEPTABLE));
+        writeHandshake(client, reply);
+
+        if (!noAuth)
+            close();
+
+        return noAuth;
+    }
+
+    /**
+     * @return true if complete CONNECT request was received
+     */
+    private boolean parseRequest() throws IOException
+    {
+        if (toUpstream.position() < 5)
+            return false;
+
+        if ((toUpstream.get(0) & 0xFF) != SOCKS_VERSION)
+            throw new IOException("Unsupported SOCKS version.");
+
+        int addressType = toUpstream.get(3) & 0xFF;
+        int addressLength;
+
+        if (addressType == ATYP_IPV4)
+            addressLength = 4;
+        else if (addressType == ATYP_IPV6)
+            addressLength = 16;
+        else if (addressType == ATYP_DOMAIN)
+            addressLength = 1 + (toUpstream.get(4) & 0xFF);
+        else
+        {
+            fail(REPLY_ADDRESS_TYPE_NOT_SUPPORTED);
+            return false;
+        }
+
+        int length = 4 + addressLength + 2;
+
+        if (toUpstream.position() < length)
+            return false;
+
+        if ((toUpstream.get(1) & 0xFF) != COMMAND_CONNECT)
+        {
+            fail(REPLY_COMMAND_NOT_SUPPORTED);
+            return false;
+        }
+
+        this.request = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            request[i] = toUpstream.get(i);
+
+        consume(toUpstream, length);
+
+        record.requestedAt = System.nanoTime();
+        record.port = ((request[length - 2] & 0xFF) << 8) | (request[length - 1] & 0xFF);
+
+        return true;
+    }
+
+    private void applyPolicy() throws IOException
+    {
+        InetAddress address = null;
+
+        if (request[3] == ATYP_DOMAIN)
+        {
+            record.host = new String(request, 5, request[4] & 0xFF, StandardCharsets.US_ASCII);
+            record.hostName = record.host;
+        }
+        else
+        {
+            byte[] addressBytes = new byte[request[3] == ATYP_IPV4 ? 4 : 16];
+            System.arraycopy(request, 4, addressBytes, 0, addressBytes.length);
+
+            address = InetAddress.getByAddress(addressBytes);
+            record.host = address.getHostAddress();
+
+            AddressMap addressMap = proxy.getAddressMap();
+
+            if (addressMap != null)
+                record.hostName = addressMap.lookup(addressBytes);
+        }
+
+        SocksDecision decision = proxy.getPolicy().decide(record.hostName != null ? record.hostName : record.host, address, record.port);
+
+        if (decision == null)
+            decision = SocksDecision.proxy();
+
+        // domain names are never resolved locally
+        if (decision.getAction() == SocksDecision.Action.Direct && address == null)
+            decision = SocksDecision.proxy();
+
+        record.decision = decision;
+
+        if (decision.getAction() == SocksDecision.Action.Reject)
+        {
+            fail(decision.getReplyCode());
+            return;
+        }
+
+        if (decision.getAction() == SocksDecision.Action.Direct)
+        {
+            this.target = new InetSocketAddress(address, record.port);
+            connect();
+            return;
+        }
+
+        this.target = proxy.getUpstreamAddress();
+
+        AdmissionController admissionController = proxy.getAdmissionController();
+
+        if (admissionController != null)
+        {
+            this.ticket = admissionController.request(record.host, record.port, this);
+
+            if (ticket == null)
+            {
+                fail(SocksDecision.REPLY_GENERAL_FAILURE);
+                return;
+            }
+
+            if (!ticket.isAdmitted())
+            {
+                this.state = State.Queued;
+                return;
+            }
+        }
+
+        connect();
+    }
+
+    /**
+     * Called from thread which released the permit.
+     */
+    @Override
+    public void onAdmitted(AdmissionController.Ticket ticket)
+    {
+        proxy.post(() ->
+        {
+            if (closed)
+            {
+                ticket.release();
+                return;
+            }
+
+            try
+            {
+                connect();
+                updateState();
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Called from admission timeout thread.
+     */
+    @Override
+    public void onTimedOut(AdmissionController.Ticket ticket)
+    {
+        proxy.post(() ->
+        {
+            if (!closed)
+                fail(SocksDecision.REPLY_GENERAL_FAILURE);
+        });
+    }
+
+    private void connect() throws IOException
+    {
+        record.admittedAt = System.nanoTime();
+
+        this.upstream = SocketChannel.open();
+
+        try
+        {
+            upstream.configureBlocking(false);
+            upstream.socket().setTcpNoDelay(true);
+
+            this.state = State.Connecting;
+
+            if (upstream.connect(target))
+                this.upstreamKey = upstream.register(proxy.getSelector(), 0, this);
+            else
+                this.upstreamKey = upstream.register(proxy.getSelector(), SelectionKey.OP_CONNECT, this);
+        }
+        catch (IOException e)
+        {
+            fail(SocksDecision.REPLY_CONNECTION_REFUSED);
+            return;
+        }
+
+        if (upstream.isConnected())
+            onConnected();
+    }
+
+    private void finishConnect() throws IOException
+    {
+        try
+        {
+            if (!upstream.finishConnect())
+                return;
+        }
+        catch (IOException e)
+        {
+            fail(SocksDecision.REPLY_CONNECTION_REFUSED);
+            return;
+        }
+
+        onConnected();
+    }
+
+    private void onConnected() throws IOException
+    {
+        record.connectedAt = System.nanoTime();
+
+        if (record.decision.getAction() == SocksDecision.Action.Direct)
+        {
+            ByteBuffer reply = proxy.getHandshakeBuffer();
+            reply.put((byte) SOCKS_VERSION).put((byte) REPLY_SUCCEEDED).put((byte) 0).put((byte) ATYP_IPV4).putInt(0).putShort((short) 0);
+            writeHandshake(client, reply);
+
+            onEstablished(REPLY_SUCCEEDED);
+            return;
+        }
+
+        ByteBuffer greeting = proxy.getHandshakeBuffer();
+        greeting.put((byte) SOCKS_VERSION)
+                .put((byte) 1)
+                .put((byte) (record.decision.hasCredentials() ? METHOD_USERNAME_PASSWORD : METHOD_NO_AUTH));
+
+        writeHandshake(upstream, greeting);
+        this.state = State.UpstreamGreeting;
+    }
+
+    private void parseUpstreamGreeting() throws IOException
+    {
+        if (toClient.position() < 2)
+            return;
+
+        int method = toClient.get(1) & 0xFF;
+        consume(toClient, 2);
+
+        if (method == METHOD_USERNAME_PASSWORD && record.decision.hasCredentials())
+        {
+            byte[] username = record.decision.getUsername().getBytes(StandardCharsets.UTF_8);
+            byte[] password = record.decision.getPassword().getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer auth = proxy.getHandshakeBuffer();
+            auth.put((byte) AUTH_VERSION)
+                    .put((byte) username.length).put(username)
+                    .put((byte) password.length).put(password);
+
+            writeHandshake(upstream, auth);
+            this.state = State.UpstreamAuth;
+        }
+        else if (method == METHOD_NO_AUTH)
+        {
+            sendUpstreamRequest();
+        }
+        else
+        {
+            fail(SocksDecision.REPLY_GENERAL_FAILURE);
+        }
+    }
+
+    private void parseUpstreamAuth() throws IOException
+    {
+        if (toClient.position() < 2)
+            return;
+
+        int status = toClient.get(1) & 0xFF;
+        consume(toClient, 2);
+
+        if (status != 0)
+        {
+            fail(SocksDecision.REPLY_GENERAL_FAILURE);
+            return;
+        }
+
+        sendUpstreamRequest();
+    }
+
+    private void sendUpstreamRequest() throws IOException
+    {
+        ByteBuffer buffer = proxy.getHandshakeBuffer();
+        buffer.put(request);
+
+        writeHandshake(upstream, buffer);
+        this.state = State.UpstreamReply;
+    }
+
+    private void parseUpstreamReply() throws IOException
+    {
+        if (toClient.position() < 5)
+            return;
+
+        int reply = toClient.get(1) & 0xFF;
+        int addressType = toClient.get(3) & 0xFF;
+        int length;
+
+        if (addressType == ATYP_IPV4)
+            length = 4 + 4 + 2;
+        else if (addressType == ATYP_IPV6)
+            length = 4 + 16 + 2;
+        else if (addressType == ATYP_DOMAIN)
+            length = 4 + 1 + (toClient.get(4) & 0xFF) + 2;
+        else
+            throw new IOException("Invalid SOCKS reply.");
+
+        if (toClient.position() < length)
+            return;
+
+        if (reply != REPLY_SUCCEEDED)
+        {
+            fail(reply);
+            return;
+        }
+
+        if (toClient.position() > length)
+            record.firstByteAt = System.nanoTime();
+
+        // reply stays in buffer and is forwarded to client together with any data following it, it is not counted as data
+        record.bytesReceived = -length;
+        onEstablished(reply);
+    }
+
+    private void onEstablished(int reply) throws IOException
+    {
+        releaseTicket();
+
+        record.replyCode = reply;
+        record.establishedAt = System.nanoTime();
+
+        this.state = State.Relaying;
+
+        flushToClient();
+        flushToUpstream();
+    }
+
+    private void flushToClient() throws IOException
+    {
+        if (state != State.Relaying || toClient.position() == 0)
+            return;
+
+        toClient.flip();
+        record.bytesReceived += client.write(toClient);
+        toClient.compact();
+    }
+
+    private void flushToUpstream() throws IOException
+    {
+        if (state != State.Relaying || toUpstream.position() == 0)
+            return;
+
+        toUpstream.flip();
+        record.bytesSent += upstream.write(toUpstream);
+        toUpstream.compact();
+    }
+
+    /**
+     * Propagates half-close, closes connection when both directions are finished and computes interest ops.
+     */
+    private void updateState() throws IOException
+    {
+        if (state == State.Relaying)
+        {
+            if (clientEof && !upstreamOutputShutdown && toUpstream.position() == 0)
+            {
+                this.upstreamOutputShutdown = true;
+                upstream.socket().shutdownOutput();
+            }
+
+            if (upstreamEof && !clientOutputShutdown && toClient.position() == 0)
+            {
+                this.clientOutputShutdown = true;
+                client.socket().shutdownOutput();
+            }
+
+            if (upstreamOutputShutdown && clientOutputShutdown)
+            {
+                close();
+                return;
+            }
+        }
+
+        boolean relaying = state == State.Relaying;
+
+        int clientOps = 0;
+
+        if (!clientEof && toUpstream.hasRemaining())
+            clientOps |= SelectionKey.OP_READ;
+
+        if (relaying && toClient.position() > 0)
+            clientOps |= SelectionKey.OP_WRITE;
+
+        clientKey.interestOps(clientOps);
+
+        if (upstreamKey == null || state == State.Connecting)
+            return;
+
+        int upstreamOps = 0;
+
+        if (!upstreamEof && toClient.hasRemaining())
+            upstreamOps |= SelectionKey.OP_READ;
+
+        if (relaying && toUpstream.position() > 0)
+            upstreamOps |= SelectionKey.OP_WRITE;
+
+        upstreamKey.interestOps(upstreamOps);
+    }
+
+    /**
+     * Sends failure reply to client and closes connection.
+     */
+    private void fail(int reply)
+    {
+        record.replyCode = reply;
+
+        try
+        {
+            ByteBuffer buffer = proxy.getHandshakeBuffer();
+            buffer.put((byte) SOCKS_VERSION).put((byte) reply).put((byte) 0).put((byte) ATYP_IPV4).putInt(0).putShort((short) 0);
+            writeHandshake(client, buffer);
+        }
+        catch (IOException e)
+        {
+            // client is gone already
+        }
+
+        close();
+    }
+
+    void close()
+    {
+        if (closed)
+            return;
+
+        this.closed = true;
+
+        releaseTicket();
+
+        clientKey.cancel();
+        SocksPolicyProxy.closeQuietly(client);
+
+        if (upstreamKey != null)
+            upstreamKey.cancel();
+
+        SocksPolicyProxy.closeQuietly(upstream);
+
+        release();
+
+        record.closedAt = System.nanoTime();
+        proxy.onFlowClosed(record);
+    }
+
+    private void releaseTicket()
+    {
+        if (ticket != null)
+            ticket.release();
+    }
+
+    private void release()
+    {
+        proxy.getBufferPool().release(toUpstream);
+        proxy.getBufferPool().release(toClient);
+    }
+
+    /**
+     * Handshake messages are small and sent only when socket send buffer is empty, so they are written at once.
+     */
+    private static void writeHandshake(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        channel.write(buffer);
+
+        if (buffer.hasRemaining())
+            throw new IOException("Unable to write SOCKS handshake.");
+    }
+
+    /**
+     * Removes first length bytes from buffer in fill mode.
+     */
+    private static void consume(ByteBuffer buffer, int length)
+    {
+        buffer.flip();
+        buffer.position(length);
+        buffer.compact();
+    }
+}
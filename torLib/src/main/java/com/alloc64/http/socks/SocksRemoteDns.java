@@ -0,0 +1,123 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * Dns which does not resolve anything locally. Host names are turned into placeholder addresses from 0.0.0.0/8
+ * carrying the host name, {@link Socks5Socket} sends them to SOCKS server as domain names.
+ * <p>
+ * Every host name gets its own placeholder, so OkHttp does not treat connections to different hosts as the same route.
+ * Placeholders are issued sequentially and kept for process lifetime in a table shared by all instances, so the same
+ * host always maps to the same placeholder, and only issued addresses are recognized by {@link #isPlaceholder(InetAddress)}.
+ */
+public class SocksRemoteDns implements Dns
+{
+    /**
+     * 0.0.0.0 is never issued, 16M - 1 placeholders remain.
+     */
+    private static final int MAX_PLACEHOLDER = 0x00FFFFFF;
+
+    private static final Map<String, Integer> placeholders = new HashMap<>();
+    private static final Map<Integer, String> hosts = new HashMap<>();
+    private static int nextPlaceholder = 1;
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException
+    {
+        if (hostname == null || hostname.isEmpty())
+            throw new UnknownHostException("Empty host name.");
+
+        // literal addresses are parsed without lookup
+        if (isAddressLiteral(hostname))
+            return Collections.singletonList(InetAddress.getByName(hostname));
+
+        int placeholder = placeholderFor(hostname.toLowerCase(Locale.US));
+
+        byte[] address = new byte[]{
+                0,
+                (byte) (placeholder >> 16),
+                (byte) (placeholder >> 8),
+                (byte) placeholder
+        };
+
+        return Collections.singletonList(InetAddress.getByAddress(hostname, address));
+    }
+
+    private static synchronized int placeholderFor(String host) throws UnknownHostException
+    {
+        Integer placeholder = placeholders.get(host);
+
+        if (placeholder != null)
+            return placeholder;
+
+        if (hosts.size() >= MAX_PLACEHOLDER)
+            throw new UnknownHostException("No placeholder address left for " + host);
+
+        // counter never wraps before table is full, skipping taken ones keeps it correct anyway
+        while (hosts.containsKey(nextPlaceholder))
+            nextPlaceholder = nextPlaceholder % MAX_PLACEHOLDER + 1;
+
+        placeholder = nextPlaceholder;
+        nextPlaceholder = nextPlaceholder % MAX_PLACEHOLDER + 1;
+
+        placeholders.put(host, placeholder);
+        hosts.put(placeholder, host);
+
+        return placeholder;
+    }
+
+    /**
+     * @return true only for placeholders issued by {@link #lookup(String)}, other 0.0.0.0/8 addresses are not placeholders
+     */
+    public static boolean isPlaceholder(InetAddress address)
+    {
+        return getHost(address) != null;
+    }
+
+    /**
+     * @return lower case host name of issued placeholder, null if address is not a placeholder
+     */
+    private static String getHost(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+
+        if (bytes.length != 4 || bytes[0] != 0)
+            return null;
+
+        int placeholder = (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+
+        synchronized (SocksRemoteDns.class)
+        {
+            return hosts.get(placeholder);
+        }
+    }
+    public static boolean isAddressLiteral(String hostname)
+    {
+        if (hostname.indexOf(':') >= 0)
+            return true;
+
+        for (int i = 0; i < hostname.length(); i++)
+        {
+            char c = hostname.charAt(i);
+
+            if (c != '.' && (c < '0' || c > '9'))
+                return false;
+        }
+
+        return true;
+    }
+}
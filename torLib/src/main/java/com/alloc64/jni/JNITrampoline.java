@@ -6,17 +6,99 @@
 
 package com.alloc64.jni;
 
+import android.os.Trace;
+
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Used for proxying native method calls, so disassembly looks more confusing for first time.
  * However, this may get optimized out by R8 anyway.
+ * <p>
+ * Trampoline is also the instrumentation point of native calls. Every call is identified by its method id (N of aN),
+ * call count, latency histogram (in nanoseconds) and exception count are recorded per method.
+ * Optionally systrace sections "TL.aN" are emitted, so native calls are visible in Perfetto/systrace captures.
+ * Both can be switched at runtime.
  */
-public class JNITrampoline
+public class JNITrampoline implements MetricsCollector
 {
+    public static final int MAX_METHOD_ID = 31;
+
     public interface Callable<V>
     {
         V call() ;
     }
 
+    public static class MethodStats
+    {
+        private final int methodId;
+        private final String traceSectionName;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong exceptions = new AtomicLong();
+        private final Histogram latency = new Histogram();
+
+        private MethodStats(int methodId)
+        {
+            this.methodId = methodId;
+            this.traceSectionName = "TL.a" + methodId;
+        }
+
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        public long getCalls()
+        {
+            return calls.get();
+        }
+
+        public long getExceptions()
+        {
+            return exceptions.get();
+        }
+
+        /**
+         * @return latency histogram in nanoseconds
+         */
+        public Histogram getLatency()
+        {
+            return latency;
+        }
+
+        private void reset()
+        {
+            calls.set(0);
+            exceptions.set(0);
+            latency.reset();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "a" + methodId
+                    + " calls=" + calls.get()
+                    + " exceptions=" + exceptions.get()
+                    + " p50=" + latency.getValueAtPercentile(50) / 1000 + "us"
+                    + " p99=" + latency.getValueAtPercentile(99) / 1000 + "us"
+                    + " max=" + latency.getMax() / 1000 + "us";
+        }
+    }
+
+    private final MethodStats[] methodStats = new MethodStats[MAX_METHOD_ID + 1];
+
+    private volatile boolean statsEnabled = true;
+    private volatile boolean traceEnabled = false;
+
+    public JNITrampoline()
+    {
+        for (int i = 0; i < methodStats.length; i++)
+            methodStats[i] = new MethodStats(i);
+    }
+
     public <T> T call(Callable<T> method)
     {
         return method.call();
@@ -26,4 +108,102 @@ public class JNITrampoline
     {
         method.run();
     }
+
+    public <T> T call(int methodId, Callable<T> method)
+    {
+        boolean stats = statsEnabled;
+        boolean trace = traceEnabled;
+
+        if (!stats && !trace)
+            return method.call();
+
+        MethodStats s = methodStats[methodId];
+
+        if (trace)
+            Trace.beginSection(s.traceSectionName);
+
+        long start = System.nanoTime();
+
+        try
+        {
+            return method.call();
+        }
+        catch (Throwable e)
+        {
+            if (stats)
+                s.exceptions.incrementAndGet();
+
+            throw e;
+        }
+        finally
+        {
+            if (stats)
+            {
+                s.latency.record(System.nanoTime() - start);
+                s.calls.incrementAndGet();
+            }
+
+            if (trace)
+                Trace.endSection();
+        }
+    }
+
+    public void call(int methodId, Runnable method)
+    {
+        call(methodId, () ->
+        {
+            method.run();
+            return null;
+        });
+    }
+
+    public boolean isStatsEnabled()
+    {
+        return statsEnabled;
+    }
+
+    public void setStatsEnabled(boolean statsEnabled)
+    {
+        this.statsEnabled = statsEnabled;
+    }
+
+    public boolean isTraceEnabled()
+    {
+        return traceEnabled;
+    }
+
+    public void setTraceEnabled(boolean traceEnabled)
+    {
+        this.traceEnabled = traceEnabled;
+    }
+
+    public MethodStats getMethodStats(int methodId)
+    {
+        return methodStats[methodId];
+    }
+
+    public void resetStats()
+    {
+        for (MethodStats s : methodStats)
+            s.reset();
+    }
+
+    /**
+     * Writes stats of methods which were called at least once.
+     */
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        for (MethodStats s : methodStats)
+            if (s.calls.get() > 0)
+                writer.counter("torlib_jni_calls_total", "Native calls.", s.calls.get(), "method", "a" + s.methodId);
+
+        for (MethodStats s : methodStats)
+            if (s.calls.get() > 0)
+                writer.counter("torlib_jni_exceptions_total", "Native calls which threw.", s.exceptions.get(), "method", "a" + s.methodId);
+
+        for (MethodStats s : methodStats)
+            if (s.calls.get() > 0)
+                writer.histogram("torlib_jni_call_latency_seconds", "Latency of native calls.", s.latency, 1e-9, "method", "a" + s.methodId);
+    }
 }
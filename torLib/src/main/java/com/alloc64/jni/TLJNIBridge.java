@@ -6,87 +6,157 @@
 
 package com.alloc64.jni;
 
-import android.os.Looper;
 import android.util.Log;
 
 import com.alloc64.http.ProxiedSocketFactory;
+import com.alloc64.http.TorControlDns;
+import com.alloc64.http.TorHttpClientFactory;
+import com.alloc64.http.socks.AsyncSocksConnector;
+import com.alloc64.http.socks.HedgedSocksConnector;
+import com.alloc64.http.socks.IsolationPolicy;
+import com.alloc64.http.socks.IsolationStats;
+import com.alloc64.http.socks.SocksRemoteDns;
 import com.alloc64.torlib.PdnsdConfig;
 import com.alloc64.torlib.TorConfig;
+import com.alloc64.torlib.Tun2SocksConfig;
+import com.alloc64.torlib.Tun2SocksStats;
+import com.alloc64.torlib.tun2socks.Tun2SocksEngine;
 import com.alloc64.torlib.control.TorAbstractControlSocket;
 import com.alloc64.torlib.control.TorControlSocket;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.OkHttpClient;
 
-public class TLJNIBridge
+/**
+ * Bridge is safe to be called from any thread.
+ * <p>
+ * Lifecycle changes (start/destroy) of every daemon are serialized by its own lock, state and running flags are read lock-free.
+ * Blocking native calls should be made from background threads.
+ */
+public class TLJNIBridge implements MetricsCollector
 {
     public static final String TAG = TLJNIBridge.class.getName();
 
+    public enum State
+    {
+        Stopped,
+        Starting,
+        Running,
+        Stopping
+    }
+
+    private static class Lifecycle
+    {
+        private final AtomicReference<State> state = new AtomicReference<>(State.Stopped);
+
+        private State get(boolean isNativeRunning)
+        {
+            State s = state.get();
+
+            // daemon may exit on its own
+            if (s == State.Running && !isNativeRunning)
+            {
+                state.compareAndSet(State.Running, State.Stopped);
+                return state.get();
+            }
+
+            return s;
+        }
+
+        private void set(State s)
+        {
+            state.set(s);
+        }
+    }
+
     public class Tor
     {
-        private final List<TorAbstractControlSocket> controlPortSockets = new ArrayList<>();
-        private TorControlSocket defaultControlSocket;
+        private final List<TorAbstractControlSocket> controlPortSockets = new CopyOnWriteArrayList<>();
+        private final IsolationStats isolationStats = new IsolationStats();
+        private volatile TorHttpClientFactory httpClientFactory;
+        private volatile TorControlDns controlDns;
+        private volatile HedgedSocksConnector hedgedConnector;
+        private InetSocketAddress httpClientFactorySocksAddress;
+        private volatile TorControlSocket defaultControlSocket;
+
+        private final Object lock = new Object();
+        private final Lifecycle lifecycle = new Lifecycle();
+
+        public State getState()
+        {
+            return lifecycle.get(isTorRunning());
+        }
 
         public String getTorVersion()
         {
-            ensureMainThread();
-
-            return jniTrampoline.call(TLJNIBridge.this::a1);
+            return jniTrampoline.call(1, TLJNIBridge.this::a1);
         }
 
         public Tor createTorConfig() throws IllegalStateException
         {
-            ensureMainThread();
-
-            if (!jniTrampoline.call(TLJNIBridge.this::a2))
-                throw new IllegalStateException("Unable to create transport config.");
+            synchronized (lock)
+            {
+                if (!jniTrampoline.call(2, TLJNIBridge.this::a2))
+                    throw new IllegalStateException("Unable to create transport config.");
+            }
 
             return this;
         }
 
         public Tor setTorCommandLine(String[] args)
         {
-            ensureMainThread();
-
-            if (!jniTrampoline.call(() -> a5(args)))
-                throw new IllegalStateException("Unable to set command line arguments.");
+            synchronized (lock)
+            {
+                if (!jniTrampoline.call(5, () -> a5(args)))
+                    throw new IllegalStateException("Unable to set command line arguments.");
+            }
 
             return this;
         }
 
         public Tor setTorCommandLine(TorConfig torConfig)
         {
-            ensureMainThread();
-
             setTorCommandLine(torConfig.asCommands());
             return this;
         }
 
         public Tor attachControlPort(InetSocketAddress socketAddress, TorAbstractControlSocket... controlSockets)
         {
-            ensureMainThread();
-
-            if (controlPortSockets.size() < 1)
+            synchronized (lock)
             {
-                for (TorAbstractControlSocket s : controlSockets)
+                if (controlPortSockets.size() < 1)
                 {
-                    s.connect(socketAddress);
+                    for (TorAbstractControlSocket s : controlSockets)
+                    {
+                        s.connect(socketAddress);
+
+                        if (s instanceof TorControlSocket)
+                        {
+                            this.defaultControlSocket = (TorControlSocket) s;
 
-                    if (s instanceof TorControlSocket)
-                        this.defaultControlSocket = (TorControlSocket) s;
+                            if (controlDns != null)
+                                controlDns.setControlSocket(defaultControlSocket);
+                        }
 
-                    this.controlPortSockets.add(s);
+                        this.controlPortSockets.add(s);
+                    }
+                }
+                else
+                {
+                    Log.i(TAG, "Ignoring control port attachment, control port is already connected.");
                 }
-            }
-            else
-            {
-                Log.i(TAG, "Ignoring control port attachment, control port is already connected.");
             }
 
             return this;
@@ -94,43 +164,49 @@ public class TLJNIBridge
 
         public TorControlSocket getControlPortSocket()
         {
-            ensureMainThread();
-
             return defaultControlSocket;
         }
 
         public void detachControlPort()
         {
-            ensureMainThread();
-
-            for (TorAbstractControlSocket s : controlPortSockets)
+            synchronized (lock)
             {
-                try
-                {
-                    if (s != null)
-                        s.close();
-                }
-                catch (Exception e)
+                for (TorAbstractControlSocket s : controlPortSockets)
                 {
-                    e.printStackTrace();
+                    try
+                    {
+                        if (s != null)
+                            s.close();
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
                 }
-            }
 
-            controlPortSockets.clear();
+                controlPortSockets.clear();
+
+                this.defaultControlSocket = null;
 
-            this.defaultControlSocket = null;
+                if (controlDns != null)
+                    controlDns.setControlSocket(null);
+            }
         }
 
         public void setNetworkEnabled(boolean isEnabled)
         {
-            if (defaultControlSocket != null)
-                defaultControlSocket.setNetworkEnabled(isEnabled);
+            TorControlSocket socket = defaultControlSocket;
+
+            if (socket != null)
+                socket.setNetworkEnabled(isEnabled);
         }
 
         public void reloadTorNetwork()
         {
-            if (defaultControlSocket != null)
-                defaultControlSocket.reloadTorNetwork();
+            TorControlSocket socket = defaultControlSocket;
+
+            if (socket != null)
+                socket.reloadTorNetwork();
         }
 
         /**
@@ -141,10 +217,12 @@ public class TLJNIBridge
          */
         public void setGeoIPFiles(File ipv4, File ipv6)
         {
-            if (defaultControlSocket != null)
+            TorControlSocket socket = defaultControlSocket;
+
+            if (socket != null)
             {
-                defaultControlSocket.setConf(TorConfig.GEO_IP_FILE, ipv4.getAbsolutePath());
-                defaultControlSocket.setConf(TorConfig.GEO_IP_V6_FILE, ipv6.getAbsolutePath());
+                socket.setConf(TorConfig.GEO_IP_FILE, ipv4.getAbsolutePath());
+                socket.setConf(TorConfig.GEO_IP_V6_FILE, ipv6.getAbsolutePath());
             }
         }
 
@@ -158,14 +236,18 @@ public class TLJNIBridge
          */
         public void setExitNodeTargeting(List<String> exitNodeTargeting)
         {
-            if (defaultControlSocket != null)
-                defaultControlSocket.setExitNodeTargeting(exitNodeTargeting);
+            TorControlSocket socket = defaultControlSocket;
+
+            if (socket != null)
+                socket.setExitNodeTargeting(exitNodeTargeting);
         }
 
         public void disableExitNodeTargeting()
         {
-            if (defaultControlSocket != null)
-                defaultControlSocket.disableExitNodeTargeting();
+            TorControlSocket socket = defaultControlSocket;
+
+            if (socket != null)
+                socket.disableExitNodeTargeting();
         }
 
         /**
@@ -177,15 +259,18 @@ public class TLJNIBridge
          */
         public Tor startTor()
         {
-            ensureMainThread();
-
-            if (isTorRunning())
-            {
-                Log.d(TAG, "Ignoring start. T is already running.");
-            }
-            else
+            synchronized (lock)
             {
-                jniTrampoline.call(TLJNIBridge.this::a6);
+                if (isTorRunning())
+                {
+                    Log.d(TAG, "Ignoring start. T is already running.");
+                }
+                else
+                {
+                    lifecycle.set(State.Starting);
+                    jniTrampoline.call(6, TLJNIBridge.this::a6);
+                    lifecycle.set(State.Running);
+                }
             }
 
             return this;
@@ -206,47 +291,153 @@ public class TLJNIBridge
          */
         public void destroyTor() throws IOException
         {
-            ensureMainThread();
+            synchronized (lock)
+            {
+                lifecycle.set(State.Stopping);
+                jniTrampoline.call(3, TLJNIBridge.this::a3);
+
+                detachControlPort();
+
+                TorHttpClientFactory httpClientFactory = this.httpClientFactory;
+
+                // pooled connections went through the stopped tor
+                if (httpClientFactory != null)
+                    httpClientFactory.evictAll();
 
-            jniTrampoline.call(TLJNIBridge.this::a3);
+                lifecycle.set(State.Stopped);
+            }
+        }
 
-            detachControlPort();
+        /**
+         * Connection and circuit statistics per isolation token of clients created by createOkHttpClient.
+         * Circuit usage is known only if STREAM events are passed to {@link IsolationStats#onEvents(List)}.
+         */
+        public IsolationStats getIsolationStats()
+        {
+            return isolationStats;
         }
 
         public boolean isTorRunning()
         {
-            ensureMainThread();
+            return jniTrampoline.call(4, TLJNIBridge.this::a4);
+        }
+
+        /**
+         * Shared clients with connection pool per isolation domain, preferred over {@link #createOkHttpClient(InetSocketAddress)},
+         * which creates new pool for every client. Factory is created on first call, later calls return the same factory
+         * as long as socketAddress does not change.
+         */
+        public TorHttpClientFactory getHttpClientFactory(InetSocketAddress socketAddress)
+        {
+            synchronized (lock)
+            {
+                if (httpClientFactory == null || !socketAddress.equals(httpClientFactorySocksAddress))
+                {
+                    if (httpClientFactory != null)
+                        httpClientFactory.close();
+
+                    this.httpClientFactory = new TorHttpClientFactory(socketAddress, isolationStats);
+                    this.httpClientFactorySocksAddress = socketAddress;
+                }
+
+                return httpClientFactory;
+            }
+        }
+
+        /**
+         * Dns resolving through control port of this tor, to be used with {@link TorHttpClientFactory#setDns(okhttp3.Dns)}.
+         * ADDRMAP events of attached event socket must be passed to {@link TorControlDns#onEvents(List)},
+         * otherwise it leaves resolving to exit relays.
+         */
+        public TorControlDns getControlDns()
+        {
+            synchronized (lock)
+            {
+                if (controlDns == null)
+                    this.controlDns = new TorControlDns(defaultControlSocket);
 
-            return jniTrampoline.call(TLJNIBridge.this::a4);
+                return controlDns;
+            }
         }
 
         public OkHttpClient.Builder createOkHttpClient(InetSocketAddress socketAddress)
         {
-            ensureMainThread();
+            return createOkHttpClient(socketAddress, IsolationPolicy.none());
+        }
 
+        /**
+         * Connections of the client get SOCKS credentials from isolationPolicy, so tor spreads them across circuits,
+         * e.g. {@link IsolationPolicy#perTenant(String)} for a client per tenant.
+         * Results are recorded to {@link #getIsolationStats()}.
+         */
+        public OkHttpClient.Builder createOkHttpClient(InetSocketAddress socketAddress, IsolationPolicy isolationPolicy)
+        {
             Proxy proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
 
+            // OkHttp opens SOCKS sockets by itself, so sockets are created by the factory and OkHttp sees direct connections
+            OkHttpClient.Builder builder = new OkHttpClient.Builder();
+            builder.socketFactory(new ProxiedSocketFactory(proxy).setIsolation(isolationPolicy, isolationStats));
+            builder.proxy(Proxy.NO_PROXY);
+            builder.dns(new SocksRemoteDns());
+
+            return builder;
+        }
+
+        /**
+         * Connections of the client are opened by hedgedConnector, which starts second attempt on another circuit
+         * when connect takes longer than usual. Isolation is taken from the underlying connector.
+         * Hedge statistics of the most recent hedgedConnector are exported by {@link TLJNIBridge#collect(MetricsWriter)}.
+         */
+        public OkHttpClient.Builder createOkHttpClient(HedgedSocksConnector hedgedConnector)
+        {
+            this.hedgedConnector = hedgedConnector;
+
+            Proxy proxy = new Proxy(Proxy.Type.SOCKS, hedgedConnector.getConnector().getProxyAddress());
+
             OkHttpClient.Builder builder = new OkHttpClient.Builder();
-            builder.socketFactory(new ProxiedSocketFactory(proxy));
-            builder.proxy(proxy);
+            builder.socketFactory(new ProxiedSocketFactory(proxy).setHedging(hedgedConnector));
+            builder.proxy(Proxy.NO_PROXY);
+            builder.dns(new SocksRemoteDns());
 
             return builder;
         }
+
+        /**
+         * Started connector for NIO clients, which opens connections through tor without blocking a thread per connection.
+         * Caller is responsible for closing it.
+         */
+        public AsyncSocksConnector createAsyncSocksConnector(InetSocketAddress socketAddress, IsolationPolicy isolationPolicy) throws IOException
+        {
+            return new AsyncSocksConnector(socketAddress)
+                    .setIsolation(isolationPolicy, isolationStats)
+                    .start();
+        }
     }
 
     public class Pdnsd
     {
-        public Pdnsd startDnsd(String[] args)
+        private final Object lock = new Object();
+        private final Lifecycle lifecycle = new Lifecycle();
+
+        public State getState()
         {
-            ensureMainThread();
+            return lifecycle.get(isPdnsdRunning());
+        }
 
-            if (isPdnsdRunning())
-            {
-                Log.i(TAG, "Ignoring start. PD is already running.");
-            }
-            else
+        public Pdnsd startDnsd(String[] args)
+        {
+            synchronized (lock)
             {
-                jniTrampoline.call(() -> a8(args));
+                if (isPdnsdRunning())
+                {
+                    Log.i(TAG, "Ignoring start. PD is already running.");
+                }
+                else
+                {
+                    lifecycle.set(State.Starting);
+                    jniTrampoline.call(8, () -> a8(args));
+                    lifecycle.set(State.Running);
+                }
             }
 
             return this;
@@ -254,28 +445,36 @@ public class TLJNIBridge
 
         public Pdnsd startPdnsd(PdnsdConfig config)
         {
-            ensureMainThread();
-
             return startDnsd(config.asCommands());
         }
 
         public void destroyPdnsd()
         {
-            ensureMainThread();
-
-            jniTrampoline.call(TLJNIBridge.this::a9);
+            synchronized (lock)
+            {
+                lifecycle.set(State.Stopping);
+                jniTrampoline.call(9, TLJNIBridge.this::a9);
+                lifecycle.set(State.Stopped);
+            }
         }
 
         public boolean isPdnsdRunning()
         {
-            ensureMainThread();
-
-            return jniTrampoline.call(TLJNIBridge.this::a7);
+            return jniTrampoline.call(7, TLJNIBridge.this::a7);
         }
     }
 
-    public class Tun2Socks
+    public class Tun2Socks implements Tun2SocksEngine
     {
+        private final Object lock = new Object();
+        private final Lifecycle lifecycle = new Lifecycle();
+        private volatile Tun2SocksStats stats;
+
+        public State getState()
+        {
+            return lifecycle.get(isInterfaceRunning());
+        }
+
         public void createInterface(
                 int vpnInterfaceFileDescriptor,
                 int vpnInterfaceMTU,
@@ -284,30 +483,83 @@ public class TLJNIBridge
                 String socksServerAddress,
                 String udpgwServerAddress)
         {
-            ensureMainThread();
+            createInterface(vpnInterfaceFileDescriptor,
+                    vpnIpAddress,
+                    vpnNetMask,
+                    socksServerAddress,
+                    udpgwServerAddress,
+                    new Tun2SocksConfig().setMtu(vpnInterfaceMTU));
+        }
 
-            if (isInterfaceRunning())
-            {
-                Log.i(TAG, "Ignoring start. T2 is already running.");
-            }
-            else
+        @Override
+        public void createInterface(
+                int vpnInterfaceFileDescriptor,
+                String vpnIpAddress,
+                String vpnNetMask,
+                String socksServerAddress,
+                String udpgwServerAddress,
+                Tun2SocksConfig config)
+        {
+            synchronized (lock)
             {
-                jniTrampoline.call(() -> TLJNIBridge.this.a10(vpnInterfaceFileDescriptor, vpnInterfaceMTU, vpnIpAddress, vpnNetMask, socksServerAddress, udpgwServerAddress));
+                if (isInterfaceRunning())
+                {
+                    Log.i(TAG, "Ignoring start. T2 is already running.");
+                }
+                else
+                {
+                    lifecycle.set(State.Starting);
+                    jniTrampoline.call(10, () -> TLJNIBridge.this.a10(
+                            vpnInterfaceFileDescriptor,
+                            config.getMtu(),
+                            vpnIpAddress,
+                            vpnNetMask,
+                            socksServerAddress,
+                            udpgwServerAddress,
+                            config.getTcpWindow(),
+                            config.getTcpSendBuffer(),
+                            config.getSocksReceiveBufferSize()));
+                    lifecycle.set(State.Running);
+                }
             }
         }
 
+        @Override
         public void destroyInterface()
         {
-            ensureMainThread();
-
-            jniTrampoline.call(TLJNIBridge.this::a11);
+            synchronized (lock)
+            {
+                lifecycle.set(State.Stopping);
+                jniTrampoline.call(11, TLJNIBridge.this::a11);
+                lifecycle.set(State.Stopped);
+            }
         }
 
+        @Override
         public boolean isInterfaceRunning()
         {
-            ensureMainThread();
+            return jniTrampoline.call(14, TLJNIBridge.this::a14);
+        }
+
+        /**
+         * @return live view of tun2socks statistics, valid for process lifetime
+         */
+        public Tun2SocksStats getStats()
+        {
+            Tun2SocksStats stats = this.stats;
+
+            if (stats == null)
+            {
+                synchronized (lock)
+                {
+                    if (this.stats == null)
+                        this.stats = new Tun2SocksStats(jniTrampoline.call(17, TLJNIBridge.this::a17));
+
+                    stats = this.stats;
+                }
+            }
 
-            return jniTrampoline.call(TLJNIBridge.this::a14);
+            return stats;
         }
     }
 
@@ -328,8 +580,9 @@ public class TLJNIBridge
     private final Tor tor = new Tor();
     private final Pdnsd pdnsd = new Pdnsd();
     private final Tun2Socks tun2Socks = new Tun2Socks();
-    private LogProvider logProvider;
-    private MainThreadDispatcher mainThreadDispatcher;
+    private volatile LogProvider logProvider;
+    private final AtomicLong droppedNativeLogMessages = new AtomicLong();
+    private volatile MainThreadDispatcher mainThreadDispatcher;
 
     private TLJNIBridge()
     {
@@ -341,11 +594,17 @@ public class TLJNIBridge
 
     public static TLJNIBridge get()
     {
-        ensureMainThread();
-
         return instance;
     }
 
+    /**
+     * @return trampoline of native calls, providing per method call statistics
+     */
+    public JNITrampoline getJNITrampoline()
+    {
+        return jniTrampoline;
+    }
+
     public Tor getTor()
     {
         return tor;
@@ -363,28 +622,52 @@ public class TLJNIBridge
 
     public void setLogProvider(LogProvider logProvider)
     {
-        ensureMainThread();
-
         this.logProvider = logProvider;
         this.a13(this);
     }
 
-    public synchronized MainThreadDispatcher getMainThreadDispatcher()
+    /**
+     * Sets minimal priority (see android.util.Log constants) of native log messages.
+     * Messages with lower priority are discarded in native code before formatting.
+     */
+    public void setNativeLogPriority(int priority)
     {
-        return mainThreadDispatcher;
+        jniTrampoline.call(16, () -> a16(priority));
     }
 
-    public void setMainThreadDispatcher(MainThreadDispatcher mainThreadDispatcher)
+    /**
+     * @return count of native log messages dropped, because log delivery was not keeping up
+     */
+    public long getDroppedNativeLogMessages()
     {
-        ensureMainThread();
+        return droppedNativeLogMessages.get();
+    }
 
-        this.mainThreadDispatcher = mainThreadDispatcher;
+    /**
+     * Writes native call statistics, native tun2socks statistics and dropped log messages.
+     */
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        jniTrampoline.collect(writer);
+        tun2Socks.getStats().collect(writer);
+
+        HedgedSocksConnector hedgedConnector = tor.hedgedConnector;
+
+        if (hedgedConnector != null)
+            hedgedConnector.collect(writer);
+
+        writer.counter("torlib_native_log_dropped_total", "Native log messages dropped, because log delivery was not keeping up.", droppedNativeLogMessages.get());
     }
 
-    private static void ensureMainThread()
+    public MainThreadDispatcher getMainThreadDispatcher()
     {
-        if (Looper.myLooper() != Looper.getMainLooper())
-            throw new IllegalStateException("Bridge must be called only from main thread. Was called from: " + Thread.currentThread());
+        return mainThreadDispatcher;
+    }
+
+    public void setMainThreadDispatcher(MainThreadDispatcher mainThreadDispatcher)
+    {
+        this.mainThreadDispatcher = mainThreadDispatcher;
     }
 
     // region Tor native methods
@@ -421,12 +704,17 @@ public class TLJNIBridge
             String vpnIpAddress,
             String vpnNetMask,
             String socksServerAddress,
-            String udpgwServerAddress);
+            String udpgwServerAddress,
+            int tcpWindow,
+            int tcpSendBuffer,
+            int socksReceiveBufferSize);
 
     public native void a11();
 
     public native boolean a14();
 
+    public native ByteBuffer a17();
+
     // endregion
 
     // region Logger methods
@@ -434,11 +722,43 @@ public class TLJNIBridge
     //TODO: keep name
     public void a12(int priority, String tag, String message)
     {
+        LogProvider logProvider = this.logProvider;
+
         if (logProvider != null)
             getMainThreadDispatcher().dispatch(() -> logProvider.logNativeMessage(priority, tag, message));
     }
 
     public native void a13(TLJNIBridge bridge);
 
+    /**
+     * Batch of native log messages. Arrays are reused by native code, so they must not be referenced after return.
+     */
+    //TODO: keep name
+    public void a15(int[] priorities, String[] tags, String[] messages, int count, int dropped)
+    {
+        LogProvider logProvider = this.logProvider;
+
+        if (dropped > 0)
+            droppedNativeLogMessages.addAndGet(dropped);
+
+        if (logProvider == null)
+            return;
+
+        int[] batchPriorities = Arrays.copyOf(priorities, count);
+        String[] batchTags = Arrays.copyOf(tags, count);
+        String[] batchMessages = Arrays.copyOf(messages, count);
+
+        getMainThreadDispatcher().dispatch(() ->
+        {
+            if (dropped > 0)
+                logProvider.logNativeMessage(Log.WARN, TAG, "Dropped " + dropped + " native log messages.");
+
+            for (int i = 0; i < count; i++)
+                logProvider.logNativeMessage(batchPriorities[i], batchTags[i], batchMessages[i]);
+        });
+    }
+
+    public native void a16(int priority);
+
     // endregion
 }
@@ -0,0 +1,288 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+import com.alloc64.torlib.control.Bytes;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Seeds tor data directory with bundled microdescriptor consensus and microdescriptors,
+ * so the first bootstrap does not have to download whole directory before tor is usable.
+ * <p>
+ * Snapshot is installed only when it is live (valid-until is in the future) and newer than
+ * the consensus already present in data directory. In case the bundle contains "name.sha256" digest files,
+ * snapshot files are verified against them before installation.
+ * <p>
+ * Directory authority signatures are verified by tor itself, when cached consensus is loaded.
+ * Consensus with invalid signatures is discarded by tor and fresh one is downloaded, so invalid seed only loses the speedup.
+ * <p>
+ * Must be called before tor is started, as tor reads cached documents during startup only.
+ */
+public class ConsensusSeed
+{
+    public static final String CONSENSUS_FILE = "cached-microdesc-consensus";
+    public static final String MICRODESCS_FILE = "cached-microdescs";
+
+    private static final String MICRODESCS_JOURNAL_FILE = "cached-microdescs.new";
+    private static final String DIGEST_SUFFIX = ".sha256";
+    private static final String TEMP_SUFFIX = ".seed";
+
+    private static final String NETWORK_STATUS_VERSION = "network-status-version 3 microdesc";
+    private static final String VALID_AFTER = "valid-after ";
+    private static final String FRESH_UNTIL = "fresh-until ";
+    private static final String VALID_UNTIL = "valid-until ";
+    private static final String DIRECTORY_SIGNATURE = "directory-signature ";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public interface Source
+    {
+        /**
+         * @return stream of bundled file, or null if bundle does not contain such file
+         */
+        InputStream open(String name) throws IOException;
+    }
+
+    public enum Result
+    {
+        Installed,
+        NotBundled,
+        AlreadyFresh,
+        Expired,
+        Invalid
+    }
+
+    public static class Header
+    {
+        private final long validAfter;
+        private final long freshUntil;
+        private final long validUntil;
+
+        private Header(long validAfter, long freshUntil, long validUntil)
+        {
+            this.validAfter = validAfter;
+            this.freshUntil = freshUntil;
+            this.validUntil = validUntil;
+        }
+
+        public long getValidAfter()
+        {
+            return validAfter;
+        }
+
+        public long getFreshUntil()
+        {
+            return freshUntil;
+        }
+
+        public long getValidUntil()
+        {
+            return validUntil;
+        }
+
+        public boolean isLive(long now)
+        {
+            return now >= validAfter && now < validUntil;
+        }
+
+        /**
+         * Reads consensus header and checks that document is a signed microdesc consensus.
+         *
+         * @return parsed header or null if file is not a valid microdesc consensus
+         */
+        public static Header parse(File file) throws IOException
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ASCII)))
+            {
+                String line = reader.readLine();
+
+                if (line == null || !line.startsWith(NETWORK_STATUS_VERSION))
+                    return null;
+
+                long validAfter = -1;
+                long freshUntil = -1;
+                long validUntil = -1;
+
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.startsWith(VALID_AFTER))
+                        validAfter = parseTime(line.substring(VALID_AFTER.length()));
+                    else if (line.startsWith(FRESH_UNTIL))
+                        freshUntil = parseTime(line.substring(FRESH_UNTIL.length()));
+                    else if (line.startsWith(VALID_UNTIL))
+                        validUntil = parseTime(line.substring(VALID_UNTIL.length()));
+                    else if (line.startsWith(DIRECTORY_SIGNATURE))
+                    {
+                        if (validAfter < 0 || freshUntil < validAfter || validUntil < freshUntil)
+                            return null;
+
+                        return new Header(validAfter, freshUntil, validUntil);
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        private static long parseTime(String value)
+        {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            try
+            {
+                Date date = format.parse(value.trim());
+                return date.getTime();
+            }
+            catch (ParseException e)
+            {
+                return -1;
+            }
+        }
+    }
+
+    private final Source source;
+
+    public ConsensusSeed(Source source)
+    {
+        this.source = source;
+    }
+
+    public Result installInto(File dataDirectory) throws IOException
+    {
+        return installInto(dataDirectory, System.currentTimeMillis());
+    }
+
+    public Result installInto(File dataDirectory, long now) throws IOException
+    {
+        if (dataDirectory == null || !dataDirectory.exists())
+            throw new IllegalArgumentException("Invalid data directory.");
+
+        File consensusFile = new File(dataDirectory, CONSENSUS_FILE);
+        File microdescsFile = new File(dataDirectory, MICRODESCS_FILE);
+
+        File tempConsensusFile = new File(dataDirectory, CONSENSUS_FILE + TEMP_SUFFIX);
+        File tempMicrodescsFile = new File(dataDirectory, MICRODESCS_FILE + TEMP_SUFFIX);
+
+        try
+        {
+            if (!extract(CONSENSUS_FILE, tempConsensusFile))
+                return Result.NotBundled;
+
+            Header seedHeader = Header.parse(tempConsensusFile);
+
+            if (seedHeader == null)
+                return Result.Invalid;
+
+            if (!seedHeader.isLive(now))
+                return Result.Expired;
+
+            Header currentHeader = consensusFile.exists() ? Header.parse(consensusFile) : null;
+
+            if (currentHeader != null && currentHeader.getValidAfter() >= seedHeader.getValidAfter())
+                return Result.AlreadyFresh;
+
+            if (!extract(MICRODESCS_FILE, tempMicrodescsFile))
+                return Result.Invalid;
+
+            // consensus is renamed as last, so interrupted install leaves old consensus with new microdescriptors,
+            // which tor handles as ordinary cache miss
+            new File(dataDirectory, MICRODESCS_JOURNAL_FILE).delete();
+
+            if (!tempMicrodescsFile.renameTo(microdescsFile) || !tempConsensusFile.renameTo(consensusFile))
+                throw new IOException("Unable to install consensus seed.");
+
+            return Result.Installed;
+        }
+        finally
+        {
+            tempConsensusFile.delete();
+            tempMicrodescsFile.delete();
+        }
+    }
+
+    private boolean extract(String name, File targetFile) throws IOException
+    {
+        InputStream is = open(name);
+
+        if (is == null)
+            return false;
+
+        MessageDigest digest = createDigest();
+
+        try (InputStream in = is; OutputStream os = new DigestOutputStream(new FileOutputStream(targetFile), digest))
+        {
+            IOUtils.copy(in, os);
+        }
+
+        String expectedDigest = readDigest(name);
+
+        return expectedDigest == null || expectedDigest.equalsIgnoreCase(Bytes.hex(digest.digest()));
+    }
+
+    private String readDigest(String name) throws IOException
+    {
+        InputStream is = open(name + DIGEST_SUFFIX);
+
+        if (is == null)
+            return null;
+
+        try (InputStream in = is)
+        {
+            String content = IOUtils.toString(in, ASCII).trim();
+            int idx = content.indexOf(' ');
+
+            // sha256sum output format "digest  filename" is accepted as well
+            return idx < 0 ? content : content.substring(0, idx);
+        }
+    }
+
+    private InputStream open(String name) throws IOException
+    {
+        try
+        {
+            return source.open(name);
+        }
+        catch (FileNotFoundException e)
+        {
+            // AssetManager signals missing asset by exception
+            return null;
+        }
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -18,6 +18,7 @@ public class PdnsdConfig extends ArgConfig
     private File baseDir;
     private InetSocketAddress upstreamDnsAddress;
     private InetSocketAddress dnsServerAddress;
+    private int permCache;
 
     public PdnsdConfig()
     {
@@ -31,7 +32,7 @@ public class PdnsdConfig extends ArgConfig
                                  int pdnsdPort) throws IOException
     {
         String PDNS_CONF = "global {\n" +
-                "\tperm_cache=0;\n" +
+                "\tperm_cache=%d;\n" +
                 "\tcache_dir=\"%s\";\n" +
                 "\tserver_ip = %s;\n" +
                 "\tserver_port = %d;\n" +
@@ -63,13 +64,10 @@ public class PdnsdConfig extends ArgConfig
         if (fPid.exists())
             fPid.delete();
 
-        File cache = new File(baseDir, "pdnsd.cache");
-
-        if (!cache.exists())
-            cache.createNewFile();
-
+        // pdnsd keeps its cache as pdnsd.cache in cache_dir
         String conf = String.format(Locale.US, PDNS_CONF,
-                cache.getCanonicalPath(),
+                permCache,
+                baseDir.getCanonicalPath(),
                 pdnsdHost,
                 pdnsdPort,
                 torDnsHost,
@@ -102,6 +100,19 @@ public class PdnsdConfig extends ArgConfig
         return this;
     }
 
+    /**
+     * Size of cache pdnsd stores to data directory in kilobytes, 0 (default) disables it.
+     * Cache is loaded on start and written only when pdnsd exits.
+     */
+    public PdnsdConfig setPermCache(int permCacheKilobytes)
+    {
+        if (permCacheKilobytes < 0)
+            throw new IllegalArgumentException("permCache must not be negative.");
+
+        this.permCache = permCacheKilobytes;
+        return this;
+    }
+
     @Override
     public String[] asCommands()
     {
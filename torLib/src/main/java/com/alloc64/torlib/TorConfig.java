@@ -1787,6 +1787,8 @@ public class TorConfig extends ArgConfig
     public static final String FASCIST_FIREWALL = "FascistFirewall";
     public static final String SOCKS_PORT = "SOCKSPort";
     public static final String DNS_PORT = "DNSPort";
+    public static final String METRICS_PORT = "MetricsPort";
+    public static final String METRICS_PORT_POLICY = "MetricsPortPolicy";
     public static final String EXIT_RELAY = "ExitRelay";
 
     public static final String GEO_IP_FILE = "GeoIPFile";
@@ -2293,6 +2295,47 @@ public class TorConfig extends ArgConfig
         return setDnsPort(addressString(socketAddress));
     }
 
+    /**
+     * Set metrics port
+     * <p>
+     * If set, open this port to listen for an HTTP GET request to "/metrics". Upon a request, the collected metrics
+     * in the current tor instance are formatted for Prometheus and sent back.
+     * <p>
+     * There is no authentication, access is restricted only by MetricsPortPolicy, which rejects everyone by default.
+     * Exposing the port on other than loopback address leaks information about the tor instance.
+     * <p>
+     * Available since tor 0.4.7, older versions refuse to start with this option.
+     * (Default: None)
+     *
+     * @param value - [address:]port [format]
+     */
+    public TorConfig setMetricsPort(String value)
+    {
+        validate(value);
+        addCommandPrefixed(METRICS_PORT, value);
+        return this;
+    }
+
+    public TorConfig setMetricsPort(InetSocketAddress socketAddress)
+    {
+        return setMetricsPort(addressString(socketAddress));
+    }
+
+    /**
+     * Set an entrance policy for the MetricsPort, to limit who can access it.
+     * The policies have the same form as exit policies, except that port specifiers are ignored.
+     * For multiple entries, this line can be used multiple times. It is a reject all by default policy.
+     * (Default: None)
+     *
+     * @param value - policy,policy,... e.g. "accept 127.0.0.1"
+     */
+    public TorConfig setMetricsPortPolicy(String value)
+    {
+        validate(value);
+        addCommandPrefixed(METRICS_PORT_POLICY, value);
+        return this;
+    }
+
     /**
      * Tells Tor whether to run as an exit relay. If Tor is running as a non-bridge server, and ExitRelay is set to 1,
      * then Tor allows traffic to exit according to the ExitPolicy option (or the default ExitPolicy if none is specified).
@@ -0,0 +1,113 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+/**
+ * Data-plane parameters of tun2socks.
+ * <p>
+ * lwIP buffers are allocated with compile-time sizes (TCP_WND, TCP_SND_BUF), so TCP window and send buffer
+ * can be only lowered at runtime, larger values are clamped. SOCKS receive buffer is allocated per connection
+ * and can be sized freely. {@link #DEFAULT} keeps the compile-time value.
+ * <p>
+ * Lower values save memory per connection on low-end devices, higher values improve bulk throughput.
+ */
+public class Tun2SocksConfig
+{
+    public static final int DEFAULT = 0;
+    public static final int DEFAULT_MTU = 1500;
+
+    private int mtu = DEFAULT_MTU;
+    private int tcpWindow = DEFAULT;
+    private int tcpSendBuffer = DEFAULT;
+    private int socksReceiveBufferSize = DEFAULT;
+
+    /**
+     * Preset for devices with small heap (see ActivityManager.isLowRamDevice).
+     */
+    public static Tun2SocksConfig createLowMemory()
+    {
+        return new Tun2SocksConfig()
+                .setTcpWindow(8 * 1024)
+                .setTcpSendBuffer(8 * 1024)
+                .setSocksReceiveBufferSize(4 * 1024);
+    }
+
+    public int getMtu()
+    {
+        return mtu;
+    }
+
+    public Tun2SocksConfig setMtu(int mtu)
+    {
+        if (mtu < 576 || mtu > 0xFFFF)
+            throw new IllegalArgumentException("Invalid MTU " + mtu);
+
+        this.mtu = mtu;
+        return this;
+    }
+
+    public int getTcpWindow()
+    {
+        return tcpWindow;
+    }
+
+    /**
+     * @param tcpWindow receive window advertised to apps in bytes, clamped to TCP_WND
+     */
+    public Tun2SocksConfig setTcpWindow(int tcpWindow)
+    {
+        this.tcpWindow = checkSize("tcpWindow", tcpWindow);
+        return this;
+    }
+
+    public int getTcpSendBuffer()
+    {
+        return tcpSendBuffer;
+    }
+
+    /**
+     * @param tcpSendBuffer bytes queued towards app per connection, clamped to TCP_SND_BUF
+     */
+    public Tun2SocksConfig setTcpSendBuffer(int tcpSendBuffer)
+    {
+        this.tcpSendBuffer = checkSize("tcpSendBuffer", tcpSendBuffer);
+        return this;
+    }
+
+    public int getSocksReceiveBufferSize()
+    {
+        return socksReceiveBufferSize;
+    }
+
+    /**
+     * @param socksReceiveBufferSize size of per connection buffer for data read from SOCKS server
+     */
+    public Tun2SocksConfig setSocksReceiveBufferSize(int socksReceiveBufferSize)
+    {
+        this.socksReceiveBufferSize = checkSize("socksReceiveBufferSize", socksReceiveBufferSize);
+        return this;
+    }
+
+    private static int checkSize(String name, int value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Tun2SocksConfig{" +
+                "mtu=" + mtu +
+                ", tcpWindow=" + tcpWindow +
+                ", tcpSendBuffer=" + tcpSendBuffer +
+                ", socksReceiveBufferSize=" + socksReceiveBufferSize +
+                '}';
+    }
+}
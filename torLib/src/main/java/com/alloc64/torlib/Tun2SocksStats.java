@@ -0,0 +1,222 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Live view of tun2socks statistics block (see tun2socks_stats.h), which is updated by the tun2socks reactor thread.
+ * <p>
+ * Reads go directly to native memory, so statistics can be polled at any rate without JNI calls.
+ * On 32bit platforms 64bit reads of the buffer are not atomic, so every field is read under the seqlock of the block
+ * and read again when it was updated meanwhile. On 64bit platforms the sequence never changes, so one read is enough.
+ * Values are read one by one, so values read by separate getters are not an atomic snapshot.
+ * Counters are reset when tun2socks is started, {@link #getGeneration()} changes then.
+ */
+public class Tun2SocksStats implements MetricsCollector
+{
+    public static final int VERSION = 2;
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_GENERATION = 8;
+    private static final int OFFSET_DEVICE_PACKETS_IN = 16;
+    private static final int OFFSET_DEVICE_BYTES_IN = 24;
+    private static final int OFFSET_DEVICE_PACKETS_OUT = 32;
+    private static final int OFFSET_DEVICE_BYTES_OUT = 40;
+    private static final int OFFSET_DEVICE_PACKETS_DROPPED = 48;
+    private static final int OFFSET_TCP_CLIENTS_ACTIVE = 56;
+    private static final int OFFSET_TCP_CLIENTS_TOTAL = 64;
+    private static final int OFFSET_SOCKS_CONNECTS = 72;
+    private static final int OFFSET_SOCKS_FAILURES = 80;
+    private static final int OFFSET_UDPGW_PACKETS_OUT = 88;
+    private static final int OFFSET_UDPGW_PACKETS_IN = 96;
+    private static final int OFFSET_DNS_PACKETS = 104;
+    private static final int OFFSET_PBUF_ALLOC_FAILURES = 112;
+    private static final int OFFSET_TCP_TO_SOCKS_QUEUED_BYTES = 120;
+    private static final int OFFSET_SOCKS_TO_TCP_QUEUED_BYTES = 128;
+    private static final int OFFSET_SEQUENCE = 136;
+
+    private static final int SIZE = 144;
+
+    /**
+     * Volatile reads of this field order buffer reads around them, ByteBuffer reads alone may be reordered.
+     */
+    private static volatile int fence;
+
+    private final ByteBuffer buffer;
+
+    public Tun2SocksStats(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() < SIZE)
+            throw new IllegalArgumentException("Invalid stats buffer.");
+
+        this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return layout version, 0 until tun2socks is started for the first time
+     */
+    public long getVersion()
+    {
+        return get(OFFSET_VERSION);
+    }
+
+    public long getGeneration()
+    {
+        return get(OFFSET_GENERATION);
+    }
+
+    public long getDevicePacketsIn()
+    {
+        return get(OFFSET_DEVICE_PACKETS_IN);
+    }
+
+    public long getDeviceBytesIn()
+    {
+        return get(OFFSET_DEVICE_BYTES_IN);
+    }
+
+    public long getDevicePacketsOut()
+    {
+        return get(OFFSET_DEVICE_PACKETS_OUT);
+    }
+
+    public long getDeviceBytesOut()
+    {
+        return get(OFFSET_DEVICE_BYTES_OUT);
+    }
+
+    public long getDevicePacketsDropped()
+    {
+        return get(OFFSET_DEVICE_PACKETS_DROPPED);
+    }
+
+    public long getTcpClientsActive()
+    {
+        return get(OFFSET_TCP_CLIENTS_ACTIVE);
+    }
+
+    public long getTcpClientsTotal()
+    {
+        return get(OFFSET_TCP_CLIENTS_TOTAL);
+    }
+
+    public long getSocksConnects()
+    {
+        return get(OFFSET_SOCKS_CONNECTS);
+    }
+
+    public long getSocksFailures()
+    {
+        return get(OFFSET_SOCKS_FAILURES);
+    }
+
+    public long getUdpgwPacketsOut()
+    {
+        return get(OFFSET_UDPGW_PACKETS_OUT);
+    }
+
+    public long getUdpgwPacketsIn()
+    {
+        return get(OFFSET_UDPGW_PACKETS_IN);
+    }
+
+    public long getDnsPackets()
+    {
+        return get(OFFSET_DNS_PACKETS);
+    }
+
+    public long getPbufAllocFailures()
+    {
+        return get(OFFSET_PBUF_ALLOC_FAILURES);
+    }
+
+    /**
+     * @return bytes received from device, waiting to be sent to SOCKS server (updated every TCP timer tick)
+     */
+    public long getTcpToSocksQueuedBytes()
+    {
+        return get(OFFSET_TCP_TO_SOCKS_QUEUED_BYTES);
+    }
+
+    /**
+     * @return bytes received from SOCKS server, waiting to be sent to device (updated every TCP timer tick)
+     */
+    public long getSocksToTcpQueuedBytes()
+    {
+        return get(OFFSET_SOCKS_TO_TCP_QUEUED_BYTES);
+    }
+
+    /**
+     * Writes nothing until tun2socks is started. Counters restart from zero with every start, as counters of restarted process do.
+     */
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        if (getVersion() == 0)
+            return;
+
+        writer.counter("torlib_tun_packets_total", "Packets read from and written to VPN interface.", getDevicePacketsIn(), "direction", "in");
+        writer.counter("torlib_tun_packets_total", "Packets read from and written to VPN interface.", getDevicePacketsOut(), "direction", "out");
+        writer.counter("torlib_tun_bytes_total", "Bytes read from and written to VPN interface.", getDeviceBytesIn(), "direction", "in");
+        writer.counter("torlib_tun_bytes_total", "Bytes read from and written to VPN interface.", getDeviceBytesOut(), "direction", "out");
+        writer.counter("torlib_tun_packets_dropped_total", "Packets dropped by tun2socks.", getDevicePacketsDropped());
+        writer.gauge("torlib_tun_tcp_clients", "Active TCP connections of tun2socks.", getTcpClientsActive());
+        writer.counter("torlib_tun_tcp_clients_total", "TCP connections accepted by tun2socks.", getTcpClientsTotal());
+        writer.counter("torlib_tun_socks_connects_total", "SOCKS connections of tun2socks.", getSocksConnects());
+        writer.counter("torlib_tun_socks_failures_total", "Failed SOCKS connections of tun2socks.", getSocksFailures());
+        writer.counter("torlib_tun_udpgw_packets_total", "UDP packets relayed through udpgw.", getUdpgwPacketsOut(), "direction", "out");
+        writer.counter("torlib_tun_udpgw_packets_total", "UDP packets relayed through udpgw.", getUdpgwPacketsIn(), "direction", "in");
+        writer.counter("torlib_tun_dns_packets_total", "DNS packets relayed by tun2socks.", getDnsPackets());
+        writer.counter("torlib_tun_pbuf_alloc_failures_total", "Failed lwIP buffer allocations.", getPbufAllocFailures());
+        writer.gauge("torlib_tun_queued_bytes", "Bytes waiting to be relayed.", getTcpToSocksQueuedBytes(), "direction", "tun_to_socks");
+        writer.gauge("torlib_tun_queued_bytes", "Bytes waiting to be relayed.", getSocksToTcpQueuedBytes(), "direction", "socks_to_tun");
+    }
+
+    /**
+     * Seqlock read, retried while reactor thread updates the block. Updates are single stores, so retries are rare and short.
+     */
+    private long get(int offset)
+    {
+        while (true)
+        {
+            int sequence = buffer.getInt(OFFSET_SEQUENCE);
+            int ignored = fence;
+
+            long value = buffer.getLong(offset);
+            ignored = fence;
+
+            if ((sequence & 1) == 0 && buffer.getInt(OFFSET_SEQUENCE) == sequence)
+                return value;
+
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Tun2SocksStats{" +
+                "generation=" + getGeneration() +
+                ", packetsIn=" + getDevicePacketsIn() +
+                ", bytesIn=" + getDeviceBytesIn() +
+                ", packetsOut=" + getDevicePacketsOut() +
+                ", bytesOut=" + getDeviceBytesOut() +
+                ", dropped=" + getDevicePacketsDropped() +
+                ", tcpClients=" + getTcpClientsActive() + "/" + getTcpClientsTotal() +
+                ", socks=" + getSocksConnects() + "/" + getSocksFailures() +
+                ", udpgw=" + getUdpgwPacketsOut() + "/" + getUdpgwPacketsIn() +
+                ", dns=" + getDnsPackets() +
+                ", pbufFailures=" + getPbufAllocFailures() +
+                ", queued=" + getTcpToSocksQueuedBytes() + "/" + getSocksToTcpQueuedBytes() +
+                '}';
+    }
+}
@@ -0,0 +1,457 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control;
+
+import com.alloc64.torlib.control.event.AddrMapEvent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Mirror of tor address mappings (address to host name), kept in sync from ADDRMAP events
+ * and answers of {@link com.alloc64.torlib.dns.DnsForwarder}.
+ * <p>
+ * Answers tor gives for DNSPort queries, RESOLVE commands and streams are mapped back, so connection to an address
+ * can be attributed to the host name without control port round trip, e.g. for VPN flows, which carry only addresses.
+ * <p>
+ * Addresses are stored in fixed size open-addressing tables with linear probing, packed to one (IPv4) or two (IPv6) longs,
+ * so footprint is bounded by {@link #AddressMap(int)} and lookups do not allocate. Expired entries are dropped on access
+ * and by {@link #purgeExpired()}; when table is full, an arbitrary entry is evicted.
+ */
+public class AddressMap
+{
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    private static final long DEFAULT_TTL = 30 * 60 * 1000;
+    private static final int NEVER = Integer.MAX_VALUE;
+
+    /**
+     * Linear probing table keyed by 1 or 2 longs, deletion by backward shift, so there are no tombstones.
+     */
+    private static class Table
+    {
+        private final int mask;
+        private final int maxSize;
+        private final boolean wide;
+        private final long[] keys;
+        private final boolean[] used;
+        private final String[] hosts;
+        private final int[] expires;
+
+        private int size;
+        private int evictionCursor;
+
+        private Table(int maxSize, boolean wide)
+        {
+            int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) * 2;
+
+            this.mask = capacity - 1;
+            this.maxSize = maxSize;
+            this.wide = wide;
+            this.keys = new long[wide ? capacity * 2 : capacity];
+            this.used = new boolean[capacity];
+            this.hosts = new String[capacity];
+            this.expires = new int[capacity];
+        }
+
+        private int find(long hi, long lo)
+        {
+            for (int i = hash(hi, lo) & mask; used[i]; i = (i + 1) & mask)
+                if (matches(i, hi, lo))
+                    return i;
+
+            return -1;
+        }
+
+        /**
+         * @return true if an entry was evicted to make space
+         */
+        private boolean put(long hi, long lo, String host, int expiresAt)
+        {
+            int i = hash(hi, lo) & mask;
+
+            for (; used[i]; i = (i + 1) & mask)
+            {
+                if (matches(i, hi, lo))
+                {
+                    hosts[i] = host;
+                    expires[i] = expiresAt;
+                    return false;
+                }
+            }
+
+            boolean evicted = false;
+
+            if (size >= maxSize)
+            {
+                evictOne();
+                evicted = true;
+
+                // backward shift may have moved entries, probe again
+                i = hash(hi, lo) & mask;
+
+                while (used[i])
+                    i = (i + 1) & mask;
+            }
+
+            used[i] = true;
+            hosts[i] = host;
+            expires[i] = expiresAt;
+
+            if (wide)
+            {
+                keys[i * 2] = hi;
+                keys[i * 2 + 1] = lo;
+            }
+            else
+            {
+                keys[i] = lo;
+            }
+
+            size++;
+
+            return evicted;
+        }
+
+        private void remove(int i)
+        {
+            size--;
+
+            int hole = i;
+
+            for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask)
+            {
+                int home = hash(keyHi(j), keyLo(j)) & mask;
+
+                // entry at j may move to hole only if hole lies on its probe path
+                if (((j - home) & mask) >= ((j - hole) & mask))
+                {
+                    move(j, hole);
+                    hole = j;
+                }
+            }
+
+            used[hole] = false;
+            hosts[hole] = null;
+        }
+
+        private void evictOne()
+        {
+            while (!used[evictionCursor])
+                evictionCursor = (evictionCursor + 1) & mask;
+
+            remove(evictionCursor);
+            evictionCursor = (evictionCursor + 1) & mask;
+        }
+
+        private int purgeExpired(int now)
+        {
+            int purged = 0;
+            int i = 0;
+
+            while (i <= mask)
+            {
+                // removal shifts next entry into this slot, so it is checked again
+                if (used[i] && expires[i] <= now)
+                {
+                    remove(i);
+                    purged++;
+                }
+                else
+                {
+                    i++;
+                }
+            }
+
+            return purged;
+        }
+
+        private void clear()
+        {
+            Arrays.fill(used, false);
+            Arrays.fill(hosts, null);
+            size = 0;
+        }
+
+        private void move(int from, int to)
+        {
+            used[to] = true;
+            hosts[to] = hosts[from];
+            expires[to] = expires[from];
+
+            if (wide)
+            {
+                keys[to * 2] = keys[from * 2];
+                keys[to * 2 + 1] = keys[from * 2 + 1];
+            }
+            else
+            {
+                keys[to] = keys[from];
+            }
+        }
+
+        private boolean matches(int i, long hi, long lo)
+        {
+            return wide ? keys[i * 2] == hi && keys[i * 2 + 1] == lo : keys[i] == lo;
+        }
+
+        private long keyHi(int i)
+        {
+            return wide ? keys[i * 2] : 0;
+        }
+
+        private long keyLo(int i)
+        {
+            return wide ? keys[i * 2 + 1] : keys[i];
+        }
+
+        private static int hash(long hi, long lo)
+        {
+            long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private final Table ipv4;
+    private final Table ipv6;
+    private final long baseTime = System.currentTimeMillis();
+
+    private long defaultTtl = DEFAULT_TTL;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public AddressMap()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries maximum number of entries per address family
+     */
+    public AddressMap(int maxEntries)
+    {
+        this.ipv4 = new Table(maxEntries, false);
+        this.ipv6 = new Table(maxEntries, true);
+    }
+
+    /**
+     * TTL of mappings without expiry in the event.
+     */
+    public synchronized AddressMap setDefaultTtl(long defaultTtlMillis)
+    {
+        this.defaultTtl = defaultTtlMillis;
+        return this;
+    }
+
+    /**
+     * Feeds ADDRMAP events, other events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            AddrMapEvent event = AddrMapEvent.parse(reply);
+
+            if (event != null)
+                onAddrMapEvent(event);
+        }
+    }
+
+    public void onAddrMapEvent(AddrMapEvent event)
+    {
+        String host = event.getAddress();
+        String newAddress = event.getNewAddress();
+
+        if (host == null || newAddress == null || isAddressLiteral(host) || !isAddressLiteral(newAddress))
+            return;
+
+        byte[] address;
+
+        try
+        {
+            address = InetAddress.getByName(newAddress).getAddress();
+        }
+        catch (UnknownHostException e)
+        {
+            return;
+        }
+
+        long expires = event.getExpires();
+
+        if (expires == 0)
+            expires = System.currentTimeMillis() + defaultTtl;
+
+        put(address, host.toLowerCase(Locale.US), expires);
+    }
+
+    /**
+     * @param expires expiry as epoch millis, {@link Long#MAX_VALUE} for mapping which never expires
+     */
+    public synchronized void put(byte[] address, String host, long expires)
+    {
+        int expiresAt = toRelativeSeconds(expires);
+        boolean evicted;
+
+        if (address.length == 4)
+            evicted = ipv4.put(0, packIPv4(address), host, expiresAt);
+        else if (address.length == 16)
+            evicted = ipv6.put(packLong(address, 0), packLong(address, 8), host, expiresAt);
+        else
+            throw new IllegalArgumentException("Invalid address length " + address.length);
+
+        if (evicted)
+            evictions++;
+    }
+
+    /**
+     * @return host name mapped to address, null if not known or expired
+     */
+    public String lookup(InetAddress address)
+    {
+        return lookup(address.getAddress());
+    }
+
+    public synchronized String lookup(byte[] address)
+    {
+        Table table;
+        long hi;
+        long lo;
+
+        if (address.length == 4)
+        {
+            table = ipv4;
+            hi = 0;
+            lo = packIPv4(address);
+        }
+        else if (address.length == 16)
+        {
+            table = ipv6;
+            hi = packLong(address, 0);
+            lo = packLong(address, 8);
+        }
+        else
+        {
+            return null;
+        }
+
+        int i = table.find(hi, lo);
+
+        if (i >= 0 && table.expires[i] <= now())
+        {
+            table.remove(i);
+            i = -1;
+        }
+
+        if (i < 0)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return table.hosts[i];
+    }
+
+    /**
+     * Drops expired mappings, lookups do this lazily for the looked up address.
+     *
+     * @return number of dropped mappings
+     */
+    public synchronized int purgeExpired()
+    {
+        int now = now();
+        return ipv4.purgeExpired(now) + ipv6.purgeExpired(now);
+    }
+
+    public synchronized void clear()
+    {
+        ipv4.clear();
+        ipv6.clear();
+    }
+
+    public synchronized int size()
+    {
+        return ipv4.size + ipv6.size;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return number of mappings evicted before their expiry because table was full
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(Locale.US, "ipv4=%d ipv6=%d hits=%d misses=%d evictions=%d", ipv4.size, ipv6.size, hits, misses, evictions);
+    }
+
+    private int now()
+    {
+        return toRelativeSeconds(System.currentTimeMillis());
+    }
+
+    private int toRelativeSeconds(long time)
+    {
+        if (time == Long.MAX_VALUE)
+            return NEVER;
+
+        long seconds = (time - baseTime) / 1000;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(NEVER - 1, seconds));
+    }
+
+    private static long packIPv4(byte[] address)
+    {
+        return ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFFL) << 16) | ((address[2] & 0xFFL) << 8) | (address[3] & 0xFFL);
+    }
+
+    private static long packLong(byte[] address, int offset)
+    {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (address[offset + i] & 0xFFL);
+
+        return value;
+    }
+
+    private static boolean isAddressLiteral(String address)
+    {
+        if (address.isEmpty())
+            return false;
+
+        if (address.indexOf(':') >= 0)
+            return true;
+
+        for (int i = 0; i < address.length(); i++)
+        {
+            char c = address.charAt(i);
+
+            if (c != '.' && (c < '0' || c > '9'))
+                return false;
+        }
+
+        return true;
+    }
+}
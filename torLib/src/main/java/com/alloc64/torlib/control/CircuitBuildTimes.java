@@ -0,0 +1,471 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control;
+
+import com.alloc64.torlib.control.event.BuildTimeoutSetEvent;
+import com.alloc64.torlib.control.event.CircEvent;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Circuit build time analytics: histogram of observed LAUNCHED to BUILT durations from CIRC events,
+ * next to build timeouts tor computed and reported by BUILDTIMEOUT_SET events.
+ * <p>
+ * Histogram uses fixed {@link #BIN_WIDTH} ms bins like tor does, durations over {@link #MAX_BUILD_TIME} ms
+ * fall into the last bin. All circuits are counted, as tor counts all of them for its timeout.
+ * Histogram, timeout count and recent BUILDTIMEOUT_SET events can be saved and loaded, so network
+ * conditions can be compared across restarts.
+ * <p>
+ * Event socket must subscribe to CIRC and BUILDTIMEOUT_SET and pass events to {@link #onEvents(List)}.
+ */
+public class CircuitBuildTimes implements MetricsCollector
+{
+    public static final int BIN_WIDTH = 10;
+    public static final int MAX_BUILD_TIME = 60 * 1000;
+    public static final int BIN_COUNT = MAX_BUILD_TIME / BIN_WIDTH + 1;
+
+    private static final int MAX_TRACKED_CIRCUITS = 1024;
+    private static final int[] EXPORTED_BOUNDS = {100, 250, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000, 20000, 30000, 60000};
+    private static final int MAX_TIMEOUT_HISTORY = 32;
+
+    private static final int MAGIC = 0x54434254;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * BUILDTIMEOUT_SET event with time it was received.
+     */
+    public static class TimeoutSample
+    {
+        private final long time;
+        private final BuildTimeoutSetEvent event;
+
+        private TimeoutSample(long time, BuildTimeoutSetEvent event)
+        {
+            this.time = time;
+            this.event = event;
+        }
+
+        /**
+         * @return wall-clock time the event was received
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public BuildTimeoutSetEvent getEvent()
+        {
+            return event;
+        }
+
+        @Override
+        public String toString()
+        {
+            return time + " " + event;
+        }
+    }
+
+    private final long[] bins = new long[BIN_COUNT];
+    private final Map<String, Long> launched = new HashMap<>();
+    private final ArrayDeque<TimeoutSample> timeoutHistory = new ArrayDeque<>();
+
+    private long count;
+    private long sum;
+    private long timeouts;
+
+    /**
+     * Feeds CIRC and BUILDTIMEOUT_SET events, other events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            CircEvent circEvent = CircEvent.parse(reply);
+
+            if (circEvent != null)
+            {
+                onCircEvent(circEvent);
+                continue;
+            }
+
+            BuildTimeoutSetEvent buildTimeoutEvent = BuildTimeoutSetEvent.parse(reply);
+
+            if (buildTimeoutEvent != null)
+                onBuildTimeoutSetEvent(buildTimeoutEvent);
+        }
+    }
+
+    public synchronized void onCircEvent(CircEvent event)
+    {
+        String circuitId = event.getCircuitId();
+
+        switch (event.getStatus())
+        {
+            case LAUNCHED:
+                if (launched.size() >= MAX_TRACKED_CIRCUITS)
+                    return;
+
+                launched.put(circuitId, System.nanoTime());
+                break;
+
+            case BUILT:
+                Long launchedAt = launched.remove(circuitId);
+
+                if (launchedAt != null)
+                    record((System.nanoTime() - launchedAt) / 1000000);
+
+                break;
+
+            case FAILED:
+                if (launched.remove(circuitId) != null && "TIMEOUT".equals(event.getReason()))
+                    timeouts++;
+
+                break;
+
+            case CLOSED:
+                launched.remove(circuitId);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    public synchronized void onBuildTimeoutSetEvent(BuildTimeoutSetEvent event)
+    {
+        timeoutHistory.addLast(new TimeoutSample(System.currentTimeMillis(), event));
+
+        while (timeoutHistory.size() > MAX_TIMEOUT_HISTORY)
+            timeoutHistory.removeFirst();
+    }
+
+    /**
+     * @param buildTime build time in millis
+     */
+    public synchronized void record(long buildTime)
+    {
+        bins[(int) Math.max(0, Math.min(BIN_COUNT - 1, buildTime / BIN_WIDTH))]++;
+        count++;
+        sum += Math.max(0, buildTime);
+    }
+
+    /**
+     * @param percentile percentile in range 0 - 100
+     * @return upper bound of bin containing given percentile in millis, 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long accumulated = 0;
+
+        for (int i = 0; i < BIN_COUNT; i++)
+        {
+            accumulated += bins[i];
+
+            if (accumulated >= target)
+                return (long) (i + 1) * BIN_WIDTH;
+        }
+
+        return MAX_BUILD_TIME;
+    }
+
+    /**
+     * @return observed build times per {@link #BIN_WIDTH} ms bin
+     */
+    public synchronized long[] getBins()
+    {
+        return bins.clone();
+    }
+
+    /**
+     * @return number of built circuits
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return circuits which failed with TIMEOUT
+     */
+    public synchronized long getTimeouts()
+    {
+        return timeouts;
+    }
+
+    /**
+     * @return rate of timed out circuits among built and timed out ones
+     */
+    public synchronized double getTimeoutRate()
+    {
+        long total = count + timeouts;
+        return total == 0 ? 0 : (double) timeouts / total;
+    }
+
+    /**
+     * @return last BUILDTIMEOUT_SET event, null if none was received
+     */
+    public synchronized TimeoutSample getBuildTimeout()
+    {
+        return timeoutHistory.peekLast();
+    }
+
+    /**
+     * @return last {@value #MAX_TIMEOUT_HISTORY} BUILDTIMEOUT_SET events, oldest first
+     */
+    public synchronized List<TimeoutSample> getBuildTimeoutHistory()
+    {
+        return new ArrayList<>(timeoutHistory);
+    }
+
+    /**
+     * Forgets circuits in progress, e.g. when tor network was disabled. Recorded times are kept.
+     */
+    public synchronized void clearCircuits()
+    {
+        launched.clear();
+    }
+
+    public synchronized void reset()
+    {
+        for (int i = 0; i < BIN_COUNT; i++)
+            bins[i] = 0;
+
+        launched.clear();
+        timeoutHistory.clear();
+        count = 0;
+        sum = 0;
+        timeouts = 0;
+    }
+
+    /**
+     * Writes histogram, timeout count and timeout history, file is replaced atomically.
+     */
+    public void save(File file) throws IOException
+    {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+
+        try
+        {
+            CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), new CRC32());
+
+            try (DataOutputStream os = new DataOutputStream(cos))
+            {
+                synchronized (this)
+                {
+                    os.writeInt(MAGIC);
+                    os.writeByte(VERSION);
+                    os.writeShort(BIN_WIDTH);
+                    os.writeLong(count);
+                    os.writeLong(sum);
+                    os.writeLong(timeouts);
+
+                    int used = 0;
+
+                    for (long bin : bins)
+                        if (bin != 0)
+                            used++;
+
+                    // bins are sparse, only used ones are written
+                    os.writeInt(used);
+
+                    for (int i = 0; i < BIN_COUNT; i++)
+                    {
+                        if (bins[i] == 0)
+                            continue;
+
+                        os.writeShort(i);
+                        os.writeLong(bins[i]);
+                    }
+
+                    os.writeInt(timeoutHistory.size());
+
+                    for (TimeoutSample sample : timeoutHistory)
+                    {
+                        BuildTimeoutSetEvent e = sample.event;
+
+                        os.writeLong(sample.time);
+                        os.writeByte(e.getType().ordinal());
+                        os.writeInt(e.getTotalTimes());
+                        os.writeLong(e.getTimeoutMs());
+                        os.writeLong(e.getXm());
+                        os.writeDouble(e.getAlpha());
+                        os.writeDouble(e.getCutoffQuantile());
+                        os.writeDouble(e.getTimeoutRate());
+                        os.writeLong(e.getCloseMs());
+                        os.writeDouble(e.getCloseRate());
+                    }
+                }
+
+                os.writeLong(cos.getChecksum().getValue());
+            }
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("Unable to replace " + file);
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Adds saved histogram and timeout count to current ones, saved timeout history is prepended.
+     *
+     * @return false if there is no saved file
+     * @throws IOException if file is corrupted, nothing is loaded then
+     */
+    public boolean load(File file) throws IOException
+    {
+        if (!file.exists())
+            return false;
+
+        CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+
+        try (DataInputStream is = new DataInputStream(cis))
+        {
+            if (is.readInt() != MAGIC || is.readUnsignedByte() != VERSION || is.readUnsignedShort() != BIN_WIDTH)
+                throw new IOException("Unsupported build times file " + file);
+
+            long count = is.readLong();
+            long sum = is.readLong();
+            long timeouts = is.readLong();
+
+            long[] bins = new long[BIN_COUNT];
+            int used = is.readInt();
+
+            if (used < 0 || used > BIN_COUNT)
+                throw new IOException("Corrupted build times file " + file);
+
+            for (int i = 0; i < used; i++)
+            {
+                int index = is.readUnsignedShort();
+
+                if (index >= BIN_COUNT)
+                    throw new IOException("Corrupted build times file " + file);
+
+                bins[index] = is.readLong();
+            }
+
+            int historySize = is.readInt();
+
+            if (historySize < 0 || historySize > MAX_TIMEOUT_HISTORY)
+                throw new IOException("Corrupted build times file " + file);
+
+            List<TimeoutSample> history = new ArrayList<>(historySize);
+            BuildTimeoutSetEvent.Type[] types = BuildTimeoutSetEvent.Type.values();
+
+            for (int i = 0; i < historySize; i++)
+            {
+                long time = is.readLong();
+                int type = is.readUnsignedByte();
+
+                history.add(new TimeoutSample(time, new BuildTimeoutSetEvent(
+                        type < types.length ? types[type] : BuildTimeoutSetEvent.Type.UNKNOWN,
+                        is.readInt(),
+                        is.readLong(),
+                        is.readLong(),
+                        is.readDouble(),
+                        is.readDouble(),
+                        is.readDouble(),
+                        is.readLong(),
+                        is.readDouble())));
+            }
+
+            long checksum = cis.getChecksum().getValue();
+
+            if (is.readLong() != checksum)
+                throw new IOException("Corrupted build times file " + file);
+
+            synchronized (this)
+            {
+                for (int i = 0; i < BIN_COUNT; i++)
+                    this.bins[i] += bins[i];
+
+                this.count += count;
+                this.sum += sum;
+                this.timeouts += timeouts;
+
+                for (int i = history.size() - 1; i >= 0 && timeoutHistory.size() < MAX_TIMEOUT_HISTORY; i--)
+                    timeoutHistory.addFirst(history.get(i));
+            }
+
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void collect(MetricsWriter writer)
+    {
+        double[] upperBounds = new double[EXPORTED_BOUNDS.length];
+        long[] cumulativeCounts = new long[EXPORTED_BOUNDS.length];
+        long accumulated = 0;
+        int bin = 0;
+
+        // bin i holds times from i * BIN_WIDTH to (i + 1) * BIN_WIDTH
+        for (int i = 0; i < EXPORTED_BOUNDS.length; i++)
+        {
+            for (; bin < BIN_COUNT && (bin + 1) * BIN_WIDTH <= EXPORTED_BOUNDS[i]; bin++)
+                accumulated += bins[bin];
+
+            upperBounds[i] = EXPORTED_BOUNDS[i] / 1000.0;
+            cumulativeCounts[i] = accumulated;
+        }
+
+        writer.histogram("torlib_circuit_build_seconds", "Build time of all circuits, LAUNCHED to BUILT.", upperBounds, cumulativeCounts, count, sum / 1000.0);
+        writer.counter("torlib_circuit_build_timeouts_total", "Circuits which failed with TIMEOUT.", timeouts);
+
+        TimeoutSample timeout = timeoutHistory.peekLast();
+
+        if (timeout == null)
+            return;
+
+        writer.gauge("torlib_circuit_build_timeout_seconds", "Circuit build timeout computed by tor.", timeout.event.getTimeoutMs() / 1000.0);
+        writer.gauge("torlib_circuit_build_timeout_rate", "Rate of timed out circuits reported by tor.", timeout.event.getTimeoutRate());
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        TimeoutSample timeout = timeoutHistory.peekLast();
+
+        return String.format(Locale.US, "circuits=%d timeouts=%d p50=%dms p80=%dms p95=%dms timeout=%s",
+                count,
+                timeouts,
+                getPercentile(50),
+                getPercentile(80),
+                getPercentile(95),
+                timeout != null ? timeout.event.getTimeoutMs() + "ms" : "-");
+    }
+}
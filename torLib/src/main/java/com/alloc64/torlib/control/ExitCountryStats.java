@@ -0,0 +1,454 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control;
+
+import com.alloc64.torlib.control.event.CircEvent;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Circuit build statistics per exit country, learned from CIRC events.
+ * <p>
+ * Tor does not report country of exit relay, so circuits are attributed to the country targeted by ExitNodes
+ * when they were launched, which must be set by {@link #setExitCountry(String)} together with ExitNodes.
+ * Only general purpose circuits are counted, internal and one hop circuits do not use ExitNodes.
+ * Event socket must subscribe to CIRC and pass events to {@link #onEvents(List)}.
+ */
+public class ExitCountryStats implements MetricsCollector
+{
+    /**
+     * Country of circuits built without ExitNodes.
+     */
+    public static final String ANY_COUNTRY = "";
+
+    private static final int MAX_TRACKED_CIRCUITS = 1024;
+    private static final double CONFIDENCE_Z = 1.96;
+
+    public interface Listener
+    {
+        /**
+         * Called on event thread, must not block.
+         */
+        void onCircuitBuilt(String country, long buildTimeMillis);
+
+        void onCircuitFailed(String country, String reason);
+    }
+
+    /**
+     * Snapshot of statistics of one country.
+     */
+    public static class CountryStats
+    {
+        private final String country;
+        private final long launched;
+        private final long built;
+        private final long failed;
+        private final int openCircuits;
+        private final long buildTimeP50;
+        private final long buildTimeP90;
+        private final long buildTimeP99;
+        private final Map<String, Long> failureReasons;
+
+        private CountryStats(Counters counters)
+        {
+            this.country = counters.country;
+            this.launched = counters.launched;
+            this.built = counters.built;
+            this.failed = counters.failed;
+            this.openCircuits = counters.openCircuits;
+            this.buildTimeP50 = counters.buildTime.getValueAtPercentile(50);
+            this.buildTimeP90 = counters.buildTime.getValueAtPercentile(90);
+            this.buildTimeP99 = counters.buildTime.getValueAtPercentile(99);
+            this.failureReasons = Collections.unmodifiableMap(new TreeMap<>(counters.failureReasons));
+        }
+
+        /**
+         * @return lower-cased ISO country code, {@link #ANY_COUNTRY} for circuits without ExitNodes
+         */
+        public String getCountry()
+        {
+            return country;
+        }
+
+        public long getLaunched()
+        {
+            return launched;
+        }
+
+        public long getBuilt()
+        {
+            return built;
+        }
+
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        /**
+         * @return built circuits, which are not closed yet
+         */
+        public int getOpenCircuits()
+        {
+            return openCircuits;
+        }
+
+        public double getSuccessRate()
+        {
+            long finished = built + failed;
+            return finished > 0 ? (double) built / finished : 0;
+        }
+
+        /**
+         * Lower bound of 95% Wilson score interval of success rate, so countries with few circuits
+         * do not outrank countries with long record.
+         */
+        public double getSuccessRateLowerBound()
+        {
+            long n = built + failed;
+
+            if (n == 0)
+                return 0;
+
+            double p = (double) built / n;
+            double z2 = CONFIDENCE_Z * CONFIDENCE_Z;
+
+            return (p + z2 / (2 * n) - CONFIDENCE_Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n))) / (1 + z2 / n);
+        }
+
+        /**
+         * @param percentile 50, 90 or 99
+         * @return build time in millis, 0 if no circuit was built
+         */
+        public long getBuildTime(int percentile)
+        {
+            if (percentile <= 50)
+                return buildTimeP50;
+
+            return percentile <= 90 ? buildTimeP90 : buildTimeP99;
+        }
+
+        /**
+         * @return count of failed circuits by REASON (and REMOTE_REASON, separated by colon)
+         */
+        public Map<String, Long> getFailureReasons()
+        {
+            return failureReasons;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s: launched=%d built=%d failed=%d open=%d success=%.2f build p50=%dms p90=%dms p99=%dms reasons=%s",
+                    country.isEmpty() ? "<any>" : country,
+                    launched,
+                    built,
+                    failed,
+                    openCircuits,
+                    getSuccessRate(),
+                    buildTimeP50,
+                    buildTimeP90,
+                    buildTimeP99,
+                    failureReasons);
+        }
+    }
+
+    private static class Counters
+    {
+        private final String country;
+        private final Histogram buildTime = new Histogram();
+        private final Map<String, Long> failureReasons = new HashMap<>();
+
+        private long launched;
+        private long built;
+        private long failed;
+        private int openCircuits;
+
+        private Counters(String country)
+        {
+            this.country = country;
+        }
+    }
+
+    private static class Circuit
+    {
+        private final Counters counters;
+        private final long launchedAt;
+        private boolean built;
+
+        private Circuit(Counters counters, long launchedAt)
+        {
+            this.counters = counters;
+            this.launchedAt = launchedAt;
+        }
+    }
+
+    private final Map<String, Counters> countries = new HashMap<>();
+    private final Map<String, Circuit> circuits = new LinkedHashMap<String, Circuit>()
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Circuit> eldest)
+        {
+            if (size() <= MAX_TRACKED_CIRCUITS)
+                return false;
+
+            if (eldest.getValue().built)
+                eldest.getValue().counters.openCircuits--;
+
+            return true;
+        }
+    };
+
+    private String exitCountry = ANY_COUNTRY;
+    private volatile Listener listener;
+
+    /**
+     * Country targeted by ExitNodes, circuits launched from now on are attributed to it.
+     *
+     * @param country ISO country code, null or empty if ExitNodes is not set
+     */
+    public synchronized ExitCountryStats setExitCountry(String country)
+    {
+        this.exitCountry = country != null ? country.toLowerCase(Locale.US) : ANY_COUNTRY;
+        return this;
+    }
+
+    public synchronized String getExitCountry()
+    {
+        return exitCountry;
+    }
+
+    public ExitCountryStats setListener(Listener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Feeds CIRC events, other events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            CircEvent event = CircEvent.parse(reply);
+
+            if (event != null)
+                onCircEvent(event);
+        }
+    }
+
+    public void onCircEvent(CircEvent event)
+    {
+        String circuitId = event.getCircuitId();
+        String country = null;
+        String reason = null;
+        long buildTime = -1;
+
+        synchronized (this)
+        {
+            Circuit circuit = circuits.get(circuitId);
+
+            switch (event.getStatus())
+            {
+                case LAUNCHED:
+                    if (circuit != null || !event.isExitCircuit())
+                        return;
+
+                    Counters counters = getCounters(exitCountry);
+                    counters.launched++;
+
+                    circuits.put(circuitId, new Circuit(counters, System.nanoTime()));
+                    return;
+
+                case BUILT:
+                    if (circuit == null || circuit.built)
+                        return;
+
+                    circuit.built = true;
+                    buildTime = (System.nanoTime() - circuit.launchedAt) / 1000000;
+
+                    circuit.counters.built++;
+                    circuit.counters.openCircuits++;
+                    circuit.counters.buildTime.record(buildTime);
+
+                    country = circuit.counters.country;
+                    break;
+
+                case FAILED:
+                    if (circuit == null)
+                        return;
+
+                    circuits.remove(circuitId);
+
+                    if (circuit.built)
+                    {
+                        circuit.counters.openCircuits--;
+                        return;
+                    }
+
+                    reason = event.getReason() != null ? event.getReason() : "UNKNOWN";
+
+                    if (event.getRemoteReason() != null)
+                        reason += ":" + event.getRemoteReason();
+
+                    Long count = circuit.counters.failureReasons.get(reason);
+                    circuit.counters.failureReasons.put(reason, count != null ? count + 1 : 1);
+                    circuit.counters.failed++;
+
+                    country = circuit.counters.country;
+                    break;
+
+                case CLOSED:
+                    if (circuit == null)
+                        return;
+
+                    // circuit closed before it was built without failure, e.g. it was no longer needed
+                    circuits.remove(circuitId);
+
+                    if (circuit.built)
+                        circuit.counters.openCircuits--;
+
+                    return;
+
+                default:
+                    return;
+            }
+        }
+
+        Listener listener = this.listener;
+
+        if (listener == null)
+            return;
+
+        if (reason == null)
+            listener.onCircuitBuilt(country, buildTime);
+        else
+            listener.onCircuitFailed(country, reason);
+    }
+
+    /**
+     * @return true if there is a built circuit to the country targeted now
+     */
+    public synchronized boolean isReady()
+    {
+        Counters counters = countries.get(exitCountry);
+        return counters != null && counters.openCircuits > 0;
+    }
+
+    /**
+     * @return statistics of country, null if no circuit was launched for it
+     */
+    public synchronized CountryStats getStats(String country)
+    {
+        Counters counters = countries.get(country != null ? country.toLowerCase(Locale.US) : ANY_COUNTRY);
+        return counters != null ? new CountryStats(counters) : null;
+    }
+
+    public synchronized List<CountryStats> getAllStats()
+    {
+        List<CountryStats> stats = new ArrayList<>(countries.size());
+
+        for (Counters counters : countries.values())
+            stats.add(new CountryStats(counters));
+
+        return stats;
+    }
+
+    /**
+     * Countries ordered from best performing, by lower bound of success rate, then by median build time.
+     *
+     * @param minCircuits minimum of built and failed circuits of country to be ranked
+     */
+    public List<CountryStats> getRanking(int minCircuits)
+    {
+        List<CountryStats> ranking = new ArrayList<>();
+
+        for (CountryStats stats : getAllStats())
+            if (!stats.country.isEmpty() && stats.built + stats.failed >= minCircuits)
+                ranking.add(stats);
+
+        Collections.sort(ranking, (a, b) ->
+        {
+            int result = Double.compare(b.getSuccessRateLowerBound(), a.getSuccessRateLowerBound());
+            return result != 0 ? result : Long.compare(a.buildTimeP50, b.buildTimeP50);
+        });
+
+        return ranking;
+    }
+
+    /**
+     * Forgets circuits in progress and open circuits, e.g. when tor network was disabled. Statistics are kept.
+     */
+    public synchronized void clearCircuits()
+    {
+        for (Counters counters : countries.values())
+            counters.openCircuits = 0;
+
+        circuits.clear();
+    }
+
+    public synchronized void reset()
+    {
+        countries.clear();
+        circuits.clear();
+    }
+
+    @Override
+    public synchronized void collect(MetricsWriter writer)
+    {
+        for (Counters counters : countries.values())
+            writer.counter("torlib_exit_circuits_launched_total", "Launched exit circuits.", counters.launched, "country", counters.country);
+
+        for (Counters counters : countries.values())
+            writer.counter("torlib_exit_circuits_built_total", "Built exit circuits.", counters.built, "country", counters.country);
+
+        for (Counters counters : countries.values())
+            for (Map.Entry<String, Long> e : counters.failureReasons.entrySet())
+                writer.counter("torlib_exit_circuits_failed_total", "Failed exit circuits by reason.", e.getValue(), "country", counters.country, "reason", e.getKey());
+
+        for (Counters counters : countries.values())
+            writer.gauge("torlib_exit_circuits_open", "Built exit circuits, which are not closed yet.", counters.openCircuits, "country", counters.country);
+
+        for (Counters counters : countries.values())
+            writer.histogram("torlib_exit_circuit_build_seconds", "Build time of exit circuits.", counters.buildTime, 1e-3, "country", counters.country);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Counters counters : countries.values())
+            sb.append(new CountryStats(counters)).append('\n');
+
+        return sb.toString();
+    }
+
+    private Counters getCounters(String country)
+    {
+        Counters counters = countries.get(country);
+
+        if (counters == null)
+        {
+            counters = new Counters(country);
+            countries.put(country, counters);
+        }
+
+        return counters;
+    }
+}
@@ -0,0 +1,384 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control;
+
+import com.alloc64.torlib.control.event.StreamBwEvent;
+import com.alloc64.torlib.control.event.StreamEvent;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of tor streams, learned from STREAM and STREAM_BW events, per port class and exit country.
+ * <p>
+ * For every stream it measures time from NEW to first SENTCONNECT (waiting for circuit), from last SENTCONNECT
+ * to SUCCEEDED (round trip to exit and connect of exit to destination), from NEW to SUCCEEDED, and from SUCCEEDED
+ * to first STREAM_BW with read bytes. Tor sends STREAM_BW at most once per second, so first byte latency
+ * is accurate to a second.
+ * <p>
+ * Values are recorded in nanoseconds to lock-free {@link Histogram}s, which can be read from any thread.
+ * Like {@link ExitCountryStats}, streams are attributed to the country targeted by ExitNodes when they were opened.
+ * Event socket must subscribe to STREAM and STREAM_BW and pass events to {@link #onEvents(List)}.
+ */
+public class StreamLatencyTracker implements MetricsCollector
+{
+    private static final int MAX_TRACKED_STREAMS = 4096;
+
+    public enum PortClass
+    {
+        WEB,
+        DNS,
+        MAIL,
+        OTHER;
+
+        public static PortClass of(int port)
+        {
+            switch (port)
+            {
+                case 80:
+                case 443:
+                case 8080:
+                case 8443:
+                    return WEB;
+
+                case 53:
+                case 853:
+                    return DNS;
+
+                case 25:
+                case 110:
+                case 143:
+                case 465:
+                case 587:
+                case 993:
+                case 995:
+                    return MAIL;
+
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * Histograms of streams of one port class and exit country.
+     */
+    public static class Group
+    {
+        private final PortClass portClass;
+        private final String country;
+        private final Histogram attachLatency = new Histogram();
+        private final Histogram exitLatency = new Histogram();
+        private final Histogram connectLatency = new Histogram();
+        private final Histogram firstByteLatency = new Histogram();
+        private final AtomicLong failures = new AtomicLong();
+
+        private Group(PortClass portClass, String country)
+        {
+            this.portClass = portClass;
+            this.country = country;
+        }
+
+        public PortClass getPortClass()
+        {
+            return portClass;
+        }
+
+        /**
+         * @return lower-cased ISO country code, {@link ExitCountryStats#ANY_COUNTRY} for streams without ExitNodes
+         */
+        public String getCountry()
+        {
+            return country;
+        }
+
+        /**
+         * @return NEW to first SENTCONNECT, time the stream waited for a circuit
+         */
+        public Histogram getAttachLatency()
+        {
+            return attachLatency;
+        }
+
+        /**
+         * @return last SENTCONNECT to SUCCEEDED
+         */
+        public Histogram getExitLatency()
+        {
+            return exitLatency;
+        }
+
+        /**
+         * @return NEW to SUCCEEDED
+         */
+        public Histogram getConnectLatency()
+        {
+            return connectLatency;
+        }
+
+        /**
+         * @return SUCCEEDED to first STREAM_BW with read bytes
+         */
+        public Histogram getFirstByteLatency()
+        {
+            return firstByteLatency;
+        }
+
+        /**
+         * @return streams which failed or closed before SUCCEEDED
+         */
+        public long getFailures()
+        {
+            return failures.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s/%s: streams=%d failures=%d connect p50/p90/p99=%d/%d/%dms exit p50=%dms first byte p50/p90/p99=%d/%d/%dms",
+                    portClass,
+                    country.isEmpty() ? "<any>" : country,
+                    connectLatency.getCount(),
+                    failures.get(),
+                    toMillis(connectLatency, 50),
+                    toMillis(connectLatency, 90),
+                    toMillis(connectLatency, 99),
+                    toMillis(exitLatency, 50),
+                    toMillis(firstByteLatency, 50),
+                    toMillis(firstByteLatency, 90),
+                    toMillis(firstByteLatency, 99));
+        }
+
+        private static long toMillis(Histogram histogram, double percentile)
+        {
+            return histogram.getValueAtPercentile(percentile) / 1000000;
+        }
+    }
+
+    private static class Stream
+    {
+        private final Group group;
+        private final long newAt;
+        private long sentConnectAt;
+        private long succeededAt;
+
+        private Stream(Group group, long newAt)
+        {
+            this.group = group;
+            this.newAt = newAt;
+        }
+    }
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, Stream> streams = new HashMap<>();
+
+    private volatile String exitCountry = ExitCountryStats.ANY_COUNTRY;
+
+    /**
+     * Country targeted by ExitNodes, streams opened from now on are attributed to it.
+     *
+     * @param country ISO country code, null or empty if ExitNodes is not set
+     */
+    public StreamLatencyTracker setExitCountry(String country)
+    {
+        this.exitCountry = country != null ? country.toLowerCase(Locale.US) : ExitCountryStats.ANY_COUNTRY;
+        return this;
+    }
+
+    /**
+     * Feeds STREAM and STREAM_BW events, other events are ignored.
+     */
+    public void onEvents(List<TorAbstractControlSocket.Reply> replyList)
+    {
+        long now = System.nanoTime();
+
+        for (TorAbstractControlSocket.Reply reply : replyList)
+        {
+            StreamBwEvent bwEvent = StreamBwEvent.parse(reply);
+
+            if (bwEvent != null)
+            {
+                onStreamBwEvent(bwEvent, now);
+                continue;
+            }
+
+            StreamEvent streamEvent = StreamEvent.parse(reply);
+
+            if (streamEvent != null)
+                onStreamEvent(streamEvent, now);
+        }
+    }
+
+    /**
+     * @param now {@link System#nanoTime()} when the event was received
+     */
+    public synchronized void onStreamEvent(StreamEvent event, long now)
+    {
+        String streamId = event.getStreamId();
+        Stream stream = streams.get(streamId);
+
+        switch (event.getStatus())
+        {
+            case NEW:
+                if (stream != null || streams.size() >= MAX_TRACKED_STREAMS)
+                    return;
+
+                streams.put(streamId, new Stream(getOrCreateGroup(PortClass.of(parsePort(event.getTarget())), exitCountry), now));
+                break;
+
+            case SENTCONNECT:
+                if (stream == null || stream.succeededAt != 0)
+                    return;
+
+                if (stream.sentConnectAt == 0)
+                    stream.group.attachLatency.record(now - stream.newAt);
+
+                stream.sentConnectAt = now;
+                break;
+
+            case SUCCEEDED:
+                if (stream == null || stream.succeededAt != 0)
+                    return;
+
+                stream.succeededAt = now;
+                stream.group.connectLatency.record(now - stream.newAt);
+
+                if (stream.sentConnectAt != 0)
+                    stream.group.exitLatency.record(now - stream.sentConnectAt);
+
+                break;
+
+            case FAILED:
+            case CLOSED:
+                if (stream == null)
+                    return;
+
+                streams.remove(streamId);
+
+                if (stream.succeededAt == 0)
+                    stream.group.failures.incrementAndGet();
+
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param now {@link System#nanoTime()} when the event was received
+     */
+    public synchronized void onStreamBwEvent(StreamBwEvent event, long now)
+    {
+        if (event.getBytesRead() <= 0)
+            return;
+
+        Stream stream = streams.get(event.getStreamId());
+
+        if (stream == null || stream.succeededAt == 0)
+            return;
+
+        // first byte is all that is measured, stream is not needed anymore
+        streams.remove(event.getStreamId());
+        stream.group.firstByteLatency.record(now - stream.succeededAt);
+    }
+
+    /**
+     * @return group of port class and country, null if no stream of it was seen
+     */
+    public Group getGroup(PortClass portClass, String country)
+    {
+        return groups.get(getKey(portClass, country != null ? country.toLowerCase(Locale.US) : ExitCountryStats.ANY_COUNTRY));
+    }
+
+    public List<Group> getGroups()
+    {
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Forgets streams in progress, e.g. when tor network was disabled. Histograms are kept.
+     */
+    public synchronized void clearStreams()
+    {
+        streams.clear();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        List<Group> groups = getGroups();
+
+        for (Group group : groups)
+            writer.counter("torlib_stream_failures_total", "Streams which failed or closed before SUCCEEDED.", group.failures.get(), "port_class", group.portClass.name(), "country", group.country);
+
+        for (Group group : groups)
+            writer.histogram("torlib_stream_attach_latency_seconds", "Time streams waited for a circuit, NEW to first SENTCONNECT.", group.attachLatency, 1e-9, "port_class", group.portClass.name(), "country", group.country);
+
+        for (Group group : groups)
+            writer.histogram("torlib_stream_exit_latency_seconds", "Last SENTCONNECT to SUCCEEDED of streams.", group.exitLatency, 1e-9, "port_class", group.portClass.name(), "country", group.country);
+
+        for (Group group : groups)
+            writer.histogram("torlib_stream_connect_latency_seconds", "NEW to SUCCEEDED of streams.", group.connectLatency, 1e-9, "port_class", group.portClass.name(), "country", group.country);
+
+        for (Group group : groups)
+            writer.histogram("torlib_stream_first_byte_latency_seconds", "SUCCEEDED to first read bytes of streams, accurate to a second.", group.firstByteLatency, 1e-9, "port_class", group.portClass.name(), "country", group.country);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Group group : groups.values())
+            sb.append(group).append('\n');
+
+        return sb.toString();
+    }
+
+    private Group getOrCreateGroup(PortClass portClass, String country)
+    {
+        String key = getKey(portClass, country);
+        Group group = groups.get(key);
+
+        if (group == null)
+        {
+            group = new Group(portClass, country);
+            groups.put(key, group);
+        }
+
+        return group;
+    }
+
+    private static String getKey(PortClass portClass, String country)
+    {
+        return portClass.name() + "/" + country;
+    }
+
+    private static int parsePort(String target)
+    {
+        if (target == null)
+            return -1;
+
+        try
+        {
+            return Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -7,6 +7,10 @@
 package com.alloc64.torlib.control;
 
 import com.alloc64.jni.TLJNIBridge;
+import com.alloc64.torlib.metrics.Counter;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -26,7 +30,7 @@ import java.util.concurrent.Executors;
 /**
  * See https://gitweb.torproject.org/torspec.git/tree/control-spec.txt
  */
-public class TorAbstractControlSocket implements Runnable
+public class TorAbstractControlSocket implements Runnable, MetricsCollector
 {
     public enum ResponseCode
     {
@@ -214,6 +218,8 @@ public class TorAbstractControlSocket implements Runnable
     }
 
     private static final int CONNECTION_RETRY_COUNT = 20;
+    private static final long CONNECTION_RETRY_DELAY = 100;
+    private static final long CONNECTION_RETRY_MAX_DELAY = 2000;
 
     private final PasswordDigest password;
     private final MainThreadDispatcher mainThreadDispatcher;
@@ -225,6 +231,8 @@ public class TorAbstractControlSocket implements Runnable
     private OutputStreamWriter outputStream;
 
     private final Executor asyncSendExecutor = Executors.newSingleThreadExecutor();
+    private final Histogram roundTripLatency = new Histogram();
+    private final Counter commandFailures = new Counter();
 
     protected TorAbstractControlSocket(PasswordDigest password, MainThreadDispatcher mainThreadDispatcher)
     {
@@ -249,8 +257,6 @@ public class TorAbstractControlSocket implements Runnable
     {
         try
         {
-            Thread.sleep(1000); // sleep in case TOR is not ready
-
             boolean alreadyConnected = false;
 
             for (int i = 0; i < CONNECTION_RETRY_COUNT && !alreadyConnected; i++)
@@ -277,11 +283,11 @@ public class TorAbstractControlSocket implements Runnable
                 }
                 catch (IOException e)
                 {
-                    if (alreadyConnected)
+                    if (alreadyConnected || i == CONNECTION_RETRY_COUNT - 1)
                         throw e;
 
-                    onException(e);
-                    Thread.sleep(i * 1000);
+                    // TOR is not listening yet, retry shortly
+                    Thread.sleep(Math.min(CONNECTION_RETRY_DELAY * (i + 1), CONNECTION_RETRY_MAX_DELAY));
                 }
             }
         }
@@ -389,11 +395,16 @@ public class TorAbstractControlSocket implements Runnable
         return send(command, null);
     }
 
-    public List<Reply> send(String command, String params)
+    /**
+     * Sends command and reads its reply. Synchronized, so commands sent from multiple threads do not interleave.
+     */
+    public synchronized List<Reply> send(String command, String params)
     {
         if (outputStream == null)
             return null;
 
+        long start = System.nanoTime();
+
         try
         {
             outputStream.write(command);
@@ -420,15 +431,42 @@ public class TorAbstractControlSocket implements Runnable
 
             outputStream.flush();
 
-            return read();
+            List<Reply> replyList = read();
+            roundTripLatency.record(System.nanoTime() - start);
+
+            return replyList;
         }
         catch (Exception e)
         {
+            commandFailures.increment();
             onException(e);
         }
         return null;
     }
 
+    /**
+     * @return latency from sending command to reading its reply in nanoseconds
+     */
+    public Histogram getRoundTripLatency()
+    {
+        return roundTripLatency;
+    }
+
+    /**
+     * @return commands which failed on I/O or protocol error
+     */
+    public long getCommandFailures()
+    {
+        return commandFailures.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        writer.histogram("torlib_control_round_trip_seconds", "Latency of control port commands.", roundTripLatency, 1e-9);
+        writer.counter("torlib_control_command_failures_total", "Control port commands which failed on I/O or protocol error.", commandFailures.get());
+    }
+
     public void sendAsync(String command, String params, Callback callback)
     {
         asyncSendExecutor.execute(() ->
@@ -177,6 +177,59 @@ public class TorControlSocket extends TorAbstractControlSocket
         return getInfo(Collections.singletonList(key)).get(key);
     }
 
+    /**
+     * Returns addresses of listeners of given type, as reported by "net/listeners/[type]".
+     * Useful for reading back ports configured as "auto".
+     *
+     * @param type one of "or", "dir", "socks", "trans", "natd", "dns", "control", "extor", "httptunnel"
+     * @return list of listener addresses, empty if there is no such listener
+     */
+    public List<InetSocketAddress> getListeners(String type)
+    {
+        List<InetSocketAddress> result = new ArrayList<>();
+        String value = getInfo("net/listeners/" + type);
+
+        if (StringUtils.isEmpty(value))
+            return result;
+
+        StringTokenizer st = new StringTokenizer(value, " ");
+
+        while (st.hasMoreTokens())
+        {
+            String address = StringUtils.strip(st.nextToken(), "\"");
+            int idx = address.lastIndexOf(':');
+
+            // unix sockets are reported as "unix:/path"
+            if (idx < 0 || address.startsWith("unix:"))
+                continue;
+
+            try
+            {
+                String host = StringUtils.strip(address.substring(0, idx), "[]");
+                int port = Integer.parseInt(address.substring(idx + 1));
+
+                result.add(InetSocketAddress.createUnresolved(host, port));
+            }
+            catch (NumberFormatException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns port of first listener of given type, or -1 if there is no such listener.
+     * See {@link #getListeners(String)}
+     */
+    public int getListenerPort(String type)
+    {
+        List<InetSocketAddress> listeners = getListeners(type);
+
+        return listeners.isEmpty() ? -1 : listeners.get(0).getPort();
+    }
+
     /**
      * Change the value of the configuration option 'key' to 'val'.
      */
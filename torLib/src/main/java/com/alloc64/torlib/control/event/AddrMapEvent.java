@@ -0,0 +1,140 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 4.1.7. New Address mapping
+ * <p>
+ * "650" SP "ADDRMAP" SP Address SP NewAddress SP Expiry
+ * [SP "error=" ErrorCode] [SP "EXPIRES=" UTCExpiry] [SP "CACHED=" Cached]
+ * [SP "STREAMID=" StreamId]
+ * <p>
+ * Sent for every resolve done by tor, including RESOLVE command and streams to host names.
+ */
+public class AddrMapEvent
+{
+    public static final String NAME = "ADDRMAP";
+
+    private static final String ERROR_ADDRESS = "<error>";
+    private static final String NEVER = "NEVER";
+
+    private final String address;
+    private final String newAddress;
+    private final String error;
+    private final long expires;
+    private final boolean cached;
+    private final String streamId;
+
+    private AddrMapEvent(EventLine line)
+    {
+        this.address = line.get(1);
+        this.newAddress = line.get(2);
+        this.error = line.has("error") ? line.get("error") : line.get("ERROR");
+        this.expires = parseExpiry(line.get("EXPIRES"));
+        this.cached = "YES".equals(line.get("CACHED"));
+        this.streamId = line.get("STREAMID");
+    }
+
+    /**
+     * @return parsed event, null if reply is not ADDRMAP event
+     */
+    public static AddrMapEvent parse(TorAbstractControlSocket.Reply reply)
+    {
+        String message = reply.getMessage();
+
+        if (message == null || !message.startsWith(NAME + " "))
+            return null;
+
+        EventLine line = new EventLine(message);
+
+        if (line.size() < 3)
+            return null;
+
+        return new AddrMapEvent(line);
+    }
+
+    /**
+     * @return resolved host name or address
+     */
+    public String getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * @return address the host was mapped to, null if resolve failed
+     */
+    public String getNewAddress()
+    {
+        return isError() ? null : newAddress;
+    }
+
+    public boolean isError()
+    {
+        return ERROR_ADDRESS.equals(newAddress) || error != null;
+    }
+
+    /**
+     * @return error code, e.g. "yes" or "internal", null if not reported
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return expiry as UTC epoch millis, 0 if not reported, {@link Long#MAX_VALUE} if mapping never expires
+     */
+    public long getExpires()
+    {
+        return expires;
+    }
+
+    public boolean isCached()
+    {
+        return cached;
+    }
+
+    public String getStreamId()
+    {
+        return streamId;
+    }
+
+    private static long parseExpiry(String expiry)
+    {
+        if (expiry == null)
+            return 0;
+
+        if (NEVER.equals(expiry))
+            return Long.MAX_VALUE;
+
+        try
+        {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            return format.parse(expiry).getTime();
+        }
+        catch (ParseException e)
+        {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " " + address + " " + (isError() ? ERROR_ADDRESS + " error=" + error : newAddress) + (cached ? " cached" : "");
+    }
+}
@@ -0,0 +1,196 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+
+/**
+ * 4.1.16. New circuit buildtime has been set
+ * <p>
+ * "650" SP "BUILDTIMEOUT_SET" SP Type SP "TOTAL_TIMES=" Total SP
+ * "TIMEOUT_MS=" Timeout SP "XM=" Xm SP "ALPHA=" Alpha SP
+ * "CUTOFF_QUANTILE=" Quantile SP "TIMEOUT_RATE=" TimeoutRate SP
+ * "CLOSE_MS=" CloseTimeout SP "CLOSE_RATE=" CloseRate
+ * <p>
+ * Sent when tor computes new circuit build timeout from Pareto distribution fitted to observed build times.
+ */
+public class BuildTimeoutSetEvent
+{
+    public static final String NAME = "BUILDTIMEOUT_SET";
+
+    public enum Type
+    {
+        COMPUTED,
+        RESET,
+        SUSPENDED,
+        DISCARD,
+        RESUME,
+        UNKNOWN
+    }
+
+    private final Type type;
+    private final int totalTimes;
+    private final long timeoutMs;
+    private final long xm;
+    private final double alpha;
+    private final double cutoffQuantile;
+    private final double timeoutRate;
+    private final long closeMs;
+    private final double closeRate;
+
+    public BuildTimeoutSetEvent(Type type, int totalTimes, long timeoutMs, long xm, double alpha, double cutoffQuantile, double timeoutRate, long closeMs, double closeRate)
+    {
+        this.type = type;
+        this.totalTimes = totalTimes;
+        this.timeoutMs = timeoutMs;
+        this.xm = xm;
+        this.alpha = alpha;
+        this.cutoffQuantile = cutoffQuantile;
+        this.timeoutRate = timeoutRate;
+        this.closeMs = closeMs;
+        this.closeRate = closeRate;
+    }
+
+    private BuildTimeoutSetEvent(EventLine line)
+    {
+        this(parseType(line.get(1)),
+                (int) parseLong(line.get("TOTAL_TIMES")),
+                parseLong(line.get("TIMEOUT_MS")),
+                parseLong(line.get("XM")),
+                parseDouble(line.get("ALPHA")),
+                parseDouble(line.get("CUTOFF_QUANTILE")),
+                parseDouble(line.get("TIMEOUT_RATE")),
+                parseLong(line.get("CLOSE_MS")),
+                parseDouble(line.get("CLOSE_RATE")));
+    }
+
+    /**
+     * @return parsed event, null if reply is not BUILDTIMEOUT_SET event
+     */
+    public static BuildTimeoutSetEvent parse(TorAbstractControlSocket.Reply reply)
+    {
+        String message = reply.getMessage();
+
+        if (message == null || !message.startsWith(NAME + " "))
+            return null;
+
+        EventLine line = new EventLine(message);
+
+        if (line.size() < 2)
+            return null;
+
+        return new BuildTimeoutSetEvent(line);
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return number of build times tor used to compute the timeout
+     */
+    public int getTotalTimes()
+    {
+        return totalTimes;
+    }
+
+    /**
+     * @return circuit build timeout in millis
+     */
+    public long getTimeoutMs()
+    {
+        return timeoutMs;
+    }
+
+    /**
+     * @return Pareto Xm (scale) in millis, estimated from the most frequent build time bins
+     */
+    public long getXm()
+    {
+        return xm;
+    }
+
+    /**
+     * @return Pareto alpha (shape)
+     */
+    public double getAlpha()
+    {
+        return alpha;
+    }
+
+    /**
+     * @return quantile of the distribution used as timeout, e.g. 0.8
+     */
+    public double getCutoffQuantile()
+    {
+        return cutoffQuantile;
+    }
+
+    /**
+     * @return rate of circuits which timed out
+     */
+    public double getTimeoutRate()
+    {
+        return timeoutRate;
+    }
+
+    /**
+     * @return time after which timed out circuits are closed, in millis
+     */
+    public long getCloseMs()
+    {
+        return closeMs;
+    }
+
+    public double getCloseRate()
+    {
+        return closeRate;
+    }
+
+    private static Type parseType(String type)
+    {
+        try
+        {
+            return Type.valueOf(type);
+        }
+        catch (Exception e)
+        {
+            return Type.UNKNOWN;
+        }
+    }
+
+    private static long parseLong(String value)
+    {
+        try
+        {
+            return value != null ? Long.parseLong(value) : 0;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String value)
+    {
+        try
+        {
+            return value != null ? Double.parseDouble(value) : 0;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " " + type + " TOTAL_TIMES=" + totalTimes + " TIMEOUT_MS=" + timeoutMs + " XM=" + xm + " ALPHA=" + alpha + " CUTOFF_QUANTILE=" + cutoffQuantile + " TIMEOUT_RATE=" + timeoutRate;
+    }
+}
@@ -0,0 +1,163 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 4.1.1. Circuit status changed
+ * <p>
+ * "650" SP "CIRC" SP CircuitID SP CircStatus [SP Path]
+ * [SP "BUILD_FLAGS=" BuildFlags] [SP "PURPOSE=" Purpose]
+ * [SP "HS_STATE=" HSState] [SP "REND_QUERY=" HSAddress]
+ * [SP "TIME_CREATED=" TimeCreated]
+ * [SP "REASON=" Reason [SP "REMOTE_REASON=" Reason]]
+ * [SP "SOCKS_USERNAME=" EscapedUsername] [SP "SOCKS_PASSWORD=" EscapedPassword]
+ */
+public class CircEvent
+{
+    public static final String NAME = "CIRC";
+
+    public enum Status
+    {
+        LAUNCHED,
+        BUILT,
+        GUARD_WAIT,
+        EXTENDED,
+        FAILED,
+        CLOSED,
+        UNKNOWN
+    }
+
+    private final String circuitId;
+    private final Status status;
+    private final List<String> path;
+    private final List<String> buildFlags;
+    private final String purpose;
+    private final String reason;
+    private final String remoteReason;
+
+    private CircEvent(EventLine line)
+    {
+        this.circuitId = line.get(1);
+        this.status = parseStatus(line.get(2));
+        this.path = split(line.size() > 3 ? line.get(3) : null);
+        this.buildFlags = split(line.get("BUILD_FLAGS"));
+        this.purpose = line.get("PURPOSE");
+        this.reason = line.get("REASON");
+        this.remoteReason = line.get("REMOTE_REASON");
+    }
+
+    /**
+     * @return parsed event, null if reply is not CIRC event
+     */
+    public static CircEvent parse(TorAbstractControlSocket.Reply reply)
+    {
+        String message = reply.getMessage();
+
+        if (message == null || !message.startsWith(NAME + " "))
+            return null;
+
+        EventLine line = new EventLine(message);
+
+        if (line.size() < 3)
+            return null;
+
+        return new CircEvent(line);
+    }
+
+    public String getCircuitId()
+    {
+        return circuitId;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return relays of the circuit as "$fingerprint~nickname", exit relay is the last one of built circuit
+     */
+    public List<String> getPath()
+    {
+        return path;
+    }
+
+    public List<String> getBuildFlags()
+    {
+        return buildFlags;
+    }
+
+    public boolean hasBuildFlag(String flag)
+    {
+        return buildFlags.contains(flag);
+    }
+
+    /**
+     * @return purpose, e.g. GENERAL or HS_CLIENT_REND, null if not reported
+     */
+    public String getPurpose()
+    {
+        return purpose;
+    }
+
+    /**
+     * @return reason of FAILED or CLOSED circuit, e.g. TIMEOUT or DESTROYED
+     */
+    public String getReason()
+    {
+        return reason;
+    }
+
+    public String getRemoteReason()
+    {
+        return remoteReason;
+    }
+
+    /**
+     * @return true if the circuit can carry streams to exit selected by ExitNodes,
+     * i.e. general purpose circuit, which is neither internal nor one hop
+     */
+    public boolean isExitCircuit()
+    {
+        return (purpose == null || "GENERAL".equals(purpose))
+                && !hasBuildFlag("IS_INTERNAL")
+                && !hasBuildFlag("ONEHOP_TUNNEL");
+    }
+
+    private static List<String> split(String value)
+    {
+        if (value == null || value.isEmpty())
+            return Collections.emptyList();
+
+        return new ArrayList<>(Arrays.asList(value.split(",")));
+    }
+
+    private static Status parseStatus(String status)
+    {
+        try
+        {
+            return Status.valueOf(status);
+        }
+        catch (Exception e)
+        {
+            return Status.UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " " + circuitId + " " + status + (purpose != null ? " " + purpose : "") + (reason != null ? " " + reason : "");
+    }
+}
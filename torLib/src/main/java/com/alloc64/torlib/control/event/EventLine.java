@@ -0,0 +1,149 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tokenized asynchronous event line, e.g. {@code STREAM 12 SUCCEEDED 5 example.com:443 SOCKS_USERNAME="a"}.
+ * <p>
+ * Arguments before the first KEYWORD=value are positional, first one is event name.
+ * Positional arguments and values may be QuotedString with backslash escapes.
+ */
+public class EventLine
+{
+    private final List<String> positional = new ArrayList<>();
+    private final Map<String, String> keywords = new HashMap<>();
+
+    public EventLine(String line)
+    {
+        int length = line.length();
+        int i = 0;
+
+        while (i < length)
+        {
+            while (i < length && line.charAt(i) == ' ')
+                i++;
+
+            if (i >= length)
+                break;
+
+            if (line.charAt(i) == '"')
+            {
+                StringBuilder value = new StringBuilder();
+                i = readQuoted(line, i, value);
+
+                if (keywords.isEmpty())
+                    positional.add(value.toString());
+
+                continue;
+            }
+
+            int start = i;
+
+            while (i < length && line.charAt(i) != ' ' && line.charAt(i) != '=')
+                i++;
+
+            String token = line.substring(start, i);
+
+            if (i < length && line.charAt(i) == '=')
+            {
+                i++;
+
+                StringBuilder value = new StringBuilder();
+
+                if (i < length && line.charAt(i) == '"')
+                {
+                    i = readQuoted(line, i, value);
+                }
+                else
+                {
+                    while (i < length && line.charAt(i) != ' ')
+                        value.append(line.charAt(i++));
+                }
+
+                keywords.put(token, value.toString());
+            }
+            else if (keywords.isEmpty())
+            {
+                positional.add(token);
+            }
+        }
+    }
+
+    public String getName()
+    {
+        return positional.isEmpty() ? null : positional.get(0);
+    }
+
+    /**
+     * @param index index of positional argument, 0 is event name
+     * @return argument or null
+     */
+    public String get(int index)
+    {
+        return index < positional.size() ? positional.get(index) : null;
+    }
+
+    public int size()
+    {
+        return positional.size();
+    }
+
+    public String get(String keyword)
+    {
+        return keywords.get(keyword);
+    }
+
+    public boolean has(String keyword)
+    {
+        return keywords.containsKey(keyword);
+    }
+
+    /**
+     * @param i index of opening quote
+     * @return index after closing quote
+     */
+    private static int readQuoted(String line, int i, StringBuilder value)
+    {
+        int length = line.length();
+        i++;
+
+        while (i < length && line.charAt(i) != '"')
+        {
+            char c = line.charAt(i++);
+
+            if (c == '\\' && i < length)
+                c = unescape(line.charAt(i++));
+
+            value.append(c);
+        }
+
+        return i + 1;
+    }
+
+    private static char unescape(char c)
+    {
+        switch (c)
+        {
+            case 'n':
+                return '\n';
+
+            case 'r':
+                return '\r';
+
+            case 't':
+                return '\t';
+
+            default:
+                return c;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+
+/**
+ * 4.1.13. Bandwidth used on an application stream
+ * <p>
+ * "650" SP "STREAM_BW" SP StreamID SP BytesWritten SP BytesRead SP Time
+ * <p>
+ * Sent at most once per second per stream, bytes are counted since previous event of the stream.
+ */
+public class StreamBwEvent
+{
+    public static final String NAME = "STREAM_BW";
+
+    private final String streamId;
+    private final long bytesWritten;
+    private final long bytesRead;
+
+    private StreamBwEvent(EventLine line)
+    {
+        this.streamId = line.get(1);
+        this.bytesWritten = parseLong(line.get(2));
+        this.bytesRead = parseLong(line.get(3));
+    }
+
+    /**
+     * @return parsed event, null if reply is not STREAM_BW event
+     */
+    public static StreamBwEvent parse(TorAbstractControlSocket.Reply reply)
+    {
+        String message = reply.getMessage();
+
+        if (message == null || !message.startsWith(NAME + " "))
+            return null;
+
+        EventLine line = new EventLine(message);
+
+        if (line.size() < 4)
+            return null;
+
+        return new StreamBwEvent(line);
+    }
+
+    public String getStreamId()
+    {
+        return streamId;
+    }
+
+    /**
+     * @return bytes sent by client since previous event
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return bytes received from destination since previous event
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    private static long parseLong(String value)
+    {
+        try
+        {
+            return value != null ? Long.parseLong(value) : 0;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " " + streamId + " " + bytesWritten + " " + bytesRead;
+    }
+}
@@ -0,0 +1,145 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.control.event;
+
+import com.alloc64.torlib.control.TorAbstractControlSocket;
+
+/**
+ * 4.1.2. Stream status changed
+ * <p>
+ * "650" SP "STREAM" SP StreamID SP StreamStatus SP CircuitID SP Target
+ * [SP "REASON=" Reason [ SP "REMOTE_REASON=" Reason ]]
+ * [SP "SOURCE=" Source] [ SP "SOURCE_ADDR=" Address ":" Port ]
+ * [SP "PURPOSE=" Purpose] [SP "SOCKS_USERNAME=" EscapedUsername]
+ * [SP "SOCKS_PASSWORD=" EscapedPassword] ...
+ * <p>
+ * SOCKS credentials are reported since tor 0.4.3.1-alpha.
+ */
+public class StreamEvent
+{
+    public static final String NAME = "STREAM";
+
+    public enum Status
+    {
+        NEW,
+        NEWRESOLVE,
+        REMAP,
+        SENTCONNECT,
+        SENTRESOLVE,
+        SUCCEEDED,
+        FAILED,
+        CLOSED,
+        DETACHED,
+        CONTROLLER_WAIT,
+        XOFF_SENT,
+        XOFF_RECV,
+        XON_SENT,
+        XON_RECV,
+        UNKNOWN
+    }
+
+    private final String streamId;
+    private final Status status;
+    private final String circuitId;
+    private final String target;
+    private final String reason;
+    private final String socksUsername;
+    private final String socksPassword;
+
+    private StreamEvent(EventLine line)
+    {
+        this.streamId = line.get(1);
+        this.status = parseStatus(line.get(2));
+        this.circuitId = line.get(3);
+        this.target = line.get(4);
+        this.reason = line.get("REASON");
+        this.socksUsername = line.get("SOCKS_USERNAME");
+        this.socksPassword = line.get("SOCKS_PASSWORD");
+    }
+
+    /**
+     * @return parsed event, null if reply is not STREAM event
+     */
+    public static StreamEvent parse(TorAbstractControlSocket.Reply reply)
+    {
+        String message = reply.getMessage();
+
+        if (message == null || !message.startsWith(NAME + " "))
+            return null;
+
+        EventLine line = new EventLine(message);
+
+        if (line.size() < 5)
+            return null;
+
+        return new StreamEvent(line);
+    }
+
+    public String getStreamId()
+    {
+        return streamId;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return circuit ID, "0" if stream is not attached
+     */
+    public String getCircuitId()
+    {
+        return circuitId;
+    }
+
+    public boolean isAttached()
+    {
+        return circuitId != null && !"0".equals(circuitId);
+    }
+
+    /**
+     * @return target in form host:port
+     */
+    public String getTarget()
+    {
+        return target;
+    }
+
+    public String getReason()
+    {
+        return reason;
+    }
+
+    public String getSocksUsername()
+    {
+        return socksUsername;
+    }
+
+    public String getSocksPassword()
+    {
+        return socksPassword;
+    }
+
+    private static Status parseStatus(String status)
+    {
+        try
+        {
+            return Status.valueOf(status);
+        }
+        catch (Exception e)
+        {
+            return Status.UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " " + streamId + " " + status + " " + circuitId + " " + target + (socksUsername != null ? " " + socksUsername : "");
+    }
+}
@@ -0,0 +1,346 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.dns;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of DNS responses, split into independently locked shards.
+ * <p>
+ * Responses are kept in wire format and served with TTLs decreased by time spent in cache. Cache lifetime is TTL
+ * of the response clamped to {@link #setTtlBounds(long, long)}, like min_ttl and max_ttl of pdnsd. Negative answers
+ * (NXDOMAIN, no data) are kept for SOA minimum, at most {@link #setNegativeTtl(long)}. Failures are never cached.
+ */
+public class DnsCache
+{
+    private static final int DEFAULT_SHARD_COUNT = 8;
+    private static final long DEFAULT_MIN_TTL = 60 * 1000;
+    private static final long DEFAULT_MAX_TTL = 7 * 24 * 60 * 60 * 1000L;
+    private static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+
+    public static class Entry
+    {
+        private final byte[] response;
+        private final int[] ttlOffsets;
+        private final int[] ttls;
+        private final byte[][] addresses;
+        private final long storedAt;
+        private final long expiresAt;
+        private final boolean negative;
+
+        private volatile int hits;
+
+        private Entry(byte[] response, DnsMessage.Records records, long storedAt, long expiresAt, boolean negative)
+        {
+            this.response = response;
+            this.ttlOffsets = records.ttlOffsets;
+            this.ttls = records.ttls;
+            this.addresses = records.addresses;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.negative = negative;
+        }
+
+        /**
+         * @return copy of response with given id and TTLs counted down to now
+         */
+        public byte[] toResponse(int id, long now)
+        {
+            byte[] response = Arrays.copyOf(this.response, this.response.length);
+            long remaining = Math.max(0, (expiresAt - now) / 1000);
+
+            DnsMessage.setId(response, id);
+
+            for (int i = 0; i < ttlOffsets.length; i++)
+                DnsMessage.putInt(response, ttlOffsets[i], (int) Math.min(ttls[i], remaining));
+
+            return response;
+        }
+
+        public boolean isNegative()
+        {
+            return negative;
+        }
+
+        public long getStoredAt()
+        {
+            return storedAt;
+        }
+
+        public long getExpiresAt()
+        {
+            return expiresAt;
+        }
+
+        /**
+         * @return cache lifetime in millis
+         */
+        public long getTtl()
+        {
+            return expiresAt - storedAt;
+        }
+
+        public int getHits()
+        {
+            return hits;
+        }
+
+        byte[] getResponse()
+        {
+            return response;
+        }
+
+        /**
+         * @return addresses of A and AAAA records in answer section
+         */
+        byte[][] getAddresses()
+        {
+            return addresses;
+        }
+    }
+
+    private static class Shard extends LinkedHashMap<String, DnsCache.Entry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        private Shard(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest)
+        {
+            return size() > maxEntries;
+        }
+    }
+
+    private final Shard[] shards;
+
+    private volatile long minTtl = DEFAULT_MIN_TTL;
+    private volatile long maxTtl = DEFAULT_MAX_TTL;
+    private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    public DnsCache(int maxEntries)
+    {
+        this(maxEntries, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param shardCount number of shards, rounded up to power of two
+     */
+    public DnsCache(int maxEntries, int shardCount)
+    {
+        shardCount = Integer.highestOneBit(Math.max(1, shardCount * 2 - 1));
+
+        this.shards = new Shard[shardCount];
+
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new Shard(Math.max(1, (maxEntries + shardCount - 1) / shardCount));
+    }
+
+    /**
+     * Bounds of cache lifetime of positive answers.
+     */
+    public DnsCache setTtlBounds(long minTtlMillis, long maxTtlMillis)
+    {
+        this.minTtl = minTtlMillis;
+        this.maxTtl = maxTtlMillis;
+        return this;
+    }
+
+    /**
+     * Maximum cache lifetime of negative answers, also used when answer has no SOA record.
+     */
+    public DnsCache setNegativeTtl(long negativeTtlMillis)
+    {
+        this.negativeTtl = negativeTtlMillis;
+        return this;
+    }
+
+    /**
+     * @param key cache key of query, question with EDNS and DO bit, see {@link DnsForwarder}
+     * @return entry which is not expired, null if there is none
+     */
+    public Entry get(String key, long now)
+    {
+        Shard shard = getShard(key);
+
+        synchronized (shard)
+        {
+            Entry entry = shard.get(key);
+
+            if (entry == null)
+                return null;
+
+            if (entry.expiresAt <= now)
+            {
+                shard.remove(key);
+                return null;
+            }
+
+            entry.hits++;
+            return entry;
+        }
+    }
+
+    /**
+     * Stores response, if it is cacheable.
+     *
+     * @return stored entry, null if response is failure, truncated or malformed
+     */
+    public Entry put(String key, byte[] response, int length, long now)
+    {
+        if (length < DnsMessage.HEADER_SIZE || !DnsMessage.isResponse(response) || DnsMessage.isTruncated(response))
+            return null;
+
+        int rcode = DnsMessage.getRcode(response);
+
+        if (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN)
+            return null;
+
+        DnsMessage.Records records = DnsMessage.readRecords(response, length);
+
+        if (records == null)
+            return null;
+
+        boolean negative = rcode == DnsMessage.RCODE_NXDOMAIN || records.answerCount == 0;
+        long ttl;
+
+        if (negative)
+        {
+            ttl = records.soaTtl >= 0 ? Math.min(records.soaTtl * 1000, negativeTtl) : negativeTtl;
+        }
+        else
+        {
+            long minRecordTtl = Long.MAX_VALUE;
+
+            for (int recordTtl : records.ttls)
+                minRecordTtl = Math.min(minRecordTtl, recordTtl);
+
+            ttl = Math.max(minTtl, Math.min(maxTtl, minRecordTtl * 1000));
+        }
+
+        if (ttl <= 0)
+            return null;
+
+        Entry entry = new Entry(Arrays.copyOf(response, length), records, now, now + ttl, negative);
+        DnsMessage.setId(entry.response, 0);
+
+        Shard shard = getShard(key);
+
+        synchronized (shard)
+        {
+            shard.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores entry of snapshot, unless cache already has entry for the key.
+     *
+     * @return false if response is malformed or expired, or key is already cached
+     */
+    boolean restore(String key, byte[] response, long storedAt, long expiresAt, boolean negative, long now)
+    {
+        if (expiresAt <= now || storedAt > now || response.length < DnsMessage.HEADER_SIZE)
+            return false;
+
+        DnsMessage.Records records = DnsMessage.readRecords(response, response.length);
+
+        if (records == null)
+            return false;
+
+        Entry entry = new Entry(response, records, storedAt, expiresAt, negative);
+        Shard shard = getShard(key);
+
+        synchronized (shard)
+        {
+            Entry current = shard.get(key);
+
+            if (current != null && current.expiresAt > now)
+                return false;
+
+            shard.put(key, entry);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return copy of entries which are not expired, least recently used first within each shard
+     */
+    List<Map.Entry<String, Entry>> getEntries(long now)
+    {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>();
+
+        for (Shard shard : shards)
+        {
+            synchronized (shard)
+            {
+                for (Map.Entry<String, Entry> e : shard.entrySet())
+                    if (e.getValue().expiresAt > now)
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+            }
+        }
+
+        return entries;
+    }
+
+    public void remove(String key)
+    {
+        Shard shard = getShard(key);
+
+        synchronized (shard)
+        {
+            shard.remove(key);
+        }
+    }
+
+    public void clear()
+    {
+        for (Shard shard : shards)
+        {
+            synchronized (shard)
+            {
+                shard.clear();
+            }
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for (Shard shard : shards)
+        {
+            synchronized (shard)
+            {
+                size += shard.size();
+            }
+        }
+
+        return size;
+    }
+
+    private Shard getShard(String key)
+    {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+
+        return shards[h & (shards.length - 1)];
+    }
+}
@@ -0,0 +1,150 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of {@link DnsCache}, so cache survives restart of the app.
+ * <p>
+ * Entries keep their wall-clock expiry, so time spent on disk counts against their TTL and expired entries
+ * are skipped on load. Entries stored in the future (clock moved back) are skipped too, their age is unknown.
+ * <p>
+ * File layout: magic, version, entry count, then key, stored at, expires at, negative flag and wire-format
+ * response of every entry, followed by CRC32 of all preceding bytes. File is replaced atomically.
+ */
+public class DnsCacheSnapshot
+{
+    private static final int MAGIC = 0x54444E53;
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 1 << 20;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+
+    public DnsCacheSnapshot(File file)
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return number of written entries
+     */
+    public synchronized int save(DnsCache cache) throws IOException
+    {
+        List<Map.Entry<String, DnsCache.Entry>> entries = cache.getEntries(System.currentTimeMillis());
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+
+        try
+        {
+            CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), new CRC32());
+
+            try (DataOutputStream os = new DataOutputStream(cos))
+            {
+                os.writeInt(MAGIC);
+                os.writeByte(VERSION);
+                os.writeInt(entries.size());
+
+                for (Map.Entry<String, DnsCache.Entry> e : entries)
+                {
+                    DnsCache.Entry entry = e.getValue();
+                    byte[] response = entry.getResponse();
+
+                    os.writeUTF(e.getKey());
+                    os.writeLong(entry.getStoredAt());
+                    os.writeLong(entry.getExpiresAt());
+                    os.writeBoolean(entry.isNegative());
+                    os.writeShort(response.length);
+                    os.write(response);
+                }
+
+                os.writeLong(cos.getChecksum().getValue());
+            }
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("Unable to replace " + file);
+
+            return entries.size();
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Restores entries which are not expired, entries already in cache are kept.
+     *
+     * @return number of restored entries, 0 if there is no snapshot
+     * @throws IOException if snapshot is corrupted, nothing is restored then
+     */
+    public synchronized int load(DnsCache cache) throws IOException
+    {
+        if (!file.exists())
+            return 0;
+
+        long now = System.currentTimeMillis();
+        CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+
+        try (DataInputStream is = new DataInputStream(cis))
+        {
+            if (is.readInt() != MAGIC || is.readUnsignedByte() != VERSION)
+                throw new IOException("Unsupported DNS cache snapshot " + file);
+
+            int count = is.readInt();
+
+            if (count < 0 || count > MAX_ENTRIES)
+                throw new IOException("Corrupted DNS cache snapshot " + file);
+
+            String[] keys = new String[count];
+            long[] storedAt = new long[count];
+            long[] expiresAt = new long[count];
+            boolean[] negative = new boolean[count];
+            byte[][] responses = new byte[count][];
+
+            for (int i = 0; i < count; i++)
+            {
+                keys[i] = is.readUTF();
+                storedAt[i] = is.readLong();
+                expiresAt[i] = is.readLong();
+                negative[i] = is.readBoolean();
+                responses[i] = new byte[is.readUnsignedShort()];
+                is.readFully(responses[i]);
+            }
+
+            long checksum = cis.getChecksum().getValue();
+
+            if (is.readLong() != checksum)
+                throw new IOException("Corrupted DNS cache snapshot " + file);
+
+            int restored = 0;
+
+            for (int i = 0; i < count; i++)
+                if (cache.restore(keys[i], responses[i], storedAt[i], expiresAt[i], negative[i], now))
+                    restored++;
+
+            return restored;
+        }
+    }
+}
@@ -0,0 +1,672 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.dns;
+
+import com.alloc64.torlib.control.AddressMap;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsCollector;
+import com.alloc64.torlib.metrics.MetricsWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caching UDP DNS forwarder in front of tor DNSPort, replacement of pdnsd.
+ * <p>
+ * Answers are served from {@link DnsCache}. Identical queries which arrive while the upstream query is in flight
+ * wait for its answer instead of sending another one. Entries which were hit repeatedly are refreshed shortly
+ * before they expire, so popular names do not pay for circuit round trip when their TTL runs out.
+ * <p>
+ * All sockets are handled by a single selector thread. Forwarder can be started again after {@link #close()},
+ * cache is kept.
+ */
+public class DnsForwarder implements Runnable, Closeable, MetricsCollector
+{
+    private static final int DEFAULT_MAX_ENTRIES = 2048;
+    private static final long DEFAULT_TIMEOUT = 10 * 1000;
+    private static final int DEFAULT_PREFETCH_HITS = 2;
+    private static final double DEFAULT_PREFETCH_FRACTION = 0.1;
+    private static final int MAX_MESSAGE_SIZE = 4096;
+    private static final int MAX_PENDING = 1024;
+    private static final int MAX_READS_PER_WAKEUP = 64;
+    private static final long STOP_TIMEOUT = 2000;
+
+    private static class Pending
+    {
+        private final String key;
+        private final String questionKey;
+        private final int upstreamId;
+        private final long sentAt;
+        private final List<byte[]> queries = new ArrayList<>(1);
+        private final List<SocketAddress> clients = new ArrayList<>(1);
+        private boolean done;
+
+        private Pending(String key, String questionKey, int upstreamId, long sentAt)
+        {
+            this.key = key;
+            this.questionKey = questionKey;
+            this.upstreamId = upstreamId;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final DnsCache cache;
+    private final Histogram upstreamLatency = new Histogram();
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+    private final Map<Integer, Pending> pendingById = new HashMap<>();
+    // all queries have the same timeout, so they expire in order they were sent
+    private final ArrayDeque<Pending> pendingQueue = new ArrayDeque<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final Random random = new Random();
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile int prefetchHits = DEFAULT_PREFETCH_HITS;
+    private volatile double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+    private volatile AddressMap addressMap;
+
+    private Selector selector;
+    private DatagramChannel serverChannel;
+    private DatagramChannel upstreamChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private int nextId;
+
+    public DnsForwarder()
+    {
+        this(new DnsCache(DEFAULT_MAX_ENTRIES));
+    }
+
+    public DnsForwarder(DnsCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Time to wait for upstream answer, SERVFAIL is sent afterwards.
+     */
+    public DnsForwarder setTimeout(long timeoutMillis)
+    {
+        this.timeout = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Entry hit at least minHits times is refreshed when less than fraction of its lifetime remains.
+     * minHits 0 disables prefetch.
+     */
+    public DnsForwarder setPrefetch(int minHits, double fraction)
+    {
+        this.prefetchHits = minHits;
+        this.prefetchFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Addresses of answers, including answers served from cache, are mapped to the queried name, so flows to them
+     * can be attributed to the host name like streams of tor. Null (default) disables mapping.
+     */
+    public DnsForwarder setAddressMap(AddressMap addressMap)
+    {
+        this.addressMap = addressMap;
+        return this;
+    }
+
+    /**
+     * Maps addresses of all cached answers, called by start and needed after entries are restored to the cache,
+     * e.g. from {@link DnsCacheSnapshot}. Clients may connect to them without asking again.
+     *
+     * @return number of mapped addresses
+     */
+    public int mapCachedAddresses()
+    {
+        if (addressMap == null)
+            return 0;
+
+        int mapped = 0;
+
+        for (Map.Entry<String, DnsCache.Entry> e : cache.getEntries(System.currentTimeMillis()))
+            mapped += mapAddresses(e.getKey(), e.getValue());
+
+        return mapped;
+    }
+
+    /**
+     * @param listenAddress   address to receive queries on, port 0 for any free port
+     * @param upstreamAddress address of tor DNSPort
+     * @return address the forwarder listens on
+     */
+    public synchronized InetSocketAddress start(InetSocketAddress listenAddress, InetSocketAddress upstreamAddress) throws IOException
+    {
+        if (running)
+            throw new IllegalStateException("Forwarder is already running.");
+
+        this.selector = Selector.open();
+
+        try
+        {
+            this.serverChannel = DatagramChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(listenAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_READ);
+
+            this.upstreamChannel = DatagramChannel.open();
+            upstreamChannel.connect(upstreamAddress);
+            upstreamChannel.configureBlocking(false);
+            upstreamChannel.register(selector, SelectionKey.OP_READ);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(serverChannel);
+            closeQuietly(upstreamChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        this.nextId = random.nextInt(0x10000);
+        this.running = true;
+
+        this.thread = new Thread(this, "DnsForwarder");
+        thread.start();
+
+        mapCachedAddresses();
+
+        return getLocalAddress();
+    }
+
+    public InetSocketAddress getLocalAddress()
+    {
+        DatagramChannel serverChannel = this.serverChannel;
+        return serverChannel != null ? (InetSocketAddress) serverChannel.socket().getLocalSocketAddress() : null;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public DnsCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return latency of upstream answers in nanoseconds
+     */
+    public Histogram getUpstreamLatency()
+    {
+        return upstreamLatency;
+    }
+
+    public long getQueries()
+    {
+        return queries.get();
+    }
+
+    /**
+     * @return queries answered from cache, including negative answers
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getNegativeHits()
+    {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return queries sent upstream
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return queries which waited for identical query already in flight
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    public long getPrefetches()
+    {
+        return prefetches.get();
+    }
+
+    /**
+     * @return queries answered with SERVFAIL because upstream timed out or could not be reached
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return answers not sent, because socket buffer was full or client could not be reached
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public double getHitRatio()
+    {
+        long queries = this.queries.get();
+        return queries > 0 ? (double) hits.get() / queries : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "entries=%d queries=%d hits=%d negativeHits=%d misses=%d coalesced=%d prefetches=%d failures=%d dropped=%d",
+                cache.size(),
+                queries.get(),
+                hits.get(),
+                negativeHits.get(),
+                misses.get(),
+                coalesced.get(),
+                prefetches.get(),
+                failures.get(),
+                dropped.get());
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        writer.counter("torlib_dns_queries_total", "DNS queries received from clients.", queries.get());
+        writer.counter("torlib_dns_cache_hits_total", "DNS queries answered from cache, including negative answers.", hits.get());
+        writer.counter("torlib_dns_cache_negative_hits_total", "DNS queries answered from cache with negative answer.", negativeHits.get());
+        writer.counter("torlib_dns_cache_misses_total", "DNS queries sent upstream.", misses.get());
+        writer.counter("torlib_dns_coalesced_total", "DNS queries which waited for identical query in flight.", coalesced.get());
+        writer.counter("torlib_dns_prefetches_total", "DNS cache entries refreshed before expiration.", prefetches.get());
+        writer.counter("torlib_dns_failures_total", "DNS queries answered with SERVFAIL.", failures.get());
+        writer.counter("torlib_dns_dropped_total", "DNS answers dropped, because socket buffer was full or client could not be reached.", dropped.get());
+        writer.gauge("torlib_dns_cache_entries", "DNS cache entries.", cache.size());
+        writer.histogram("torlib_dns_upstream_latency_seconds", "Latency of upstream DNS answers.", upstreamLatency, 1e-9);
+    }
+
+    /**
+     * Stops the forwarder, queries in flight are dropped.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (!running)
+            return;
+
+        this.running = false;
+        selector.wakeup();
+
+        try
+        {
+            thread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                Pending oldest = pendingQueue.peek();
+
+                if (oldest == null)
+                    selector.select();
+                else
+                    selector.select(Math.max(1, oldest.sentAt / 1000000 + timeout - System.nanoTime() / 1000000));
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid() || !key.isReadable())
+                        continue;
+
+                    if (key.channel() == serverChannel)
+                        readQueries();
+                    else
+                        readResponses();
+                }
+
+                expirePending();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            this.running = false;
+
+            pendingByKey.clear();
+            pendingById.clear();
+            pendingQueue.clear();
+
+            closeQuietly(serverChannel);
+            closeQuietly(upstreamChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void readQueries() throws IOException
+    {
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++)
+        {
+            buffer.clear();
+
+            SocketAddress client = serverChannel.receive(buffer);
+
+            if (client == null)
+                return;
+
+            onQuery(client, Arrays.copyOf(buffer.array(), buffer.position()));
+        }
+    }
+
+    private void readResponses()
+    {
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++)
+        {
+            buffer.clear();
+
+            try
+            {
+                if (upstreamChannel.read(buffer) <= 0)
+                    return;
+            }
+            catch (IOException e)
+            {
+                // ICMP port unreachable of earlier query, tor DNSPort is not listening
+                return;
+            }
+
+            onResponse(buffer.array(), buffer.position());
+        }
+    }
+
+    private void onQuery(SocketAddress client, byte[] query)
+    {
+        if (query.length < DnsMessage.HEADER_SIZE || DnsMessage.isResponse(query))
+            return;
+
+        queries.incrementAndGet();
+
+        String key = DnsMessage.getCacheKey(query, query.length);
+
+        if (key == null)
+        {
+            send(client, DnsMessage.createErrorResponse(query, query.length, DnsMessage.RCODE_FORMERR));
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = cache.get(key, now);
+
+        if (entry != null)
+        {
+            hits.incrementAndGet();
+
+            if (entry.isNegative())
+                negativeHits.incrementAndGet();
+
+            byte[] response = entry.toResponse(DnsMessage.getId(query), now);
+            DnsMessage.copyQuestion(query, response);
+            send(client, response);
+            mapAddresses(key, entry);
+
+            if (shouldPrefetch(key, entry, now))
+            {
+                prefetches.incrementAndGet();
+                sendUpstream(key, query);
+            }
+
+            return;
+        }
+
+        Pending pending = pendingByKey.get(key);
+
+        if (pending != null)
+        {
+            coalesced.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+            pending = sendUpstream(key, query);
+        }
+
+        if (pending == null)
+        {
+            failures.incrementAndGet();
+            send(client, DnsMessage.createErrorResponse(query, query.length, DnsMessage.RCODE_SERVFAIL));
+            return;
+        }
+
+        pending.queries.add(query);
+        pending.clients.add(client);
+    }
+
+    private void onResponse(byte[] response, int length)
+    {
+        if (length < DnsMessage.HEADER_SIZE || !DnsMessage.isResponse(response))
+            return;
+
+        Pending pending = pendingById.get(DnsMessage.getId(response));
+
+        // late answer of expired query, or answer to different question
+        if (pending == null || !pending.questionKey.equals(DnsMessage.getQuestionKey(response, length)))
+            return;
+
+        complete(pending);
+        upstreamLatency.record(System.nanoTime() - pending.sentAt);
+
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = cache.put(pending.key, response, length, now);
+
+        if (entry != null)
+            mapAddresses(pending.key, entry);
+
+        for (int i = 0; i < pending.queries.size(); i++)
+        {
+            byte[] query = pending.queries.get(i);
+            byte[] answer;
+
+            if (entry != null)
+            {
+                answer = entry.toResponse(DnsMessage.getId(query), now);
+            }
+            else
+            {
+                answer = Arrays.copyOf(response, length);
+                DnsMessage.setId(answer, DnsMessage.getId(query));
+            }
+
+            DnsMessage.copyQuestion(query, answer);
+            send(pending.clients.get(i), answer);
+        }
+    }
+
+    /**
+     * @return sent query, null if there are too many queries in flight or upstream could not be reached
+     */
+    private Pending sendUpstream(String key, byte[] query)
+    {
+        if (pendingById.size() >= MAX_PENDING)
+            return null;
+
+        int id = nextId;
+
+        while (pendingById.containsKey(id))
+            id = (id + 1) & 0xFFFF;
+
+        this.nextId = (id + 1) & 0xFFFF;
+
+        byte[] upstreamQuery = Arrays.copyOf(query, query.length);
+        DnsMessage.setId(upstreamQuery, id);
+
+        try
+        {
+            upstreamChannel.write(ByteBuffer.wrap(upstreamQuery));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        Pending pending = new Pending(key, DnsMessage.getQuestionKey(query, query.length), id, System.nanoTime());
+
+        pendingByKey.put(key, pending);
+        pendingById.put(id, pending);
+        pendingQueue.add(pending);
+
+        return pending;
+    }
+
+    private void expirePending()
+    {
+        long now = System.nanoTime();
+        long timeoutNanos = timeout * 1000000;
+        Pending pending;
+
+        while ((pending = pendingQueue.peek()) != null)
+        {
+            if (!pending.done && now - pending.sentAt < timeoutNanos)
+                return;
+
+            pendingQueue.poll();
+
+            if (pending.done)
+                continue;
+
+            complete(pending);
+
+            for (int i = 0; i < pending.queries.size(); i++)
+            {
+                byte[] query = pending.queries.get(i);
+
+                failures.incrementAndGet();
+                send(pending.clients.get(i), DnsMessage.createErrorResponse(query, query.length, DnsMessage.RCODE_SERVFAIL));
+            }
+        }
+    }
+
+    private void complete(Pending pending)
+    {
+        pending.done = true;
+        pendingById.remove(pending.upstreamId);
+
+        if (pendingByKey.get(pending.key) == pending)
+            pendingByKey.remove(pending.key);
+    }
+
+    private boolean shouldPrefetch(String key, DnsCache.Entry entry, long now)
+    {
+        int prefetchHits = this.prefetchHits;
+
+        return prefetchHits > 0
+                && !entry.isNegative()
+                && entry.getHits() >= prefetchHits
+                && entry.getExpiresAt() - now <= entry.getTtl() * prefetchFraction
+                && !pendingByKey.containsKey(key);
+    }
+
+    /**
+     * @return number of mapped addresses
+     */
+    private int mapAddresses(String key, DnsCache.Entry entry)
+    {
+        AddressMap addressMap = this.addressMap;
+        byte[][] addresses = entry.getAddresses();
+
+        if (addressMap == null || addresses.length == 0)
+            return 0;
+
+        // key starts with "name. type class"
+        int nameEnd = key.indexOf(' ') - 1;
+
+        if (nameEnd <= 0)
+            return 0;
+
+        String host = key.substring(0, nameEnd);
+
+        for (byte[] address : addresses)
+            addressMap.put(address, host, entry.getExpiresAt());
+
+        return addresses.length;
+    }
+
+    private void send(SocketAddress client, byte[] message)
+    {
+        if (message == null)
+            return;
+
+        try
+        {
+            // full socket buffer drops the answer, client will retry
+            if (serverChannel.send(ByteBuffer.wrap(message), client) == 0)
+                dropped.incrementAndGet();
+        }
+        catch (IOException e)
+        {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
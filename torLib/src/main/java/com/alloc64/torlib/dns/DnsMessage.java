@@ -0,0 +1,338 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.dns;
+
+import java.util.Arrays;
+
+/**
+ * DNS wire format helpers (RFC 1035). Messages are forwarded as they are, only header, question
+ * and TTLs of resource records are read or patched.
+ */
+final class DnsMessage
+{
+    static final int HEADER_SIZE = 12;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RCODE_NXDOMAIN = 3;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_OPT = 41;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RA = 0x0080;
+    private static final int EDNS_FLAG_DO = 0x8000;
+
+    /**
+     * TTL fields of resource records, except OPT pseudo-record, whose TTL field carries EDNS flags.
+     */
+    static class Records
+    {
+        int[] ttlOffsets;
+        int[] ttls;
+        int answerCount;
+        // data of A and AAAA records in answer section
+        byte[][] addresses;
+        // RFC 2308, negative answers are cached for min(SOA TTL, SOA MINIMUM), -1 if there is no SOA
+        long soaTtl = -1;
+    }
+
+    private DnsMessage()
+    {
+    }
+
+    static int getId(byte[] message)
+    {
+        return getShort(message, 0);
+    }
+
+    static void setId(byte[] message, int id)
+    {
+        putShort(message, 0, id);
+    }
+
+    static boolean isResponse(byte[] message)
+    {
+        return (getShort(message, 2) & FLAG_QR) != 0;
+    }
+
+    static boolean isTruncated(byte[] message)
+    {
+        return (getShort(message, 2) & FLAG_TC) != 0;
+    }
+
+    static int getRcode(byte[] message)
+    {
+        return getShort(message, 2) & 0x0F;
+    }
+
+    /**
+     * @return offset right after the only question, -1 if message is malformed or has other than one question
+     */
+    static int getQuestionEnd(byte[] message, int length)
+    {
+        if (length < HEADER_SIZE || getShort(message, 4) != 1)
+            return -1;
+
+        int offset = skipName(message, HEADER_SIZE, length);
+
+        if (offset < 0 || offset + 4 > length)
+            return -1;
+
+        return offset + 4;
+    }
+
+    /**
+     * @return cache key of the only question, "name type class" with lower-cased name, null if message is malformed
+     */
+    static String getQuestionKey(byte[] message, int length)
+    {
+        int questionEnd = getQuestionEnd(message, length);
+
+        if (questionEnd < 0)
+            return null;
+
+        StringBuilder sb = new StringBuilder(questionEnd - HEADER_SIZE + 12);
+        int offset = HEADER_SIZE;
+        int labelLength;
+
+        // question name is never compressed, it is the first name in message
+        while ((labelLength = message[offset] & 0xFF) != 0)
+        {
+            if ((labelLength & 0xC0) != 0)
+                return null;
+
+            for (int i = offset + 1; i <= offset + labelLength; i++)
+            {
+                char c = (char) (message[i] & 0xFF);
+                sb.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            }
+
+            sb.append('.');
+            offset += labelLength + 1;
+        }
+
+        return sb.append(' ')
+                .append(getShort(message, questionEnd - 4))
+                .append(' ')
+                .append(getShort(message, questionEnd - 2))
+                .toString();
+    }
+
+    /**
+     * Answers to a query with OPT record may be larger than plain DNS allows (RFC 6891) and DO bit asks for DNSSEC
+     * records (RFC 3225), so EDNS and DO bit are part of the key. Key of query without OPT record is its question key.
+     *
+     * @return cache key of query, null if message is malformed
+     */
+    static String getCacheKey(byte[] query, int length)
+    {
+        String key = getQuestionKey(query, length);
+
+        if (key == null)
+            return null;
+
+        int opt = findOpt(query, length);
+
+        if (opt < 0)
+            return key;
+
+        return (getShort(query, opt + 6) & EDNS_FLAG_DO) != 0 ? key + " edns do" : key + " edns";
+    }
+
+    /**
+     * @return offset of type field of OPT record in additional section, -1 if there is none or message is malformed
+     */
+    private static int findOpt(byte[] message, int length)
+    {
+        int offset = getQuestionEnd(message, length);
+
+        if (offset < 0)
+            return -1;
+
+        int additionalStart = getShort(message, 6) + getShort(message, 8);
+        int count = additionalStart + getShort(message, 10);
+
+        for (int i = 0; i < count; i++)
+        {
+            offset = skipName(message, offset, length);
+
+            if (offset < 0 || offset + 10 > length)
+                return -1;
+
+            if (i >= additionalStart && getShort(message, offset) == TYPE_OPT)
+                return offset;
+
+            offset += 10 + getShort(message, offset + 8);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copies question of query over question of response, so letter case of name matches the query (0x20 encoding).
+     * Nothing is copied if questions differ in length.
+     */
+    static void copyQuestion(byte[] query, byte[] response)
+    {
+        int questionEnd = getQuestionEnd(query, query.length);
+
+        if (questionEnd > 0 && questionEnd == getQuestionEnd(response, response.length))
+            System.arraycopy(query, HEADER_SIZE, response, HEADER_SIZE, questionEnd - HEADER_SIZE);
+    }
+
+    /**
+     * @return response with given rcode and question of query, null if query has no header
+     */
+    static byte[] createErrorResponse(byte[] query, int length, int rcode)
+    {
+        if (length < HEADER_SIZE)
+            return null;
+
+        int questionEnd = getQuestionEnd(query, length);
+        byte[] response = Arrays.copyOf(query, questionEnd > 0 ? questionEnd : HEADER_SIZE);
+
+        // keep opcode and RD, drop everything else
+        int flags = (getShort(query, 2) & 0x7900) | FLAG_QR | FLAG_RA | (rcode & 0x0F);
+
+        putShort(response, 2, flags);
+        putShort(response, 4, questionEnd > 0 ? 1 : 0);
+        putShort(response, 6, 0);
+        putShort(response, 8, 0);
+        putShort(response, 10, 0);
+
+        return response;
+    }
+
+    /**
+     * @return TTL fields of all resource records, null if message is malformed
+     */
+    static Records readRecords(byte[] message, int length)
+    {
+        int offset = getQuestionEnd(message, length);
+
+        if (offset < 0)
+            return null;
+
+        int answerCount = getShort(message, 6);
+        int authorityCount = getShort(message, 8);
+        int count = answerCount + authorityCount + getShort(message, 10);
+
+        Records records = new Records();
+        records.answerCount = answerCount;
+        records.ttlOffsets = new int[count];
+        records.ttls = new int[count];
+        records.addresses = new byte[answerCount][];
+
+        int ttlCount = 0;
+        int addressCount = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            offset = skipName(message, offset, length);
+
+            if (offset < 0 || offset + 10 > length)
+                return null;
+
+            int type = getShort(message, offset);
+            int ttlOffset = offset + 4;
+            int dataLength = getShort(message, offset + 8);
+            int dataOffset = offset + 10;
+
+            offset = dataOffset + dataLength;
+
+            if (offset > length)
+                return null;
+
+            if (type == TYPE_OPT)
+                continue;
+
+            // TTL is unsigned 32-bit, values with the top bit set are treated as 0 (RFC 2181)
+            int ttl = getInt(message, ttlOffset);
+
+            if (ttl < 0)
+                ttl = 0;
+
+            if (i < answerCount && ((type == TYPE_A && dataLength == 4) || (type == TYPE_AAAA && dataLength == 16)))
+                records.addresses[addressCount++] = Arrays.copyOfRange(message, dataOffset, offset);
+
+            records.ttlOffsets[ttlCount] = ttlOffset;
+            records.ttls[ttlCount] = ttl;
+            ttlCount++;
+
+            if (type == TYPE_SOA && i >= answerCount && i < answerCount + authorityCount)
+            {
+                int minimumOffset = skipName(message, skipName(message, dataOffset, length), length) + 16;
+
+                if (minimumOffset > dataOffset && minimumOffset + 4 <= offset)
+                    records.soaTtl = Math.min(ttl, Math.max(0, getInt(message, minimumOffset)));
+            }
+        }
+
+        records.ttlOffsets = Arrays.copyOf(records.ttlOffsets, ttlCount);
+        records.ttls = Arrays.copyOf(records.ttls, ttlCount);
+        records.addresses = Arrays.copyOf(records.addresses, addressCount);
+
+        return records;
+    }
+
+    /**
+     * @return offset after name, -1 if name is malformed
+     */
+    private static int skipName(byte[] message, int offset, int length)
+    {
+        if (offset < 0)
+            return -1;
+
+        for (int labels = 0; labels < 128; labels++)
+        {
+            if (offset >= length)
+                return -1;
+
+            int labelLength = message[offset] & 0xFF;
+
+            if (labelLength == 0)
+                return offset + 1;
+
+            if ((labelLength & 0xC0) == 0xC0)
+                return offset + 2 <= length ? offset + 2 : -1;
+
+            if ((labelLength & 0xC0) != 0)
+                return -1;
+
+            offset += labelLength + 1;
+        }
+
+        return -1;
+    }
+
+    static int getShort(byte[] message, int offset)
+    {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+
+    static void putShort(byte[] message, int offset, int value)
+    {
+        message[offset] = (byte) (value >>> 8);
+        message[offset + 1] = (byte) value;
+    }
+
+    static int getInt(byte[] message, int offset)
+    {
+        return (getShort(message, offset) << 16) | getShort(message, offset + 2);
+    }
+
+    static void putInt(byte[] message, int offset, int value)
+    {
+        putShort(message, offset, value >>> 16);
+        putShort(message, offset + 2, value);
+    }
+}
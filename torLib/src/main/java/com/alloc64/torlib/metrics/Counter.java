@@ -0,0 +1,71 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter striped over cache line padded cells, so threads incrementing it concurrently do not contend
+ * on a single atomic. LongAdder would do the same, but it is available since API 24 only.
+ * <p>
+ * Threads are mapped to cells by thread id, {@link #get()} sums all cells and is not an atomic snapshot.
+ */
+public class Counter
+{
+    private static final int MAX_STRIPES = 16;
+    private static final int CELL_PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public Counter()
+    {
+        int stripes = Integer.highestOneBit(Math.max(1, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+
+        this.cells = new AtomicLongArray(stripes * CELL_PADDING);
+        this.mask = stripes - 1;
+    }
+
+    public void increment()
+    {
+        add(1);
+    }
+
+    public void add(long delta)
+    {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    public long get()
+    {
+        long sum = 0;
+
+        for (int i = 0; i <= mask; i++)
+            sum += cells.get(i * CELL_PADDING);
+
+        return sum;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i <= mask; i++)
+            cells.set(i * CELL_PADDING, 0);
+    }
+
+    private int cellIndex()
+    {
+        // thread ids are sequential, spread them so neighbouring threads do not share a cell
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & mask) * CELL_PADDING;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,44 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value which can go up and down, e.g. number of open connections.
+ */
+public class Gauge
+{
+    private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    public void set(double value)
+    {
+        bits.set(Double.doubleToRawLongBits(value));
+    }
+
+    public void add(double delta)
+    {
+        long current;
+
+        do
+        {
+            current = bits.get();
+        }
+        while (!bits.compareAndSet(current, Double.doubleToRawLongBits(Double.longBitsToDouble(current) + delta)));
+    }
+
+    public double get()
+    {
+        return Double.longBitsToDouble(bits.get());
+    }
+
+    @Override
+    public String toString()
+    {
+        return Double.toString(get());
+    }
+}
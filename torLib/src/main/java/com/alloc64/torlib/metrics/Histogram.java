@@ -0,0 +1,146 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values with preallocated log-linear buckets.
+ * <p>
+ * Every power of two range is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets, so relative error
+ * of reported values is at most 1/{@link #SUB_BUCKET_COUNT}. Recording is a few atomic increments and never allocates.
+ */
+public class Histogram
+{
+    public static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    public static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+
+        while (value > (currentMax = max.get()))
+            if (max.compareAndSet(currentMax, value))
+                break;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getSum()
+    {
+        return sum.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * @param percentile percentile in range 0 - 100
+     * @return upper bound of bucket containing given percentile, or 0 if histogram is empty
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+        long[] values = new long[BUCKET_COUNT];
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            values[i] = buckets.get(i);
+            total += values[i];
+        }
+
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long accumulated = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            accumulated += values[i];
+
+            if (accumulated >= target)
+                return Math.min(getBucketUpperBound(i), getMax());
+        }
+
+        return getMax();
+    }
+
+    /**
+     * @return count of values recorded in bucket with given index
+     */
+    public long getBucketValue(int index)
+    {
+        return buckets.get(index);
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+
+        return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    public static long getBucketLowerBound(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = index & (SUB_BUCKET_COUNT - 1);
+
+        return (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    public static long getBucketUpperBound(int index)
+    {
+        if (index >= BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+
+        return getBucketLowerBound(index + 1) - 1;
+    }
+}
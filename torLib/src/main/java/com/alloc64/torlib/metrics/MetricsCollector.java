@@ -0,0 +1,19 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+/**
+ * Source of metrics registered to {@link MetricsRegistry}, values are read when metrics are scraped.
+ */
+public interface MetricsCollector
+{
+    /**
+     * Writes current values. All samples of one metric (e.g. one per label value) must be written one after another.
+     * Called on scraping thread, must not block.
+     */
+    void collect(MetricsWriter writer);
+}
@@ -0,0 +1,209 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Minimal HTTP server exposing {@link MetricsRegistry} in Prometheus text format on GET /metrics.
+ * <p>
+ * Listens on loopback only, scrapers reach it through adb forward or from the device itself.
+ * Requests are handled one by one on a single thread, which is enough for periodic scrapes.
+ */
+public class MetricsHttpServer implements Runnable, Closeable
+{
+    public static final String PATH = "/metrics";
+
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int MAX_HEADER_LINES = 100;
+    private static final long STOP_TIMEOUT = 2000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MetricsRegistry registry;
+
+    private ServerSocket serverSocket;
+    private Thread thread;
+    private volatile boolean running;
+
+    public MetricsHttpServer(MetricsRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    /**
+     * Starts listening on loopback.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @return address the server listens on
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException
+    {
+        if (running)
+            throw new IllegalStateException("Metrics server is already running.");
+
+        this.serverSocket = new ServerSocket();
+
+        try
+        {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        }
+        catch (IOException e)
+        {
+            closeQuietly(serverSocket);
+            throw e;
+        }
+
+        this.running = true;
+
+        this.thread = new Thread(this, "MetricsHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+
+        return getLocalAddress();
+    }
+
+    public InetSocketAddress getLocalAddress()
+    {
+        ServerSocket serverSocket = this.serverSocket;
+        return serverSocket != null ? (InetSocketAddress) serverSocket.getLocalSocketAddress() : null;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (!running)
+            return;
+
+        this.running = false;
+        closeQuietly(serverSocket);
+
+        try
+        {
+            thread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            Socket socket = null;
+
+            try
+            {
+                socket = serverSocket.accept();
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+
+                handle(socket);
+            }
+            catch (IOException e)
+            {
+                if (running)
+                    e.printStackTrace();
+            }
+            finally
+            {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+        String requestLine = reader.readLine();
+
+        if (requestLine == null)
+            return;
+
+        // headers are not needed, but must be read before response is sent
+        for (int i = 0; i < MAX_HEADER_LINES; i++)
+        {
+            String line = reader.readLine();
+
+            if (line == null || line.isEmpty())
+                break;
+        }
+
+        String[] request = requestLine.split(" ");
+        String method = request[0];
+        String path = request.length > 1 ? request[1] : "";
+        int query = path.indexOf('?');
+
+        if (query >= 0)
+            path = path.substring(0, query);
+
+        OutputStream os = socket.getOutputStream();
+
+        if (!"GET".equals(method) && !"HEAD".equals(method))
+        {
+            writeResponse(os, "405 Method Not Allowed", "text/plain", "Method not allowed\n", true);
+            return;
+        }
+
+        if (!PATH.equals(path) && !"/".equals(path))
+        {
+            writeResponse(os, "404 Not Found", "text/plain", "Not found\n", true);
+            return;
+        }
+
+        writeResponse(os, "200 OK", PrometheusTextWriter.CONTENT_TYPE, registry.scrape(), "GET".equals(method));
+    }
+
+    private static void writeResponse(OutputStream os, String status, String contentType, String body, boolean writeBody) throws IOException
+    {
+        byte[] content = body.getBytes(UTF8);
+        String header = String.format(Locale.US, "HTTP/1.1 %s\r\nContent-Type: %s\r\nContent-Length: %d\r\nConnection: close\r\n\r\n",
+                status,
+                contentType,
+                content.length);
+
+        os.write(header.getBytes(ASCII));
+
+        if (writeBody)
+            os.write(content);
+
+        os.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of metrics of the library. Subsystems, which keep their own statistics, implement {@link MetricsCollector}
+ * and are read on scrape. Standalone counters, gauges and histograms can be created by the registry.
+ * <p>
+ * Metrics can be pulled by {@link #scrape()} or {@link #collect(MetricsWriter)}, or served by {@link MetricsHttpServer}.
+ */
+public class MetricsRegistry
+{
+    private final List<MetricsCollector> collectors = new CopyOnWriteArrayList<>();
+
+    public MetricsRegistry register(MetricsCollector collector)
+    {
+        collectors.add(collector);
+        return this;
+    }
+
+    public void unregister(MetricsCollector collector)
+    {
+        collectors.remove(collector);
+    }
+
+    /**
+     * Counters with the same name and different labels must be registered one after another.
+     */
+    public Counter counter(String name, String help, String... labels)
+    {
+        Counter counter = new Counter();
+        register(writer -> writer.counter(name, help, counter.get(), labels));
+
+        return counter;
+    }
+
+    public Gauge gauge(String name, String help, String... labels)
+    {
+        Gauge gauge = new Gauge();
+        register(writer -> writer.gauge(name, help, gauge.get(), labels));
+
+        return gauge;
+    }
+
+    /**
+     * @param scale multiplier converting recorded values to exported unit, e.g. 1e-9 for nanoseconds to seconds
+     */
+    public Histogram histogram(String name, String help, double scale, String... labels)
+    {
+        Histogram histogram = new Histogram();
+        register(writer -> writer.histogram(name, help, histogram, scale, labels));
+
+        return histogram;
+    }
+
+    /**
+     * Writes samples of all collectors. Failing collector is skipped, so one subsystem does not break the scrape.
+     */
+    public void collect(MetricsWriter writer)
+    {
+        for (MetricsCollector collector : collectors)
+        {
+            try
+            {
+                collector.collect(writer);
+            }
+            catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return all metrics in Prometheus text format
+     */
+    public String scrape()
+    {
+        StringBuilder sb = new StringBuilder();
+        collect(new PrometheusTextWriter(sb));
+
+        return sb.toString();
+    }
+}
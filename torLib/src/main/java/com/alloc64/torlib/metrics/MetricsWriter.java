@@ -0,0 +1,37 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+/**
+ * Receives samples from {@link MetricsCollector}s.
+ * <p>
+ * Labels are passed as name, value pairs. Names follow Prometheus conventions:
+ * base units (seconds, bytes) and _total suffix for counters.
+ */
+public interface MetricsWriter
+{
+    void counter(String name, String help, double value, String... labels);
+
+    void gauge(String name, String help, double value, String... labels);
+
+    /**
+     * Writes histogram with bucket bounds at powers of two of recorded values, between a microsecond and 1000 seconds
+     * for time in seconds. Bounds are the same for every histogram of given scale, so histograms can be aggregated.
+     * Bucket of bound 2^k counts values less than 2^k, as these are tracked exactly by {@link Histogram}.
+     *
+     * @param scale multiplier converting recorded values to exported unit, e.g. 1e-9 for nanoseconds to seconds
+     */
+    void histogram(String name, String help, Histogram histogram, double scale, String... labels);
+
+    /**
+     * @param upperBounds       inclusive bucket bounds in ascending order
+     * @param cumulativeCounts  count of values less than or equal to each bound
+     * @param count             count of all values
+     * @param sum               sum of all values
+     */
+    void histogram(String name, String help, double[] upperBounds, long[] cumulativeCounts, long count, double sum, String... labels);
+}
@@ -0,0 +1,378 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming parser of Prometheus text exposition format 0.0.4, as served by tor MetricsPort.
+ * <p>
+ * Input is read in chunks and every line is parsed in place from bytes, without regular expressions or per-line
+ * strings, so only names, label values and help texts are allocated. Timestamps of samples are ignored.
+ * Parser reuses its buffers and must not be used by multiple threads at once.
+ */
+public class PrometheusTextParser
+{
+    public interface Handler
+    {
+        void onHelp(String family, String help);
+
+        /**
+         * @param type counter, gauge, histogram, summary or untyped
+         */
+        void onType(String family, String type);
+
+        /**
+         * @param labels name, value pairs
+         */
+        void onSample(String name, String[] labels, double value);
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_EXACT_DIGITS = 18;
+    private static final String[] NO_LABELS = new String[0];
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final List<String> labels = new ArrayList<>();
+
+    private byte[] line = new byte[1024];
+    private byte[] scratch = new byte[1024];
+    private int position;
+    private int end;
+
+    /**
+     * Reads stream to its end, stream is not closed.
+     *
+     * @return number of parsed samples
+     * @throws IOException on read error or malformed line
+     */
+    public int parse(InputStream is, Handler handler) throws IOException
+    {
+        int length = 0;
+        int samples = 0;
+        int read;
+
+        while ((read = is.read(buffer)) != -1)
+        {
+            int start = 0;
+
+            while (start < read)
+            {
+                int newline = indexOf(buffer, start, read, (byte) '\n');
+                int chunkEnd = newline >= 0 ? newline : read;
+
+                length = append(length, start, chunkEnd - start);
+
+                if (newline < 0)
+                    break;
+
+                if (parseLine(length, handler))
+                    samples++;
+
+                length = 0;
+                start = newline + 1;
+            }
+        }
+
+        if (length > 0 && parseLine(length, handler))
+            samples++;
+
+        return samples;
+    }
+
+    private int append(int length, int offset, int count) throws IOException
+    {
+        if (length + count > line.length)
+        {
+            if (length + count > MAX_LINE_LENGTH)
+                throw new IOException("Line is longer than " + MAX_LINE_LENGTH + " bytes.");
+
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, Math.max(line.length * 2, length + count)));
+        }
+
+        System.arraycopy(buffer, offset, line, length, count);
+        return length + count;
+    }
+
+    /**
+     * @return true if line was a sample
+     */
+    private boolean parseLine(int length, Handler handler) throws IOException
+    {
+        this.position = 0;
+        this.end = length;
+
+        if (end > 0 && line[end - 1] == '\r')
+            end--;
+
+        skipWhitespace();
+
+        if (position == end)
+            return false;
+
+        if (line[position] == '#')
+        {
+            parseComment(handler);
+            return false;
+        }
+
+        String name = readName();
+
+        if (name.isEmpty())
+            throw malformed();
+
+        String[] sampleLabels = NO_LABELS;
+
+        skipWhitespace();
+
+        if (position < end && line[position] == '{')
+        {
+            position++;
+            sampleLabels = readLabels();
+        }
+
+        skipWhitespace();
+
+        int valueStart = position;
+
+        while (position < end && !isWhitespace(line[position]))
+            position++;
+
+        if (position == valueStart)
+            throw malformed();
+
+        // optional timestamp follows, it is not needed
+        handler.onSample(name, sampleLabels, parseValue(valueStart, position));
+        return true;
+    }
+
+    private void parseComment(Handler handler) throws IOException
+    {
+        position++;
+        skipWhitespace();
+
+        int keywordStart = position;
+
+        while (position < end && !isWhitespace(line[position]))
+            position++;
+
+        boolean help = matches(keywordStart, position, "HELP");
+
+        if (!help && !matches(keywordStart, position, "TYPE"))
+            return;
+
+        skipWhitespace();
+        String family = readName();
+
+        if (family.isEmpty())
+            throw malformed();
+
+        if (position < end)
+            position++;
+
+        if (help)
+        {
+            handler.onHelp(family, readEscaped(end, false));
+        }
+        else
+        {
+            skipWhitespace();
+            handler.onType(family, new String(line, position, end - position, ASCII).trim());
+        }
+    }
+
+    private String[] readLabels() throws IOException
+    {
+        labels.clear();
+
+        while (true)
+        {
+            skipWhitespace();
+
+            if (position >= end)
+                throw malformed();
+
+            if (line[position] == '}')
+            {
+                position++;
+                break;
+            }
+
+            String labelName = readName();
+            skipWhitespace();
+
+            if (labelName.isEmpty() || position >= end || line[position] != '=')
+                throw malformed();
+
+            position++;
+            skipWhitespace();
+
+            if (position >= end || line[position] != '"')
+                throw malformed();
+
+            position++;
+            labels.add(labelName);
+            labels.add(readEscaped(end, true));
+
+            skipWhitespace();
+
+            if (position < end && line[position] == ',')
+                position++;
+        }
+
+        return labels.toArray(new String[labels.size()]);
+    }
+
+    /**
+     * Reads text with \\, \n and (if quoted) \" escapes, up to closing quote or limit.
+     */
+    private String readEscaped(int limit, boolean quoted) throws IOException
+    {
+        if (scratch.length < limit)
+            scratch = new byte[line.length];
+
+        int length = 0;
+
+        while (position < limit)
+        {
+            byte b = line[position++];
+
+            if (quoted && b == '"')
+                return new String(scratch, 0, length, UTF8);
+
+            if (b == '\\' && position < limit)
+            {
+                byte escaped = line[position++];
+
+                if (escaped == 'n')
+                {
+                    b = '\n';
+                }
+                else if (escaped == '\\' || escaped == '"')
+                {
+                    b = escaped;
+                }
+                else
+                {
+                    // unknown escape is kept as is
+                    scratch[length++] = '\\';
+                    b = escaped;
+                }
+            }
+
+            scratch[length++] = b;
+        }
+
+        if (quoted)
+            throw malformed();
+
+        return new String(scratch, 0, length, UTF8);
+    }
+
+    private String readName()
+    {
+        int start = position;
+
+        while (position < end && isNameChar(line[position], position == start))
+            position++;
+
+        return new String(line, start, position - start, ASCII);
+    }
+
+    private double parseValue(int start, int end)
+    {
+        int i = start;
+        boolean negative = false;
+
+        if (line[i] == '-' || line[i] == '+')
+        {
+            negative = line[i] == '-';
+            i++;
+        }
+
+        // integers, which are most of tor samples, are parsed without allocation
+        if (i < end && end - i <= MAX_EXACT_DIGITS)
+        {
+            long value = 0;
+            int j = i;
+
+            while (j < end && line[j] >= '0' && line[j] <= '9')
+                value = value * 10 + (line[j++] - '0');
+
+            if (j == end)
+                return negative ? -value : value;
+        }
+
+        String s = new String(line, i, end - i, ASCII);
+
+        if (s.equals("Inf"))
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+
+        if (s.equals("NaN"))
+            return Double.NaN;
+
+        try
+        {
+            double value = Double.parseDouble(s);
+            return negative ? -value : value;
+        }
+        catch (NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    private boolean matches(int start, int end, String keyword)
+    {
+        if (end - start != keyword.length())
+            return false;
+
+        for (int i = 0; i < keyword.length(); i++)
+            if (line[start + i] != keyword.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private void skipWhitespace()
+    {
+        while (position < end && isWhitespace(line[position]))
+            position++;
+    }
+
+    private IOException malformed()
+    {
+        return new IOException("Malformed metrics line: " + new String(line, 0, end, UTF8));
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isNameChar(byte b, boolean first)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_' || b == ':' || (!first && b >= '0' && b <= '9');
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b)
+    {
+        for (int i = from; i < to; i++)
+            if (bytes[i] == b)
+                return i;
+
+        return -1;
+    }
+}
@@ -0,0 +1,194 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes samples in Prometheus text exposition format 0.0.4.
+ * <p>
+ * See https://prometheus.io/docs/instrumenting/exposition_formats/
+ */
+public class PrometheusTextWriter implements MetricsWriter
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final long MAX_EXACT_LONG = 1L << 53;
+    private static final double MIN_BOUND = 1e-6;
+    private static final double MAX_BOUND = 1e3;
+    private static final MathContext BOUND_PRECISION = new MathContext(6);
+
+    private final StringBuilder sb;
+    private final Set<String> writtenFamilies = new HashSet<>();
+    private String family;
+
+    public PrometheusTextWriter(StringBuilder sb)
+    {
+        this.sb = sb;
+    }
+
+    @Override
+    public void counter(String name, String help, double value, String... labels)
+    {
+        beginFamily(name, "counter", help);
+        writeSample(name, null, labels, null, null, value);
+    }
+
+    @Override
+    public void gauge(String name, String help, double value, String... labels)
+    {
+        beginFamily(name, "gauge", help);
+        writeSample(name, null, labels, null, null, value);
+    }
+
+    @Override
+    public void histogram(String name, String help, Histogram histogram, double scale, String... labels)
+    {
+        int minExponent = exponentOf(MIN_BOUND / scale);
+        int maxExponent = Math.max(minExponent, exponentOf(MAX_BOUND / scale));
+
+        double[] upperBounds = new double[maxExponent - minExponent + 1];
+        long[] cumulativeCounts = new long[upperBounds.length];
+        long count = 0;
+        int bucket = 0;
+
+        // values less than 2^k are exactly the buckets below bucket of 2^k
+        for (int k = minExponent; k <= maxExponent; k++)
+        {
+            int boundBucket = Histogram.bucketIndex(1L << k);
+
+            for (; bucket < boundBucket; bucket++)
+                count += histogram.getBucketValue(bucket);
+
+            upperBounds[k - minExponent] = (1L << k) * scale;
+            cumulativeCounts[k - minExponent] = count;
+        }
+
+        for (; bucket < Histogram.BUCKET_COUNT; bucket++)
+            count += histogram.getBucketValue(bucket);
+
+        histogram(name, help, upperBounds, cumulativeCounts, count, histogram.getSum() * scale, labels);
+    }
+
+    @Override
+    public void histogram(String name, String help, double[] upperBounds, long[] cumulativeCounts, long count, double sum, String... labels)
+    {
+        beginFamily(name, "histogram", help);
+
+        for (int i = 0; i < upperBounds.length; i++)
+            writeSample(name, "_bucket", labels, "le", formatBound(upperBounds[i]), cumulativeCounts[i]);
+
+        writeSample(name, "_bucket", labels, "le", "+Inf", count);
+        writeSample(name, "_sum", labels, null, null, sum);
+        writeSample(name, "_count", labels, null, null, count);
+    }
+
+    private void beginFamily(String name, String type, String help)
+    {
+        if (name.equals(family))
+            return;
+
+        if (!writtenFamilies.add(name))
+            throw new IllegalStateException("Samples of " + name + " are not written one after another.");
+
+        this.family = name;
+
+        sb.append("# HELP ").append(name).append(' ');
+        escape(help, false);
+        sb.append('\n');
+
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void writeSample(String name, String suffix, String[] labels, String extraLabel, String extraValue, double value)
+    {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels of " + name + " must be name, value pairs.");
+
+        sb.append(name);
+
+        if (suffix != null)
+            sb.append(suffix);
+
+        if (labels.length > 0 || extraLabel != null)
+        {
+            sb.append('{');
+
+            for (int i = 0; i < labels.length; i += 2)
+                writeLabel(labels[i], labels[i + 1], i == 0);
+
+            if (extraLabel != null)
+                writeLabel(extraLabel, extraValue, labels.length == 0);
+
+            sb.append('}');
+        }
+
+        sb.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private void writeLabel(String name, String value, boolean first)
+    {
+        if (!first)
+            sb.append(',');
+
+        sb.append(name).append("=\"");
+        escape(value != null ? value : "", true);
+        sb.append('"');
+    }
+
+    private void escape(String s, boolean quote)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '"' && quote)
+                sb.append("\\\"");
+            else
+                sb.append(c);
+        }
+    }
+
+    /**
+     * @return smallest exponent k, so 2^k is at least value, in range 0 - 62
+     */
+    private static int exponentOf(double value)
+    {
+        int k = 0;
+
+        while (k < 62 && (double) (1L << k) < value)
+            k++;
+
+        return k;
+    }
+
+    private static String formatBound(double value)
+    {
+        return new BigDecimal(value).round(BOUND_PRECISION).stripTrailingZeros().toPlainString();
+    }
+
+    private static String formatValue(double value)
+    {
+        if (Double.isNaN(value))
+            return "NaN";
+
+        if (Double.isInfinite(value))
+            return value > 0 ? "+Inf" : "-Inf";
+
+        if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_LONG)
+            return Long.toString((long) value);
+
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,517 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically scrapes tor MetricsPort (see {@link com.alloc64.torlib.TorConfig#setMetricsPort(String)}) and exposes
+ * the last scraped samples through {@link MetricsRegistry}, so tor internals not covered by the control protocol
+ * are exported together with metrics of the library.
+ * <p>
+ * Samples of counter families are exported as counters, all others (including parts of histograms and summaries)
+ * as gauges. Samples are dropped when scrape fails, so stale values are not exported.
+ * <p>
+ * Metrics are fetched by plain HTTP/1.0 over a socket, like {@link MetricsHttpServer} serves them.
+ * HttpURLConnection is not used, as Android 9+ refuses cleartext HTTP without network security config.
+ */
+public class TorMetricsScraper implements MetricsCollector, Closeable
+{
+    public static final long DEFAULT_INTERVAL = 30 * 1000;
+
+    private static final String PATH = "/metrics";
+    private static final int DEFAULT_TIMEOUT = 5000;
+    private static final int MAX_HEADER_LINES = 100;
+    private static final int MAX_HEADER_LINE_LENGTH = 8192;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public static class Sample
+    {
+        private final String name;
+        private final String[] labels;
+        private final double value;
+
+        private Sample(String name, String[] labels, double value)
+        {
+            this.name = name;
+            this.labels = labels;
+            this.value = value;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return label value, null if sample does not have the label
+         */
+        public String getLabel(String labelName)
+        {
+            for (int i = 0; i < labels.length; i += 2)
+                if (labels[i].equals(labelName))
+                    return labels[i + 1];
+
+            return null;
+        }
+
+        public double getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + Arrays.toString(labels) + " " + value;
+        }
+    }
+
+    private static class Family
+    {
+        private final String name;
+        private final boolean counter;
+        private final List<Sample> samples = new ArrayList<>();
+        private String help;
+
+        private Family(String name, boolean counter)
+        {
+            this.name = name;
+            this.counter = counter;
+        }
+    }
+
+    /**
+     * Groups samples by name, so samples of one name are written one after another
+     * even if the source interleaves them (e.g. _bucket, _sum and _count of histograms with labels).
+     */
+    private static class SnapshotBuilder implements PrometheusTextParser.Handler
+    {
+        private final Map<String, String> types = new HashMap<>();
+        private final Map<String, String> helps = new HashMap<>();
+        private final Map<String, Family> families = new LinkedHashMap<>();
+
+        @Override
+        public void onHelp(String family, String help)
+        {
+            helps.put(family, help);
+        }
+
+        @Override
+        public void onType(String family, String type)
+        {
+            types.put(family, type);
+        }
+
+        @Override
+        public void onSample(String name, String[] labels, double value)
+        {
+            Family family = families.get(name);
+
+            if (family == null)
+            {
+                String familyName = getFamilyName(name);
+
+                family = new Family(name, "counter".equals(types.get(familyName)));
+                family.help = helps.get(familyName);
+                families.put(name, family);
+            }
+
+            family.samples.add(new Sample(name, labels, value));
+        }
+
+        private String getFamilyName(String name)
+        {
+            if (types.containsKey(name))
+                return name;
+
+            for (String suffix : new String[]{"_bucket", "_sum", "_count"})
+                if (name.endsWith(suffix))
+                    return name.substring(0, name.length() - suffix.length());
+
+            return name;
+        }
+    }
+
+    /**
+     * Body of response with Content-Length, fails if connection is closed before whole body is read.
+     */
+    private static class ContentInputStream extends FilterInputStream
+    {
+        private long remaining;
+
+        private ContentInputStream(InputStream is, long contentLength)
+        {
+            super(is);
+            this.remaining = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining == 0)
+                return -1;
+
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+
+            if (read == -1)
+                throw new EOFException("Connection closed before end of response, " + remaining + " bytes missing.");
+
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final PrometheusTextParser parser = new PrometheusTextParser();
+    private final Object scrapeLock = new Object();
+    private final Histogram scrapeDuration = new Histogram();
+    private final Counter scrapeFailures = new Counter();
+
+    private volatile List<Family> families = Collections.emptyList();
+    private volatile boolean up;
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param address address of tor MetricsPort
+     */
+    public TorMetricsScraper(InetSocketAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Interval between scrapes, applied on next {@link #start()}.
+     */
+    public TorMetricsScraper setInterval(long intervalMillis)
+    {
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("Interval must be positive.");
+
+        this.interval = intervalMillis;
+        return this;
+    }
+
+    public TorMetricsScraper setTimeout(int timeoutMillis)
+    {
+        this.timeout = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Starts scraping, first scrape is done immediately.
+     */
+    public synchronized void start()
+    {
+        if (executor != null)
+            return;
+
+        ThreadFactory threadFactory = r ->
+        {
+            Thread thread = new Thread(r, "TorMetricsScraper");
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        executor.scheduleWithFixedDelay(this::scrape, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isRunning()
+    {
+        return executor != null;
+    }
+
+    /**
+     * Stops scraping, samples are dropped.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (executor == null)
+            return;
+
+        executor.shutdownNow();
+        this.executor = null;
+
+        synchronized (scrapeLock)
+        {
+            this.families = Collections.emptyList();
+            this.up = false;
+        }
+    }
+
+    /**
+     * Scrapes MetricsPort now, on calling thread.
+     *
+     * @return false if scrape failed
+     */
+    public boolean scrape()
+    {
+        synchronized (scrapeLock)
+        {
+            return scrapeLocked();
+        }
+    }
+
+    private boolean scrapeLocked()
+    {
+        long start = System.nanoTime();
+        Socket socket = new Socket();
+
+        try
+        {
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+
+            SnapshotBuilder builder = new SnapshotBuilder();
+            parser.parse(request(socket), builder);
+
+            this.families = new ArrayList<>(builder.families.values());
+            this.up = true;
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            this.families = Collections.emptyList();
+            this.up = false;
+            scrapeFailures.increment();
+            e.printStackTrace();
+
+            return false;
+        }
+        finally
+        {
+            scrapeDuration.record(System.nanoTime() - start);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Sends GET request and reads response headers.
+     *
+     * @return body of successful response
+     */
+    private InputStream request(Socket socket) throws IOException
+    {
+        String request = String.format(Locale.US, "GET %s HTTP/1.0\r\nHost: %s:%d\r\nAccept: text/plain\r\nConnection: close\r\n\r\n",
+                PATH,
+                address.getHostString(),
+                address.getPort());
+
+        OutputStream os = socket.getOutputStream();
+        os.write(request.getBytes(ASCII));
+        os.flush();
+
+        InputStream is = new BufferedInputStream(socket.getInputStream());
+        String statusLine = readLine(is);
+        String[] status = statusLine.split(" ", 3);
+
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Malformed response from " + address + ": " + statusLine);
+
+        if (!"200".equals(status[1]))
+            throw new IOException("Unexpected response " + statusLine + " from " + address);
+
+        long contentLength = -1;
+
+        for (int i = 0; ; i++)
+        {
+            if (i == MAX_HEADER_LINES)
+                throw new IOException("Too many response headers from " + address);
+
+            String line = readLine(is);
+
+            if (line.isEmpty())
+                break;
+
+            int colon = line.indexOf(':');
+
+            if (colon < 0)
+                continue;
+
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Content-Length"))
+            {
+                try
+                {
+                    contentLength = Long.parseLong(value);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Malformed Content-Length from " + address + ": " + value);
+                }
+            }
+            else if (name.equalsIgnoreCase("Transfer-Encoding") && !value.equalsIgnoreCase("identity"))
+            {
+                // not used in HTTP/1.0 responses
+                throw new IOException("Unsupported Transfer-Encoding from " + address + ": " + value);
+            }
+        }
+
+        return contentLength >= 0 ? new ContentInputStream(is, contentLength) : is;
+    }
+
+    private static String readLine(InputStream is) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int b;
+
+        while ((b = is.read()) != '\n')
+        {
+            if (b == -1)
+                throw new EOFException("Connection closed while reading response headers.");
+
+            if (sb.length() == MAX_HEADER_LINE_LENGTH)
+                throw new IOException("Response header line is too long.");
+
+            sb.append((char) b);
+        }
+
+        int length = sb.length();
+
+        if (length > 0 && sb.charAt(length - 1) == '\r')
+            sb.setLength(length - 1);
+
+        return sb.toString();
+    }
+
+    /**
+     * @return samples of last successful scrape, empty if last scrape failed
+     */
+    public List<Sample> getSamples()
+    {
+        List<Sample> samples = new ArrayList<>();
+
+        for (Family family : families)
+            samples.addAll(family.samples);
+
+        return samples;
+    }
+
+    /**
+     * @param labels name, value pairs the sample must have, other labels of the sample are not compared
+     * @return first sample of given name and labels, null if there is none
+     */
+    public Sample getSample(String name, String... labels)
+    {
+        for (Family family : families)
+        {
+            if (!family.name.equals(name))
+                continue;
+
+            for (Sample sample : family.samples)
+                if (hasLabels(sample, labels))
+                    return sample;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return duration of scrapes in nanoseconds
+     */
+    public Histogram getScrapeDuration()
+    {
+        return scrapeDuration;
+    }
+
+    public long getScrapeFailures()
+    {
+        return scrapeFailures.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer)
+    {
+        List<Family> families = this.families;
+
+        writer.gauge("torlib_tor_metrics_up", "1 if last scrape of tor MetricsPort succeeded.", up ? 1 : 0);
+        writer.counter("torlib_tor_metrics_scrape_failures_total", "Failed scrapes of tor MetricsPort.", scrapeFailures.get());
+        writer.histogram("torlib_tor_metrics_scrape_seconds", "Duration of tor MetricsPort scrapes.", scrapeDuration, 1e-9);
+
+        for (Family family : families)
+        {
+            String help = family.help != null ? family.help : family.name;
+
+            for (Sample sample : family.samples)
+            {
+                if (family.counter)
+                    writer.counter(sample.name, help, sample.value, sample.labels);
+                else
+                    writer.gauge(sample.name, help, sample.value, sample.labels);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+
+    private static boolean hasLabels(Sample sample, String[] labels)
+    {
+        for (int i = 0; i + 1 < labels.length; i += 2)
+            if (!labels[i + 1].equals(sample.getLabel(labels[i])))
+                return false;
+
+        return true;
+    }
+}
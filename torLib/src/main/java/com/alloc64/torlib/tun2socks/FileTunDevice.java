@@ -0,0 +1,116 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * TUN device backed by file descriptor, e.g. VPN interface or one end of datagram socketpair.
+ * <p>
+ * Descriptor may be non-blocking (VPN interface is established non-blocking for native tun2socks). Reads then drain
+ * the descriptor and poll it only once it is empty, so a burst of packets costs one poll and one read per packet.
+ */
+public class FileTunDevice implements TunDevice
+{
+    /**
+     * poll is not woken up by closing the descriptor from another thread, so it is repeated to notice close.
+     */
+    private static final int POLL_TIMEOUT = 500;
+
+    private final FileDescriptor fd;
+    private final FileChannel input;
+    private final FileChannel output;
+    private final Closeable owner;
+
+    /**
+     * @param owner closed together with device, e.g. ParcelFileDescriptor, which owns the descriptor, may be null
+     */
+    public FileTunDevice(FileDescriptor fd, Closeable owner)
+    {
+        this.fd = fd;
+        this.input = new FileInputStream(fd).getChannel();
+        this.output = new FileOutputStream(fd).getChannel();
+        this.owner = owner;
+    }
+
+    @Override
+    public int read(ByteBuffer packet) throws IOException
+    {
+        while (true)
+        {
+            int length = input.read(packet);
+
+            // 0 means non-blocking descriptor is drained
+            if (length != 0)
+                return length;
+
+            if (!awaitReadable())
+                return -1;
+        }
+    }
+
+    /**
+     * @return false if device was closed or hung up
+     */
+    private boolean awaitReadable() throws IOException
+    {
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+
+        while (input.isOpen())
+        {
+            try
+            {
+                if (Os.poll(new StructPollfd[]{pollfd}, POLL_TIMEOUT) == 0)
+                    continue;
+            }
+            catch (ErrnoException e)
+            {
+                if (e.errno == OsConstants.EINTR)
+                    continue;
+
+                throw new IOException(e);
+            }
+
+            if ((pollfd.revents & OsConstants.POLLIN) != 0)
+                return true;
+
+            if ((pollfd.revents & (OsConstants.POLLERR | OsConstants.POLLHUP | OsConstants.POLLNVAL)) != 0)
+                return false;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException
+    {
+        output.write(packet);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        input.close();
+        output.close();
+
+        if (owner != null)
+            owner.close();
+    }
+}
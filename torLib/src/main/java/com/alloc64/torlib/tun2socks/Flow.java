@@ -0,0 +1,65 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Flow owned by single {@link Shard}, all methods are called on shard thread.
+ */
+abstract class Flow
+{
+    final FlowKey key;
+    final Shard shard;
+
+    SelectionKey selectionKey;
+    long lastActivity;
+    boolean closed;
+
+    Flow(FlowKey key, Shard shard)
+    {
+        this.key = key;
+        this.shard = shard;
+        this.lastActivity = shard.now();
+    }
+
+    /**
+     * Called when channel of flow is ready for operations.
+     */
+    abstract void onSelected(int readyOps) throws IOException;
+
+    /**
+     * Called periodically, drives timeouts and retransmissions.
+     */
+    abstract void onTick(long now) throws IOException;
+
+    /**
+     * Releases channel and buffers and removes flow from shard.
+     */
+    abstract void close();
+
+    /**
+     * Called when flow failed, closes it by default.
+     */
+    void abort()
+    {
+        close();
+    }
+
+    void setInterest(int ops, boolean enabled)
+    {
+        if (selectionKey == null || !selectionKey.isValid())
+            return;
+
+        int current = selectionKey.interestOps();
+        int updated = enabled ? current | ops : current & ~ops;
+
+        if (updated != current)
+            selectionKey.interestOps(updated);
+    }
+}
@@ -0,0 +1,82 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+/**
+ * Identifies flow by app address and remote address. Mutable, so shards can look up flows without allocation,
+ * keys stored in flow tables must not be modified.
+ */
+final class FlowKey
+{
+    int appIp;
+    int appPort;
+    int remoteIp;
+    int remotePort;
+
+    FlowKey()
+    {
+    }
+
+    FlowKey(FlowKey key)
+    {
+        set(key.appIp, key.appPort, key.remoteIp, key.remotePort);
+    }
+
+    FlowKey set(int appIp, int appPort, int remoteIp, int remotePort)
+    {
+        this.appIp = appIp;
+        this.appPort = appPort;
+        this.remoteIp = remoteIp;
+        this.remotePort = remotePort;
+        return this;
+    }
+
+    static int hash(int appIp, int appPort, int remoteIp, int remotePort)
+    {
+        int h = appIp;
+        h = 31 * h + remoteIp;
+        h = 31 * h + ((appPort << 16) | remotePort);
+
+        // spread bits, so that shard index is not dominated by ports
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+
+        return h;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash(appIp, appPort, remoteIp, remotePort);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof FlowKey))
+            return false;
+
+        FlowKey other = (FlowKey) o;
+
+        return appIp == other.appIp && appPort == other.appPort && remoteIp == other.remoteIp && remotePort == other.remotePort;
+    }
+
+    @Override
+    public String toString()
+    {
+        return ipToString(appIp) + ":" + appPort + " -> " + ipToString(remoteIp) + ":" + remotePort;
+    }
+
+    static String ipToString(int ip)
+    {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+}
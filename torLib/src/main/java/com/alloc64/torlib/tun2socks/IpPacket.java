@@ -0,0 +1,256 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parsing and building of IPv4 TCP/UDP packets. Parsed values are kept in reused instance, so parsing does not allocate.
+ * Checksums of incoming packets are not verified, packets come from local kernel.
+ */
+final class IpPacket
+{
+    static final int PROTOCOL_TCP = 6;
+    static final int PROTOCOL_UDP = 17;
+
+    static final int IP_HEADER_LENGTH = 20;
+    static final int TCP_HEADER_LENGTH = 20;
+    static final int UDP_HEADER_LENGTH = 8;
+
+    static final int FIN = 0x01;
+    static final int SYN = 0x02;
+    static final int RST = 0x04;
+    static final int PSH = 0x08;
+    static final int ACK = 0x10;
+
+    static final int DEFAULT_MSS = 536;
+
+    int protocol;
+    int sourceIp;
+    int destinationIp;
+    int sourcePort;
+    int destinationPort;
+
+    // TCP only
+    int seq;
+    int ack;
+    int flags;
+    int window;
+    int mss;
+
+    ByteBuffer buffer;
+    int payloadOffset;
+    int payloadLength;
+
+    /**
+     * @return false if packet is not unfragmented IPv4 TCP/UDP packet
+     */
+    boolean parse(ByteBuffer packet)
+    {
+        int length = packet.limit();
+
+        if (length < IP_HEADER_LENGTH || (packet.get(0) & 0xF0) != 0x40)
+            return false;
+
+        int ipHeaderLength = (packet.get(0) & 0x0F) * 4;
+        int totalLength = Math.min(packet.getShort(2) & 0xFFFF, length);
+
+        // MF flag or fragment offset
+        if ((packet.getShort(6) & 0x3FFF) != 0)
+            return false;
+
+        this.buffer = packet;
+        this.protocol = packet.get(9) & 0xFF;
+        this.sourceIp = packet.getInt(12);
+        this.destinationIp = packet.getInt(16);
+
+        int offset = ipHeaderLength;
+
+        if (protocol == PROTOCOL_TCP)
+        {
+            if (totalLength < offset + TCP_HEADER_LENGTH)
+                return false;
+
+            int tcpHeaderLength = ((packet.get(offset + 12) & 0xF0) >> 4) * 4;
+
+            if (tcpHeaderLength < TCP_HEADER_LENGTH || totalLength < offset + tcpHeaderLength)
+                return false;
+
+            this.sourcePort = packet.getShort(offset) & 0xFFFF;
+            this.destinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            this.seq = packet.getInt(offset + 4);
+            this.ack = packet.getInt(offset + 8);
+            this.flags = packet.get(offset + 13) & 0x3F;
+            this.window = packet.getShort(offset + 14) & 0xFFFF;
+            this.mss = (flags & SYN) != 0 ? parseMss(packet, offset + TCP_HEADER_LENGTH, offset + tcpHeaderLength) : 0;
+            this.payloadOffset = offset + tcpHeaderLength;
+            this.payloadLength = totalLength - payloadOffset;
+
+            return true;
+        }
+
+        if (protocol == PROTOCOL_UDP)
+        {
+            if (totalLength < offset + UDP_HEADER_LENGTH)
+                return false;
+
+            this.sourcePort = packet.getShort(offset) & 0xFFFF;
+            this.destinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            this.payloadOffset = offset + UDP_HEADER_LENGTH;
+            this.payloadLength = Math.min(packet.getShort(offset + 4) & 0xFFFF, totalLength - offset) - UDP_HEADER_LENGTH;
+
+            return payloadLength >= 0;
+        }
+
+        return false;
+    }
+
+    private static int parseMss(ByteBuffer packet, int offset, int end)
+    {
+        while (offset < end)
+        {
+            int kind = packet.get(offset) & 0xFF;
+
+            if (kind == 0)
+                break;
+
+            if (kind == 1)
+            {
+                offset++;
+                continue;
+            }
+
+            if (offset + 1 >= end)
+                break;
+
+            int length = packet.get(offset + 1) & 0xFF;
+
+            if (length < 2)
+                break;
+
+            if (kind == 2 && length == 4 && offset + 4 <= end)
+                return packet.getShort(offset + 2) & 0xFFFF;
+
+            offset += length;
+        }
+
+        return DEFAULT_MSS;
+    }
+
+    /**
+     * Writes TCP packet into out (cleared first), payload is copied from payload buffer, which is not modified.
+     */
+    static void writeTcp(ByteBuffer out,
+                         int sourceIp, int sourcePort,
+                         int destinationIp, int destinationPort,
+                         int seq, int ack, int flags, int window, int mssOption,
+                         ByteBuffer payload, int payloadOffset, int payloadLength)
+    {
+        int tcpHeaderLength = TCP_HEADER_LENGTH + (mssOption > 0 ? 4 : 0);
+        int tcpLength = tcpHeaderLength + payloadLength;
+
+        out.clear();
+        writeIpHeader(out, IP_HEADER_LENGTH + tcpLength, PROTOCOL_TCP, sourceIp, destinationIp);
+
+        out.putShort((short) sourcePort);
+        out.putShort((short) destinationPort);
+        out.putInt(seq);
+        out.putInt(ack);
+        out.put((byte) ((tcpHeaderLength / 4) << 4));
+        out.put((byte) flags);
+        out.putShort((short) Math.min(window, 0xFFFF));
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        if (mssOption > 0)
+        {
+            out.put((byte) 2);
+            out.put((byte) 4);
+            out.putShort((short) mssOption);
+        }
+
+        putPayload(out, payload, payloadOffset, payloadLength);
+
+        int pseudo = pseudoHeaderSum(sourceIp, destinationIp, PROTOCOL_TCP, tcpLength);
+        out.putShort(IP_HEADER_LENGTH + 16, (short) checksum(out, IP_HEADER_LENGTH, tcpLength, pseudo));
+        out.flip();
+    }
+
+    static void writeUdp(ByteBuffer out,
+                         int sourceIp, int sourcePort,
+                         int destinationIp, int destinationPort,
+                         ByteBuffer payload, int payloadOffset, int payloadLength)
+    {
+        int udpLength = UDP_HEADER_LENGTH + payloadLength;
+
+        out.clear();
+        writeIpHeader(out, IP_HEADER_LENGTH + udpLength, PROTOCOL_UDP, sourceIp, destinationIp);
+
+        out.putShort((short) sourcePort);
+        out.putShort((short) destinationPort);
+        out.putShort((short) udpLength);
+        out.putShort((short) 0);
+
+        putPayload(out, payload, payloadOffset, payloadLength);
+
+        int pseudo = pseudoHeaderSum(sourceIp, destinationIp, PROTOCOL_UDP, udpLength);
+        int checksum = checksum(out, IP_HEADER_LENGTH, udpLength, pseudo);
+        out.putShort(IP_HEADER_LENGTH + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        out.flip();
+    }
+
+    private static void writeIpHeader(ByteBuffer out, int totalLength, int protocol, int sourceIp, int destinationIp)
+    {
+        out.put((byte) 0x45);
+        out.put((byte) 0);
+        out.putShort((short) totalLength);
+        out.putShort((short) 0);
+        out.putShort((short) 0x4000);
+        out.put((byte) 64);
+        out.put((byte) protocol);
+        out.putShort((short) 0);
+        out.putInt(sourceIp);
+        out.putInt(destinationIp);
+        out.putShort(10, (short) checksum(out, 0, IP_HEADER_LENGTH, 0));
+    }
+
+    private static void putPayload(ByteBuffer out, ByteBuffer payload, int offset, int length)
+    {
+        if (length <= 0)
+            return;
+
+        int position = payload.position();
+        int limit = payload.limit();
+
+        payload.limit(offset + length).position(offset);
+        out.put(payload);
+        payload.limit(limit).position(position);
+    }
+
+    private static int pseudoHeaderSum(int sourceIp, int destinationIp, int protocol, int length)
+    {
+        return (sourceIp >>> 16) + (sourceIp & 0xFFFF) + (destinationIp >>> 16) + (destinationIp & 0xFFFF) + protocol + length;
+    }
+
+    static int checksum(ByteBuffer buffer, int offset, int length, int initial)
+    {
+        long sum = initial & 0xFFFFFFFFL;
+        int end = offset + length - 1;
+        int i = offset;
+
+        for (; i < end; i += 2)
+            sum += buffer.getShort(i) & 0xFFFF;
+
+        if (i == end)
+            sum += (buffer.get(i) & 0xFF) << 8;
+
+        while ((sum >> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+
+        return (int) (~sum & 0xFFFF);
+    }
+}
@@ -0,0 +1,337 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import android.os.ParcelFileDescriptor;
+
+import com.alloc64.torlib.Tun2SocksConfig;
+import com.alloc64.torlib.utils.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java data plane, alternative to native tun2socks.
+ * <p>
+ * Reader thread reads IP packets from TUN into pooled direct buffers and dispatches them to {@link Shard}s by hash of
+ * flow addresses. Every shard runs own selector thread with its part of the flow table, TCP state machines
+ * ({@link TcpFlow}) and NIO connections to SOCKS server. DNS queries (UDP port 53) are forwarded to udpgw address
+ * (transparent DNS, same as native implementation), other UDP and IPv6 traffic is dropped.
+ * <p>
+ * {@link Tun2SocksConfig} is interpreted as follows: tcpWindow is size of per connection buffer towards SOCKS
+ * (advertised receive window, at most 64 KiB), tcpSendBuffer is size of per connection buffer towards app,
+ * socksReceiveBufferSize is SO_RCVBUF of SOCKS sockets. {@link Tun2SocksConfig#DEFAULT} values mean 64 KiB buffers
+ * and system default SO_RCVBUF.
+ * <p>
+ * Engine can be driven by any {@link TunDevice}, so it can be tested without VPN, e.g. over socketpair.
+ */
+public class JavaTun2Socks implements Tun2SocksEngine
+{
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WINDOW = 0xFFFF;
+    private static final int MAX_POOLED_PACKETS = 2048;
+    private static final int MAX_POOLED_FLOW_BUFFERS = 64;
+    private static final long STOP_TIMEOUT = 2000;
+
+    /**
+     * Single run of engine, from createInterface to destroyInterface.
+     */
+    static class Session implements Runnable
+    {
+        private final TunDevice device;
+        private final InetSocketAddress socksServerAddress;
+        private final InetSocketAddress dnsServerAddress;
+        private final int mtu;
+        private final int socksReceiveBufferSize;
+        private final BufferPool packetPool;
+        private final BufferPool toSocksPool;
+        private final BufferPool fromSocksPool;
+        private final Shard[] shards;
+
+        private volatile boolean running = true;
+        private Thread readerThread;
+
+        private Session(TunDevice device, InetSocketAddress socksServerAddress, InetSocketAddress dnsServerAddress, Tun2SocksConfig config, int shardCount) throws IOException
+        {
+            this.device = device;
+            this.socksServerAddress = socksServerAddress;
+            this.dnsServerAddress = dnsServerAddress;
+            this.mtu = config.getMtu();
+            this.socksReceiveBufferSize = config.getSocksReceiveBufferSize();
+
+            int toSocksSize = config.getTcpWindow() > 0 ? Math.min(config.getTcpWindow(), MAX_WINDOW) : MAX_WINDOW;
+            int fromSocksSize = config.getTcpSendBuffer() > 0 ? config.getTcpSendBuffer() : DEFAULT_BUFFER_SIZE;
+
+            this.packetPool = new BufferPool(mtu, MAX_POOLED_PACKETS);
+            this.toSocksPool = new BufferPool(toSocksSize, MAX_POOLED_FLOW_BUFFERS);
+            this.fromSocksPool = new BufferPool(fromSocksSize, MAX_POOLED_FLOW_BUFFERS);
+
+            this.shards = new Shard[shardCount];
+
+            for (int i = 0; i < shardCount; i++)
+                shards[i] = new Shard(i, this);
+        }
+
+        private void start()
+        {
+            for (Shard shard : shards)
+                shard.start();
+
+            this.readerThread = new Thread(this, "T2J-reader");
+            readerThread.start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (running)
+                {
+                    ByteBuffer packet = packetPool.acquire();
+
+                    int length = device.read(packet);
+
+                    if (length < 0)
+                        break;
+
+                    packet.flip();
+
+                    if (length == 0 || !shards[shardIndex(packet)].enqueue(packet))
+                        packetPool.release(packet);
+                }
+            }
+            catch (IOException e)
+            {
+                if (running)
+                    e.printStackTrace();
+            }
+            finally
+            {
+                this.running = false;
+
+                for (Shard shard : shards)
+                    shard.stop();
+            }
+        }
+
+        /**
+         * Packets of the same flow always go to the same shard.
+         */
+        private int shardIndex(ByteBuffer packet)
+        {
+            if (shards.length == 1 || packet.limit() < IpPacket.IP_HEADER_LENGTH + 4)
+                return 0;
+
+            int ipHeaderLength = (packet.get(0) & 0x0F) * 4;
+
+            if (packet.limit() < ipHeaderLength + 4)
+                return 0;
+
+            int hash = FlowKey.hash(packet.getInt(12),
+                    packet.getShort(ipHeaderLength) & 0xFFFF,
+                    packet.getInt(16),
+                    packet.getShort(ipHeaderLength + 2) & 0xFFFF);
+
+            return (hash & Integer.MAX_VALUE) % shards.length;
+        }
+
+        private void stop()
+        {
+            this.running = false;
+
+            for (Shard shard : shards)
+                shard.stop();
+
+            if (readerThread != null)
+                readerThread.interrupt();
+
+            try
+            {
+                device.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            try
+            {
+                for (Shard shard : shards)
+                    shard.join(STOP_TIMEOUT);
+
+                if (readerThread != null)
+                    readerThread.join(STOP_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Called from shard threads.
+         */
+        void write(ByteBuffer packet)
+        {
+            try
+            {
+                device.write(packet);
+            }
+            catch (IOException e)
+            {
+                if (running)
+                    e.printStackTrace();
+            }
+        }
+
+        boolean isRunning()
+        {
+            return running;
+        }
+
+        int getMtu()
+        {
+            return mtu;
+        }
+
+        int getSocksReceiveBufferSize()
+        {
+            return socksReceiveBufferSize;
+        }
+
+        InetSocketAddress getSocksServerAddress()
+        {
+            return socksServerAddress;
+        }
+
+        InetSocketAddress getDnsServerAddress()
+        {
+            return dnsServerAddress;
+        }
+
+        BufferPool getPacketPool()
+        {
+            return packetPool;
+        }
+
+        BufferPool getToSocksPool()
+        {
+            return toSocksPool;
+        }
+
+        BufferPool getFromSocksPool()
+        {
+            return fromSocksPool;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final int shardCount;
+    private volatile Session session;
+
+    public JavaTun2Socks()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public JavaTun2Socks(int shardCount)
+    {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("At least one shard is required.");
+
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * vpnIpAddress and vpnNetMask are not needed, flows are identified by addresses in packets.
+     */
+    @Override
+    public void createInterface(int vpnInterfaceFileDescriptor,
+                                String vpnIpAddress,
+                                String vpnNetMask,
+                                String socksServerAddress,
+                                String udpgwServerAddress,
+                                Tun2SocksConfig config)
+    {
+        ParcelFileDescriptor fd = ParcelFileDescriptor.adoptFd(vpnInterfaceFileDescriptor);
+
+        try
+        {
+            createInterface(new FileTunDevice(fd.getFileDescriptor(), fd),
+                    parseAddress(socksServerAddress),
+                    udpgwServerAddress != null ? parseAddress(udpgwServerAddress) : null,
+                    config);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to start T2J.", e);
+        }
+    }
+
+    /**
+     * Starts engine on given device, ownership of device is transferred to engine.
+     *
+     * @param dnsServerAddress address where DNS queries are forwarded, null to drop them
+     */
+    public void createInterface(TunDevice device,
+                                InetSocketAddress socksServerAddress,
+                                InetSocketAddress dnsServerAddress,
+                                Tun2SocksConfig config) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (isInterfaceRunning())
+            {
+                device.close();
+                throw new IllegalStateException("T2J is already running.");
+            }
+
+            // previous session ended by itself (e.g. TUN was closed)
+            if (this.session != null)
+                this.session.stop();
+
+            Session session = new Session(device, socksServerAddress, dnsServerAddress, config, shardCount);
+            session.start();
+
+            this.session = session;
+        }
+    }
+
+    @Override
+    public void destroyInterface()
+    {
+        synchronized (lock)
+        {
+            Session session = this.session;
+
+            if (session == null)
+                return;
+
+            session.stop();
+            this.session = null;
+        }
+    }
+
+    @Override
+    public boolean isInterfaceRunning()
+    {
+        Session session = this.session;
+        return session != null && session.isRunning();
+    }
+
+    private static InetSocketAddress parseAddress(String address)
+    {
+        int separator = address.lastIndexOf(':');
+
+        if (separator < 0)
+            throw new IllegalArgumentException("Invalid address " + address);
+
+        return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+    }
+}
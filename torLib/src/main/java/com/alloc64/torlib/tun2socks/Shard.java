@@ -0,0 +1,383 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import com.alloc64.torlib.utils.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Part of flow table with its own selector thread. Every flow is owned by exactly one shard (chosen by hash of its addresses),
+ * so flows are processed without locking.
+ * <p>
+ * Packets read from TUN are queued by reader thread, selector is woken up at most once per batch of queued packets.
+ */
+class Shard implements Runnable
+{
+    private static final long TICK_INTERVAL = 100;
+    private static final int MAX_QUEUED_PACKETS = 1024;
+    private static final int MAX_UDP_PAYLOAD = 0xFFFF - IpPacket.IP_HEADER_LENGTH - IpPacket.UDP_HEADER_LENGTH;
+
+    private final int index;
+    private final JavaTun2Socks.Session session;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<ByteBuffer> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private final Map<FlowKey, TcpFlow> tcpFlows = new HashMap<>();
+    private final Map<FlowKey, UdpFlow> udpFlows = new HashMap<>();
+    private final FlowKey lookupKey = new FlowKey();
+    private final IpPacket packet = new IpPacket();
+    private final Random random = new Random();
+
+    private final ByteBuffer out;
+    private final ByteBuffer udpBuffer;
+
+    private Thread thread;
+    private long now;
+    private long nextTick;
+
+    Shard(int index, JavaTun2Socks.Session session) throws IOException
+    {
+        this.index = index;
+        this.session = session;
+        this.selector = Selector.open();
+        this.out = ByteBuffer.allocateDirect(session.getMtu());
+        // whole datagram is read, so responses larger than MTU are not truncated by read
+        this.udpBuffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD);
+        this.now = currentTime();
+    }
+
+    void start()
+    {
+        this.thread = new Thread(this, "T2J-shard-" + index);
+        thread.start();
+    }
+
+    void stop()
+    {
+        selector.wakeup();
+    }
+
+    void join(long timeoutMillis) throws InterruptedException
+    {
+        if (thread != null)
+            thread.join(timeoutMillis);
+    }
+
+    /**
+     * Called from reader thread.
+     *
+     * @return false if packet was not queued, because shard is overloaded
+     */
+    boolean enqueue(ByteBuffer packet)
+    {
+        if (queued.incrementAndGet() > MAX_QUEUED_PACKETS)
+        {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        inbound.offer(packet);
+
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (session.isRunning())
+            {
+                selector.select(TICK_INTERVAL);
+                wakeupPending.set(false);
+
+                this.now = currentTime();
+
+                processInbound();
+                processSelected();
+
+                if (now >= nextTick)
+                {
+                    this.nextTick = now + TICK_INTERVAL;
+                    tick();
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            cleanup();
+        }
+    }
+
+    private void processInbound()
+    {
+        ByteBuffer buffer;
+
+        while ((buffer = inbound.poll()) != null)
+        {
+            queued.decrementAndGet();
+
+            try
+            {
+                if (packet.parse(buffer))
+                    processPacket();
+            }
+            finally
+            {
+                session.getPacketPool().release(buffer);
+            }
+        }
+    }
+
+    private void processPacket()
+    {
+        lookupKey.set(packet.sourceIp, packet.sourcePort, packet.destinationIp, packet.destinationPort);
+
+        if (packet.protocol == IpPacket.PROTOCOL_TCP)
+        {
+            TcpFlow flow = tcpFlows.get(lookupKey);
+
+            if (flow == null)
+            {
+                if ((packet.flags & (IpPacket.SYN | IpPacket.ACK)) == IpPacket.SYN)
+                    openTcpFlow();
+                else if ((packet.flags & IpPacket.RST) == 0)
+                    resetUnknown();
+
+                return;
+            }
+
+            try
+            {
+                flow.onPacket(packet);
+            }
+            catch (IOException e)
+            {
+                flow.abort();
+            }
+        }
+        else if (packet.protocol == IpPacket.PROTOCOL_UDP)
+        {
+            if (packet.destinationPort != UdpFlow.DNS_PORT || session.getDnsServerAddress() == null)
+                return;
+
+            UdpFlow flow = udpFlows.get(lookupKey);
+
+            try
+            {
+                if (flow == null)
+                {
+                    FlowKey key = new FlowKey(lookupKey);
+                    flow = new UdpFlow(key, this, session.getDnsServerAddress());
+                    udpFlows.put(key, flow);
+                }
+
+                flow.onPacket(packet);
+            }
+            catch (IOException e)
+            {
+                if (flow != null)
+                    flow.close();
+            }
+        }
+    }
+
+    private void openTcpFlow()
+    {
+        FlowKey key = new FlowKey(lookupKey);
+
+        try
+        {
+            tcpFlows.put(key, new TcpFlow(key, this, packet, random.nextInt(), session.getSocksServerAddress()));
+        }
+        catch (IOException e)
+        {
+            sendTcp(key, IpPacket.RST | IpPacket.ACK, 0, packet.seq + 1, 0, 0, null, 0, 0);
+        }
+    }
+
+    private void resetUnknown()
+    {
+        if ((packet.flags & IpPacket.ACK) != 0)
+        {
+            sendTcp(lookupKey, IpPacket.RST, packet.ack, 0, 0, 0, null, 0, 0);
+        }
+        else
+        {
+            int length = packet.payloadLength + ((packet.flags & IpPacket.FIN) != 0 ? 1 : 0);
+            sendTcp(lookupKey, IpPacket.RST | IpPacket.ACK, 0, packet.seq + length, 0, 0, null, 0, 0);
+        }
+    }
+
+    private void processSelected()
+    {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+        while (iterator.hasNext())
+        {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            Flow flow = (Flow) key.attachment();
+
+            if (!key.isValid() || flow.closed)
+                continue;
+
+            try
+            {
+                flow.onSelected(key.readyOps());
+            }
+            catch (IOException e)
+            {
+                flow.abort();
+            }
+        }
+    }
+
+    private void tick()
+    {
+        List<Flow> flows = new ArrayList<>(tcpFlows.size() + udpFlows.size());
+        flows.addAll(tcpFlows.values());
+        flows.addAll(udpFlows.values());
+
+        for (Flow flow : flows)
+        {
+            try
+            {
+                flow.onTick(now);
+            }
+            catch (IOException e)
+            {
+                flow.abort();
+            }
+        }
+    }
+
+    private void cleanup()
+    {
+        List<Flow> flows = new ArrayList<>(tcpFlows.values());
+        flows.addAll(udpFlows.values());
+
+        for (Flow flow : flows)
+            flow.close();
+
+        ByteBuffer buffer;
+
+        while ((buffer = inbound.poll()) != null)
+            session.getPacketPool().release(buffer);
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, Flow flow) throws IOException
+    {
+        return channel.register(selector, ops, flow);
+    }
+
+    void remove(Flow flow)
+    {
+        if (flow instanceof TcpFlow)
+            tcpFlows.remove(flow.key);
+        else
+            udpFlows.remove(flow.key);
+    }
+
+    void sendTcp(FlowKey key, int flags, int seq, int ack, int window, int mss, ByteBuffer payload, int offset, int length)
+    {
+        IpPacket.writeTcp(out,
+                key.remoteIp, key.remotePort,
+                key.appIp, key.appPort,
+                seq, ack, flags, window, mss,
+                payload, offset, length);
+
+        session.write(out);
+    }
+
+    void sendUdp(FlowKey key, ByteBuffer payload, int offset, int length)
+    {
+        IpPacket.writeUdp(out,
+                key.remoteIp, key.remotePort,
+                key.appIp, key.appPort,
+                payload, offset, length);
+
+        session.write(out);
+    }
+
+    ByteBuffer getUdpBuffer()
+    {
+        return udpBuffer;
+    }
+
+    BufferPool getToSocksPool()
+    {
+        return session.getToSocksPool();
+    }
+
+    BufferPool getFromSocksPool()
+    {
+        return session.getFromSocksPool();
+    }
+
+    /**
+     * @return largest UDP payload, which fits into single packet towards app
+     */
+    int getMaxUdpPayload()
+    {
+        return session.getMtu() - IpPacket.IP_HEADER_LENGTH - IpPacket.UDP_HEADER_LENGTH;
+    }
+
+    int getMaxSegmentSize()
+    {
+        return session.getMtu() - IpPacket.IP_HEADER_LENGTH - IpPacket.TCP_HEADER_LENGTH;
+    }
+
+    int getSocksReceiveBufferSize()
+    {
+        return session.getSocksReceiveBufferSize();
+    }
+
+    long now()
+    {
+        return now;
+    }
+
+    private static long currentTime()
+    {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,533 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP connection of an app, terminated here and relayed to SOCKS server.
+ * <p>
+ * State machine is reduced to what is needed on lossless local link: in-order delivery only (out of order segments
+ * are dropped and recovered by app retransmission), go-back-N retransmission of our data, no window scaling or SACK.
+ * SYN is answered only after SOCKS CONNECT succeeds, failed CONNECT is answered by RST, so apps see connection refused.
+ * <p>
+ * Buffers:
+ * <ul>
+ * <li>toSocks - data received from app, not yet written to SOCKS socket. Its free space is advertised as receive window.</li>
+ * <li>fromSocks - data read from SOCKS socket, not yet acknowledged by app. Index 0 corresponds to sndUna.</li>
+ * </ul>
+ */
+class TcpFlow extends Flow
+{
+    private enum State
+    {
+        Connecting,
+        SynAckSent,
+        Established
+    }
+
+    private static final long CONNECT_TIMEOUT = 60 * 1000;
+    /**
+     * Flows of apps, which disappeared without FIN or RST, are dropped after this time without traffic.
+     * Same as minimal NAT timeout of established TCP connections (RFC 5382), so idle keep-alive connections survive.
+     */
+    private static final long IDLE_TIMEOUT = 2 * 60 * 60 * 1000;
+    /**
+     * Idle timeout once both sides sent FIN.
+     */
+    private static final long CLOSING_TIMEOUT = 60 * 1000;
+    private static final long INITIAL_RTO = 250;
+    private static final long MAX_RTO = 8000;
+    private static final int MAX_RETRANSMITS = 10;
+
+    private final SocketChannel channel;
+    private final ByteBuffer handshake = ByteBuffer.allocate(32);
+
+    private ByteBuffer toSocks;
+    private ByteBuffer fromSocks;
+    private ByteBuffer fromSocksView;
+
+    private State state = State.Connecting;
+    private final int mss;
+    private final int isn;
+    private final long connectDeadline;
+
+    private int rcvNxt;
+    private int sndUna;
+    private int sndNxt;
+    private int appWindow;
+    private int advertisedWindow;
+
+    private boolean appFin;
+    private boolean socksEof;
+    private boolean outputShutdown;
+    private boolean finSent;
+    private boolean finAcked;
+
+    private long rto = INITIAL_RTO;
+    private long retransmitDeadline;
+    private int retransmits;
+
+    TcpFlow(FlowKey key, Shard shard, IpPacket syn, int isn, InetSocketAddress socksServerAddress) throws IOException
+    {
+        super(key, shard);
+
+        this.isn = isn;
+        this.sndUna = isn;
+        this.sndNxt = isn;
+        this.rcvNxt = syn.seq + 1;
+        this.appWindow = syn.window;
+        this.mss = Math.min(syn.mss > 0 ? syn.mss : IpPacket.DEFAULT_MSS, shard.getMaxSegmentSize());
+        this.connectDeadline = shard.now() + CONNECT_TIMEOUT;
+
+        this.channel = SocketChannel.open();
+
+        try
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            if (shard.getSocksReceiveBufferSize() > 0)
+                channel.socket().setReceiveBufferSize(shard.getSocksReceiveBufferSize());
+
+            int ops = channel.connect(socksServerAddress) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+            this.selectionKey = shard.register(channel, ops, this);
+
+            if (ops == SelectionKey.OP_READ)
+                sendSocksRequest();
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void onPacket(IpPacket packet) throws IOException
+    {
+        this.lastActivity = shard.now();
+
+        if ((packet.flags & IpPacket.RST) != 0)
+        {
+            close();
+            return;
+        }
+
+        switch (state)
+        {
+            case Connecting:
+                // duplicate SYN, answered once SOCKS is connected
+                return;
+
+            case SynAckSent:
+                if ((packet.flags & IpPacket.ACK) == 0 || packet.ack != isn + 1)
+                    return;
+
+                this.sndUna = isn + 1;
+                this.state = State.Established;
+                this.rto = INITIAL_RTO;
+                this.retransmits = 0;
+
+                setInterest(SelectionKey.OP_READ, true);
+                break;
+        }
+
+        if ((packet.flags & IpPacket.ACK) != 0)
+            onAck(packet.ack, packet.window);
+
+        boolean ack = false;
+
+        if (packet.payloadLength > 0)
+        {
+            onData(packet);
+            ack = true;
+        }
+
+        if ((packet.flags & IpPacket.FIN) != 0 && !appFin && packet.seq + packet.payloadLength == rcvNxt)
+        {
+            this.appFin = true;
+            this.rcvNxt++;
+            ack = true;
+        }
+
+        if (ack)
+            sendAck();
+
+        flushToSocks();
+        sendToApp();
+        closeIfDone();
+    }
+
+    private void onAck(int ack, int window)
+    {
+        this.appWindow = window;
+
+        int acked = ack - sndUna;
+
+        if (acked <= 0 || acked > sndNxt - sndUna)
+            return;
+
+        int dataAcked = Math.min(acked, fromSocks.position());
+
+        if (dataAcked > 0)
+        {
+            fromSocks.flip();
+            fromSocks.position(dataAcked);
+            fromSocks.compact();
+        }
+
+        if (finSent && ack == sndNxt)
+            this.finAcked = true;
+
+        this.sndUna = ack;
+        this.rto = INITIAL_RTO;
+        this.retransmits = 0;
+        this.retransmitDeadline = sndNxt != sndUna ? shard.now() + rto : 0;
+
+        if (!socksEof && fromSocks.hasRemaining())
+            setInterest(SelectionKey.OP_READ, true);
+    }
+
+    private void onData(IpPacket packet)
+    {
+        if (appFin)
+            return;
+
+        int offset = rcvNxt - packet.seq;
+
+        // out of order or already received, app retransmits or ack is repeated
+        if (offset < 0 || offset >= packet.payloadLength)
+            return;
+
+        int length = Math.min(packet.payloadLength - offset, toSocks.remaining());
+
+        if (length <= 0)
+            return;
+
+        ByteBuffer payload = packet.buffer;
+        payload.limit(packet.payloadOffset + offset + length).position(packet.payloadOffset + offset);
+        toSocks.put(payload);
+
+        this.rcvNxt += length;
+    }
+
+    private void flushToSocks() throws IOException
+    {
+        if (state != State.Established || outputShutdown)
+            return;
+
+        if (toSocks.position() > 0)
+        {
+            toSocks.flip();
+            channel.write(toSocks);
+            toSocks.compact();
+        }
+
+        boolean pending = toSocks.position() > 0;
+        setInterest(SelectionKey.OP_WRITE, pending);
+
+        if (!pending && appFin)
+        {
+            this.outputShutdown = true;
+            channel.socket().shutdownOutput();
+        }
+
+        // window was closed (or almost closed) and is open again, app would not learn about it otherwise
+        if (advertisedWindow < mss && receiveWindow() >= mss && !appFin)
+            sendAck();
+    }
+
+    private void sendToApp()
+    {
+        if (state != State.Established || finSent)
+            return;
+
+        int stored = fromSocks.position();
+        int offset = sndNxt - sndUna;
+        boolean sent = false;
+
+        while (offset < stored && offset < appWindow)
+        {
+            int length = Math.min(Math.min(mss, stored - offset), appWindow - offset);
+            int flags = IpPacket.ACK | (offset + length == stored ? IpPacket.PSH : 0);
+
+            shard.sendTcp(key, flags, sndUna + offset, rcvNxt, receiveWindow(), 0, fromSocksView, offset, length);
+            this.advertisedWindow = receiveWindow();
+
+            offset += length;
+            sent = true;
+        }
+
+        this.sndNxt = sndUna + offset;
+
+        if (socksEof && offset == stored)
+        {
+            shard.sendTcp(key, IpPacket.FIN | IpPacket.ACK, sndNxt, rcvNxt, receiveWindow(), 0, null, 0, 0);
+
+            this.sndNxt++;
+            this.finSent = true;
+            sent = true;
+        }
+
+        if (sent && retransmitDeadline == 0)
+            this.retransmitDeadline = shard.now() + rto;
+    }
+
+    private void sendAck()
+    {
+        shard.sendTcp(key, IpPacket.ACK, sndNxt, rcvNxt, receiveWindow(), 0, null, 0, 0);
+        this.advertisedWindow = receiveWindow();
+    }
+
+    private void sendSynAck()
+    {
+        shard.sendTcp(key, IpPacket.SYN | IpPacket.ACK, isn, rcvNxt, receiveWindow(), mss, null, 0, 0);
+        this.advertisedWindow = receiveWindow();
+        this.sndNxt = isn + 1;
+        this.retransmitDeadline = shard.now() + rto;
+    }
+
+    private int receiveWindow()
+    {
+        return toSocks != null ? Math.min(toSocks.remaining(), 0xFFFF) : 0;
+    }
+
+    @Override
+    void onSelected(int readyOps) throws IOException
+    {
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0)
+        {
+            channel.finishConnect();
+            setInterest(SelectionKey.OP_CONNECT, false);
+            setInterest(SelectionKey.OP_READ, true);
+
+            sendSocksRequest();
+            return;
+        }
+
+        if (state == State.Connecting)
+        {
+            if ((readyOps & SelectionKey.OP_READ) != 0)
+                readSocksReply();
+
+            return;
+        }
+
+        if ((readyOps & SelectionKey.OP_WRITE) != 0)
+            flushToSocks();
+
+        if ((readyOps & SelectionKey.OP_READ) != 0)
+            readFromSocks();
+
+        sendToApp();
+        closeIfDone();
+    }
+
+    private void readFromSocks() throws IOException
+    {
+        if (socksEof || !fromSocks.hasRemaining())
+        {
+            setInterest(SelectionKey.OP_READ, false);
+            return;
+        }
+
+        int read = channel.read(fromSocks);
+
+        if (read > 0)
+            this.lastActivity = shard.now();
+
+        if (read == -1)
+        {
+            this.socksEof = true;
+            setInterest(SelectionKey.OP_READ, false);
+        }
+        else if (!fromSocks.hasRemaining())
+        {
+            setInterest(SelectionKey.OP_READ, false);
+        }
+    }
+
+    /**
+     * Greeting (no authentication) and CONNECT request are sent at once, replies are read in {@link #readSocksReply()}.
+     */
+    private void sendSocksRequest() throws IOException
+    {
+        ByteBuffer request = ByteBuffer.allocate(13);
+        request.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00);
+        request.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00).put((byte) 0x01);
+        request.putInt(key.remoteIp);
+        request.putShort((short) key.remotePort);
+        request.flip();
+
+        // fits into empty socket buffer of freshly connected socket
+        channel.write(request);
+
+        if (request.hasRemaining())
+            throw new IOException("Unable to send SOCKS request.");
+
+        // method reply (2 bytes) + reply header up to first byte of address
+        handshake.clear();
+        handshake.limit(7);
+    }
+
+    /**
+     * Reads exactly the reply length, so no data following the reply is consumed.
+     */
+    private void readSocksReply() throws IOException
+    {
+        if (channel.read(handshake) == -1)
+            throw new IOException("SOCKS server closed connection.");
+
+        if (handshake.hasRemaining())
+            return;
+
+        if (handshake.limit() == 7)
+        {
+            if (handshake.get(0) != 0x05 || handshake.get(1) != 0x00)
+                throw new IOException("SOCKS authentication rejected.");
+
+            if (handshake.get(3) != 0x00)
+            {
+                // CONNECT failed, app sees connection refused
+                abort();
+                return;
+            }
+
+            int addressLength;
+
+            switch (handshake.get(5))
+            {
+                case 0x01:
+                    addressLength = 4;
+                    break;
+
+                case 0x03:
+                    addressLength = 1 + (handshake.get(6) & 0xFF);
+                    break;
+
+                case 0x04:
+                    addressLength = 16;
+                    break;
+
+                default:
+                    throw new IOException("Invalid SOCKS reply.");
+            }
+
+            handshake.limit(2 + 4 + addressLength + 2);
+
+            if (handshake.hasRemaining())
+                return;
+        }
+
+        this.toSocks = shard.getToSocksPool().acquire();
+        this.fromSocks = shard.getFromSocksPool().acquire();
+        this.fromSocksView = fromSocks.duplicate();
+        this.state = State.SynAckSent;
+
+        // SOCKS data are read after handshake is acknowledged by app
+        setInterest(SelectionKey.OP_READ, false);
+        sendSynAck();
+    }
+
+    @Override
+    void onTick(long now)
+    {
+        // deadline is fixed, so SYN retransmitted by app does not extend it
+        if (state == State.Connecting)
+        {
+            if (now > connectDeadline)
+                abort();
+
+            return;
+        }
+
+        if (now - lastActivity > (appFin && finSent ? CLOSING_TIMEOUT : IDLE_TIMEOUT))
+        {
+            abort();
+            return;
+        }
+
+        if (retransmitDeadline == 0 || now < retransmitDeadline)
+            return;
+
+        if (++retransmits > MAX_RETRANSMITS)
+        {
+            abort();
+            return;
+        }
+
+        this.rto = Math.min(rto * 2, MAX_RTO);
+        this.retransmitDeadline = 0;
+
+        if (state == State.SynAckSent)
+        {
+            sendSynAck();
+            return;
+        }
+
+        if (sndNxt == sndUna)
+            return;
+
+        // go back N
+        this.sndNxt = sndUna;
+
+        if (finSent && !finAcked)
+            this.finSent = false;
+
+        sendToApp();
+    }
+
+    private void closeIfDone()
+    {
+        if (appFin && finAcked && outputShutdown)
+            close();
+    }
+
+    /**
+     * Resets connection of app and closes flow.
+     */
+    @Override
+    void abort()
+    {
+        if (closed)
+            return;
+
+        shard.sendTcp(key, IpPacket.RST | IpPacket.ACK, sndNxt, rcvNxt, 0, 0, null, 0, 0);
+        close();
+    }
+
+    @Override
+    void close()
+    {
+        if (closed)
+            return;
+
+        this.closed = true;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        shard.getToSocksPool().release(toSocks);
+        shard.getFromSocksPool().release(fromSocks);
+
+        this.toSocks = null;
+        this.fromSocks = null;
+        this.fromSocksView = null;
+
+        shard.remove(this);
+    }
+}
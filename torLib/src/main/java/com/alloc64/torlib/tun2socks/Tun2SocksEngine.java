@@ -0,0 +1,35 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import com.alloc64.torlib.Tun2SocksConfig;
+
+/**
+ * Data plane, which relays TCP connections from TUN interface to SOCKS server.
+ * <p>
+ * Implemented by native badvpn tun2socks ({@link com.alloc64.jni.TLJNIBridge.Tun2Socks}) and by pure Java {@link JavaTun2Socks}.
+ */
+public interface Tun2SocksEngine
+{
+    /**
+     * Starts relaying packets of given TUN interface. Ownership of file descriptor is transferred to engine.
+     *
+     * @param socksServerAddress SOCKS server in host:port format
+     * @param udpgwServerAddress udpgw server in host:port format, DNS queries are forwarded there (transparent DNS)
+     */
+    void createInterface(
+            int vpnInterfaceFileDescriptor,
+            String vpnIpAddress,
+            String vpnNetMask,
+            String socksServerAddress,
+            String udpgwServerAddress,
+            Tun2SocksConfig config);
+
+    void destroyInterface();
+
+    boolean isInterfaceRunning();
+}
@@ -0,0 +1,27 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet oriented device, every read returns exactly one IP packet and every write sends one.
+ * Write may be called from multiple threads.
+ */
+public interface TunDevice extends Closeable
+{
+    /**
+     * Blocks until packet is available.
+     *
+     * @return length of packet read into buffer, -1 on end of stream
+     */
+    int read(ByteBuffer packet) throws IOException;
+
+    void write(ByteBuffer packet) throws IOException;
+}
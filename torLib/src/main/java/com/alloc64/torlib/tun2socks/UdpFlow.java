@@ -0,0 +1,163 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.tun2socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * DNS query flow. Queries sent by app to any address on port 53 are forwarded to DNS server (transparent DNS),
+ * responses are sent back to app as if they came from original destination.
+ * <p>
+ * Packets towards app are not fragmented, responses larger than MTU are truncated to header and question with TC bit set,
+ * so resolver of app repeats the query over TCP, as it does with any truncated response.
+ */
+class UdpFlow extends Flow
+{
+    static final int DNS_PORT = 53;
+
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int DNS_FLAG_TC = 0x02;
+
+    private final DatagramChannel channel;
+
+    UdpFlow(FlowKey key, Shard shard, InetSocketAddress dnsServerAddress) throws IOException
+    {
+        super(key, shard);
+
+        this.channel = DatagramChannel.open();
+
+        try
+        {
+            channel.configureBlocking(false);
+            channel.connect(dnsServerAddress);
+
+            this.selectionKey = shard.register(channel, SelectionKey.OP_READ, this);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void onPacket(IpPacket packet) throws IOException
+    {
+        this.lastActivity = shard.now();
+
+        ByteBuffer payload = packet.buffer;
+        payload.limit(packet.payloadOffset + packet.payloadLength).position(packet.payloadOffset);
+
+        channel.write(payload);
+    }
+
+    @Override
+    void onSelected(int readyOps) throws IOException
+    {
+        ByteBuffer buffer = shard.getUdpBuffer();
+
+        while (true)
+        {
+            buffer.clear();
+
+            if (channel.read(buffer) <= 0)
+                break;
+
+            this.lastActivity = shard.now();
+
+            buffer.flip();
+
+            int length = buffer.limit() > shard.getMaxUdpPayload() ? truncate(buffer) : buffer.limit();
+
+            if (length > 0)
+                shard.sendUdp(key, buffer, 0, length);
+        }
+    }
+
+    /**
+     * Truncates DNS response in buffer to header and question section and sets TC bit.
+     *
+     * @return length of truncated response, 0 if response is malformed and has to be dropped
+     */
+    private int truncate(ByteBuffer response)
+    {
+        int limit = response.limit();
+
+        if (limit < DNS_HEADER_LENGTH)
+            return 0;
+
+        int offset = DNS_HEADER_LENGTH;
+        int questions = response.getShort(4) & 0xFFFF;
+
+        for (int i = 0; i < questions; i++)
+        {
+            // name, labels or pointer
+            while (true)
+            {
+                if (offset >= limit)
+                    return 0;
+
+                int length = response.get(offset) & 0xFF;
+
+                if ((length & 0xC0) == 0xC0)
+                {
+                    offset += 2;
+                    break;
+                }
+
+                offset += 1 + length;
+
+                if (length == 0)
+                    break;
+            }
+
+            // type and class
+            offset += 4;
+        }
+
+        if (offset > limit || offset > shard.getMaxUdpPayload())
+            return 0;
+
+        response.put(2, (byte) (response.get(2) | DNS_FLAG_TC));
+        response.putShort(6, (short) 0);
+        response.putShort(8, (short) 0);
+        response.putShort(10, (short) 0);
+
+        return offset;
+    }
+
+    @Override
+    void onTick(long now)
+    {
+        if (now - lastActivity > IDLE_TIMEOUT)
+            close();
+    }
+
+    @Override
+    void close()
+    {
+        if (closed)
+            return;
+
+        this.closed = true;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        shard.remove(this);
+    }
+}
@@ -0,0 +1,341 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Allocates local ports for tor listeners and helper daemons.
+ * <p>
+ * Ports are reserved by binding a server socket on loopback, which takes microseconds and cannot race with
+ * other reservations made by this allocator. Reservation is held until {@link Reservation#release()} is called,
+ * which must happen right before the port is handed off to the daemon, that binds it.
+ * Ports of UDP daemons listening on other addresses are reserved by {@link #reserveDatagram(String, int, InetAddress)}.
+ * <p>
+ * Strategies:
+ * <ul>
+ * <li>{@link Strategy#Bind} - preferred port is reserved if free, otherwise kernel assigns a free ephemeral port</li>
+ * <li>{@link Strategy#Auto} - nothing is reserved, tor is configured with "auto" port and real port must be read back
+ * using GETINFO net/listeners/* (see {@link com.alloc64.torlib.control.TorControlSocket#getListeners(String)}).
+ * Only applicable to ports bound by tor itself, {@link #reserve(String, int, boolean)} falls back to Bind otherwise.</li>
+ * <li>{@link Strategy#LastSession} - port, which worked in the last session is reserved, if still free, otherwise behaves like Bind</li>
+ * </ul>
+ */
+public class PortAllocator
+{
+    public static final String AUTO = "auto";
+
+    public enum Strategy
+    {
+        Bind,
+        Auto,
+        LastSession
+    }
+
+    public static class Reservation
+    {
+        private final String name;
+        private int port;
+        private Closeable socket;
+
+        private Reservation(String name, int port, Closeable socket)
+        {
+            this.name = name;
+            this.port = port;
+            this.socket = socket;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return reserved port, or 0 if port is chosen by tor ("auto") and was not resolved yet
+         */
+        public int getPort()
+        {
+            return port;
+        }
+
+        public boolean isAuto()
+        {
+            return port == 0;
+        }
+
+        /**
+         * @return port value usable in TorConfig, either port number or "auto"
+         */
+        public String getTorPortValue()
+        {
+            return isAuto() ? AUTO : String.valueOf(port);
+        }
+
+        /**
+         * Sets port of an "auto" reservation, after it was read back from tor.
+         */
+        public void resolve(int port)
+        {
+            this.port = port;
+        }
+
+        /**
+         * Releases the port, so the daemon can bind it.
+         */
+        public synchronized void release()
+        {
+            if (socket == null)
+                return;
+
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            this.socket = null;
+        }
+    }
+
+    private static final int BIND_ATTEMPTS = 8;
+
+    private final Strategy strategy;
+    private final File sessionFile;
+    private final Map<String, Integer> lastSessionPorts = new LinkedHashMap<>();
+    private final Map<String, Reservation> reservations = new LinkedHashMap<>();
+
+    /**
+     * @param strategy    allocation strategy
+     * @param sessionFile file, where ports of last successful session are stored, used by {@link Strategy#LastSession}, may be null
+     */
+    public PortAllocator(Strategy strategy, File sessionFile)
+    {
+        this.strategy = strategy;
+        this.sessionFile = sessionFile;
+
+        if (strategy == Strategy.LastSession)
+            loadSession();
+    }
+
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * Reserves port.
+     *
+     * @param name          name of the port, used as a key for last session ports
+     * @param preferredPort port reserved if free
+     * @param boundByTor    true if port is a tor listener and may be left for tor to choose ({@link Strategy#Auto})
+     */
+    public synchronized Reservation reserve(String name, int preferredPort, boolean boundByTor) throws IOException
+    {
+        if (strategy == Strategy.Auto && boundByTor)
+        {
+            release(name);
+
+            Reservation reservation = new Reservation(name, 0, null);
+            reservations.put(name, reservation);
+
+            return reservation;
+        }
+
+        return reserve(name, preferredPort, port -> bindStream(port));
+    }
+
+    /**
+     * Reserves UDP port on given address, for daemons which do not listen on loopback (e.g. DNS on VPN gateway address).
+     * Address must be already assigned to an interface.
+     *
+     * @param name          name of the port, used as a key for last session ports
+     * @param preferredPort port reserved if free
+     * @param address       address the daemon binds
+     */
+    public synchronized Reservation reserveDatagram(String name, int preferredPort, InetAddress address) throws IOException
+    {
+        return reserve(name, preferredPort, port -> bindDatagram(address, port));
+    }
+
+    private interface Binder
+    {
+        /**
+         * @return bound socket, null if port is not free
+         */
+        Closeable bind(int port);
+    }
+
+    private Reservation reserve(String name, int preferredPort, Binder binder) throws IOException
+    {
+        release(name);
+
+        Closeable socket = null;
+
+        if (strategy == Strategy.LastSession)
+        {
+            Integer lastPort = lastSessionPorts.get(name);
+
+            if (lastPort != null)
+                socket = tryBind(binder, lastPort);
+        }
+
+        if (socket == null)
+            socket = tryBind(binder, preferredPort);
+
+        for (int i = 0; i < BIND_ATTEMPTS && socket == null; i++)
+            socket = tryBind(binder, 0);
+
+        if (socket == null)
+            throw new IOException("Unable to reserve port for " + name);
+
+        Reservation reservation = new Reservation(name, getLocalPort(socket), socket);
+        reservations.put(name, reservation);
+
+        return reservation;
+    }
+
+    private void release(String name)
+    {
+        Reservation reservation = reservations.get(name);
+
+        if (reservation != null)
+            reservation.release();
+    }
+
+    public synchronized void releaseAll()
+    {
+        for (Reservation reservation : reservations.values())
+            reservation.release();
+    }
+
+    /**
+     * Stores currently reserved (and resolved) ports, so they are preferred by {@link Strategy#LastSession} next time.
+     * Should be called once the ports are verified to work.
+     */
+    public synchronized void saveSession()
+    {
+        if (sessionFile == null)
+            return;
+
+        Properties properties = new Properties();
+
+        for (Reservation reservation : reservations.values())
+            if (!reservation.isAuto())
+                properties.setProperty(reservation.getName(), String.valueOf(reservation.getPort()));
+
+        try (OutputStream os = new FileOutputStream(sessionFile))
+        {
+            properties.store(os, null);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadSession()
+    {
+        if (sessionFile == null || !sessionFile.exists())
+            return;
+
+        Properties properties = new Properties();
+
+        try (InputStream is = new FileInputStream(sessionFile))
+        {
+            properties.load(is);
+
+            for (String name : properties.stringPropertyNames())
+                lastSessionPorts.put(name, Integer.parseInt(properties.getProperty(name)));
+        }
+        catch (Exception e)
+        {
+            // corrupted session file, ports are allocated from scratch
+            lastSessionPorts.clear();
+            e.printStackTrace();
+        }
+    }
+
+    private static Closeable tryBind(Binder binder, int port)
+    {
+        if (port < 0 || port > 0xFFFF)
+            return null;
+
+        return binder.bind(port);
+    }
+
+    private static int getLocalPort(Closeable socket)
+    {
+        return socket instanceof DatagramSocket ? ((DatagramSocket) socket).getLocalPort() : ((ServerSocket) socket).getLocalPort();
+    }
+
+    private static Closeable bindStream(int port)
+    {
+        ServerSocket socket = null;
+
+        try
+        {
+            socket = new ServerSocket();
+            socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 1);
+
+            return socket;
+        }
+        catch (IOException e)
+        {
+            closeQuietly(socket);
+            return null;
+        }
+    }
+
+    private static Closeable bindDatagram(InetAddress address, int port)
+    {
+        DatagramSocket socket = null;
+
+        try
+        {
+            socket = new DatagramSocket(null);
+            socket.bind(new InetSocketAddress(address, port));
+
+            return socket;
+        }
+        catch (IOException e)
+        {
+            closeQuietly(socket);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
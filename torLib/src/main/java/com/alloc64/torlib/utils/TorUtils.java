@@ -12,6 +12,10 @@ import java.util.concurrent.Executors;
 
 public class TorUtils
 {
+    /**
+     * @deprecated probes ports sequentially by connecting with 500ms timeout and is racy, use {@link PortAllocator}
+     */
+    @Deprecated
     public static int checkLocalPort(int port)
     {
         boolean isPortUsed;
@@ -0,0 +1,245 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.http.socks;
+
+import com.alloc64.test.StandIn;
+import com.alloc64.test.TcpStandIn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SocksPolicyProxyTest
+{
+    private static final int TOR_ONION_DESCRIPTOR_NOT_FOUND = 0xF0;
+
+    private final List<SocksFlowRecord> flows = new CopyOnWriteArrayList<>();
+
+    private TcpStandIn upstream;
+    private SocksPolicyProxy proxy;
+    private InetSocketAddress proxyAddress;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.upstream = new TcpStandIn("SocksPortStandIn", this::handle);
+
+        this.proxy = new SocksPolicyProxy(upstream.getAddress())
+                .setPolicy(new DefaultSocksPolicy())
+                .setFlowListener(flows::add);
+
+        this.proxyAddress = proxy.start(0);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        proxy.close();
+        upstream.close();
+    }
+
+    @Test
+    public void relaysConnectedFlow() throws Exception
+    {
+        byte[] data = new byte[256 * 1024];
+        new Random(1).nextBytes(data);
+
+        try (Socket client = connect("example.com", 443))
+        {
+            assertEquals(0, readReply(client));
+
+            AtomicReference<IOException> writeError = new AtomicReference<>();
+            Thread writer = new Thread(() ->
+            {
+                try
+                {
+                    client.getOutputStream().write(data);
+                    client.shutdownOutput();
+                }
+                catch (IOException e)
+                {
+                    writeError.set(e);
+                }
+            });
+
+            writer.start();
+
+            byte[] echoed = new byte[data.length];
+            new DataInputStream(client.getInputStream()).readFully(echoed);
+
+            writer.join(StandIn.TIMEOUT);
+
+            assertNull(writeError.get());
+            assertArrayEquals(data, echoed);
+            assertEquals(-1, client.getInputStream().read());
+        }
+
+        StandIn.awaitSize(flows, 1);
+
+        SocksFlowRecord record = flows.get(0);
+
+        assertEquals("example.com", record.getHost());
+        assertEquals(443, record.getPort());
+        assertEquals(SocksDecision.Action.Proxy, record.getDecision().getAction());
+        assertTrue(record.isEstablished());
+        assertEquals(data.length, record.getBytesSent());
+        assertEquals(data.length, record.getBytesReceived());
+
+        assertEquals(1, proxy.getFlows());
+        assertEquals(data.length, proxy.getBytesSent());
+        assertEquals(data.length, proxy.getBytesReceived());
+        assertEquals("example.com:443", upstream.getRequests().get(0));
+    }
+
+    @Test
+    public void rejectsByPolicy() throws Exception
+    {
+        // SMTP is rejected by default tor exit policy, so DefaultSocksPolicy refuses it without asking tor
+        try (Socket client = connect("mail.example.com", 25))
+        {
+            assertEquals(SocksDecision.REPLY_NOT_ALLOWED, readReply(client));
+            assertEquals(-1, client.getInputStream().read());
+        }
+
+        StandIn.awaitSize(flows, 1);
+
+        assertEquals(SocksDecision.Action.Reject, flows.get(0).getDecision().getAction());
+        assertEquals(SocksDecision.REPLY_NOT_ALLOWED, flows.get(0).getReplyCode());
+        assertTrue(upstream.getRequests().isEmpty());
+    }
+
+    @Test
+    public void passesTorErrorCodeThrough() throws Exception
+    {
+        try (Socket client = connect("missing.onion", 80))
+        {
+            assertEquals(TOR_ONION_DESCRIPTOR_NOT_FOUND, readReply(client));
+            assertEquals(-1, client.getInputStream().read());
+        }
+
+        StandIn.awaitSize(flows, 1);
+
+        SocksFlowRecord record = flows.get(0);
+
+        assertEquals(TOR_ONION_DESCRIPTOR_NOT_FOUND, record.getReplyCode());
+        assertFalse(record.isEstablished());
+        assertEquals("missing.onion:80", upstream.getRequests().get(0));
+    }
+
+    /**
+     * Sends no-auth greeting and CONNECT request for domain name.
+     */
+    private Socket connect(String host, int port) throws IOException
+    {
+        Socket socket = new Socket();
+        socket.setSoTimeout(StandIn.TIMEOUT);
+        socket.connect(proxyAddress, StandIn.TIMEOUT);
+
+        OutputStream os = socket.getOutputStream();
+        DataInputStream is = new DataInputStream(socket.getInputStream());
+
+        os.write(new byte[]{5, 1, 0});
+        os.flush();
+
+        assertEquals(5, is.readUnsignedByte());
+        assertEquals(0, is.readUnsignedByte());
+
+        byte[] hostBytes = host.getBytes(StandardCharsets.US_ASCII);
+
+        os.write(new byte[]{5, 1, 0, 3, (byte) hostBytes.length});
+        os.write(hostBytes);
+        os.write(new byte[]{(byte) (port >>> 8), (byte) port});
+        os.flush();
+
+        return socket;
+    }
+
+    /**
+     * @return reply code of CONNECT reply with IPv4 address
+     */
+    private static int readReply(Socket socket) throws IOException
+    {
+        byte[] reply = new byte[10];
+        new DataInputStream(socket.getInputStream()).readFully(reply);
+
+        assertEquals(5, reply[0]);
+        assertEquals(1, reply[3]);
+
+        return reply[1] & 0xFF;
+    }
+
+    /**
+     * Minimal tor SocksPort: refuses .onion with extended error code, echoes everything else.
+     */
+    private void handle(Socket socket) throws IOException
+    {
+        DataInputStream is = new DataInputStream(socket.getInputStream());
+        OutputStream os = socket.getOutputStream();
+
+        is.readUnsignedByte();
+        int method = 0;
+
+        for (int i = is.readUnsignedByte(); i > 0; i--)
+            method = is.readUnsignedByte();
+
+        os.write(new byte[]{5, (byte) method});
+
+        if (method == 2)
+        {
+            is.readUnsignedByte();
+            is.skipBytes(is.readUnsignedByte());
+            is.skipBytes(is.readUnsignedByte());
+            os.write(new byte[]{1, 0});
+        }
+
+        byte[] header = new byte[4];
+        is.readFully(header);
+
+        byte[] host = new byte[is.readUnsignedByte()];
+        is.readFully(host);
+
+        String destination = new String(host, StandardCharsets.US_ASCII);
+        int port = is.readUnsignedShort();
+
+        upstream.log(destination + ":" + port);
+
+        if (destination.endsWith(".onion"))
+        {
+            os.write(new byte[]{5, (byte) TOR_ONION_DESCRIPTOR_NOT_FOUND, 0, 1, 0, 0, 0, 0, 0, 0});
+            return;
+        }
+
+        os.write(new byte[]{5, 0, 0, 1, 0, 0, 0, 0, 0, 0});
+
+        byte[] buffer = new byte[8192];
+        InputStream in = socket.getInputStream();
+        int read;
+
+        while ((read = in.read(buffer)) != -1)
+            os.write(buffer, 0, read);
+
+        socket.shutdownOutput();
+    }
+}
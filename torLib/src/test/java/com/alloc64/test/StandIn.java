@@ -0,0 +1,61 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.test;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Loopback stand-in for a tor port. Serves on its own daemon thread and keeps a log of requests it has seen.
+ */
+public abstract class StandIn implements Closeable
+{
+    public static final int TIMEOUT = 5000;
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    protected void start(String name)
+    {
+        Thread thread = new Thread(this::serve, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    protected abstract void serve();
+
+    public void log(String request)
+    {
+        requests.add(request);
+    }
+
+    public List<String> getRequests()
+    {
+        return requests;
+    }
+
+    public void awaitRequests(int count) throws InterruptedException
+    {
+        awaitSize(requests, count);
+    }
+
+    /**
+     * Waits until collection filled by another thread reaches count, then asserts the exact size.
+     */
+    public static void awaitSize(Collection<?> collection, int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (collection.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, collection.size());
+    }
+}
@@ -0,0 +1,81 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TCP stand-in, every accepted connection is handled on its own thread and closed afterwards.
+ */
+public class TcpStandIn extends StandIn
+{
+    public interface Handler
+    {
+        void handle(Socket socket) throws IOException;
+    }
+
+    private final ServerSocket serverSocket;
+    private final String name;
+    private final Handler handler;
+
+    public TcpStandIn(String name, Handler handler) throws IOException
+    {
+        this.name = name;
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+
+        start(name);
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    protected void serve()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+
+                Thread thread = new Thread(() -> handle(socket), name + "Connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e)
+            {
+                // closed
+            }
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try (Socket s = socket)
+        {
+            s.setSoTimeout(TIMEOUT);
+            handler.handle(s);
+        }
+        catch (IOException e)
+        {
+            // client went away
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+    }
+}
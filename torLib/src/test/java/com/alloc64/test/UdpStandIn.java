@@ -0,0 +1,79 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * UDP stand-in, datagrams are answered one by one in order of arrival.
+ */
+public class UdpStandIn extends StandIn
+{
+    public interface Handler
+    {
+        /**
+         * @return response, null to drop the request
+         */
+        byte[] handle(byte[] request) throws IOException, InterruptedException;
+    }
+
+    private final DatagramChannel channel;
+    private final Handler handler;
+
+    public UdpStandIn(String name, Handler handler) throws IOException
+    {
+        this.handler = handler;
+        this.channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        start(name);
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected void serve()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        while (channel.isOpen())
+        {
+            try
+            {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                byte[] response = handler.handle(Arrays.copyOf(buffer.array(), buffer.position()));
+
+                if (response != null)
+                    channel.send(ByteBuffer.wrap(response), sender);
+            }
+            catch (IOException e)
+            {
+                // closed
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,77 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class Tun2SocksStatsTest
+{
+    private static final int OFFSET_DEVICE_BYTES_IN = 24;
+    private static final int OFFSET_SEQUENCE = 136;
+
+    @Test
+    public void readsFieldsOfBlock()
+    {
+        ByteBuffer block = ByteBuffer.allocateDirect(144).order(ByteOrder.nativeOrder());
+        block.putLong(0, Tun2SocksStats.VERSION);
+        block.putLong(8, 3);
+        block.putLong(OFFSET_DEVICE_BYTES_IN, 1L << 40);
+
+        Tun2SocksStats stats = new Tun2SocksStats(block);
+
+        assertEquals(Tun2SocksStats.VERSION, stats.getVersion());
+        assertEquals(3, stats.getGeneration());
+        assertEquals(1L << 40, stats.getDeviceBytesIn());
+    }
+
+    /**
+     * Writer does what reactor thread of a 32bit process does, it stores 64bit counter as two 32bit halves
+     * inside the seqlock. Reader must never return a value mixing halves of two updates.
+     */
+    @Test
+    public void neverReadsTornValues() throws InterruptedException
+    {
+        ByteBuffer block = ByteBuffer.allocateDirect(144).order(ByteOrder.nativeOrder());
+        Tun2SocksStats stats = new Tun2SocksStats(block);
+
+        int lowOffset = OFFSET_DEVICE_BYTES_IN + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 4);
+        int highOffset = OFFSET_DEVICE_BYTES_IN + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 4 : 0);
+
+        Thread writer = new Thread(() ->
+        {
+            ByteBuffer view = block.duplicate().order(ByteOrder.nativeOrder());
+
+            for (int i = 0; i < 2000000; i++)
+            {
+                int half = (i & 1) == 0 ? 0 : -1;
+
+                view.putInt(OFFSET_SEQUENCE, view.getInt(OFFSET_SEQUENCE) + 1);
+                view.putInt(lowOffset, half);
+                view.putInt(highOffset, half);
+                view.putInt(OFFSET_SEQUENCE, view.getInt(OFFSET_SEQUENCE) + 1);
+            }
+        });
+
+        writer.start();
+
+        while (writer.isAlive())
+        {
+            long value = stats.getDeviceBytesIn();
+
+            if (value != 0 && value != -1)
+                throw new AssertionError("Torn read " + Long.toHexString(value));
+        }
+
+        writer.join();
+        assertEquals(4000000, block.getInt(OFFSET_SEQUENCE));
+    }
+}
@@ -0,0 +1,497 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.dns;
+
+import com.alloc64.test.StandIn;
+import com.alloc64.test.UdpStandIn;
+import com.alloc64.torlib.control.AddressMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsForwarderTest
+{
+    private static final int TYPE_A = 1;
+    private static final int FLAG_TC = 0x0200;
+
+    /**
+     * Answers of stand-in upstream, chosen by lower-cased query name.
+     */
+    private interface Answerer
+    {
+        /**
+         * @return response, null to drop the query
+         */
+        byte[] answer(byte[] query, String name);
+    }
+
+    private UdpStandIn upstream;
+    private volatile Answerer answerer;
+    private volatile long upstreamDelay;
+
+    private DnsForwarder forwarder;
+    private InetSocketAddress forwarderAddress;
+    private DatagramSocket client;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.upstream = new UdpStandIn("DnsPortStandIn", this::handle);
+
+        this.answerer = (query, name) -> answerA(query, 300);
+
+        this.forwarder = new DnsForwarder(new DnsCache(64).setTtlBounds(0, 3600 * 1000L));
+        forwarder.setTimeout(StandIn.TIMEOUT);
+
+        this.forwarderAddress = forwarder.start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                upstream.getAddress());
+
+        this.client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        client.setSoTimeout(StandIn.TIMEOUT);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        forwarder.close();
+        client.close();
+        upstream.close();
+    }
+
+    @Test
+    public void clampsTtlToBounds()
+    {
+        DnsCache cache = new DnsCache(16).setTtlBounds(60 * 1000, 600 * 1000);
+        long now = 1000000;
+
+        byte[] shortResponse = answerA(query(1, "short"), 5);
+        byte[] longResponse = answerA(query(1, "long"), 86400);
+
+        DnsCache.Entry shortEntry = cache.put("short. 1 1", shortResponse, shortResponse.length, now);
+        DnsCache.Entry longEntry = cache.put("long. 1 1", longResponse, longResponse.length, now);
+
+        assertEquals(60 * 1000, shortEntry.getTtl());
+        assertEquals(600 * 1000, longEntry.getTtl());
+
+        // TTL sent to clients never exceeds the original one, nor remaining cache lifetime
+        assertEquals(5, getTtl(shortEntry.toResponse(7, now)));
+        assertEquals(600, getTtl(longEntry.toResponse(7, now)));
+    }
+
+    @Test
+    public void countsTtlDown() throws IOException
+    {
+        DnsCache cache = new DnsCache(16).setTtlBounds(0, 3600 * 1000L);
+        byte[] response = answerA(query(1, "example.com"), 300);
+        long now = 1000000;
+
+        DnsCache.Entry entry = cache.put("example.com. 1 1", response, response.length, now);
+
+        assertEquals(300, getTtl(entry.toResponse(1, now)));
+        assertEquals(270, getTtl(entry.toResponse(1, now + 30 * 1000)));
+        assertEquals(0, getTtl(entry.toResponse(1, now + 300 * 1000)));
+        assertNull(cache.get("example.com. 1 1", now + 300 * 1000));
+
+        // through the forwarder, answer from cache keeps TTL of upstream answer
+        byte[] first = resolve(0x1111, "example.com");
+        byte[] second = resolve(0x2222, "example.com");
+
+        assertEquals(0x1111, DnsMessage.getId(first));
+        assertEquals(0x2222, DnsMessage.getId(second));
+        assertEquals(300, getTtl(first));
+        assertTrue(getTtl(second) <= 300 && getTtl(second) >= 299);
+        assertEquals(1, upstream.getRequests().size());
+        assertEquals(1, forwarder.getHits());
+    }
+
+    @Test
+    public void cachesNxdomainForSoaMinimum() throws IOException
+    {
+        forwarder.getCache().setNegativeTtl(3600 * 1000L);
+        this.answerer = (query, name) -> answerNxdomain(query, 300, 120);
+
+        byte[] first = resolve(1, "missing.example");
+        byte[] second = resolve(2, "missing.example");
+
+        assertEquals(DnsMessage.RCODE_NXDOMAIN, DnsMessage.getRcode(first));
+        assertEquals(DnsMessage.RCODE_NXDOMAIN, DnsMessage.getRcode(second));
+        assertEquals(1, upstream.getRequests().size());
+        assertEquals(1, forwarder.getNegativeHits());
+
+        DnsCache.Entry entry = forwarder.getCache().get(DnsMessage.getQuestionKey(first, first.length), System.currentTimeMillis());
+
+        assertNotNull(entry);
+        assertTrue(entry.isNegative());
+        assertEquals(120 * 1000, entry.getTtl());
+    }
+
+    @Test
+    public void doesNotCacheServfail() throws IOException
+    {
+        this.answerer = (query, name) -> DnsMessage.createErrorResponse(query, query.length, DnsMessage.RCODE_SERVFAIL);
+
+        assertEquals(DnsMessage.RCODE_SERVFAIL, DnsMessage.getRcode(resolve(1, "broken.example")));
+        assertEquals(DnsMessage.RCODE_SERVFAIL, DnsMessage.getRcode(resolve(2, "broken.example")));
+
+        assertEquals(2, upstream.getRequests().size());
+        assertEquals(0, forwarder.getHits());
+        assertEquals(0, forwarder.getCache().size());
+    }
+
+    @Test
+    public void doesNotCacheTruncated() throws IOException
+    {
+        this.answerer = (query, name) ->
+        {
+            byte[] response = answerA(query, 300);
+            DnsMessage.putShort(response, 2, DnsMessage.getShort(response, 2) | FLAG_TC);
+            return response;
+        };
+
+        assertTrue(DnsMessage.isTruncated(resolve(1, "big.example")));
+        assertTrue(DnsMessage.isTruncated(resolve(2, "big.example")));
+
+        assertEquals(2, upstream.getRequests().size());
+        assertEquals(0, forwarder.getCache().size());
+    }
+
+    @Test
+    public void coalescesIdenticalQueries() throws IOException
+    {
+        this.upstreamDelay = 300;
+
+        DatagramSocket otherClient = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        otherClient.setSoTimeout(StandIn.TIMEOUT);
+
+        try
+        {
+            send(client, query(0x0101, "slow.example"));
+            send(otherClient, query(0x0202, "slow.example"));
+
+            byte[] first = receive(client);
+            byte[] second = receive(otherClient);
+
+            assertEquals(0x0101, DnsMessage.getId(first));
+            assertEquals(0x0202, DnsMessage.getId(second));
+            assertEquals(DnsMessage.RCODE_NOERROR, DnsMessage.getRcode(second));
+        }
+        finally
+        {
+            otherClient.close();
+        }
+
+        assertEquals(1, upstream.getRequests().size());
+        assertEquals(1, forwarder.getMisses());
+        assertEquals(1, forwarder.getCoalesced());
+    }
+
+    @Test
+    public void prefetchesAfterHits() throws Exception
+    {
+        forwarder.getCache().setTtlBounds(0, 3600 * 1000L);
+        forwarder.setPrefetch(2, 0.9);
+        this.answerer = (query, name) -> answerA(query, 1);
+
+        resolve(1, "popular.example");
+
+        // less than 90% of the one second lifetime remains
+        Thread.sleep(150);
+
+        resolve(2, "popular.example");
+        assertEquals(1, upstream.getRequests().size());
+        assertEquals(0, forwarder.getPrefetches());
+
+        resolve(3, "popular.example");
+        upstream.awaitRequests(2);
+
+        assertEquals(1, forwarder.getPrefetches());
+        assertEquals(3, forwarder.getQueries());
+        assertEquals(2, forwarder.getHits());
+    }
+
+    @Test
+    public void answersServfailAfterTimeout() throws IOException
+    {
+        forwarder.setTimeout(200);
+        this.answerer = (query, name) -> null;
+
+        long start = System.nanoTime();
+        byte[] response = resolve(0x4242, "dead.example");
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(0x4242, DnsMessage.getId(response));
+        assertEquals(DnsMessage.RCODE_SERVFAIL, DnsMessage.getRcode(response));
+        assertTrue(elapsed >= 150);
+        assertEquals(1, forwarder.getFailures());
+        assertEquals(0, forwarder.getCache().size());
+    }
+
+    @Test
+    public void echoesQuestionCase() throws IOException
+    {
+        // stand-in answers with lower-cased question
+        byte[] first = resolve(1, "ExAmPlE.CoM");
+        byte[] second = resolve(2, "eXaMpLe.cOm");
+
+        assertArrayEquals(question(query(1, "ExAmPlE.CoM")), question(first));
+        assertArrayEquals(question(query(2, "eXaMpLe.cOm")), question(second));
+        assertEquals(1, upstream.getRequests().size());
+        assertEquals(1, forwarder.getHits());
+    }
+
+    @Test
+    public void cachesByEdnsAndDoBit() throws IOException
+    {
+        byte[] plain = query(1, "signed.example");
+
+        assertEquals("signed.example. 1 1", DnsMessage.getCacheKey(plain, plain.length));
+
+        for (int i = 0; i < 2; i++)
+        {
+            send(client, plain);
+            receive(client);
+            send(client, withOpt(query(2, "signed.example"), false));
+            receive(client);
+            send(client, withOpt(query(3, "signed.example"), true));
+            receive(client);
+        }
+
+        assertEquals(3, upstream.getRequests().size());
+        assertEquals(3, forwarder.getHits());
+        assertEquals(3, forwarder.getCache().size());
+    }
+
+    @Test
+    public void mapsAnswersToQueriedName() throws IOException
+    {
+        AddressMap addressMap = new AddressMap();
+        forwarder.setAddressMap(addressMap);
+
+        resolve(1, "Mapped.Example");
+        assertEquals("mapped.example", addressMap.lookup(new byte[]{10, 0, 0, 1}));
+
+        // answers from cache map the address again
+        addressMap.clear();
+        resolve(2, "mapped.example");
+        assertEquals(1, forwarder.getHits());
+        assertEquals("mapped.example", addressMap.lookup(new byte[]{10, 0, 0, 1}));
+
+        // so do entries restored to the cache
+        addressMap.clear();
+        long now = System.currentTimeMillis();
+        byte[] response = answerA(query(0, "restored.example"), 300);
+        DnsMessage.putShort(response, 0, 0);
+        response[response.length - 1] = 2;
+
+        assertTrue(forwarder.getCache().restore("restored.example. 1 1", response, now, now + 300 * 1000, false, now));
+        assertEquals(2, forwarder.mapCachedAddresses());
+        assertEquals("mapped.example", addressMap.lookup(new byte[]{10, 0, 0, 1}));
+        assertEquals("restored.example", addressMap.lookup(new byte[]{10, 0, 0, 2}));
+    }
+
+    private byte[] resolve(int id, String name) throws IOException
+    {
+        send(client, query(id, name));
+        return receive(client);
+    }
+
+    private void send(DatagramSocket socket, byte[] query) throws IOException
+    {
+        socket.send(new DatagramPacket(query, query.length, forwarderAddress));
+    }
+
+    private static byte[] receive(DatagramSocket socket) throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        socket.receive(packet);
+        return Arrays.copyOf(buffer, packet.getLength());
+    }
+
+    private byte[] handle(byte[] query) throws InterruptedException
+    {
+        String name = getName(query).toLowerCase(Locale.US);
+        upstream.log(name);
+
+        byte[] response = answerer.answer(query, name);
+
+        if (response != null && upstreamDelay > 0)
+            Thread.sleep(upstreamDelay);
+
+        return response;
+    }
+
+    private static byte[] query(int id, String name)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        writeShort(os, id);
+        writeShort(os, 0x0100);
+        writeShort(os, 1);
+        writeShort(os, 0);
+        writeShort(os, 0);
+        writeShort(os, 0);
+        writeName(os, name);
+        writeShort(os, TYPE_A);
+        writeShort(os, 1);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * @return query with OPT record in additional section
+     */
+    private static byte[] withOpt(byte[] query, boolean dnssecOk)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(query, 0, query.length);
+
+        os.write(0);
+        writeShort(os, DnsMessage.TYPE_OPT);
+        writeShort(os, 1232);
+        writeInt(os, dnssecOk ? 0x8000 : 0);
+        writeShort(os, 0);
+
+        byte[] result = os.toByteArray();
+        DnsMessage.putShort(result, 10, 1);
+        return result;
+    }
+
+    /**
+     * @return response with lower-cased question and one A record
+     */
+    private static byte[] answerA(byte[] query, int ttl)
+    {
+        ByteArrayOutputStream os = responseHeader(query, DnsMessage.RCODE_NOERROR, 1, 0);
+
+        writeShort(os, 0xC00C);
+        writeShort(os, TYPE_A);
+        writeShort(os, 1);
+        writeInt(os, ttl);
+        writeShort(os, 4);
+        os.write(10);
+        os.write(0);
+        os.write(0);
+        os.write(1);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * @return NXDOMAIN response with SOA record in authority section
+     */
+    private static byte[] answerNxdomain(byte[] query, int soaTtl, int soaMinimum)
+    {
+        ByteArrayOutputStream os = responseHeader(query, DnsMessage.RCODE_NXDOMAIN, 0, 1);
+
+        writeShort(os, 0xC00C);
+        writeShort(os, DnsMessage.TYPE_SOA);
+        writeShort(os, 1);
+        writeInt(os, soaTtl);
+        writeShort(os, 2 + 5 * 4);
+        os.write(0);
+        os.write(0);
+        writeInt(os, 1);
+        writeInt(os, 7200);
+        writeInt(os, 3600);
+        writeInt(os, 86400);
+        writeInt(os, soaMinimum);
+
+        return os.toByteArray();
+    }
+
+    private static ByteArrayOutputStream responseHeader(byte[] query, int rcode, int answerCount, int authorityCount)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        writeShort(os, DnsMessage.getId(query));
+        writeShort(os, 0x8180 | rcode);
+        writeShort(os, 1);
+        writeShort(os, answerCount);
+        writeShort(os, authorityCount);
+        writeShort(os, 0);
+        writeName(os, getName(query).toLowerCase(Locale.US));
+        writeShort(os, TYPE_A);
+        writeShort(os, 1);
+
+        return os;
+    }
+
+    private static String getName(byte[] message)
+    {
+        StringBuilder sb = new StringBuilder();
+        int offset = DnsMessage.HEADER_SIZE;
+        int length;
+
+        while ((length = message[offset] & 0xFF) != 0)
+        {
+            if (sb.length() > 0)
+                sb.append('.');
+
+            sb.append(new String(message, offset + 1, length, StandardCharsets.US_ASCII));
+            offset += length + 1;
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] question(byte[] message)
+    {
+        return Arrays.copyOfRange(message, DnsMessage.HEADER_SIZE, DnsMessage.getQuestionEnd(message, message.length));
+    }
+
+    /**
+     * @return TTL of the first record after question
+     */
+    private static int getTtl(byte[] message)
+    {
+        return DnsMessage.getInt(message, DnsMessage.getQuestionEnd(message, message.length) + 6);
+    }
+
+    private static void writeName(ByteArrayOutputStream os, String name)
+    {
+        for (String label : name.split("\\."))
+        {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+
+            os.write(bytes.length);
+            os.write(bytes, 0, bytes.length);
+        }
+
+        os.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream os, int value)
+    {
+        os.write(value >>> 8);
+        os.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, int value)
+    {
+        writeShort(os, value >>> 16);
+        writeShort(os, value);
+    }
+}
@@ -0,0 +1,173 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.torlib.metrics;
+
+import com.alloc64.test.TcpStandIn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TorMetricsScraperTest
+{
+    private static final String BODY = ""
+            + "# HELP tor_relay_connections_total Connections by \"type\".\r\n"
+            + "# TYPE tor_relay_connections_total counter\r\n"
+            + "tor_relay_connections_total{type=\"OR\",direction=\"in\"} 12 1633036800000\r\n"
+            + "tor_relay_connections_total{type=\"Exit \\\"x\\\"\\\\y\\nz\",direction=\"out\"} 3\r\n"
+            + "\r\n"
+            + "# HELP tor_circuit_build_seconds Circuit build time.\r\n"
+            + "# TYPE tor_circuit_build_seconds histogram\r\n"
+            + "tor_circuit_build_seconds_bucket{kind=\"general\",le=\"0.5\"} 1\r\n"
+            + "tor_circuit_build_seconds_bucket{kind=\"onion\",le=\"0.5\"} 0\r\n"
+            + "tor_circuit_build_seconds_sum{kind=\"general\"} 0.25\r\n"
+            + "tor_circuit_build_seconds_bucket{kind=\"general\",le=\"+Inf\"} 2 1633036800000\r\n"
+            + "tor_circuit_build_seconds_bucket{kind=\"onion\",le=\"+Inf\"} 1\r\n"
+            + "tor_circuit_build_seconds_count{kind=\"general\"} 2\r\n"
+            + "tor_circuit_build_seconds_sum{kind=\"onion\"} 1.5\r\n"
+            + "tor_circuit_build_seconds_count{kind=\"onion\"} 1\r\n"
+            + "# TYPE tor_load_ratio gauge\r\n"
+            + "tor_load_ratio -0.125\r\n";
+
+    private TcpStandIn server;
+    private volatile String response;
+    private TorMetricsScraper scraper;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.server = new TcpStandIn("MetricsPortStandIn", this::handle);
+
+        this.scraper = new TorMetricsScraper(server.getAddress())
+                .setTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        scraper.close();
+        server.close();
+    }
+
+    @Test
+    public void scrapesSamples()
+    {
+        this.response = ok(BODY);
+
+        assertTrue(scraper.scrape());
+        assertEquals("GET /metrics HTTP/1.0", server.getRequests().get(0));
+        assertEquals(11, scraper.getSamples().size());
+
+        // timestamps are ignored
+        assertEquals(12, scraper.getSample("tor_relay_connections_total", "type", "OR").getValue(), 0);
+        assertEquals(2, scraper.getSample("tor_circuit_build_seconds_bucket", "kind", "general", "le", "+Inf").getValue(), 0);
+
+        TorMetricsScraper.Sample escaped = scraper.getSample("tor_relay_connections_total", "direction", "out");
+        assertEquals("Exit \"x\"\\y\nz", escaped.getLabel("type"));
+        assertEquals(3, escaped.getValue(), 0);
+
+        assertEquals(1.5, scraper.getSample("tor_circuit_build_seconds_sum", "kind", "onion").getValue(), 0);
+        assertEquals(-0.125, scraper.getSample("tor_load_ratio").getValue(), 0);
+        assertNull(scraper.getSample("tor_load_ratio", "kind", "general"));
+    }
+
+    @Test
+    public void exportsSamplesGroupedByName()
+    {
+        this.response = ok(BODY);
+        scraper.scrape();
+
+        String text = scrape();
+
+        assertTrue(text.contains("# TYPE tor_relay_connections_total counter\n"
+                + "tor_relay_connections_total{type=\"OR\",direction=\"in\"} 12\n"
+                + "tor_relay_connections_total{type=\"Exit \\\"x\\\"\\\\y\\nz\",direction=\"out\"} 3\n"));
+
+        assertTrue(text.contains("# TYPE tor_circuit_build_seconds_bucket gauge\n"
+                + "tor_circuit_build_seconds_bucket{kind=\"general\",le=\"0.5\"} 1\n"
+                + "tor_circuit_build_seconds_bucket{kind=\"onion\",le=\"0.5\"} 0\n"
+                + "tor_circuit_build_seconds_bucket{kind=\"general\",le=\"+Inf\"} 2\n"
+                + "tor_circuit_build_seconds_bucket{kind=\"onion\",le=\"+Inf\"} 1\n"));
+
+        assertTrue(text.contains("torlib_tor_metrics_up 1\n"));
+        assertTrue(text.contains("torlib_tor_metrics_scrape_failures_total 0\n"));
+    }
+
+    @Test
+    public void dropsSamplesOnServerError()
+    {
+        this.response = ok(BODY);
+        assertTrue(scraper.scrape());
+
+        this.response = "HTTP/1.0 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n";
+
+        assertFalse(scraper.scrape());
+        assertTrue(scraper.getSamples().isEmpty());
+        assertEquals(1, scraper.getScrapeFailures());
+        assertEquals(2, scraper.getScrapeDuration().getCount());
+
+        String text = scrape();
+
+        assertTrue(text.contains("torlib_tor_metrics_up 0\n"));
+        assertTrue(text.contains("torlib_tor_metrics_scrape_failures_total 1\n"));
+        assertFalse(text.contains("tor_relay_connections_total"));
+    }
+
+    @Test
+    public void failsOnTruncatedBody()
+    {
+        String response = ok(BODY);
+        this.response = response.substring(0, response.length() - 10);
+
+        assertFalse(scraper.scrape());
+        assertTrue(scraper.getSamples().isEmpty());
+        assertEquals(1, scraper.getScrapeFailures());
+    }
+
+    private String scrape()
+    {
+        return new MetricsRegistry()
+                .register(scraper)
+                .scrape();
+    }
+
+    private static String ok(String body)
+    {
+        return "HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; version=0.0.4\r\n"
+                + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                + "\r\n"
+                + body;
+    }
+
+    private void handle(Socket socket) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String line = reader.readLine();
+
+        server.log(line);
+
+        while (line != null && !line.isEmpty())
+            line = reader.readLine();
+
+        OutputStream os = socket.getOutputStream();
+        os.write(response.getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+}
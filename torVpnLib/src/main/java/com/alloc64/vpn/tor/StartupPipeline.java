@@ -0,0 +1,301 @@
+/***********************************************************************
+ * Copyright (c) 2021 Milan Jaitner                                    *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.vpn.tor;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dependency graph of startup stages.
+ * <p>
+ * Stage is scheduled on its executor as soon as all of its dependencies are finished,
+ * so independent stages run concurrently. Asynchronous stages (e.g. waiting for control port connection)
+ * finish when {@link Completion#complete()} is called, not when {@link Stage#run(Completion)} returns.
+ * <p>
+ * Start and end of every stage are recorded (SystemClock.elapsedRealtime) and reported to {@link TraceListener}.
+ */
+public class StartupPipeline
+{
+    public interface Stage
+    {
+        void run(Completion completion) throws Exception;
+    }
+
+    public interface Completion
+    {
+        void complete();
+
+        void fail(Exception e);
+    }
+
+    public interface TraceListener
+    {
+        /**
+         * Dispatched on thread which finished the stage.
+         */
+        void onStageFinished(StageTrace trace);
+
+        /**
+         * Dispatched once, when all stages are finished, or when any of stages failed.
+         */
+        void onPipelineFinished(List<StageTrace> traces, Exception exception);
+    }
+
+    public static class StageTrace
+    {
+        private final String name;
+        private final String threadName;
+        private final long startTimestamp;
+        private final long endTimestamp;
+        private final Exception exception;
+
+        public StageTrace(String name, String threadName, long startTimestamp, long endTimestamp, Exception exception)
+        {
+            this.name = name;
+            this.threadName = threadName;
+            this.startTimestamp = startTimestamp;
+            this.endTimestamp = endTimestamp;
+            this.exception = exception;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getThreadName()
+        {
+            return threadName;
+        }
+
+        public long getStartTimestamp()
+        {
+            return startTimestamp;
+        }
+
+        public long getEndTimestamp()
+        {
+            return endTimestamp;
+        }
+
+        public long getDuration()
+        {
+            return endTimestamp - startTimestamp;
+        }
+
+        public Exception getException()
+        {
+            return exception;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + " [" + threadName + "] " + startTimestamp + " +" + getDuration() + "ms" + (exception != null ? " failed: " + exception : "");
+        }
+    }
+
+    private class Node implements Runnable, Completion
+    {
+        private final String name;
+        private final Executor executor;
+        private final boolean async;
+        private final Stage stage;
+        private final String[] dependencies;
+        private final List<Node> dependents = new ArrayList<>();
+        private final AtomicInteger pendingDependencies = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private volatile String threadName;
+        private volatile long startTimestamp;
+
+        private Node(String name, Executor executor, boolean async, Stage stage, String[] dependencies)
+        {
+            this.name = name;
+            this.executor = executor;
+            this.async = async;
+            this.stage = stage;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public void run()
+        {
+            if (cancelled.get())
+                return;
+
+            this.threadName = Thread.currentThread().getName();
+            this.startTimestamp = SystemClock.elapsedRealtime();
+
+            try
+            {
+                stage.run(this);
+
+                if (!async)
+                    complete();
+            }
+            catch (Exception e)
+            {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void complete()
+        {
+            if (!finished.compareAndSet(false, true))
+                return;
+
+            onNodeFinished(this, null);
+        }
+
+        @Override
+        public void fail(Exception e)
+        {
+            if (!finished.compareAndSet(false, true))
+                return;
+
+            onNodeFinished(this, e);
+        }
+    }
+
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final List<StageTrace> traces = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger remainingStages = new AtomicInteger();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private TraceListener traceListener;
+
+    public StartupPipeline setTraceListener(TraceListener traceListener)
+    {
+        this.traceListener = traceListener;
+        return this;
+    }
+
+    /**
+     * Adds synchronous stage, which is finished when {@link Stage#run(Completion)} returns.
+     */
+    public StartupPipeline addStage(String name, Executor executor, Stage stage, String... dependencies)
+    {
+        return addStage(name, executor, false, stage, dependencies);
+    }
+
+    /**
+     * Adds asynchronous stage, which must call {@link Completion#complete()} or {@link Completion#fail(Exception)} itself.
+     */
+    public StartupPipeline addAsyncStage(String name, Executor executor, Stage stage, String... dependencies)
+    {
+        return addStage(name, executor, true, stage, dependencies);
+    }
+
+    private StartupPipeline addStage(String name, Executor executor, boolean async, Stage stage, String[] dependencies)
+    {
+        if (started.get())
+            throw new IllegalStateException("Pipeline is already started.");
+
+        if (nodes.containsKey(name))
+            throw new IllegalArgumentException("Duplicate stage " + name);
+
+        nodes.put(name, new Node(name, executor, async, stage, dependencies));
+        return this;
+    }
+
+    public void start()
+    {
+        if (!started.compareAndSet(false, true))
+            throw new IllegalStateException("Pipeline is already started.");
+
+        List<Node> roots = new ArrayList<>();
+
+        for (Node node : nodes.values())
+        {
+            for (String dependency : node.dependencies)
+            {
+                Node dependencyNode = nodes.get(dependency);
+
+                if (dependencyNode == null)
+                    throw new IllegalArgumentException("Stage " + node.name + " depends on unknown stage " + dependency);
+
+                dependencyNode.dependents.add(node);
+            }
+
+            node.pendingDependencies.set(node.dependencies.length);
+
+            if (node.dependencies.length == 0)
+                roots.add(node);
+        }
+
+        remainingStages.set(nodes.size());
+
+        for (Node node : roots)
+            node.executor.execute(node);
+    }
+
+    /**
+     * Stops scheduling of stages, which were not started yet. Running stages are not interrupted.
+     */
+    public void cancel()
+    {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled.get();
+    }
+
+    public List<StageTrace> getTraces()
+    {
+        synchronized (traces)
+        {
+            return new ArrayList<>(traces);
+        }
+    }
+
+    private void onNodeFinished(Node node, Exception exception)
+    {
+        StageTrace trace = new StageTrace(node.name, node.threadName, node.startTimestamp, SystemClock.elapsedRealtime(), exception);
+        traces.add(trace);
+
+        TraceListener listener = this.traceListener;
+
+        if (listener != null)
+            listener.onStageFinished(trace);
+
+        if (exception != null)
+        {
+            if (cancelled.compareAndSet(false, true) && listener != null)
+                listener.onPipelineFinished(getTraces(), exception);
+
+            return;
+        }
+
+        if (remainingStages.decrementAndGet() == 0)
+        {
+            if (listener != null)
+                listener.onPipelineFinished(getTraces(), null);
+
+            return;
+        }
+
+        if (cancelled.get())
+            return;
+
+        for (Node dependent : node.dependents)
+            if (dependent.pendingDependencies.decrementAndGet() == 0)
+                dependent.executor.execute(dependent);
+    }
+}
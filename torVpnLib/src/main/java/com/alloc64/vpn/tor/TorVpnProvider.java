@@ -7,19 +7,40 @@
 package com.alloc64.vpn.tor;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.net.VpnService;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.util.Log;
 
+import com.alloc64.http.socks.AdmissionController;
+import com.alloc64.http.socks.SocksDecision;
+import com.alloc64.http.socks.SocksFlowRecord;
+import com.alloc64.http.socks.SocksPolicy;
+import com.alloc64.http.socks.SocksPolicyProxy;
 import com.alloc64.jni.TLJNIBridge;
+import com.alloc64.torlib.ConsensusSeed;
 import com.alloc64.torlib.PdnsdConfig;
 import com.alloc64.torlib.TorConfig;
+import com.alloc64.torlib.Tun2SocksConfig;
+import com.alloc64.torlib.control.AddressMap;
+import com.alloc64.torlib.control.CircuitBuildTimes;
+import com.alloc64.torlib.control.ExitCountryStats;
 import com.alloc64.torlib.control.PasswordDigest;
+import com.alloc64.torlib.control.StreamLatencyTracker;
 import com.alloc64.torlib.control.TorAbstractControlSocket;
 import com.alloc64.torlib.control.TorControlSocket;
 import com.alloc64.torlib.control.TorEventSocket;
-import com.alloc64.torlib.utils.TorUtils;
+import com.alloc64.torlib.dns.DnsCacheSnapshot;
+import com.alloc64.torlib.dns.DnsForwarder;
+import com.alloc64.torlib.metrics.Counter;
+import com.alloc64.torlib.metrics.Histogram;
+import com.alloc64.torlib.metrics.MetricsHttpServer;
+import com.alloc64.torlib.metrics.MetricsRegistry;
+import com.alloc64.torlib.metrics.TorMetricsScraper;
+import com.alloc64.torlib.tun2socks.Tun2SocksEngine;
+import com.alloc64.torlib.utils.PortAllocator;
 import com.alloc64.vpn.BuildConfig;
 import com.alloc64.vpn.VpnError;
 import com.alloc64.vpn.VpnException;
@@ -30,6 +51,7 @@ import org.apache.commons.lang3.StringUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,15 +59,16 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class TorVpnProvider
 {
     private static final String TAG = TorVpnProvider.class.toString();
     private static final long CONNECTION_TIMEOUT = 20 * 1000;
-    private final static int VPN_MTU = 1500;
 
     public static class VpnConfiguration
     {
@@ -118,122 +141,420 @@ public abstract class TorVpnProvider
 
     private static class PortConfiguration
     {
-        private int socksPort;
-        private int controlPort;
-        private int dnsPort;
-        private int udpgwPort;
+        private PortAllocator.Reservation socksPort;
+        private PortAllocator.Reservation controlPort;
+        private PortAllocator.Reservation dnsPort;
+        private PortAllocator.Reservation udpgwPort;
+        private PortAllocator.Reservation metricsPort;
 
-        public int getSocksPort()
+        public PortAllocator.Reservation getSocksPort()
         {
             return socksPort;
         }
 
-        public void setSocksPort(int socksPort)
+        public void setSocksPort(PortAllocator.Reservation socksPort)
         {
             this.socksPort = socksPort;
         }
 
-        public int getControlPort()
+        public PortAllocator.Reservation getControlPort()
         {
             return controlPort;
         }
 
-        public void setControlPort(int controlPort)
+        public void setControlPort(PortAllocator.Reservation controlPort)
         {
             this.controlPort = controlPort;
         }
 
-        public int getDnsPort()
+        public PortAllocator.Reservation getDnsPort()
         {
             return dnsPort;
         }
 
-        public void setDnsPort(int dnsPort)
+        public void setDnsPort(PortAllocator.Reservation dnsPort)
         {
             this.dnsPort = dnsPort;
         }
 
-        public int getUdpgwPort()
+        public PortAllocator.Reservation getUdpgwPort()
         {
             return udpgwPort;
         }
 
-        public void setUdpgwPort(int udpgwPort)
+        public void setUdpgwPort(PortAllocator.Reservation udpgwPort)
         {
             this.udpgwPort = udpgwPort;
         }
+
+        public PortAllocator.Reservation getMetricsPort()
+        {
+            return metricsPort;
+        }
+
+        public void setMetricsPort(PortAllocator.Reservation metricsPort)
+        {
+            this.metricsPort = metricsPort;
+        }
     }
 
+    private static final String STAGE_PORTS = "ports";
+    private static final String STAGE_ASSETS = "assets";
+    private static final String STAGE_TUN = "tun";
+    private static final String STAGE_TOR = "tor";
+    private static final String STAGE_CONTROL_PORT = "control-port";
+    private static final String STAGE_CONFIGURE = "configure";
+    private static final String STAGE_TUN2SOCKS = "tun2socks";
+    private static final String STAGE_BOOTSTRAP = "bootstrap";
+
     private final VpnService ctx;
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
 
     private final File dataDirectory;
     private final PortConfiguration portConfig = new PortConfiguration();
-    private ParcelFileDescriptor tunInterface;
+    private volatile ParcelFileDescriptor tunInterface;
+    private volatile TorControlSocket controlSocket;
 
     private final Executor executor = Executors.newSingleThreadExecutor();
-    private boolean pdnsPortsAssigned = false;
-    private ScheduledFuture<?> pendingConnectionCheck;
+    private final ExecutorService startupExecutor = Executors.newCachedThreadPool();
+    private PortAllocator.Strategy portAllocationStrategy = PortAllocator.Strategy.LastSession;
+    private volatile Tun2SocksConfig tun2SocksConfig = new Tun2SocksConfig();
+    private volatile Tun2SocksEngine tun2SocksEngine;
+    private volatile SocksPolicy socksPolicy;
+    private volatile SocksPolicyProxy.FlowListener socksFlowListener;
+    private volatile AdmissionController socksAdmissionController;
+    private volatile SocksPolicyProxy socksPolicyProxy;
+    private final AddressMap addressMap = new AddressMap();
+    private final ExitCountryStats exitCountryStats = new ExitCountryStats();
+    private final CircuitBuildTimes circuitBuildTimes = new CircuitBuildTimes();
+    private final StreamLatencyTracker streamLatencyTracker = new StreamLatencyTracker();
+    private final File circuitBuildTimesFile;
+    private volatile DnsForwarder dnsForwarder;
+    private final DnsCacheSnapshot dnsCacheSnapshot;
+    private volatile boolean dnsCacheLoaded = false;
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private final Counter connectAttempts = metricsRegistry.counter("torvpn_connect_attempts_total", "Connects started.");
+    private final Counter connects = metricsRegistry.counter("torvpn_connects_total", "Connects which bootstrapped.");
+    private final Counter connectFailures = metricsRegistry.counter("torvpn_connect_failures_total", "Connects which failed or timed out.");
+    private final Counter disconnects = metricsRegistry.counter("torvpn_disconnects_total", "Disconnects of running VPN.");
+    private final Histogram bootstrapTime = metricsRegistry.histogram("torvpn_bootstrap_seconds", "Time from configured tor to usable network.", 1e-3);
+    private MetricsHttpServer metricsHttpServer;
+    private volatile long torMetricsInterval = 0;
+    private volatile TorMetricsScraper torMetricsScraper;
+    private PortAllocator portAllocator;
+    private volatile boolean portsAssigned = false;
+    private final AtomicReference<ScheduledFuture<?>> pendingConnectionCheck = new AtomicReference<>();
+    private volatile ConsensusSeed.Result consensusSeedResult;
+    private PasswordDigest controlPortPassword;
+
+    private StartupPipeline startupPipeline;
+    private StartupPipeline.TraceListener startupTraceListener;
 
     public TorVpnProvider(VpnService ctx)
     {
         this.ctx = ctx;
         this.dataDirectory = new File(ctx.getFilesDir(), "transport");
         dataDirectory.mkdir();
+        this.dnsCacheSnapshot = new DnsCacheSnapshot(new File(dataDirectory, "dns-cache"));
+        this.circuitBuildTimesFile = new File(dataDirectory, "circuit-build-times");
+
+        metricsRegistry
+                .register(writer -> TLJNIBridge.get().collect(writer))
+                .register(exitCountryStats)
+                .register(circuitBuildTimes)
+                .register(streamLatencyTracker)
+                .register(writer ->
+                {
+                    // components below live only while connected, or are replaced on connect
+                    TorControlSocket controlSocket = this.controlSocket;
+                    SocksPolicyProxy socksPolicyProxy = this.socksPolicyProxy;
+                    AdmissionController admissionController = this.socksAdmissionController;
+                    DnsForwarder dnsForwarder = this.dnsForwarder;
+
+                    if (controlSocket != null)
+                        controlSocket.collect(writer);
+
+                    if (socksPolicyProxy != null)
+                        socksPolicyProxy.collect(writer);
+
+                    if (admissionController != null)
+                        admissionController.collect(writer);
+
+                    if (dnsForwarder != null)
+                        dnsForwarder.collect(writer);
+                });
+
+        startupExecutor.execute(this::loadCircuitBuildTimes);
+    }
+
+    /**
+     * Listener receives timings of every startup stage of subsequent connects.
+     */
+    public void setStartupTraceListener(StartupPipeline.TraceListener startupTraceListener)
+    {
+        this.startupTraceListener = startupTraceListener;
+    }
+
+    /**
+     * Strategy used to allocate local ports. Ports are allocated on first connect and kept for app lifetime,
+     * so strategy must be set before that.
+     */
+    public void setPortAllocationStrategy(PortAllocator.Strategy portAllocationStrategy)
+    {
+        this.portAllocationStrategy = portAllocationStrategy;
+    }
+
+    /**
+     * Data-plane parameters of tun2socks (MTU, buffer sizes), applied on next connect.
+     */
+    public void setTun2SocksConfig(Tun2SocksConfig tun2SocksConfig)
+    {
+        if (tun2SocksConfig == null)
+            throw new IllegalArgumentException("tun2SocksConfig must not be null.");
+
+        this.tun2SocksConfig = tun2SocksConfig;
+    }
+
+    /**
+     * Data plane used on next connect, null for native tun2socks (default). Must not be changed while connected.
+     */
+    public void setTun2SocksEngine(Tun2SocksEngine tun2SocksEngine)
+    {
+        this.tun2SocksEngine = tun2SocksEngine;
+    }
+
+    /**
+     * When policy is set, tun2socks connects to in-process {@link SocksPolicyProxy} instead of tor SocksPort,
+     * so every connection can be proxied with isolation credentials, connected directly or refused.
+     * Null (default) disables the proxy. Applied on next connect.
+     */
+    public void setSocksPolicy(SocksPolicy socksPolicy)
+    {
+        this.socksPolicy = socksPolicy;
+    }
+
+    /**
+     * Listener receives timings of every connection passed through policy proxy, see {@link #setSocksPolicy(SocksPolicy)}.
+     */
+    public void setSocksFlowListener(SocksPolicyProxy.FlowListener socksFlowListener)
+    {
+        this.socksFlowListener = socksFlowListener;
+    }
+
+    /**
+     * Caps concurrent SOCKS handshakes of tun2socks connections and queues the rest fairly.
+     * Setting controller enables policy proxy even without policy. Null (default) disables admission control.
+     * Applied on next connect.
+     */
+    public void setSocksAdmissionController(AdmissionController socksAdmissionController)
+    {
+        this.socksAdmissionController = socksAdmissionController;
+    }
+
+    /**
+     * @return running policy proxy, null if policy is not set or VPN is not connected
+     */
+    public SocksPolicyProxy getSocksPolicyProxy()
+    {
+        return socksPolicyProxy;
+    }
+
+    /**
+     * When forwarder is set, DNS queries of VPN are answered by in-process caching {@link DnsForwarder} over tor DNSPort
+     * instead of pdnsd. Null (default) uses pdnsd. Applied on next connect, must not be changed while connected.
+     * Once started, pdnsd keeps running for app lifetime, so forwarder must be set before first connect.
+     * <p>
+     * Forwarder cache is saved to data directory on disconnect and restored in background on first connect.
+     */
+    public void setDnsForwarder(DnsForwarder dnsForwarder)
+    {
+        this.dnsForwarder = dnsForwarder;
+    }
+
+    /**
+     * Address to host name mappings of tor, kept in sync from ADDRMAP events while VPN is connected,
+     * and answers of {@link DnsForwarder} when it is set.
+     * Flows of policy proxy are attributed from it, see {@link SocksFlowRecord#getHostName()}.
+     */
+    public AddressMap getAddressMap()
+    {
+        return addressMap;
+    }
+
+    /**
+     * Circuit build statistics per exit country selected in {@link VpnConfiguration#setCountryIso(String)},
+     * collected over app lifetime, see {@link ExitCountryStats#getRanking(int)}.
+     */
+    public ExitCountryStats getExitCountryStats()
+    {
+        return exitCountryStats;
+    }
+
+    /**
+     * Histogram of circuit build times and build timeouts computed by tor, saved on disconnect and kept across restarts.
+     */
+    public CircuitBuildTimes getCircuitBuildTimes()
+    {
+        return circuitBuildTimes;
+    }
+
+    /**
+     * Connect and first byte latency of tor streams per port class and exit country, collected over app lifetime.
+     */
+    public StreamLatencyTracker getStreamLatencyTracker()
+    {
+        return streamLatencyTracker;
+    }
+
+    /**
+     * Metrics of the VPN, tor and all library subsystems. Further collectors of the app can be registered to it.
+     */
+    public MetricsRegistry getMetricsRegistry()
+    {
+        return metricsRegistry;
+    }
+
+    /**
+     * Serves {@link #getMetricsRegistry()} in Prometheus text format on loopback, intended for test and dogfood builds.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @return address metrics are served on
+     */
+    public synchronized InetSocketAddress startMetricsServer(int port) throws IOException
+    {
+        stopMetricsServer();
+
+        MetricsHttpServer server = new MetricsHttpServer(metricsRegistry);
+        InetSocketAddress address = server.start(port);
+        this.metricsHttpServer = server;
+
+        return address;
+    }
+
+    public synchronized void stopMetricsServer()
+    {
+        if (metricsHttpServer == null)
+            return;
+
+        metricsHttpServer.close();
+        this.metricsHttpServer = null;
+    }
+
+    /**
+     * When interval is set, tor MetricsPort is opened on loopback and scraped into {@link #getMetricsRegistry()}
+     * at given interval while VPN is connected. 0 (default) disables the port. Requires tor 0.4.7 or newer.
+     * Tor is started once per app lifetime, so interval must be set before first connect.
+     */
+    public void setTorMetricsInterval(long intervalMillis)
+    {
+        this.torMetricsInterval = intervalMillis;
+    }
+
+    private Tun2SocksEngine getTun2SocksEngine()
+    {
+        Tun2SocksEngine engine = this.tun2SocksEngine;
+        return engine != null ? engine : TLJNIBridge.get().getTun2Socks();
     }
 
     public void connect(VpnConfiguration vpnConfiguration)
     {
         onConnecting();
+        connectAttempts.increment();
 
-        executor.execute(() ->
-        {
-            try
-            {
-                portConfig.setSocksPort(TorUtils.checkLocalPort(9050));
-                portConfig.setControlPort(TorUtils.checkLocalPort(9051));
+        if (startupPipeline != null)
+            startupPipeline.cancel();
 
-                if (!pdnsPortsAssigned)
-                {
-                    pdnsPortsAssigned = true;
-                    // choose ports once, use the same ports all app lifetime
-                    portConfig.setDnsPort(TorUtils.checkLocalPort(5400));
-                    portConfig.setUdpgwPort(TorUtils.checkLocalPort(8092));
-                }
+        StartupPipeline.TraceListener traceListener = startupTraceListener;
 
-                mainThreadHandler.post(() -> setupInterfaceWithTor(vpnConfiguration));
-            }
-            catch (Exception e)
-            {
-                onException(e);
-            }
-        });
+        this.startupPipeline = new StartupPipeline()
+                .setTraceListener(new StartupPipeline.TraceListener()
+                {
+                    @Override
+                    public void onStageFinished(StartupPipeline.StageTrace trace)
+                    {
+                        if (traceListener != null)
+                            traceListener.onStageFinished(trace);
+                    }
+
+                    @Override
+                    public void onPipelineFinished(List<StartupPipeline.StageTrace> traces, Exception exception)
+                    {
+                        if (BuildConfig.DEBUG)
+                            Log.d(TAG, "Startup trace: " + traces);
+
+                        if (traceListener != null)
+                            traceListener.onPipelineFinished(traces, exception);
+
+                        if (exception != null)
+                        {
+                            connectFailures.increment();
+                            onException(exception);
+                        }
+                    }
+                })
+                .addStage(STAGE_PORTS, startupExecutor, c -> allocatePorts())
+                .addStage(STAGE_ASSETS, startupExecutor, c -> installAssets())
+                .addStage(STAGE_TUN, startupExecutor, c -> establishTunInterface(vpnConfiguration))
+                .addStage(STAGE_TOR, startupExecutor, c -> startTor(), STAGE_PORTS, STAGE_ASSETS)
+                .addAsyncStage(STAGE_CONTROL_PORT, startupExecutor, this::attachControlPort, STAGE_TOR)
+                .addStage(STAGE_CONFIGURE, startupExecutor, c -> configureTor(vpnConfiguration), STAGE_CONTROL_PORT)
+                .addStage(STAGE_TUN2SOCKS, startupExecutor, c -> startTun2Socks(vpnConfiguration), STAGE_CONFIGURE, STAGE_TUN)
+                .addAsyncStage(STAGE_BOOTSTRAP, startupExecutor, this::startPendingConnectionCheck, STAGE_CONFIGURE);
+
+        startupPipeline.start();
     }
 
     public void disconnect()
     {
         try
         {
+            if (startupPipeline != null)
+                startupPipeline.cancel();
+
+            stopPendingConnectionCheck();
+
             TLJNIBridge bridge = TLJNIBridge.get();
 
             if (!bridge.getTor().isTorRunning())
                 return;
 
-            executor.execute(() -> bridge.getTor().setNetworkEnabled(false));
-
-            bridge.getTun2Socks().destroyInterface();
-
-            try
+            // native calls may block, keep them off the main thread
+            executor.execute(() ->
             {
-                if (tunInterface != null)
-                    tunInterface.close();
-            }
-            catch (Exception e)
-            {
-                onException(e);
-            }
-
-            onDisconnected();
+                try
+                {
+                    disconnects.increment();
+                    bridge.getTor().setNetworkEnabled(false);
+                    getTun2SocksEngine().destroyInterface();
+                    stopSocksPolicyProxy();
+                    stopDnsForwarder();
+
+                    if (torMetricsScraper != null)
+                        torMetricsScraper.close();
+
+                    addressMap.clear();
+                    exitCountryStats.clearCircuits();
+                    circuitBuildTimes.clearCircuits();
+                    streamLatencyTracker.clearStreams();
+                    startupExecutor.execute(this::saveCircuitBuildTimes);
+
+                    try
+                    {
+                        if (tunInterface != null)
+                            tunInterface.close();
+                    }
+                    catch (Exception e)
+                    {
+                        onException(e);
+                    }
+
+                    mainThreadHandler.post(this::onDisconnected);
+                }
+                catch (Exception e)
+                {
+                    onException(e);
+                }
+            });
         }
         catch (Exception e)
         {
@@ -241,110 +562,173 @@ public abstract class TorVpnProvider
         }
     }
 
-    private void setupInterfaceWithTor(VpnConfiguration vpnConfiguration)
+    private void allocatePorts() throws IOException
     {
-        try
+        // tor and pdnsd are started once per app lifetime, so ports are chosen once and used all app lifetime
+        if (portsAssigned)
+            return;
+
+        PortAllocator portAllocator = new PortAllocator(portAllocationStrategy, new File(dataDirectory, "ports"));
+
+        portConfig.setSocksPort(portAllocator.reserve("socks", 9050, true));
+        portConfig.setControlPort(portAllocator.reserve("control", 9051, false));
+        portConfig.setDnsPort(portAllocator.reserve("dns", 5400, true));
+
+        if (torMetricsInterval > 0)
+            portConfig.setMetricsPort(portAllocator.reserve("metrics", 9035, false));
+
+        this.portAllocator = portAllocator;
+        this.portsAssigned = true;
+    }
+
+    private void installAssets() throws IOException
+    {
+        assetToFile(ctx, new File(dataDirectory, "geoip"), "geoip");
+        assetToFile(ctx, new File(dataDirectory, "geoip6"), "geoip6");
+
+        // tor is started once per app lifetime, seed is useful only before the first start
+        if (consensusSeedResult == null)
+            seedConsensus();
+    }
+
+    private void establishTunInterface(VpnConfiguration vpnConfiguration) throws PackageManager.NameNotFoundException, VpnException
+    {
+        this.tunInterface = vpnConfiguration
+                .getVpnBuilder()
+                .setMtu(tun2SocksConfig.getMtu())
+                .addAddress(vpnConfiguration.getGatewayIp(), 32)
+                .addRoute("0.0.0.0", 0)
+                .addDnsServer("1.1.1.1")
+                .addDisallowedApplication(ctx.getPackageName())
+                .setConfigureIntent(null)
+                .setBlocking(false)
+                .establish();
+
+        if (tunInterface == null)
+            throw new VpnException(VpnError.VPNInterfaceCreationDenied, "Unable to establish VPN interface.");
+    }
+
+    private void startTor()
+    {
+        TLJNIBridge bridge = TLJNIBridge.get();
+
+        bridge.setMainThreadDispatcher(mainThreadHandler::post);
+        bridge.setNativeLogPriority(BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO);
+
+        TLJNIBridge.Tor tor = bridge.getTor();
+
+        if (tor.isTorRunning())
+            return;
+
+        this.controlPortPassword = PasswordDigest.generateDigest();
+
+        TorConfig torConfig = new TorConfig()
+                .addAllowMissingTorrc()
+                .setLog(BuildConfig.DEBUG ? TorConfig.LogSeverity.Warn : TorConfig.LogSeverity.Notice, TorConfig.LogOutput.Syslog)
+                .setRunAsDaemon(false)
+                .setControlPort(getControlPortAddress())
+                .setSocksPort(portConfig.getSocksPort().getTorPortValue() + " IPv6Traffic PreferIPv6")
+                .setDnsPort(portConfig.getDnsPort().getTorPortValue())
+                .addCommandPrefixed("AvoidDiskWrites", "0")
+                .addCommandPrefixed("SafeSocks", "0")
+                .addCommandPrefixed("TestSocks", "0")
+                .addCommandPrefixed("ReducedConnectionPadding", "1")
+                .addCommandPrefixed("CircuitPadding", "1")
+                .addCommandPrefixed("StrictNodes", "0")
+                .setDisableNetwork(true)
+                .setUseBridges(false)
+                .setGeoIPFiles(new File(dataDirectory, "geoip"), new File(dataDirectory, "geoip6"))
+                .setHashedControlPassword(controlPortPassword)
+                .setDataDirectory(dataDirectory);
+
+        if (BuildConfig.DEBUG)
+            torConfig.setSafeLogging("0");
+
+        PortAllocator.Reservation metricsPort = portConfig.getMetricsPort();
+
+        if (metricsPort != null)
+        {
+            torConfig.setMetricsPort(InetSocketAddress.createUnresolved("127.0.0.1", metricsPort.getPort()))
+                    .setMetricsPortPolicy("accept 127.0.0.1");
+
+            metricsPort.release();
+        }
+
+        portConfig.getSocksPort().release();
+        portConfig.getControlPort().release();
+        portConfig.getDnsPort().release();
+
+        tor.createTorConfig()
+                .setTorCommandLine(torConfig)
+                .startTor();
+    }
+
+    private void attachControlPort(StartupPipeline.Completion completion)
+    {
+        TLJNIBridge.Tor tor = TLJNIBridge.get().getTor();
+        TorControlSocket existingSocket = tor.getControlPortSocket();
+
+        if (existingSocket != null)
+        {
+            this.controlSocket = existingSocket;
+            completion.complete();
+            return;
+        }
+
+        if (controlPortPassword == null)
+            throw new IllegalStateException("Tor is running without attached control port.");
+
+        tor.attachControlPort(getControlPortAddress(), new TorControlSocket(controlPortPassword, new TorControlSocket.ConnectionHandler()
         {
-            this.tunInterface = vpnConfiguration
-                    .getVpnBuilder()
-                    .setMtu(VPN_MTU)
-                    .addAddress(vpnConfiguration.getGatewayIp(), 32)
-                    .addRoute("0.0.0.0", 0)
-                    .addDnsServer("1.1.1.1")
-                    .addDisallowedApplication(ctx.getPackageName())
-                    .setConfigureIntent(null)
-                    .setBlocking(false)
-                    .establish();
-
-            File geoipFile = new File(dataDirectory, "geoip");
-            assetToFile(ctx, geoipFile, "geoip");
-
-            File geoip6File = new File(dataDirectory, "geoip6");
-            assetToFile(ctx, geoip6File, "geoip6");
-
-            TLJNIBridge bridge = TLJNIBridge
-                    .get();
-
-            bridge.setMainThreadDispatcher(mainThreadHandler::post);
-
-            PasswordDigest controlPortPassword = PasswordDigest.generateDigest();
-            InetSocketAddress controlPortAddress = InetSocketAddress.createUnresolved("127.0.0.1", portConfig.getControlPort());
-
-            TorConfig torConfig = new TorConfig()
-                    .addAllowMissingTorrc()
-                    .setLog(BuildConfig.DEBUG ? TorConfig.LogSeverity.Warn : TorConfig.LogSeverity.Notice, TorConfig.LogOutput.Syslog)
-                    .setRunAsDaemon(false)
-                    .setControlPort(controlPortAddress)
-                    .setSocksPort(portConfig.getSocksPort() + " IPv6Traffic PreferIPv6")
-                    .setDnsPort(String.valueOf(portConfig.getDnsPort()))
-                    .addCommandPrefixed("AvoidDiskWrites", "0")
-                    .addCommandPrefixed("SafeSocks", "0")
-                    .addCommandPrefixed("TestSocks", "0")
-                    .addCommandPrefixed("ReducedConnectionPadding", "1")
-                    .addCommandPrefixed("CircuitPadding", "1")
-                    .addCommandPrefixed("StrictNodes", "0")
-                    .setDisableNetwork(true)
-                    .setUseBridges(false)
-                    .setGeoIPFiles(geoipFile, geoip6File)
-                    .setHashedControlPassword(controlPortPassword)
-                    .setDataDirectory(dataDirectory);
-
-            if (BuildConfig.DEBUG)
-                torConfig.setSafeLogging("0");
-
-            TLJNIBridge.Tor tor = bridge.getTor();
-
-            if (tor.isTorRunning())
+            private volatile boolean connected;
+
+            @Override
+            public void onConnectedAsync(TorControlSocket socket)
             {
-                TorControlSocket controlPort = tor.getControlPortSocket();
+                this.connected = true;
 
-                executor.execute(() -> enableTunInterfaceAsync(controlPort, vpnConfiguration, tunInterface));
+                TorVpnProvider.this.controlSocket = socket;
+                completion.complete();
             }
-            else
+
+            @Override
+            public void onException(TorControlSocket socket, Exception e)
             {
-                tor.createTorConfig()
-                        .setTorCommandLine(torConfig)
-                        .startTor()
-                        .attachControlPort(controlPortAddress, new TorControlSocket(controlPortPassword, new TorControlSocket.ConnectionHandler()
-                        {
-                            @Override
-                            public void onConnectedAsync(TorControlSocket socket)
-                            {
-                                enableTunInterfaceAsync(socket, vpnConfiguration, tunInterface);
-                            }
-
-                            @Override
-                            public void onException(TorControlSocket socket, Exception e)
-                            {
-                                TorVpnProvider.this.onException(e);
-                            }
-                        }, mainThreadHandler::post), new TorEventSocket(controlPortPassword, Arrays.asList("ORCONN", "BW", "NOTICE", "ERR"), new TorEventSocket.EventHandler()
-                        {
-                            @Override
-                            public void onEvent(TorEventSocket socket, List<TorControlSocket.Reply> replyList)
-                            {
-                                //for (TorControlSocket.Reply r : replyList)
-                                //    Log.i(TAG, "Received TOR event: " + r.getMessage());
-                            }
-
-                            @Override
-                            public void onException(TorEventSocket socket, Exception e)
-                            {
-                                TorVpnProvider.this.onException(e);
-                            }
-                        }, mainThreadHandler::post));
+                if (connected)
+                    TorVpnProvider.this.onException(e);
+                else
+                    completion.fail(e);
             }
-        }
-        catch (Exception e)
+        }, mainThreadHandler::post), new TorEventSocket(controlPortPassword, Arrays.asList("ORCONN", "BW", "NOTICE", "ERR", "ADDRMAP", "CIRC", "BUILDTIMEOUT_SET", "STREAM", "STREAM_BW"), new TorEventSocket.EventHandler()
         {
-            onException(e);
-        }
+            @Override
+            public void onEvent(TorEventSocket socket, List<TorControlSocket.Reply> replyList)
+            {
+                addressMap.onEvents(replyList);
+                exitCountryStats.onEvents(replyList);
+                circuitBuildTimes.onEvents(replyList);
+                streamLatencyTracker.onEvents(replyList);
+
+                //for (TorControlSocket.Reply r : replyList)
+                //    Log.i(TAG, "Received TOR event: " + r.getMessage());
+            }
+
+            @Override
+            public void onException(TorEventSocket socket, Exception e)
+            {
+                TorVpnProvider.this.onException(e);
+            }
+        }, mainThreadHandler::post));
     }
 
-    private void enableTunInterfaceAsync(TorControlSocket socket, VpnConfiguration vpnConfiguration, ParcelFileDescriptor tunInterface)
+    private void configureTor(VpnConfiguration vpnConfiguration)
     {
+        TorControlSocket socket = controlSocket;
         String targetCountryIso = vpnConfiguration.getCountryIso();
 
+        exitCountryStats.setExitCountry(targetCountryIso);
+        streamLatencyTracker.setExitCountry(targetCountryIso);
+
         if (StringUtils.isEmpty(targetCountryIso))
             socket.disableExitNodeTargeting();
         else
@@ -354,46 +738,214 @@ public abstract class TorVpnProvider
         socket.signal(TorAbstractControlSocket.Signal.NEWNYM);
         //socket.signal(TorAbstractControlSocket.Signal.DEBUG);
 
-        startPendingConnectionCheck(socket);
+        resolveAutoPort(socket, portConfig.getSocksPort(), "socks");
+        resolveAutoPort(socket, portConfig.getDnsPort(), "dns");
+
+        startTorMetricsScraper();
+    }
+
+    private void startTorMetricsScraper()
+    {
+        PortAllocator.Reservation metricsPort = portConfig.getMetricsPort();
+
+        if (metricsPort == null)
+            return;
+
+        TorMetricsScraper scraper = this.torMetricsScraper;
 
-        mainThreadHandler.post(() ->
+        if (scraper == null)
         {
-            try
-            {
-                if (!TLJNIBridge.get()
-                        .getPdnsd()
-                        .isPdnsdRunning())
-                {
-                    /*
-                     * Start PDNSd
-                     * This daemon implementation does not allow restart without crashing/exiting main process, so it is started once per app lifetime for now...
-                     */
-                    TLJNIBridge.get()
-                            .getPdnsd()
-                            .startPdnsd(new PdnsdConfig()
-                                    .setBaseDir(dataDirectory)
-                                    .setUpstreamDnsAddress(InetSocketAddress.createUnresolved("127.0.0.1", portConfig.getDnsPort()))
-                                    .setDnsServerAddress(InetSocketAddress.createUnresolved(vpnConfiguration.getGatewayIp(), portConfig.getUdpgwPort()))
-                            );
-                }
+            scraper = new TorMetricsScraper(new InetSocketAddress("127.0.0.1", metricsPort.getPort()))
+                    .setInterval(torMetricsInterval);
 
-                TLJNIBridge
-                        .get()
-                        .getTun2Socks()
-                        .createInterface(
-                                tunInterface.detachFd(),
-                                VPN_MTU,
-                                vpnConfiguration.getClientIp(),
-                                vpnConfiguration.getClientIpMask(),
-                                String.format(Locale.US, "127.0.0.1:%d", portConfig.getSocksPort()),
-                                String.format(Locale.US, "%s:%d", vpnConfiguration.getGatewayIp(), portConfig.getUdpgwPort())
-                        );
-            }
-            catch (Exception e)
+            metricsRegistry.register(scraper);
+            this.torMetricsScraper = scraper;
+        }
+
+        scraper.start();
+    }
+
+    private void resolveAutoPort(TorControlSocket socket, PortAllocator.Reservation reservation, String listenerType)
+    {
+        if (!reservation.isAuto())
+            return;
+
+        int port = socket.getListenerPort(listenerType);
+
+        if (port <= 0)
+            throw new IllegalStateException("Unable to read " + listenerType + " port from tor.");
+
+        reservation.resolve(port);
+    }
+
+    private void startTun2Socks(VpnConfiguration vpnConfiguration) throws IOException
+    {
+        reserveUdpgwPort(vpnConfiguration);
+        portConfig.getUdpgwPort().release();
+
+        DnsForwarder dnsForwarder = this.dnsForwarder;
+
+        if (dnsForwarder != null)
+        {
+            dnsForwarder.setAddressMap(addressMap);
+            dnsForwarder.start(
+                    new InetSocketAddress(vpnConfiguration.getGatewayIp(), portConfig.getUdpgwPort().getPort()),
+                    new InetSocketAddress("127.0.0.1", portConfig.getDnsPort().getPort())
+            );
+
+            if (!dnsCacheLoaded)
             {
-                onException(e);
+                this.dnsCacheLoaded = true;
+                startupExecutor.execute(() -> loadDnsCache(dnsForwarder));
             }
-        });
+        }
+        else if (!TLJNIBridge.get()
+                .getPdnsd()
+                .isPdnsdRunning())
+        {
+            /*
+             * Start PDNSd
+             * This daemon implementation does not allow restart without crashing/exiting main process, so it is started once per app lifetime for now...
+             */
+            TLJNIBridge.get()
+                    .getPdnsd()
+                    .startPdnsd(new PdnsdConfig()
+                            .setBaseDir(dataDirectory)
+                            .setUpstreamDnsAddress(InetSocketAddress.createUnresolved("127.0.0.1", portConfig.getDnsPort().getPort()))
+                            .setDnsServerAddress(InetSocketAddress.createUnresolved(vpnConfiguration.getGatewayIp(), portConfig.getUdpgwPort().getPort()))
+                    );
+        }
+
+        getTun2SocksEngine().createInterface(
+                tunInterface.detachFd(),
+                vpnConfiguration.getClientIp(),
+                vpnConfiguration.getClientIpMask(),
+                String.format(Locale.US, "127.0.0.1:%d", startSocksPolicyProxy()),
+                String.format(Locale.US, "%s:%d", vpnConfiguration.getGatewayIp(), portConfig.getUdpgwPort().getPort()),
+                tun2SocksConfig
+        );
+    }
+
+    /**
+     * DNS for tun2socks is served on gateway address, which exists only once the TUN interface is up,
+     * so the port is reserved there rather than on loopback with other ports.
+     */
+    private void reserveUdpgwPort(VpnConfiguration vpnConfiguration) throws IOException
+    {
+        // pdnsd outlives the connection and stays bound to the port it was started with
+        if (portConfig.getUdpgwPort() != null && dnsForwarder == null && TLJNIBridge.get().getPdnsd().isPdnsdRunning())
+            return;
+
+        portConfig.setUdpgwPort(portAllocator.reserveDatagram("udpgw", 8092, InetAddress.getByName(vpnConfiguration.getGatewayIp())));
+    }
+
+    /**
+     * @return port tun2socks should connect to, policy proxy port if policy or admission control is set, tor SocksPort otherwise
+     */
+    private int startSocksPolicyProxy() throws IOException
+    {
+        stopSocksPolicyProxy();
+
+        SocksPolicy policy = this.socksPolicy;
+        AdmissionController admissionController = this.socksAdmissionController;
+        int socksPort = portConfig.getSocksPort().getPort();
+
+        if (policy == null && admissionController == null)
+            return socksPort;
+
+        if (policy == null)
+            policy = (host, address, port) -> SocksDecision.proxy();
+
+        SocksPolicyProxy proxy = new SocksPolicyProxy(new InetSocketAddress("127.0.0.1", socksPort))
+                .setPolicy(policy)
+                .setAdmissionController(admissionController)
+                .setAddressMap(addressMap)
+                .setFlowListener(socksFlowListener);
+
+        int port = proxy.start(0).getPort();
+        this.socksPolicyProxy = proxy;
+
+        return port;
+    }
+
+    private void stopSocksPolicyProxy()
+    {
+        SocksPolicyProxy proxy = this.socksPolicyProxy;
+
+        if (proxy == null)
+            return;
+
+        proxy.close();
+        this.socksPolicyProxy = null;
+    }
+
+    private void stopDnsForwarder()
+    {
+        DnsForwarder dnsForwarder = this.dnsForwarder;
+
+        if (dnsForwarder == null || !dnsForwarder.isRunning())
+            return;
+
+        dnsForwarder.close();
+        startupExecutor.execute(() -> saveDnsCache(dnsForwarder));
+    }
+
+    private void loadCircuitBuildTimes()
+    {
+        try
+        {
+            circuitBuildTimes.load(circuitBuildTimesFile);
+        }
+        catch (IOException e)
+        {
+            circuitBuildTimesFile.delete();
+            e.printStackTrace();
+        }
+    }
+
+    private void saveCircuitBuildTimes()
+    {
+        try
+        {
+            circuitBuildTimes.save(circuitBuildTimesFile);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadDnsCache(DnsForwarder dnsForwarder)
+    {
+        try
+        {
+            int restored = dnsCacheSnapshot.load(dnsForwarder.getCache());
+            dnsForwarder.mapCachedAddresses();
+            Log.i(TAG, String.format(Locale.US, "Restored %d DNS cache entries", restored));
+        }
+        catch (IOException e)
+        {
+            // cache is rebuilt from scratch
+            dnsCacheSnapshot.getFile().delete();
+            e.printStackTrace();
+        }
+    }
+
+    private void saveDnsCache(DnsForwarder dnsForwarder)
+    {
+        try
+        {
+            dnsCacheSnapshot.save(dnsForwarder.getCache());
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private InetSocketAddress getControlPortAddress()
+    {
+        return InetSocketAddress.createUnresolved("127.0.0.1", portConfig.getControlPort().getPort());
     }
 
     public abstract void onConnecting();
@@ -412,11 +964,29 @@ public abstract class TorVpnProvider
         IOUtils.copy(ctx.getAssets().open(path), new FileOutputStream(targetFile));
     }
 
-    private void startPendingConnectionCheck(TorControlSocket socket)
+    /**
+     * Installs bundled consensus snapshot (assets "cached-microdesc-consensus" and "cached-microdescs"),
+     * so tor does not need to download whole directory on cold start.
+     */
+    private void seedConsensus()
+    {
+        try
+        {
+            this.consensusSeedResult = new ConsensusSeed(ctx.getAssets()::open).installInto(dataDirectory);
+        }
+        catch (Exception e)
+        {
+            // tor will download the directory itself
+            this.consensusSeedResult = ConsensusSeed.Result.Invalid;
+            e.printStackTrace();
+        }
+    }
+
+    private void startPendingConnectionCheck(StartupPipeline.Completion completion)
     {
-        stopPendingConnectionCheck();
+        TorControlSocket socket = controlSocket;
 
-        this.pendingConnectionCheck = Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable()
+        ScheduledFuture<?> check = Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable()
         {
             private final long startTimestamp = System.currentTimeMillis();
 
@@ -437,6 +1007,15 @@ public abstract class TorVpnProvider
                 {
                     stopPendingConnectionCheck();
 
+                    long bootstrapMillis = System.currentTimeMillis() - startTimestamp;
+                    bootstrapTime.record(bootstrapMillis);
+                    connects.increment();
+
+                    Log.i(TAG, String.format(Locale.US, "Bootstrapped in %d ms (consensus seed: %s)", bootstrapMillis, consensusSeedResult));
+
+                    portAllocator.saveSession();
+
+                    completion.complete();
                     mainThreadHandler.post(() -> onConnected());
                 }
                 else if(System.currentTimeMillis() - startTimestamp >= CONNECTION_TIMEOUT)
@@ -444,18 +1023,26 @@ public abstract class TorVpnProvider
                     stopPendingConnectionCheck();
                     mainThreadHandler.post(() -> disconnect());
 
-                    onException(new VpnException(VpnError.ConnectionTimeout, "Connection timeout."));
+                    ExitCountryStats.CountryStats stats = exitCountryStats.getStats(exitCountryStats.getExitCountry());
+                    completion.fail(new VpnException(VpnError.ConnectionTimeout, "Connection timeout." + (stats != null ? " Circuits " + stats : "")));
                 }
             }
         }, 1000, 500, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previousCheck = pendingConnectionCheck.getAndSet(check);
+
+        if(previousCheck != null)
+            previousCheck.cancel(true);
     }
 
+    /**
+     * Called from both main thread and the check itself.
+     */
     private void stopPendingConnectionCheck()
     {
-        if(pendingConnectionCheck != null)
-        {
-            pendingConnectionCheck.cancel(true);
-            this.pendingConnectionCheck = null;
-        }
+        ScheduledFuture<?> check = pendingConnectionCheck.getAndSet(null);
+
+        if(check != null)
+            check.cancel(true);
     }
 }